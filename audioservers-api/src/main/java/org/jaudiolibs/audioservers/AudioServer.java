@@ -15,6 +15,10 @@
 
 package org.jaudiolibs.audioservers;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.jaudiolibs.audioservers.util.AudioServerThread;
+
 /**
  * A base interface for classes providing a server to run AudioClients.
  *
@@ -22,6 +26,9 @@ package org.jaudiolibs.audioservers;
  * provide the Thread in which the server will run, however they do not extend
  * Runnable as the run() method throws an Exception, forcing the application to
  * deal with any problems starting the server.
+ * 
+ * Alternatively, start() will run the server in a new Thread and return a
+ * future that completes when the server terminates.
  *
  * @author Neil C Smith
  */
@@ -54,4 +61,85 @@ public interface AudioServer {
      */
     public void shutdown();
 
+    /**
+     * Start and run the audio server in a new AudioServerThread, using the
+     * CPU affinity and realtime priority set in system properties if any. The
+     * returned future completes when the server terminates, or completes
+     * exceptionally if run() throws an Exception.
+     * 
+     * @see AudioServerThread
+     * @return future completed on termination
+     */
+    public default CompletableFuture<Void> start() {
+        AudioServerThread thread = new AudioServerThread(this);
+        thread.start();
+        return thread.getTermination();
+    }
+
+    /**
+     * Wait for the server to terminate, for up to the given timeout. This
+     * method can be called from another thread.
+     * 
+     * The default implementation polls isActive(), and so will return
+     * immediately if the server has not yet started. Implementations should
+     * override this to wait on actual termination.
+     * 
+     * @param timeout
+     * @param unit
+     * @return true if the server has terminated
+     * @throws InterruptedException
+     */
+    public default boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (isActive()) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Trigger the server to shut down after fading the output to silence over
+     * the given time. Where supported, the server will also drain any audio
+     * buffered in the underlying library before terminating. This method can
+     * be called from another thread, and returns immediately - use
+     * awaitTermination() to wait for the server to shut down.
+     * 
+     * The default implementation calls shutdown() without fading.
+     * 
+     * @param fadeTime
+     * @param unit
+     */
+    public default void shutdown(long fadeTime, TimeUnit unit) {
+        shutdown();
+    }
+
+    /**
+     * Request the server to change to the sample rate and buffer size of the
+     * given configuration while running, without shutting down the
+     * AudioClient. The server will call AudioClient.configure() with the new
+     * configuration before the next call to process(). Channel counts cannot
+     * be changed, and extensions in the passed in configuration are ignored.
+     * This method can be called from another thread, and returns immediately.
+     * 
+     * The returned future completes with the new configuration, or completes
+     * exceptionally if the server cannot apply it. Libraries may support
+     * changing only some parameters - eg. the sample rate of JACK is set by
+     * the JACK server - in which case the future will complete exceptionally
+     * with an UnsupportedOperationException.
+     * 
+     * The default implementation does not support reconfiguration.
+     * 
+     * @param config requested configuration
+     * @return future completed with the new configuration
+     */
+    public default CompletableFuture<AudioConfiguration> reconfigure(AudioConfiguration config) {
+        CompletableFuture<AudioConfiguration> future = new CompletableFuture<AudioConfiguration>();
+        future.completeExceptionally(new UnsupportedOperationException());
+        return future;
+    }
+
 }
@@ -0,0 +1,81 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.ext;
+
+/**
+ * Input and output latency of the audio device, in frames. Input latency is
+ * the delay between audio arriving at the device and being passed to the
+ * AudioClient. Output latency is the delay between audio being written by the
+ * AudioClient and leaving the device.
+ * 
+ * Libraries that support this extension should ensure the correct value is
+ * passed in to the AudioConfiguration provided to the AudioClient. If the
+ * latency changes while running, the client will be reconfigured.
+ * 
+ * @author Neil C Smith
+ */
+public class Latency {
+
+    private final int inputLatency;
+    private final int outputLatency;
+
+    public Latency(int inputLatency, int outputLatency) {
+        if (inputLatency < 0 || outputLatency < 0) {
+            throw new IllegalArgumentException("Latency cannot be less than zero");
+        }
+        this.inputLatency = inputLatency;
+        this.outputLatency = outputLatency;
+    }
+
+    /**
+     * Input latency in frames.
+     * @return int ( >=0 )
+     */
+    public int getInputLatency() {
+        return inputLatency;
+    }
+
+    /**
+     * Output latency in frames.
+     * @return int ( >=0 )
+     */
+    public int getOutputLatency() {
+        return outputLatency;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof Latency) {
+            Latency other = (Latency) obj;
+            return other.inputLatency == inputLatency
+                    && other.outputLatency == outputLatency;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 29 * hash + inputLatency;
+        hash = 29 * hash + outputLatency;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "Latency [input=" + inputLatency + ", output=" + outputLatency + "]";
+    }
+    
+}
@@ -0,0 +1,475 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.ext;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Peak, RMS and clip metering of input and output channels, measured by the
+ * server on the audio thread and readable from any other thread.
+ * 
+ * Pass an instance in to the AudioConfiguration given to the
+ * AudioServerProvider to enable metering in libraries that support this
+ * extension. The same instance will be in the AudioConfiguration passed to
+ * the AudioClient. Levels are measured over each buffer, where possible in
+ * the same pass as the server copies the audio, and published as a
+ * consistent snapshot of all channels through a sequence lock. Readers never
+ * block the audio thread - a read overlapping an update is retried.
+ * 
+ * Clips are samples with a magnitude of 1 or above, counted since the
+ * server was configured.
+ * 
+ * Methods other than getInputLevels() and getOutputLevels() are for use by
+ * server implementations.
+ * 
+ * @author Neil C Smith
+ */
+public final class Metering {
+
+    private final int[] inputSelection;
+    private final int[] outputSelection;
+
+    private volatile Meters inputs;
+    private volatile Meters outputs;
+
+    /**
+     * Meter all input and output channels.
+     */
+    public Metering() {
+        this(null, null);
+    }
+
+    /**
+     * Meter selected input and output channels. A null array meters all
+     * channels, an empty array none.
+     * 
+     * @param inputChannels indexes of input channels to meter
+     * @param outputChannels indexes of output channels to meter
+     */
+    public Metering(int[] inputChannels, int[] outputChannels) {
+        inputSelection = validate(inputChannels);
+        outputSelection = validate(outputChannels);
+        inputs = new Meters(0, null);
+        outputs = new Meters(0, null);
+    }
+
+    private static int[] validate(int[] channels) {
+        if (channels == null) {
+            return null;
+        }
+        for (int channel : channels) {
+            if (channel < 0) {
+                throw new IllegalArgumentException("Channel index cannot be less than zero");
+            }
+        }
+        return channels.clone();
+    }
+
+    /**
+     * Latest input levels.
+     * 
+     * @return levels, one per input channel
+     */
+    public Levels getInputLevels() {
+        return inputs.read();
+    }
+
+    /**
+     * Latest output levels.
+     * 
+     * @return levels, one per output channel
+     */
+    public Levels getOutputLevels() {
+        return outputs.read();
+    }
+
+    /**
+     * Set the channel counts and reset all levels. Servers should call this
+     * before the audio thread starts, and on reconfiguration. Not to be
+     * called from the audio thread.
+     * 
+     * @param inputChannels number of input channels
+     * @param outputChannels number of output channels
+     */
+    public void configure(int inputChannels, int outputChannels) {
+        inputs = new Meters(inputChannels, inputSelection);
+        outputs = new Meters(outputChannels, outputSelection);
+    }
+
+    /**
+     * Whether the input channel is metered.
+     * 
+     * @param channel input channel index
+     * @return true if metered
+     */
+    public boolean isInputMetered(int channel) {
+        return inputs.isMetered(channel);
+    }
+
+    /**
+     * Whether the output channel is metered.
+     * 
+     * @param channel output channel index
+     * @return true if metered
+     */
+    public boolean isOutputMetered(int channel) {
+        return outputs.isMetered(channel);
+    }
+
+    /**
+     * Copy an input channel out of an interleaved buffer, measuring it in the
+     * same pass. Channels that are not metered are copied only.
+     * 
+     * @param channel input channel index
+     * @param src interleaved samples
+     * @param srcOffset offset in src of the first frame
+     * @param channels number of channels in each frame
+     * @param dst channel samples
+     * @param dstOffset offset in dst
+     * @param frames number of frames
+     * @see org.jaudiolibs.audioservers.util.AudioKernels#deinterleave
+     */
+    public void deinterleaveInput(int channel, float[] src, int srcOffset, int channels,
+            float[] dst, int dstOffset, int frames) {
+        inputs.deinterleave(channel, src, srcOffset, channels, dst, dstOffset, frames);
+    }
+
+    /**
+     * Copy an output channel into an interleaved buffer, measuring it in the
+     * same pass. Channels that are not metered are copied only.
+     * 
+     * @param channel output channel index
+     * @param src channel samples
+     * @param srcOffset offset in src
+     * @param dst interleaved samples
+     * @param dstOffset offset in dst of the first frame
+     * @param channels number of channels in each frame
+     * @param frames number of frames
+     * @see org.jaudiolibs.audioservers.util.AudioKernels#interleave
+     */
+    public void interleaveOutput(int channel, float[] src, int srcOffset,
+            float[] dst, int dstOffset, int channels, int frames) {
+        outputs.interleave(channel, src, srcOffset, dst, dstOffset, channels, frames);
+    }
+
+    /**
+     * Measure an input channel, where the server has no copy to combine
+     * metering with.
+     * 
+     * @param channel input channel index
+     * @param buffer samples, from index 0
+     * @param frames number of frames
+     */
+    public void measureInput(int channel, FloatBuffer buffer, int frames) {
+        inputs.measure(channel, buffer, frames);
+    }
+
+    /**
+     * Measure an output channel, where the server has no copy to combine
+     * metering with.
+     * 
+     * @param channel output channel index
+     * @param buffer samples, from index 0
+     * @param frames number of frames
+     */
+    public void measureOutput(int channel, FloatBuffer buffer, int frames) {
+        outputs.measure(channel, buffer, frames);
+    }
+
+    /**
+     * Publish input levels measured since the last call.
+     */
+    public void publishInputs() {
+        inputs.publish();
+    }
+
+    /**
+     * Publish output levels measured since the last call.
+     */
+    public void publishOutputs() {
+        outputs.publish();
+    }
+
+    @Override
+    public String toString() {
+        return "Metering [inputs=" + getInputLevels() + ", outputs=" + getOutputLevels() + "]";
+    }
+
+    /**
+     * Snapshot of the levels of a set of channels, all from the same buffer.
+     */
+    public static final class Levels {
+
+        private final boolean[] metered;
+        private final float[] peak;
+        private final float[] rms;
+        private final long[] clips;
+
+        private Levels(boolean[] metered, float[] peak, float[] rms, long[] clips) {
+            this.metered = metered;
+            this.peak = peak;
+            this.rms = rms;
+            this.clips = clips;
+        }
+
+        /**
+         * Number of channels.
+         * 
+         * @return int ( &gt;=0 )
+         */
+        public int getChannelCount() {
+            return metered.length;
+        }
+
+        /**
+         * Whether the channel is metered. Levels of channels that are not
+         * metered are always zero.
+         * 
+         * @param channel channel index
+         * @return true if metered
+         */
+        public boolean isMetered(int channel) {
+            return metered[channel];
+        }
+
+        /**
+         * Peak absolute sample value over the buffer.
+         * 
+         * @param channel channel index
+         * @return float ( &gt;=0 )
+         */
+        public float getPeak(int channel) {
+            return peak[channel];
+        }
+
+        /**
+         * RMS level over the buffer.
+         * 
+         * @param channel channel index
+         * @return float ( &gt;=0 )
+         */
+        public float getRMS(int channel) {
+            return rms[channel];
+        }
+
+        /**
+         * Number of clipped samples since the server was configured.
+         * 
+         * @param channel channel index
+         * @return long ( &gt;=0 )
+         */
+        public long getClips(int channel) {
+            return clips[channel];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < metered.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                if (metered[i]) {
+                    sb.append("peak=").append(peak[i])
+                            .append(" rms=").append(rms[i])
+                            .append(" clips=").append(clips[i]);
+                } else {
+                    sb.append('-');
+                }
+            }
+            return sb.append(']').toString();
+        }
+
+    }
+
+    /*
+     * Levels of one direction. Measurements accumulate in plain fields owned
+     * by the audio thread, and are copied in to the shared array on publish.
+     * An odd sequence means an update is in progress.
+     */
+    private static final class Meters {
+
+        private final int channels;
+        private final boolean[] metered;
+        private final float[] peak;
+        private final double[] sumSquares;
+        private final long[] clips;
+        private final int[] partFrames;
+        private final AtomicLong sequence;
+        private final AtomicLongArray published;
+
+        private int frames;
+
+        private Meters(int channels, int[] selection) {
+            this.channels = channels;
+            metered = new boolean[channels];
+            if (selection == null) {
+                Arrays.fill(metered, true);
+            } else {
+                for (int channel : selection) {
+                    if (channel < channels) {
+                        metered[channel] = true;
+                    }
+                }
+            }
+            peak = new float[channels];
+            sumSquares = new double[channels];
+            clips = new long[channels];
+            partFrames = new int[channels];
+            sequence = new AtomicLong();
+            published = new AtomicLongArray(channels * 3);
+        }
+
+        private boolean isMetered(int channel) {
+            return channel < channels && metered[channel];
+        }
+
+        private void deinterleave(int channel, float[] src, int srcOffset, int channels,
+                float[] dst, int dstOffset, int frames) {
+            if (!isMetered(channel)) {
+                for (int n = 0, x = srcOffset + channel; n < frames; n++, x += channels) {
+                    dst[dstOffset + n] = src[x];
+                }
+                return;
+            }
+            float pk = peak[channel];
+            double sum = 0;
+            long clipped = 0;
+            for (int n = 0, x = srcOffset + channel; n < frames; n++, x += channels) {
+                float v = src[x];
+                dst[dstOffset + n] = v;
+                float a = Math.abs(v);
+                if (a > pk) {
+                    pk = a;
+                }
+                if (a >= 1) {
+                    clipped++;
+                }
+                sum += v * v;
+            }
+            update(channel, pk, sum, clipped, frames);
+        }
+
+        private void interleave(int channel, float[] src, int srcOffset,
+                float[] dst, int dstOffset, int channels, int frames) {
+            if (!isMetered(channel)) {
+                for (int n = 0, x = dstOffset + channel; n < frames; n++, x += channels) {
+                    dst[x] = src[srcOffset + n];
+                }
+                return;
+            }
+            float pk = peak[channel];
+            double sum = 0;
+            long clipped = 0;
+            for (int n = 0, x = dstOffset + channel; n < frames; n++, x += channels) {
+                float v = src[srcOffset + n];
+                dst[x] = v;
+                float a = Math.abs(v);
+                if (a > pk) {
+                    pk = a;
+                }
+                if (a >= 1) {
+                    clipped++;
+                }
+                sum += v * v;
+            }
+            update(channel, pk, sum, clipped, frames);
+        }
+
+        private void measure(int channel, FloatBuffer buffer, int frames) {
+            if (!isMetered(channel)) {
+                return;
+            }
+            float pk = peak[channel];
+            double sum = 0;
+            long clipped = 0;
+            for (int n = 0; n < frames; n++) {
+                float v = buffer.get(n);
+                float a = Math.abs(v);
+                if (a > pk) {
+                    pk = a;
+                }
+                if (a >= 1) {
+                    clipped++;
+                }
+                sum += v * v;
+            }
+            update(channel, pk, sum, clipped, frames);
+        }
+
+        /*
+         * A channel may be measured in more than one part per buffer, eg.
+         * either side of the end of a ring buffer. Frames are counted once
+         * per buffer, from the longest total of any channel.
+         */
+        private void update(int channel, float pk, double sum, long clipped, int frames) {
+            peak[channel] = pk;
+            sumSquares[channel] += sum;
+            clips[channel] += clipped;
+            int total = partFrames[channel] + frames;
+            partFrames[channel] = total;
+            if (total > this.frames) {
+                this.frames = total;
+            }
+        }
+
+        private void publish() {
+            if (frames == 0) {
+                return;
+            }
+            long seq = sequence.get();
+            sequence.set(seq + 1);
+            for (int i = 0, x = 0; i < channels; i++, x += 3) {
+                if (!metered[i]) {
+                    continue;
+                }
+                float rms = (float) Math.sqrt(sumSquares[i] / frames);
+                published.set(x, Float.floatToRawIntBits(peak[i]));
+                published.set(x + 1, Float.floatToRawIntBits(rms));
+                published.set(x + 2, clips[i]);
+                peak[i] = 0;
+                sumSquares[i] = 0;
+                partFrames[i] = 0;
+            }
+            sequence.set(seq + 2);
+            frames = 0;
+        }
+
+        private Levels read() {
+            float[] pk = new float[channels];
+            float[] rms = new float[channels];
+            long[] cl = new long[channels];
+            while (true) {
+                long seq = sequence.get();
+                if ((seq & 1) == 0) {
+                    for (int i = 0, x = 0; i < channels; i++, x += 3) {
+                        pk[i] = Float.intBitsToFloat((int) published.get(x));
+                        rms[i] = Float.intBitsToFloat((int) published.get(x + 1));
+                        cl[i] = published.get(x + 2);
+                    }
+                    if (sequence.get() == seq) {
+                        return new Levels(metered, pk, rms, cl);
+                    }
+                }
+                Thread.yield();
+            }
+        }
+
+    }
+
+}
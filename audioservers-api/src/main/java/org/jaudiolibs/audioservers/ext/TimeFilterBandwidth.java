@@ -0,0 +1,55 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.ext;
+
+import org.jaudiolibs.audioservers.util.TimeFilter;
+
+/**
+ * Bandwidth in Hz of the delay locked loop used to smooth the time passed to
+ * AudioClient.process(). Lower values give smoother timestamps, higher values
+ * lock faster. This may need tuning per device, depending on how much jitter
+ * the device callbacks have.
+ * 
+ * Libraries that support this extension will look for it in the
+ * AudioConfiguration passed in to the AudioServerProvider.
+ * 
+ * @author Neil C Smith
+ * @see TimeFilter
+ */
+public class TimeFilterBandwidth {
+
+    private final double bandwidth;
+
+    public TimeFilterBandwidth(double bandwidth) {
+        if (!(bandwidth > 0)) {
+            throw new IllegalArgumentException("Bandwidth must be greater than zero");
+        }
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Loop bandwidth in Hz.
+     * @return double ( &gt;0 )
+     */
+    public double getBandwidth() {
+        return bandwidth;
+    }
+
+    @Override
+    public String toString() {
+        return "TimeFilterBandwidth [" + bandwidth + " Hz]";
+    }
+
+}
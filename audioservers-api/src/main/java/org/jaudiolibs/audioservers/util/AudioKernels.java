@@ -0,0 +1,159 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.util;
+
+/**
+ * Common sample processing kernels - interleaving, mixing, gain and 16 bit
+ * PCM conversion.
+ *
+ * On Java 17+ with the jdk.incubator.vector module available (eg. run with
+ * --add-modules jdk.incubator.vector) implementations using the Vector API
+ * are selected at runtime. Otherwise, or if the system property
+ * org.jaudiolibs.audioservers.kernels is set to "scalar", plain loops are
+ * used.
+ *
+ * @author Neil C Smith
+ */
+public final class AudioKernels {
+
+    private final static ScalarKernels KERNELS = KernelSelector.select();
+
+    private AudioKernels() {
+    }
+
+    /**
+     * Name of the selected implementation, eg. "Scalar" or "Vector 256".
+     *
+     * @return implementation name
+     */
+    public static String getImplementation() {
+        return KERNELS.getName();
+    }
+
+    /**
+     * Copy a channel into an interleaved buffer.
+     *
+     * @param src channel samples
+     * @param srcOffset offset in src
+     * @param dst interleaved samples
+     * @param dstOffset offset in dst of the first frame
+     * @param channel channel index within each frame
+     * @param channels number of channels in each frame
+     * @param frames number of frames
+     */
+    public static void interleave(float[] src, int srcOffset, float[] dst, int dstOffset,
+            int channel, int channels, int frames) {
+        KERNELS.interleave(src, srcOffset, dst, dstOffset, channel, channels, frames);
+    }
+
+    /**
+     * Copy a channel out of an interleaved buffer.
+     *
+     * @param src interleaved samples
+     * @param srcOffset offset in src of the first frame
+     * @param channel channel index within each frame
+     * @param channels number of channels in each frame
+     * @param dst channel samples
+     * @param dstOffset offset in dst
+     * @param frames number of frames
+     */
+    public static void deinterleave(float[] src, int srcOffset, int channel, int channels,
+            float[] dst, int dstOffset, int frames) {
+        KERNELS.deinterleave(src, srcOffset, channel, channels, dst, dstOffset, frames);
+    }
+
+    /**
+     * Add src to dst.
+     *
+     * @param src
+     * @param srcOffset
+     * @param dst
+     * @param dstOffset
+     * @param length
+     */
+    public static void add(float[] src, int srcOffset, float[] dst, int dstOffset, int length) {
+        KERNELS.add(src, srcOffset, dst, dstOffset, length);
+    }
+
+    /**
+     * Add src multiplied by gain to dst.
+     *
+     * @param src
+     * @param srcOffset
+     * @param dst
+     * @param dstOffset
+     * @param length
+     * @param gain
+     */
+    public static void addScaled(float[] src, int srcOffset, float[] dst, int dstOffset, int length, float gain) {
+        KERNELS.addScaled(src, srcOffset, dst, dstOffset, length, gain);
+    }
+
+    /**
+     * Multiply samples by a constant gain.
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @param gain
+     */
+    public static void scale(float[] buffer, int offset, int length, float gain) {
+        KERNELS.scale(buffer, offset, length, gain);
+    }
+
+    /**
+     * Multiply samples by a linear gain ramp. The gain of sample i is
+     * start + (end - start) * i / length, so end is reached at the sample
+     * following the ramp, allowing ramps over consecutive buffers to join.
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @param start gain at first sample
+     * @param end gain after last sample
+     */
+    public static void ramp(float[] buffer, int offset, int length, float start, float end) {
+        KERNELS.ramp(buffer, offset, length, start, end);
+    }
+
+    /**
+     * Convert samples to signed 16 bit PCM, clipping to the range -1 .. 1.
+     *
+     * @param src
+     * @param srcOffset
+     * @param dst
+     * @param dstOffset byte offset in dst
+     * @param length number of samples
+     * @param bigEndian
+     */
+    public static void toPCM16(float[] src, int srcOffset, byte[] dst, int dstOffset, int length, boolean bigEndian) {
+        KERNELS.toPCM16(src, srcOffset, dst, dstOffset, length, bigEndian);
+    }
+
+    /**
+     * Convert signed 16 bit PCM samples to float.
+     *
+     * @param src
+     * @param srcOffset byte offset in src
+     * @param dst
+     * @param dstOffset
+     * @param length number of samples
+     * @param bigEndian
+     */
+    public static void fromPCM16(byte[] src, int srcOffset, float[] dst, int dstOffset, int length, boolean bigEndian) {
+        KERNELS.fromPCM16(src, srcOffset, dst, dstOffset, length, bigEndian);
+    }
+
+}
@@ -0,0 +1,379 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jaudiolibs.audioservers.AudioServer;
+
+/**
+ * Runs an AudioServer in a dedicated thread at maximum Java priority.
+ * <p>
+ * On Linux the thread can optionally be pinned to a set of CPUs, and
+ * requested to run with the SCHED_FIFO realtime scheduling policy. These are
+ * applied to the native thread via the taskset and chrt utilities before the
+ * server is started. If the utilities are not available, or the process
+ * lacks the privileges required, the server runs anyway and the failure is
+ * logged. Use {@link #isAffinitySet()} and {@link #isRealtime()} to check
+ * what was applied.
+ * <p>
+ * Pinning the audio thread to an isolated core (eg. using the isolcpus
+ * kernel parameter) can greatly reduce scheduling jitter.
+ * <p>
+ * Defaults for the CPUs and realtime priority can be given in the system
+ * properties org.jaudiolibs.audioservers.thread.cpus (a comma separated list
+ * of CPU indexes) and org.jaudiolibs.audioservers.thread.priority. These also
+ * apply to servers started with {@link AudioServer#start()}.
+ *
+ * @author Neil C Smith
+ */
+public final class AudioServerThread {
+
+    private final static Logger LOG = Logger.getLogger(AudioServerThread.class.getName());
+
+    private final static String CPUS_PROPERTY = "org.jaudiolibs.audioservers.thread.cpus";
+    private final static String PRIORITY_PROPERTY = "org.jaudiolibs.audioservers.thread.priority";
+
+    private final AudioServer server;
+    private final Thread thread;
+    private final CompletableFuture<Void> termination;
+
+    private int[] cpus;
+    private int realtimePriority;
+    private volatile boolean started;
+    private volatile boolean affinitySet;
+    private volatile boolean realtime;
+    private volatile Exception exception;
+
+    /**
+     * Create an AudioServerThread for the given server.
+     *
+     * @param server
+     */
+    public AudioServerThread(AudioServer server) {
+        this(server, "Audio Server");
+    }
+
+    /**
+     * Create an AudioServerThread for the given server.
+     *
+     * @param server
+     * @param name thread name
+     */
+    public AudioServerThread(AudioServer server, String name) {
+        if (server == null || name == null) {
+            throw new NullPointerException();
+        }
+        this.server = server;
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                runServer();
+            }
+        }, name);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        termination = new CompletableFuture<Void>();
+        cpus = defaultCpus();
+        realtimePriority = defaultRealtimePriority();
+    }
+
+    /**
+     * Set the CPUs the thread should be pinned to. Only supported on Linux.
+     * Must be called before start().
+     *
+     * @param cpus CPU indexes, or empty for no affinity
+     * @return this
+     */
+    public AudioServerThread setCpuAffinity(int... cpus) {
+        checkNotStarted();
+        for (int cpu : cpus) {
+            if (cpu < 0) {
+                throw new IllegalArgumentException("Invalid CPU index " + cpu);
+            }
+        }
+        this.cpus = cpus.clone();
+        return this;
+    }
+
+    /**
+     * Request the SCHED_FIFO realtime scheduling policy with the given
+     * priority. Only supported on Linux. Must be called before start().
+     *
+     * @param priority realtime priority (1 - 99), or 0 to use the default
+     * scheduling policy
+     * @return this
+     */
+    public AudioServerThread setRealtimePriority(int priority) {
+        checkNotStarted();
+        if (priority < 0 || priority > 99) {
+            throw new IllegalArgumentException("Realtime priority must be between 0 and 99");
+        }
+        this.realtimePriority = priority;
+        return this;
+    }
+
+    /**
+     * Set whether the thread is a daemon thread. Must be called before
+     * start().
+     *
+     * @param daemon
+     * @return this
+     */
+    public AudioServerThread setDaemon(boolean daemon) {
+        checkNotStarted();
+        thread.setDaemon(daemon);
+        return this;
+    }
+
+    /**
+     * Start the thread and run the server.
+     *
+     * @throws IllegalStateException if already started
+     */
+    public synchronized void start() {
+        checkNotStarted();
+        started = true;
+        thread.start();
+    }
+
+    /**
+     * Trigger the server to shut down. Use one of the await methods to wait
+     * for the server to terminate.
+     */
+    public void stop() {
+        server.shutdown();
+    }
+
+    /**
+     * Wait for the server to terminate.
+     *
+     * @throws InterruptedException
+     */
+    public void await() throws InterruptedException {
+        thread.join();
+    }
+
+    /**
+     * Wait for the server to terminate, for up to the given timeout.
+     *
+     * @param timeout
+     * @param unit
+     * @return true if the server has terminated
+     * @throws InterruptedException
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long millis = unit.toMillis(timeout);
+        if (millis > 0) {
+            thread.join(millis);
+        }
+        return isTerminated();
+    }
+
+    /**
+     * Whether the thread has been started and the server has since
+     * terminated.
+     *
+     * @return terminated
+     */
+    public boolean isTerminated() {
+        return started && !thread.isAlive();
+    }
+
+    /**
+     * The exception thrown by the server's run() method, if any.
+     *
+     * @return exception or null
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    /**
+     * A future that completes when the server terminates, or completes
+     * exceptionally if the server's run() method throws an exception.
+     *
+     * @return future completed on termination
+     */
+    public CompletableFuture<Void> getTermination() {
+        return termination;
+    }
+
+    /**
+     * Whether CPU affinity was successfully applied to the thread.
+     *
+     * @return affinity set
+     */
+    public boolean isAffinitySet() {
+        return affinitySet;
+    }
+
+    /**
+     * Whether the SCHED_FIFO policy was successfully applied to the thread.
+     *
+     * @return realtime
+     */
+    public boolean isRealtime() {
+        return realtime;
+    }
+
+    /**
+     * The server being run.
+     *
+     * @return server
+     */
+    public AudioServer getServer() {
+        return server;
+    }
+
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("Thread already started");
+        }
+    }
+
+    private void runServer() {
+        if (cpus.length > 0 || realtimePriority > 0) {
+            configureNativeThread();
+        }
+        try {
+            server.run();
+            termination.complete(null);
+        } catch (Exception ex) {
+            exception = ex;
+            LOG.log(Level.WARNING, "Audio server terminated with exception", ex);
+            termination.completeExceptionally(ex);
+        } catch (Throwable t) {
+            termination.completeExceptionally(t);
+            throw t;
+        }
+    }
+
+    private static int[] defaultCpus() {
+        String value = System.getProperty(CPUS_PROPERTY, "").trim();
+        if (value.isEmpty()) {
+            return new int[0];
+        }
+        try {
+            String[] parts = value.split(",");
+            int[] list = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                list[i] = Integer.parseInt(parts[i].trim());
+                if (list[i] < 0) {
+                    throw new NumberFormatException();
+                }
+            }
+            return list;
+        } catch (NumberFormatException ex) {
+            LOG.log(Level.WARNING, "Invalid CPU list in {0} : {1}", new Object[]{CPUS_PROPERTY, value});
+            return new int[0];
+        }
+    }
+
+    private static int defaultRealtimePriority() {
+        String value = System.getProperty(PRIORITY_PROPERTY, "").trim();
+        if (value.isEmpty()) {
+            return 0;
+        }
+        try {
+            int priority = Integer.parseInt(value);
+            if (priority >= 0 && priority <= 99) {
+                return priority;
+            }
+        } catch (NumberFormatException ex) {
+        }
+        LOG.log(Level.WARNING, "Invalid realtime priority in {0} : {1}", new Object[]{PRIORITY_PROPERTY, value});
+        return 0;
+    }
+
+    private void configureNativeThread() {
+        String tid = findNativeThreadID();
+        if (tid == null) {
+            LOG.log(Level.INFO, "Unable to find native thread ID, CPU affinity and scheduling policy not applied");
+            return;
+        }
+        if (cpus.length > 0) {
+            StringBuilder list = new StringBuilder();
+            for (int cpu : cpus) {
+                if (list.length() > 0) {
+                    list.append(',');
+                }
+                list.append(cpu);
+            }
+            affinitySet = exec("taskset", "-p", "-c", list.toString(), tid);
+        }
+        if (realtimePriority > 0) {
+            realtime = exec("chrt", "-f", "-p", String.valueOf(realtimePriority), tid);
+        }
+    }
+
+    /*
+     * /proc/thread-self links to /proc/<pid>/task/<tid> for the calling
+     * thread (Linux 3.17+).
+     */
+    private static String findNativeThreadID() {
+        File self = new File("/proc/thread-self");
+        if (!self.exists()) {
+            return null;
+        }
+        try {
+            String path = self.getCanonicalFile().getName();
+            Integer.parseInt(path);
+            return path;
+        } catch (IOException | NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static boolean exec(String... command) {
+        List<String> cmd = Arrays.asList(command);
+        try {
+            Process process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            String output = read(process.getInputStream());
+            int result = process.waitFor();
+            if (result == 0) {
+                LOG.log(Level.FINE, "Applied {0}", cmd);
+                return true;
+            } else {
+                LOG.log(Level.INFO, "Unable to apply {0} : {1}", new Object[]{cmd, output.trim()});
+                return false;
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.INFO, "Unable to apply {0} : {1}", new Object[]{cmd, ex.getMessage()});
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        byte[] buffer = new byte[256];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            sb.append(new String(buffer, 0, count));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.util;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * A utility class that can be used by AudioServer implementations to support
+ * fading out before shut down.
+ * 
+ * A fade may be requested from any thread. process() should be called by the
+ * audio thread after the client has processed each buffer. It applies a
+ * linear fade to the output buffers, silences them once the fade has
+ * completed, and returns true when the server can shut down.
+ * 
+ * @author Neil C Smith
+ */
+public final class FadeOut {
+
+    private volatile int requested = -1;
+    private int total;
+    private int remaining;
+    private boolean active;
+
+    /**
+     * Request a fade out over the given number of frames. Subsequent requests
+     * are ignored.
+     * 
+     * @param frames fade length in frames
+     */
+    public void start(int frames) {
+        if (frames < 0) {
+            throw new IllegalArgumentException();
+        }
+        if (requested < 0) {
+            requested = frames;
+        }
+    }
+
+    /**
+     * Whether a fade out has been requested.
+     * 
+     * @return requested
+     */
+    public boolean isRequested() {
+        return requested >= 0;
+    }
+
+    /**
+     * Apply any requested fade to the output buffers. Only call from the
+     * audio thread. Buffers are indexed from 0, ignoring any position left
+     * by the client.
+     * 
+     * @param outputs output buffers
+     * @param nframes number of frames in each buffer
+     * @return true if the fade has completed and the output is silent
+     */
+    public boolean process(List<FloatBuffer> outputs, int nframes) {
+        if (!active) {
+            int frames = requested;
+            if (frames < 0) {
+                return false;
+            }
+            active = true;
+            total = frames;
+            remaining = frames;
+        }
+        int count = outputs.size();
+        for (int i = 0; i < count; i++) {
+            FloatBuffer buffer = outputs.get(i);
+            int rem = remaining;
+            for (int n = 0; n < nframes; n++) {
+                if (rem > 0) {
+                    buffer.put(n, buffer.get(n) * ((float) rem / total));
+                    rem--;
+                } else {
+                    buffer.put(n, 0);
+                }
+            }
+        }
+        remaining = Math.max(0, remaining - nframes);
+        return remaining == 0;
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.util;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selects the kernels implementation. VectorKernels is only built into the
+ * Java 17 section of the multi-release jar, and only links if the
+ * jdk.incubator.vector module is present. It is used if it loads and passes
+ * a check against the scalar kernels.
+ *
+ * @author Neil C Smith
+ */
+final class KernelSelector {
+
+    private final static Logger LOG = Logger.getLogger(KernelSelector.class.getName());
+
+    private final static String PROPERTY = "org.jaudiolibs.audioservers.kernels";
+
+    private KernelSelector() {
+    }
+
+    static ScalarKernels select() {
+        ScalarKernels scalar = new ScalarKernels();
+        if ("scalar".equalsIgnoreCase(System.getProperty(PROPERTY))) {
+            return scalar;
+        }
+        try {
+            ScalarKernels vector = (ScalarKernels) Class.forName(
+                    "org.jaudiolibs.audioservers.util.VectorKernels")
+                    .getDeclaredConstructor().newInstance();
+            if (check(scalar, vector)) {
+                return vector;
+            }
+            LOG.log(Level.WARNING, "Vector kernels failed check, using scalar kernels");
+        } catch (ClassNotFoundException ex) {
+            // Java 8 to 16
+        } catch (Throwable t) {
+            LOG.log(Level.FINE, "Vector kernels unavailable", t);
+        }
+        return scalar;
+    }
+
+    /*
+     * Exercise every kernel, at an odd length so that tail loops are covered,
+     * and compare with the scalar results. Also ensures everything links
+     * against the incubator API of the running JDK.
+     */
+    private static boolean check(ScalarKernels scalar, ScalarKernels vector) {
+        int length = 67;
+        int channels = 3;
+        float[] src = new float[length];
+        for (int i = 0; i < length; i++) {
+            src[i] = (float) Math.sin(i * 0.37) * 1.2f;
+        }
+        float[][] a = new float[2][length * channels];
+        for (int k = 0; k < 2; k++) {
+            ScalarKernels kernels = k == 0 ? scalar : vector;
+            float[] inter = a[k];
+            kernels.interleave(src, 0, inter, 0, 1, channels, length);
+            kernels.deinterleave(inter, 0, 1, channels, inter, length * 2, length);
+            kernels.add(src, 0, inter, length * 2, length);
+            kernels.addScaled(src, 0, inter, length * 2, length, 0.5f);
+            kernels.scale(inter, 0, length, 0.75f);
+            kernels.ramp(inter, length, length, 1, 0);
+        }
+        if (!Arrays.equals(a[0], a[1])) {
+            return false;
+        }
+        for (boolean bigEndian : new boolean[]{false, true}) {
+            byte[] b0 = new byte[length * 2];
+            byte[] b1 = new byte[length * 2];
+            scalar.toPCM16(src, 0, b0, 0, length, bigEndian);
+            vector.toPCM16(src, 0, b1, 0, length, bigEndian);
+            if (!Arrays.equals(b0, b1)) {
+                return false;
+            }
+            float[] f0 = new float[length];
+            float[] f1 = new float[length];
+            scalar.fromPCM16(b0, 0, f0, 0, length, bigEndian);
+            vector.fromPCM16(b0, 0, f1, 0, length, bigEndian);
+            if (!Arrays.equals(f0, f1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.util;
+
+/**
+ * Plain loop implementations of the kernels in AudioKernels, and the base of
+ * vectorized implementations.
+ *
+ * @author Neil C Smith
+ */
+class ScalarKernels {
+
+    String getName() {
+        return "Scalar";
+    }
+
+    void interleave(float[] src, int srcOffset, float[] dst, int dstOffset,
+            int channel, int channels, int frames) {
+        for (int n = 0, x = dstOffset + channel; n < frames; n++, x += channels) {
+            dst[x] = src[srcOffset + n];
+        }
+    }
+
+    void deinterleave(float[] src, int srcOffset, int channel, int channels,
+            float[] dst, int dstOffset, int frames) {
+        for (int n = 0, x = srcOffset + channel; n < frames; n++, x += channels) {
+            dst[dstOffset + n] = src[x];
+        }
+    }
+
+    void add(float[] src, int srcOffset, float[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] += src[srcOffset + i];
+        }
+    }
+
+    void addScaled(float[] src, int srcOffset, float[] dst, int dstOffset, int length, float gain) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] += src[srcOffset + i] * gain;
+        }
+    }
+
+    void scale(float[] buffer, int offset, int length, float gain) {
+        for (int i = 0; i < length; i++) {
+            buffer[offset + i] *= gain;
+        }
+    }
+
+    void ramp(float[] buffer, int offset, int length, float start, float end) {
+        float step = (end - start) / length;
+        for (int i = 0; i < length; i++) {
+            buffer[offset + i] *= start + step * i;
+        }
+    }
+
+    void toPCM16(float[] src, int srcOffset, byte[] dst, int dstOffset, int length, boolean bigEndian) {
+        int ox = dstOffset;
+        for (int i = 0; i < length; i++) {
+            float f = src[srcOffset + i];
+            int x = (int) ((f > 1 ? 1 : (f < -1 ? -1 : f)) * 32767f);
+            if (bigEndian) {
+                dst[ox++] = (byte) (x >>> 8);
+                dst[ox++] = (byte) x;
+            } else {
+                dst[ox++] = (byte) x;
+                dst[ox++] = (byte) (x >>> 8);
+            }
+        }
+    }
+
+    void fromPCM16(byte[] src, int srcOffset, float[] dst, int dstOffset, int length, boolean bigEndian) {
+        int ix = srcOffset;
+        for (int i = 0; i < length; i++, ix += 2) {
+            short s = bigEndian
+                    ? (short) ((src[ix] << 8) | (src[ix + 1] & 0xFF))
+                    : (short) ((src[ix] & 0xFF) | (src[ix + 1] << 8));
+            dst[dstOffset + i] = s * (1f / 32767f);
+        }
+    }
+
+}
@@ -0,0 +1,388 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.util;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+
+/**
+ * An AudioClient that delegates to another AudioClient, which can be replaced
+ * while the server is running.
+ * 
+ * Pass an instance of this class to the server in place of the client. A call
+ * to swap() configures the new client on a separate thread, and the audio
+ * thread switches to it at the start of the next buffer, optionally
+ * crossfading between the outputs of the old and new clients. The old client
+ * is then shut down on a separate thread. The audio thread never configures,
+ * shuts down or allocates.
+ * 
+ * During a crossfade both clients process every buffer and see the same
+ * inputs. The old client writes into separate buffers allocated in
+ * configure().
+ * 
+ * @author Neil C Smith
+ */
+public final class SwappableClient implements AudioClient {
+
+    private final static Logger LOG = Logger.getLogger(SwappableClient.class.getName());
+
+    private final Object lock = new Object();
+    private final AtomicReference<Swap> pending = new AtomicReference<Swap>();
+    private volatile AudioClient current;
+    private AudioConfiguration context;
+    private boolean shutdown;
+
+    // audio thread state
+    private Swap fading;
+    private int fadeTotal;
+    private int fadeRemaining;
+    private float[][] scratchData;
+    private List<FloatBuffer> scratch;
+    private int[] inputPositions;
+    private int[] inputLimits;
+
+    /**
+     * Create a SwappableClient delegating to the given client.
+     * 
+     * @param client initial client
+     */
+    public SwappableClient(AudioClient client) {
+        if (client == null) {
+            throw new NullPointerException();
+        }
+        this.current = client;
+    }
+
+    /**
+     * Get the client currently processing audio. During a crossfade this is
+     * the new client.
+     * 
+     * @return current client
+     */
+    public AudioClient getClient() {
+        return current;
+    }
+
+    /**
+     * Replace the current client, switching at the next buffer without a
+     * crossfade.
+     * 
+     * @param client new client
+     * @return future completed once the old client has been shut down
+     * @see #swap(AudioClient, long, TimeUnit)
+     */
+    public CompletableFuture<Void> swap(AudioClient client) {
+        return swap(client, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Replace the current client. The new client is configured on a new
+     * thread with the current configuration. If configuration fails, the
+     * returned future completes exceptionally and the current client carries
+     * on processing. Otherwise the audio thread switches to the new client at
+     * the start of the next buffer, crossfading over the given time. When the
+     * crossfade is complete, the old client is shut down and the future
+     * completes.
+     * 
+     * If another swap is requested before the audio thread has switched, the
+     * earlier client is shut down without processing and its future is
+     * cancelled. If a swap is requested during a crossfade, the crossfade is
+     * ended immediately.
+     * 
+     * If the server has not configured this client yet, the client is
+     * replaced directly.
+     * 
+     * @param client new client
+     * @param fadeTime crossfade time, or 0 to switch immediately
+     * @param unit unit of fade time
+     * @return future completed once the old client has been shut down
+     */
+    public CompletableFuture<Void> swap(final AudioClient client, long fadeTime, TimeUnit unit) {
+        if (client == null) {
+            throw new NullPointerException();
+        }
+        if (fadeTime < 0) {
+            throw new IllegalArgumentException();
+        }
+        final Swap swap = new Swap(client, unit.toNanos(fadeTime));
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                runSwap(swap);
+            }
+        }, "SwappableClient");
+        thread.setDaemon(true);
+        thread.start();
+        return swap.future;
+    }
+
+    private void runSwap(Swap swap) {
+        AudioClient old;
+        synchronized (lock) {
+            if (shutdown) {
+                swap.future.completeExceptionally(new IllegalStateException("Client has been shut down"));
+                return;
+            }
+            if (context != null) {
+                try {
+                    swap.client.configure(context);
+                } catch (Exception ex) {
+                    swap.future.completeExceptionally(ex);
+                    return;
+                }
+                Swap previous = pending.getAndSet(swap);
+                if (previous != null) {
+                    previous.discard();
+                }
+                old = null;
+            } else {
+                // not running yet, so no need to hand over to the audio thread
+                Swap previous = pending.getAndSet(null);
+                if (previous != null) {
+                    previous.discard();
+                }
+                old = current;
+                current = swap.client;
+                swap.release(old);
+            }
+        }
+        try {
+            swap.released.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        swap.finish();
+    }
+
+    /**
+     * Configure the current client, and any client waiting to be switched in.
+     * Buffers for crossfading are allocated here.
+     * 
+     * @param context
+     * @throws Exception
+     */
+    @Override
+    public void configure(AudioConfiguration context) throws Exception {
+        synchronized (lock) {
+            int outs = context.getOutputChannelCount();
+            int size = context.getMaxBufferSize();
+            scratchData = new float[outs][size];
+            List<FloatBuffer> list = new ArrayList<FloatBuffer>(outs);
+            for (int i = 0; i < outs; i++) {
+                list.add(FloatBuffer.wrap(scratchData[i]));
+            }
+            scratch = Collections.unmodifiableList(list);
+            inputPositions = new int[context.getInputChannelCount()];
+            inputLimits = new int[context.getInputChannelCount()];
+            Swap f = fading;
+            if (f != null) {
+                // processing is stopped, so finish the crossfade
+                fading = null;
+                f.release(f.previous);
+            }
+            this.context = context;
+            current.configure(context);
+            Swap p = pending.get();
+            if (p != null) {
+                try {
+                    p.client.configure(context);
+                } catch (Exception ex) {
+                    if (pending.compareAndSet(p, null)) {
+                        p.fail(ex);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+        Swap swap = pending.getAndSet(null);
+        if (swap != null) {
+            Swap f = fading;
+            if (f != null) {
+                f.release(f.previous);
+            }
+            AudioClient old = current;
+            current = swap.client;
+            int frames = (int) Math.min(Integer.MAX_VALUE, swap.fadeNanos * (double) context.getSampleRate() / 1e9);
+            if (frames > 0) {
+                swap.previous = old;
+                fading = swap;
+                fadeTotal = frames;
+                fadeRemaining = frames;
+            } else {
+                fading = null;
+                swap.release(old);
+            }
+        }
+        Swap f = fading;
+        if (f == null) {
+            return current.process(time, inputs, outputs, nframes);
+        }
+        saveInputs(inputs);
+        boolean oldOK = processOld(f.previous, time, inputs, nframes);
+        restoreInputs(inputs);
+        boolean ok = current.process(time, inputs, outputs, nframes);
+        mix(outputs, nframes);
+        fadeRemaining = oldOK ? Math.max(0, fadeRemaining - nframes) : 0;
+        if (fadeRemaining == 0) {
+            fading = null;
+            f.release(f.previous);
+        }
+        return ok;
+    }
+
+    private boolean processOld(AudioClient old, long time, List<FloatBuffer> inputs, int nframes) {
+        int count = scratch.size();
+        for (int i = 0; i < count; i++) {
+            float[] data = scratchData[i];
+            for (int n = 0; n < nframes; n++) {
+                data[n] = 0;
+            }
+            scratch.get(i).clear();
+        }
+        return old.process(time, inputs, scratch, nframes);
+    }
+
+    private void mix(List<FloatBuffer> outputs, int nframes) {
+        int count = Math.min(outputs.size(), scratch.size());
+        for (int i = 0; i < count; i++) {
+            FloatBuffer buffer = outputs.get(i);
+            float[] data = scratchData[i];
+            int rem = fadeRemaining;
+            for (int n = 0; n < nframes; n++) {
+                float gain = rem > 0 ? (float) rem / fadeTotal : 0;
+                buffer.put(n, buffer.get(n) * (1 - gain) + data[n] * gain);
+                if (rem > 0) {
+                    rem--;
+                }
+            }
+        }
+    }
+
+    private void saveInputs(List<FloatBuffer> inputs) {
+        int count = Math.min(inputs.size(), inputPositions.length);
+        for (int i = 0; i < count; i++) {
+            FloatBuffer buffer = inputs.get(i);
+            inputPositions[i] = buffer.position();
+            inputLimits[i] = buffer.limit();
+        }
+    }
+
+    private void restoreInputs(List<FloatBuffer> inputs) {
+        int count = Math.min(inputs.size(), inputPositions.length);
+        for (int i = 0; i < count; i++) {
+            FloatBuffer buffer = inputs.get(i);
+            buffer.limit(inputLimits[i]);
+            buffer.position(inputPositions[i]);
+        }
+    }
+
+    /**
+     * Shut down the current client. Any client still fading out or waiting to
+     * be switched in is shut down on its swap thread.
+     */
+    @Override
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            Swap f = fading;
+            if (f != null) {
+                fading = null;
+                f.release(f.previous);
+            }
+            Swap p = pending.getAndSet(null);
+            if (p != null) {
+                p.discard();
+            }
+            try {
+                current.shutdown();
+            } catch (Exception ex) {
+                LOG.log(Level.WARNING, "", ex);
+            }
+        }
+    }
+
+    private static class Swap {
+
+        private final AudioClient client;
+        private final long fadeNanos;
+        private final CompletableFuture<Void> future;
+        private final CountDownLatch released;
+        private AudioClient previous;
+        private volatile AudioClient retired;
+        private volatile Throwable failure;
+
+        private Swap(AudioClient client, long fadeNanos) {
+            this.client = client;
+            this.fadeNanos = fadeNanos;
+            this.future = new CompletableFuture<Void>();
+            this.released = new CountDownLatch(1);
+        }
+
+        /*
+         * Called once the client to retire is no longer processed. Safe to
+         * call from the audio thread.
+         */
+        private void release(AudioClient retire) {
+            retired = retire;
+            released.countDown();
+        }
+
+        private void discard() {
+            fail(new CancellationException());
+        }
+
+        private void fail(Throwable ex) {
+            failure = ex;
+            release(client);
+        }
+
+        /*
+         * Called on the swap thread.
+         */
+        private void finish() {
+            AudioClient retire = retired;
+            if (retire != null) {
+                try {
+                    retire.shutdown();
+                } catch (Exception ex) {
+                    LOG.log(Level.WARNING, "", ex);
+                }
+            }
+            Throwable ex = failure;
+            if (ex != null) {
+                future.completeExceptionally(ex);
+            } else {
+                future.complete(null);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.util;
+
+/**
+ * A delay locked loop for recovering a smooth timeline from the jittery
+ * system times at which audio callbacks run. Times are in the
+ * System.nanoTime() domain, and positions in frames of the audio device. The
+ * filter tracks the rate of the device clock relative to the system clock,
+ * so timestamps passed to an AudioClient advance consistently with the audio
+ * even where the device clock drifts.
+ * <p>
+ * The filter resets itself when the frame position passed to update() is not
+ * contiguous with the previous buffer (eg. after an xrun or driver resync),
+ * when the sample rate changes, or optionally when the error between system
+ * time and filter time exceeds a threshold.
+ * <p>
+ * update() and reset() must be called from a single thread, usually the
+ * audio thread. Bandwidth may be set, and statistics read, from any thread.
+ * <p>
+ * Based on the approach described by Fons Adriaensen in "Using a DLL to
+ * filter time".
+ * 
+ * @author Neil C Smith
+ */
+public final class TimeFilter {
+
+    /**
+     * Default loop bandwidth in Hz.
+     */
+    public final static double DEFAULT_BANDWIDTH = 1.5;
+
+    private final static double JITTER_SMOOTHING = 0.01;
+
+    private volatile double bandwidth;
+    private volatile double maxErrorPeriods;
+
+    // loop state - owned by the calling thread
+    private double sampleRate;
+    private double nominalRate;
+    private double coeffBandwidth;
+    private int coeffFrames;
+    private double b;
+    private double c;
+    private boolean locked;
+    private long origin;
+    private long originPosition;
+    private long position;
+    private long expectedPosition;
+    private double t0;
+    private double t1;
+    private double rate;
+    private double jitterSq;
+
+    // statistics
+    private volatile long cycles;
+    private volatile long resets;
+    private volatile double drift;
+    private volatile double jitter;
+    private volatile long offset;
+
+    /**
+     * Create a TimeFilter with the default bandwidth.
+     * 
+     * @param sampleRate nominal sample rate of the device
+     */
+    public TimeFilter(double sampleRate) {
+        this(sampleRate, DEFAULT_BANDWIDTH);
+    }
+
+    /**
+     * Create a TimeFilter.
+     * 
+     * @param sampleRate nominal sample rate of the device
+     * @param bandwidth loop bandwidth in Hz
+     */
+    public TimeFilter(double sampleRate, double bandwidth) {
+        setSampleRate(sampleRate);
+        setBandwidth(bandwidth);
+    }
+
+    /**
+     * Set the loop bandwidth in Hz. Lower values give smoother timestamps,
+     * higher values lock faster and follow changes in clock rate more
+     * closely. Takes effect on the next update.
+     * 
+     * @param bandwidth loop bandwidth in Hz ( &gt;0 )
+     */
+    public void setBandwidth(double bandwidth) {
+        if (!(bandwidth > 0)) {
+            throw new IllegalArgumentException("Bandwidth must be greater than zero");
+        }
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Loop bandwidth in Hz.
+     * 
+     * @return bandwidth
+     */
+    public double getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Set the maximum error, in buffer periods, between the system time and
+     * the filter before the filter is reset. Zero (the default) disables
+     * error based reset, for devices where callbacks may legitimately be
+     * delivered in bursts.
+     * 
+     * @param periods maximum error in buffer periods ( &gt;=0 )
+     */
+    public void setMaxError(double periods) {
+        if (!(periods >= 0)) {
+            throw new IllegalArgumentException();
+        }
+        this.maxErrorPeriods = periods;
+    }
+
+    /**
+     * Maximum error in buffer periods before the filter is reset, or zero if
+     * disabled.
+     * 
+     * @return max error
+     */
+    public double getMaxError() {
+        return maxErrorPeriods;
+    }
+
+    /**
+     * Set the nominal sample rate. The filter will be reset if this differs
+     * from the current rate. Must be called from the updating thread.
+     * 
+     * @param sampleRate nominal sample rate ( &gt;0 )
+     */
+    public void setSampleRate(double sampleRate) {
+        if (!(sampleRate > 0)) {
+            throw new IllegalArgumentException("Sample rate must be greater than zero");
+        }
+        if (sampleRate != this.sampleRate) {
+            this.sampleRate = sampleRate;
+            nominalRate = 1e9 / sampleRate;
+            coeffFrames = 0;
+            locked = false;
+        }
+    }
+
+    /**
+     * Nominal sample rate.
+     * 
+     * @return sample rate
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Update the filter for a buffer contiguous with the previous one.
+     * 
+     * @param systemTime time of the callback in the System.nanoTime() domain
+     * @param frames number of frames in the buffer
+     * @return filtered time of the start of the buffer
+     */
+    public long update(long systemTime, int frames) {
+        return update(systemTime, locked ? expectedPosition : 0, frames);
+    }
+
+    /**
+     * Update the filter for a buffer at the given frame position. If the
+     * position is not contiguous with the previous buffer the filter is
+     * reset.
+     * 
+     * @param systemTime time of the callback in the System.nanoTime() domain
+     * @param framePosition device position of the start of the buffer
+     * @param frames number of frames in the buffer
+     * @return filtered time of the start of the buffer
+     */
+    public long update(long systemTime, long framePosition, int frames) {
+        if (frames < 1) {
+            throw new IllegalArgumentException();
+        }
+        if (locked && framePosition == expectedPosition) {
+            double e = (systemTime - origin) - t1;
+            double maxError = maxErrorPeriods * frames * nominalRate;
+            if (maxError > 0 && Math.abs(e) > maxError) {
+                locked = false;
+            } else {
+                updateCoefficients(frames);
+                t0 = t1;
+                t1 += b * e + rate * frames;
+                rate += c * e / frames;
+                jitterSq += (e * e - jitterSq) * JITTER_SMOOTHING;
+                cycles++;
+                jitter = Math.sqrt(jitterSq);
+                drift = ((framePosition - originPosition) * nominalRate / t0 - 1) * 1e6;
+            }
+        } else {
+            locked = false;
+        }
+        if (!locked) {
+            origin = systemTime;
+            originPosition = framePosition;
+            t0 = 0;
+            rate = nominalRate;
+            t1 = rate * frames;
+            jitterSq = 0;
+            locked = true;
+            resets++;
+        }
+        position = framePosition;
+        expectedPosition = framePosition + frames;
+        long time = origin + (long) t0;
+        offset = systemTime - time;
+        return time;
+    }
+
+    /**
+     * Reset the filter. The next update will restart the loop from the
+     * system time passed in.
+     */
+    public void reset() {
+        locked = false;
+    }
+
+    /**
+     * The frame position passed in to the last update.
+     * 
+     * @return frame position
+     */
+    public long getFramePosition() {
+        return position;
+    }
+
+    /**
+     * Number of updates since the filter was created, excluding those that
+     * reset the loop.
+     * 
+     * @return cycle count
+     */
+    public long getCycleCount() {
+        return cycles;
+    }
+
+    /**
+     * Number of times the loop has been (re)started, including the initial
+     * update.
+     * 
+     * @return reset count
+     */
+    public long getResetCount() {
+        return resets;
+    }
+
+    /**
+     * Estimated drift of the device clock relative to the system clock, in
+     * parts per million, averaged since the loop was last reset. Positive
+     * values indicate the device is running fast.
+     * 
+     * @return drift in ppm
+     */
+    public double getDrift() {
+        return drift;
+    }
+
+    /**
+     * Smoothed RMS difference between the callback system times and the
+     * loop prediction, in nanoseconds. This is a measure of the scheduling
+     * jitter removed by the filter.
+     * 
+     * @return jitter in ns
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * The difference between the system time and the filtered time at the
+     * last update, in nanoseconds.
+     * 
+     * @return offset in ns
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    private void updateCoefficients(int frames) {
+        double bw = bandwidth;
+        if (frames != coeffFrames || bw != coeffBandwidth) {
+            double o = 2 * Math.PI * bw * frames / sampleRate;
+            b = Math.sqrt(2) * o;
+            c = o * o;
+            coeffFrames = frames;
+            coeffBandwidth = bw;
+        }
+    }
+
+}
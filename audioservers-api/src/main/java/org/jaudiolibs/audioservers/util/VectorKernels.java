@@ -0,0 +1,171 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.util;
+
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels using the incubating Vector API, at the preferred vector size of
+ * the platform. Only API available from JDK 17 onwards is used - PCM
+ * conversion goes through short and byte vectors rather than the byte array
+ * and buffer views that were later removed.
+ *
+ * Interleaving uses plain loops inherited from ScalarKernels - strided
+ * gather and scatter were slower than the scalar loop in testing.
+ *
+ * @author Neil C Smith
+ */
+class VectorKernels extends ScalarKernels {
+
+    private final static VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private final static VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED
+            .withShape(VectorShape.forBitSize(FLOATS.vectorBitSize() / 2));
+    private final static VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED
+            .withShape(SHORTS.vectorShape());
+    private final static int LANES = FLOATS.length();
+    private final static boolean NATIVE_BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+    private final static VectorShuffle<Byte> SWAP = VectorShuffle.fromOp(BYTES, i -> i ^ 1);
+    private final static float[] IOTA = new float[LANES];
+    // narrowing float to short conversion is not intrinsified on JDK 17, and
+    // is many times slower than the scalar loop
+    private final static boolean VECTOR_TO_PCM16 = Runtime.version().feature() >= 18;
+
+    static {
+        for (int i = 0; i < LANES; i++) {
+            IOTA[i] = i;
+        }
+    }
+
+    @Override
+    String getName() {
+        return "Vector " + FLOATS.vectorBitSize();
+    }
+
+    @Override
+    void add(float[] src, int srcOffset, float[] dst, int dstOffset, int length) {
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            FloatVector.fromArray(FLOATS, dst, dstOffset + i)
+                    .add(FloatVector.fromArray(FLOATS, src, srcOffset + i))
+                    .intoArray(dst, dstOffset + i);
+        }
+        for (; i < length; i++) {
+            dst[dstOffset + i] += src[srcOffset + i];
+        }
+    }
+
+    @Override
+    void addScaled(float[] src, int srcOffset, float[] dst, int dstOffset, int length, float gain) {
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            FloatVector.fromArray(FLOATS, src, srcOffset + i)
+                    .mul(gain)
+                    .add(FloatVector.fromArray(FLOATS, dst, dstOffset + i))
+                    .intoArray(dst, dstOffset + i);
+        }
+        for (; i < length; i++) {
+            dst[dstOffset + i] += src[srcOffset + i] * gain;
+        }
+    }
+
+    @Override
+    void scale(float[] buffer, int offset, int length, float gain) {
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            FloatVector.fromArray(FLOATS, buffer, offset + i)
+                    .mul(gain)
+                    .intoArray(buffer, offset + i);
+        }
+        for (; i < length; i++) {
+            buffer[offset + i] *= gain;
+        }
+    }
+
+    @Override
+    void ramp(float[] buffer, int offset, int length, float start, float end) {
+        float step = (end - start) / length;
+        FloatVector iota = FloatVector.fromArray(FLOATS, IOTA, 0);
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            // same operation order as the scalar loop, start + step * i
+            FloatVector gain = iota.add(i).mul(step).add(start);
+            FloatVector.fromArray(FLOATS, buffer, offset + i)
+                    .mul(gain)
+                    .intoArray(buffer, offset + i);
+        }
+        for (; i < length; i++) {
+            buffer[offset + i] *= start + step * i;
+        }
+    }
+
+    @Override
+    void toPCM16(float[] src, int srcOffset, byte[] dst, int dstOffset, int length, boolean bigEndian) {
+        if (!VECTOR_TO_PCM16) {
+            super.toPCM16(src, srcOffset, dst, dstOffset, length, bigEndian);
+            return;
+        }
+        boolean swap = bigEndian != NATIVE_BIG_ENDIAN;
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            ShortVector s = (ShortVector) FloatVector.fromArray(FLOATS, src, srcOffset + i)
+                    .max(-1f)
+                    .min(1f)
+                    .mul(32767f)
+                    .convertShape(VectorOperators.F2S, SHORTS, 0);
+            ByteVector b = s.reinterpretAsBytes();
+            if (swap) {
+                b = b.rearrange(SWAP);
+            }
+            b.intoArray(dst, dstOffset + 2 * i);
+        }
+        if (i < length) {
+            super.toPCM16(src, srcOffset + i, dst, dstOffset + 2 * i, length - i, bigEndian);
+        }
+    }
+
+    @Override
+    void fromPCM16(byte[] src, int srcOffset, float[] dst, int dstOffset, int length, boolean bigEndian) {
+        boolean swap = bigEndian != NATIVE_BIG_ENDIAN;
+        int bound = FLOATS.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            ByteVector b = ByteVector.fromArray(BYTES, src, srcOffset + 2 * i);
+            if (swap) {
+                b = b.rearrange(SWAP);
+            }
+            ((FloatVector) b.reinterpretAsShorts()
+                    .convertShape(VectorOperators.S2F, FLOATS, 0))
+                    .mul(1f / 32767f)
+                    .intoArray(dst, dstOffset + i);
+        }
+        if (i < length) {
+            super.fromPCM16(src, srcOffset + 2 * i, dst, dstOffset + i, length - i, bigEndian);
+        }
+    }
+
+}
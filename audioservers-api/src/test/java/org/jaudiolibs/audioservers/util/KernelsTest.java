@@ -0,0 +1,211 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests the kernels against plain reference loops, at odd lengths and
+ * offsets so that vector tail loops are covered. The vector kernels are
+ * tested when they load, which is required on Java 17+.
+ *
+ * @author Neil C Smith
+ */
+public class KernelsTest extends TestCase {
+
+    private final static int MAX_LENGTH = 73;
+    private final static int MAX_OFFSET = 5;
+
+    private final Random random = new Random(1);
+
+    public void testVectorAvailable() {
+        if (javaVersion() >= 17) {
+            assertNotNull("Vector kernels did not load", loadVector());
+        }
+    }
+
+    public void testInterleave() {
+        for (ScalarKernels kernels : implementations()) {
+            for (int channels = 1; channels <= 3; channels++) {
+                for (int frames = 0; frames <= MAX_LENGTH; frames += 3) {
+                    int offset = frames % MAX_OFFSET;
+                    float[] src = signal(offset + frames, 1);
+                    float[] inter = new float[offset + frames * channels];
+                    float[] expected = inter.clone();
+                    int channel = channels - 1;
+                    for (int n = 0; n < frames; n++) {
+                        expected[offset + n * channels + channel] = src[offset + n];
+                    }
+                    kernels.interleave(src, offset, inter, offset, channel, channels, frames);
+                    assertEquals(kernels.getName(), expected, inter);
+                    float[] out = new float[offset + frames];
+                    kernels.deinterleave(inter, offset, channel, channels, out, offset, frames);
+                    assertEquals(kernels.getName(), Arrays.copyOfRange(src, offset, offset + frames),
+                            Arrays.copyOfRange(out, offset, offset + frames));
+                }
+            }
+        }
+    }
+
+    public void testMix() {
+        for (ScalarKernels kernels : implementations()) {
+            for (int length = 0; length <= MAX_LENGTH; length++) {
+                int srcOffset = length % MAX_OFFSET;
+                int dstOffset = (length * 3) % MAX_OFFSET;
+                float[] src = signal(srcOffset + length, 1.5f);
+                float[] dst = signal(dstOffset + length, 1.5f);
+                float[] expected = dst.clone();
+                for (int i = 0; i < length; i++) {
+                    expected[dstOffset + i] += src[srcOffset + i];
+                    expected[dstOffset + i] += src[srcOffset + i] * 0.3f;
+                    expected[dstOffset + i] *= 0.7f;
+                }
+                kernels.add(src, srcOffset, dst, dstOffset, length);
+                kernels.addScaled(src, srcOffset, dst, dstOffset, length, 0.3f);
+                kernels.scale(dst, dstOffset, length, 0.7f);
+                assertEquals(kernels.getName() + " length " + length, expected, dst);
+            }
+        }
+    }
+
+    public void testRamp() {
+        for (ScalarKernels kernels : implementations()) {
+            for (int length = 1; length <= MAX_LENGTH; length++) {
+                int offset = length % MAX_OFFSET;
+                float[] buffer = signal(offset + length, 1);
+                float[] expected = buffer.clone();
+                float step = (0.25f - 1) / length;
+                for (int i = 0; i < length; i++) {
+                    expected[offset + i] *= 1 + step * i;
+                }
+                kernels.ramp(buffer, offset, length, 1, 0.25f);
+                assertEquals(kernels.getName() + " length " + length, expected, buffer);
+            }
+        }
+    }
+
+    public void testPCM16() {
+        for (ScalarKernels kernels : implementations()) {
+            for (boolean bigEndian : new boolean[]{false, true}) {
+                for (int length = 0; length <= MAX_LENGTH; length++) {
+                    int srcOffset = length % MAX_OFFSET;
+                    int dstOffset = (length * 3) % MAX_OFFSET;
+                    float[] src = signal(srcOffset + length, 1.5f);
+                    byte[] bytes = new byte[dstOffset + length * 2];
+                    kernels.toPCM16(src, srcOffset, bytes, dstOffset, length, bigEndian);
+                    for (int i = 0; i < length; i++) {
+                        float f = Math.max(-1, Math.min(1, src[srcOffset + i]));
+                        assertEquals(kernels.getName() + " length " + length + " sample " + i,
+                                (int) (f * 32767f), readShort(bytes, dstOffset + i * 2, bigEndian));
+                    }
+                    float[] out = new float[srcOffset + length];
+                    kernels.fromPCM16(bytes, dstOffset, out, srcOffset, length, bigEndian);
+                    for (int i = 0; i < length; i++) {
+                        float expected = readShort(bytes, dstOffset + i * 2, bigEndian) * (1f / 32767f);
+                        assertEquals(expected, out[srcOffset + i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Out of range samples are clipped, not wrapped, and NaN is silent.
+     */
+    public void testPCM16Clipping() {
+        float[] src = {2, -2, 1.0001f, -1.0001f, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+            Float.NaN, Float.MAX_VALUE, -Float.MAX_VALUE, 1, -1, 0};
+        int[] expected = {32767, -32767, 32767, -32767, 32767, -32767,
+            0, 32767, -32767, 32767, -32767, 0};
+        // repeat so that vector loops see every value in every lane
+        int length = src.length * 11;
+        float[] data = new float[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = src[i % src.length];
+        }
+        for (ScalarKernels kernels : implementations()) {
+            for (boolean bigEndian : new boolean[]{false, true}) {
+                byte[] bytes = new byte[length * 2];
+                kernels.toPCM16(data, 0, bytes, 0, length, bigEndian);
+                for (int i = 0; i < length; i++) {
+                    assertEquals(kernels.getName() + " " + data[i],
+                            expected[i % src.length], readShort(bytes, i * 2, bigEndian));
+                }
+            }
+        }
+    }
+
+    public void testNaNPropagates() {
+        for (ScalarKernels kernels : implementations()) {
+            float[] buffer = new float[MAX_LENGTH];
+            Arrays.fill(buffer, Float.NaN);
+            float[] dst = new float[MAX_LENGTH];
+            kernels.add(buffer, 0, dst, 0, MAX_LENGTH);
+            kernels.scale(dst, 0, MAX_LENGTH, 0);
+            for (int i = 0; i < MAX_LENGTH; i++) {
+                assertTrue(kernels.getName(), Float.isNaN(dst[i]));
+            }
+        }
+    }
+
+    private List<ScalarKernels> implementations() {
+        List<ScalarKernels> list = new ArrayList<ScalarKernels>();
+        list.add(new ScalarKernels());
+        ScalarKernels vector = loadVector();
+        if (vector != null) {
+            list.add(vector);
+        }
+        return list;
+    }
+
+    private static ScalarKernels loadVector() {
+        try {
+            return (ScalarKernels) Class.forName("org.jaudiolibs.audioservers.util.VectorKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        return version.startsWith("1.") ? Integer.parseInt(version.substring(2))
+                : Integer.parseInt(version);
+    }
+
+    private float[] signal(int length, float scale) {
+        float[] data = new float[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (random.nextFloat() * 2 - 1) * scale;
+        }
+        return data;
+    }
+
+    private static int readShort(byte[] data, int offset, boolean bigEndian) {
+        return bigEndian
+                ? (short) ((data[offset] << 8) | (data[offset + 1] & 0xFF))
+                : (short) ((data[offset] & 0xFF) | (data[offset + 1] << 8));
+    }
+
+    private static void assertEquals(String message, float[] expected, float[] actual) {
+        assertTrue(message + " expected " + Arrays.toString(expected) + " but was "
+                + Arrays.toString(actual), Arrays.equals(expected, actual));
+    }
+
+}
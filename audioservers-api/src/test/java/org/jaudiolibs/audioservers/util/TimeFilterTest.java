@@ -0,0 +1,91 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.util;
+
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests TimeFilter against a simulated device clock running 100ppm fast,
+ * with callbacks delayed by random scheduling jitter.
+ *
+ * @author Neil C Smith
+ */
+public class TimeFilterTest extends TestCase {
+
+    private final static double SAMPLE_RATE = 48000;
+    private final static int FRAMES = 256;
+    private final static double PPM = 100;
+    // device buffer period in system time
+    private final static double PERIOD = FRAMES * 1e9 / (SAMPLE_RATE * (1 + PPM / 1e6));
+    private final static long JITTER = 1000000;
+
+    public void testConvergence() {
+        TimeFilter filter = new TimeFilter(SAMPLE_RATE);
+        Random random = new Random(1);
+        long start = 1000000000L;
+        int cycles = 60000;
+        long[] times = new long[cycles];
+        double rawSq = 0;
+        for (int i = 0; i < cycles; i++) {
+            long ideal = start + Math.round(i * PERIOD);
+            long delay = (long) (random.nextDouble() * JITTER);
+            times[i] = filter.update(ideal + delay, (long) i * FRAMES, FRAMES);
+            rawSq += (delay - JITTER / 2.0) * (delay - JITTER / 2.0);
+        }
+        double rawJitter = Math.sqrt(rawSq / cycles);
+        // measure over the last half, after the loop has settled
+        int from = cycles / 2;
+        double maxError = 0;
+        for (int i = from + 1; i < cycles; i++) {
+            maxError = Math.max(maxError, Math.abs(times[i] - times[i - 1] - PERIOD));
+        }
+        double period = (times[cycles - 1] - times[from]) / (double) (cycles - 1 - from);
+        assertEquals("Period", PERIOD, period, 5);
+        assertTrue("Max period error " + maxError + "ns", maxError < JITTER / 10);
+        assertEquals("Drift", PPM, filter.getDrift(), 5);
+        assertEquals("Jitter", rawJitter, filter.getJitter(), rawJitter / 10);
+        assertEquals(1, filter.getResetCount());
+    }
+
+    /*
+     * A step in callback time should be followed and settle. The loop has a
+     * damping ratio of 0.707 (b = sqrt(2) * omega, c = omega ^ 2), so the
+     * overshoot is about a fifth of the step.
+     */
+    public void testStepResponse() {
+        TimeFilter filter = new TimeFilter(SAMPLE_RATE);
+        long start = 1000000000L;
+        int cycles = 4000;
+        long step = 1000000;
+        int stepCycle = 2000;
+        double overshoot = 0;
+        double error = 0;
+        for (int i = 0; i < cycles; i++) {
+            long ideal = start + Math.round(i * PERIOD) + (i >= stepCycle ? step : 0);
+            long time = filter.update(ideal, (long) i * FRAMES, FRAMES);
+            error = time - ideal;
+            if (i == stepCycle - 1) {
+                assertEquals(0, error, 1000);
+            }
+            if (i >= stepCycle) {
+                overshoot = Math.max(overshoot, error);
+            }
+        }
+        assertTrue("Overshoot " + overshoot + "ns", overshoot > step * 0.15 && overshoot < step * 0.3);
+        assertEquals(0, error, 1000);
+    }
+
+}
@@ -1,74 +1,278 @@
 package im.composer.audioservers.asio;
 
 import java.nio.FloatBuffer;
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import org.jaudiolibs.audioservers.AudioClient;
 import org.jaudiolibs.audioservers.AudioConfiguration;
 import org.jaudiolibs.audioservers.AudioServer;
+import org.jaudiolibs.audioservers.ext.Latency;
+import org.jaudiolibs.audioservers.ext.TimeFilterBandwidth;
+import org.jaudiolibs.audioservers.util.FadeOut;
+import org.jaudiolibs.audioservers.util.TimeFilter;
 
-import com.synthbot.jasiohost.AsioChannel;
 import com.synthbot.jasiohost.AsioDriver;
-import com.synthbot.jasiohost.AsioDriverListener;
-
-import static com.synthbot.jasiohost.AsioDriverState.*;
 
 /**
  * Implementation of AudioServer using ASIO (via jasiohost.dll)
  * 
+ * Times passed to the client are derived from the driver sample position,
+ * smoothed through a delay locked loop into the System.nanoTime() domain.
+ * Driver latencies are published in the AudioConfiguration as a
+ * {@link Latency} extension.
+ * 
+ * The sample rate may be changed while running using
+ * {@link #reconfigure(AudioConfiguration)}. The buffer size is under the
+ * control of the driver. Changes reported by the driver are applied to the
+ * client on the server thread, while processing is suspended - until then,
+ * buffer switches that do not match the client configuration output
+ * silence. A buffer size change restarts the driver so that its buffers are
+ * recreated at the new size.
+ * 
  * @author David Zhang (zdl@zdl.hk)
  * @since 2013-4-14
  * 
  */
 public class AsioAudioServer implements AudioServer {
 
-	private final AsioDriver asioDriver;
-	private AudioConfiguration audioContext;
+	private enum State {
+
+		New, Initialising, Active, Closing, Terminated
+	};
+
+	private final AsioDriverHost host;
+	private volatile AudioConfiguration audioContext;
 	private final AudioClient client;
-	private AsioDriverListener driverListener;
-	private final HashSet<AsioChannel> activeChannels;
-	private Object running_signal = new Object();
-	private int inputLatency = Integer.MAX_VALUE;
-	private int outputLatency = Integer.MAX_VALUE;
+	private final int[] inputChannels;
+	private final int[] outputChannels;
+	private final TimeFilter timeFilter;
+	private final AtomicReference<State> state = new AtomicReference<State>(State.New);
+	private final Object running_signal = new Object();
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private final FadeOut fadeOut = new FadeOut();
+	private volatile Latency latency = new Latency(0, 0);
+	private final AtomicReference<Reconfiguration> pendingReconfiguration = new AtomicReference<Reconfiguration>();
+	private final AtomicBoolean driverChanged = new AtomicBoolean();
+	private volatile int driverBufferSize;
+	private volatile float driverSampleRate;
+	private volatile Latency driverLatency = latency;
+	private volatile boolean suspended;
+	private volatile boolean processing;
+	private AsioAudioClientAdapter adapter;
 
-	private AsioAudioServer(AsioDriver asioDriver, AudioConfiguration audioContext, AudioClient client, HashSet<AsioChannel> activeChannels) {
+	private AsioAudioServer(AsioDriverHost host, AudioConfiguration audioContext, AudioClient client, int[] inputChannels, int[] outputChannels) {
 		super();
-		this.asioDriver = asioDriver;
+		this.host = host;
 		this.audioContext = audioContext;
 		this.client = client;
-		this.activeChannels = activeChannels;
+		this.inputChannels = inputChannels;
+		this.outputChannels = outputChannels;
+		timeFilter = new TimeFilter(audioContext.getSampleRate());
+		// buffer switches should be regular, so treat large errors as a resync
+		timeFilter.setMaxError(1);
 	}
 
 	@Override
 	public void run() throws Exception {
-		initialise();
-		runImpl();
-		if (asioDriver != null) {
-			shutdown();
+		if (!state.compareAndSet(State.New, State.Initialising)) {
+			throw new IllegalStateException();
+		}
+		try {
+			try {
+				initialise();
+			} catch (Exception ex) {
+				state.set(State.Terminated);
+				closeAll();
+				client.shutdown();
+				throw ex;
+			}
+			if (state.compareAndSet(State.Initialising, State.Active)) {
+				runImpl();
+			}
+			closeAll();
+			client.shutdown();
+			state.set(State.Terminated);
+		} finally {
+			Reconfiguration pending = pendingReconfiguration.getAndSet(null);
+			if (pending != null) {
+				pending.future.completeExceptionally(new IllegalStateException("Server terminated"));
+			}
+			terminated.countDown();
 		}
 	}
 
 	private void initialise() throws Exception {
-		driverListener = new AsioAudioClientAdapter(client);
-		asioDriver.addAsioDriverListener(driverListener);
-		asioDriver.setSampleRate(getAudioContext().getSampleRate());
-		setBufferSize(asioDriver.getBufferPreferredSize());
+		adapter = new AsioAudioClientAdapter(client);
+		host.setSampleRate(getAudioContext().getSampleRate());
+		readDriverState(getAudioContext().getSampleRate());
+		setBufferSize(driverBufferSize);
+		adapter.allocate(driverBufferSize);
 		client.configure(getAudioContext());
-		asioDriver.createBuffers(activeChannels);
-		asioDriver.start();
+		host.start(inputChannels, outputChannels, adapter);
+		checkBufferSize();
 	}
 
+	/*
+	 * Wait until shutdown is requested or the driver stops (eg. after a reset
+	 * request). The driver state is polled as it has no stop notification.
+	 * Reconfiguration requests and driver changes are applied here, outside
+	 * of driver callbacks.
+	 */
 	private void runImpl() {
-		while (isActive()) {
-			try {
-				running_signal.wait();
-			} catch (InterruptedException e) {
+		while (state.get() == State.Active && host.isRunning()) {
+			if (driverChanged.getAndSet(false)) {
+				applyDriverChange();
 				continue;
 			}
+			Reconfiguration pending = pendingReconfiguration.getAndSet(null);
+			if (pending != null) {
+				applyReconfiguration(pending);
+				continue;
+			}
+			synchronized (running_signal) {
+				if (state.get() == State.Active && pendingReconfiguration.get() == null
+						&& !driverChanged.get()) {
+					try {
+						running_signal.wait(100);
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * The driver has to be stopped to change sample rate. Buffers are
+	 * recreated on restart, so the client is configured with whatever buffer
+	 * size the driver prefers at the new rate. On failure the previous sample
+	 * rate is restored, or the server shut down if that fails too.
+	 */
+	private void applyReconfiguration(Reconfiguration pending) {
+		AudioConfiguration previous = getAudioContext();
+		host.stop();
+		try {
+			pending.future.complete(restart(pending.sampleRate));
+		} catch (Exception ex) {
+			pending.future.completeExceptionally(ex);
+			host.stop();
+			try {
+				restart(previous.getSampleRate());
+			} catch (Exception ex2) {
+				shutdown();
+			}
+		}
+	}
+
+	/*
+	 * Called from a driver callback. The client is reconfigured in the server
+	 * thread.
+	 */
+	private void requestDriverChange() {
+		driverChanged.set(true);
+		synchronized (running_signal) {
+			running_signal.notifyAll();
+		}
+	}
+
+	/*
+	 * Configure the client with the buffer size, sample rate and latencies
+	 * last reported by the driver, with processing suspended. The driver
+	 * buffers keep their size until disposed, so a buffer size change needs
+	 * a restart.
+	 */
+	private void applyDriverChange() {
+		AudioConfiguration current = getAudioContext();
+		int bufferSize = driverBufferSize;
+		float sampleRate = driverSampleRate;
+		Latency l = driverLatency;
+		if (bufferSize == current.getMaxBufferSize() && sampleRate == current.getSampleRate()
+				&& l.equals(latency)) {
+			return;
+		}
+		if (bufferSize != current.getMaxBufferSize()) {
+			host.stop();
+			try {
+				restart(sampleRate);
+			} catch (Exception ex) {
+				shutdown();
+			}
+			return;
+		}
+		latency = l;
+		AudioConfiguration conf = createContext(sampleRate, bufferSize);
+		suspendProcessing();
+		try {
+			if (sampleRate != current.getSampleRate()) {
+				timeFilter.setSampleRate(sampleRate);
+				timeFilter.reset();
+			}
+			client.configure(conf);
+			setAudioContext(conf);
+		} catch (Exception ex) {
+			shutdown();
+		} finally {
+			suspended = false;
+		}
+	}
+
+	private void suspendProcessing() {
+		suspended = true;
+		while (processing) {
+			LockSupport.parkNanos(100000);
+		}
+	}
+
+	private void readDriverState(float sampleRate) {
+		driverSampleRate = sampleRate;
+		driverBufferSize = host.getBufferPreferredSize();
+		driverLatency = createLatency(host.getInputLatency(), host.getOutputLatency());
+		latency = driverLatency;
+	}
+
+	private AudioConfiguration restart(float sampleRate) throws Exception {
+		host.setSampleRate(sampleRate);
+		readDriverState(sampleRate);
+		AudioConfiguration conf = createContext(sampleRate, driverBufferSize);
+		setAudioContext(conf);
+		adapter.allocate(conf.getMaxBufferSize());
+		timeFilter.setSampleRate(sampleRate);
+		timeFilter.reset();
+		client.configure(conf);
+		host.start(inputChannels, outputChannels, adapter);
+		checkBufferSize();
+		return conf;
+	}
+
+	/*
+	 * The preferred size may have changed between reading it and the driver
+	 * creating buffers, without a notification as the listener wasn't added.
+	 */
+	private void checkBufferSize() {
+		int size = host.getBufferSize();
+		if (size != getAudioContext().getMaxBufferSize()) {
+			driverBufferSize = size;
+			requestDriverChange();
+		}
+	}
+
+	private void closeAll() {
+		try {
+			host.stop();
+		} catch (Throwable t) {
+		}
+		try {
+			host.close();
+		} catch (Throwable t) {
 		}
 	}
 
@@ -83,33 +287,130 @@ public class AsioAudioServer implements AudioServer {
 
 	private void setBufferSize(int bufz) {
 		AudioConfiguration conf = getAudioContext();
-		conf = new AudioConfiguration(conf.getSampleRate(), conf.getInputChannelCount(), conf.getOutputChannelCount(), bufz, false);
-		setAudioContext(conf);
+		setAudioContext(createContext(conf.getSampleRate(), bufz));
+	}
+
+	private AudioConfiguration createContext(float sampleRate, int bufferSize) {
+		return new AudioConfiguration(sampleRate, inputChannels.length, outputChannels.length, bufferSize, false, new Object[]{latency});
+	}
+
+	private static Latency createLatency(int inputLatency, int outputLatency) {
+		// drivers may report garbage before buffers are created
+		return new Latency(Math.max(0, inputLatency), Math.max(0, outputLatency));
+	}
+
+	/**
+	 * The filter used to derive the time passed to the client from the
+	 * driver sample position. Can be used to monitor clock drift and jitter,
+	 * or to adjust bandwidth while running.
+	 * 
+	 * @return time filter
+	 */
+	public TimeFilter getTimeFilter() {
+		return timeFilter;
 	}
 
+	/**
+	 * Input latency in frames, as reported by the driver.
+	 * 
+	 * @return input latency
+	 * @see Latency
+	 */
 	public int getInputLatency() {
-		return inputLatency;
+		return latency.getInputLatency();
 	}
 
+	/**
+	 * Output latency in frames, as reported by the driver.
+	 * 
+	 * @return output latency
+	 * @see Latency
+	 */
 	public int getOutputLatency() {
-		return outputLatency;
+		return latency.getOutputLatency();
 	}
 
 	@Override
 	public boolean isActive() {
-		if (!AsioDriver.isDriverLoaded() || asioDriver == null) {
-			return false;
-		}
-		return asioDriver.getCurrentState() == RUNNING;
+		State st = state.get();
+		return (st == State.Active || st == State.Closing);
 	}
 
 	@Override
 	public void shutdown() {
-		asioDriver.returnToState(LOADED);
-		asioDriver.removeAsioDriverListener(driverListener);
-		asioDriver.shutdownAndUnloadDriver();
-		running_signal.notifyAll();
-		// asioDriver = null;
+		State st;
+		do {
+			st = state.get();
+			if (st == State.Terminated || st == State.Closing) {
+				break;
+			}
+		} while (!state.compareAndSet(st, State.Closing));
+		synchronized (running_signal) {
+			running_signal.notifyAll();
+		}
+	}
+
+	/**
+	 * Fade the output to silence before shutting down. If the server is not
+	 * active, this is the same as shutdown().
+	 * 
+	 * @param fadeTime
+	 * @param unit
+	 */
+	@Override
+	public void shutdown(long fadeTime, TimeUnit unit) {
+		if (state.get() == State.Active) {
+			fadeOut.start((int) (unit.toNanos(fadeTime) * getAudioContext().getSampleRate() / 1e9));
+		} else {
+			shutdown();
+		}
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	/**
+	 * Change the sample rate of the running driver. The buffer size is
+	 * controlled by the driver, so requests for a different buffer size fail
+	 * with an UnsupportedOperationException. The returned configuration
+	 * contains the buffer size and latencies reported by the driver at the
+	 * new rate.
+	 * 
+	 * @param config
+	 * @return future completing with the new configuration
+	 */
+	@Override
+	public CompletableFuture<AudioConfiguration> reconfigure(AudioConfiguration config) {
+		CompletableFuture<AudioConfiguration> future = new CompletableFuture<AudioConfiguration>();
+		AudioConfiguration current = getAudioContext();
+		if (config.getInputChannelCount() != current.getInputChannelCount()
+				|| config.getOutputChannelCount() != current.getOutputChannelCount()) {
+			future.completeExceptionally(new IllegalArgumentException("Channel counts cannot be changed"));
+			return future;
+		}
+		if (config.getMaxBufferSize() != current.getMaxBufferSize()) {
+			future.completeExceptionally(new UnsupportedOperationException("ASIO driver controls the buffer size"));
+			return future;
+		}
+		if (config.getSampleRate() == current.getSampleRate()) {
+			future.complete(current);
+			return future;
+		}
+		State st = state.get();
+		if (st != State.Initialising && st != State.Active) {
+			future.completeExceptionally(new IllegalStateException("Server is not running"));
+			return future;
+		}
+		Reconfiguration previous = pendingReconfiguration.getAndSet(new Reconfiguration(config.getSampleRate(), future));
+		if (previous != null) {
+			previous.future.cancel(false);
+		}
+		synchronized (running_signal) {
+			running_signal.notifyAll();
+		}
+		return future;
 	}
 
     public static final AudioServer createServer(AudioConfiguration config, AudioClient client) throws Exception {
@@ -118,11 +419,11 @@ public class AsioAudioServer implements AudioServer {
     		throw new IndexOutOfBoundsException("No ASIO Device Available!");
     	}
     	String id = names.get(0);
-    	AsioDriver asioDriver = AsioDriver.getDriver(id);
-    	if(config.getInputChannelCount()>asioDriver.getNumChannelsInput()){
+    	AsioDriverHost host = JAsioDriverHost.load(id);
+    	if(config.getInputChannelCount()>host.getNumChannelsInput()){
     		throw new IndexOutOfBoundsException("Not Enought Input Channels!");
     	}
-    	if(config.getOutputChannelCount()>asioDriver.getNumChannelsOutput()){
+    	if(config.getOutputChannelCount()>host.getNumChannelsOutput()){
     		throw new IndexOutOfBoundsException("Not Enought Output Channels!");
     	}
     	Set<Integer> inputChannel = new TreeSet<>();
@@ -133,107 +434,200 @@ public class AsioAudioServer implements AudioServer {
     	for(int i=0;i<config.getOutputChannelCount();i++){
     		outputChannel.add(i);
     	}
-    	return create(id,config.getSampleRate(),inputChannel,outputChannel,client);
+    	AsioAudioServer server = create(host,config.getSampleRate(),inputChannel,outputChannel,client);
+    	TimeFilterBandwidth bw = config.find(TimeFilterBandwidth.class);
+    	if(bw!=null){
+    		server.getTimeFilter().setBandwidth(bw.getBandwidth());
+    	}
+    	return server;
     }
+
 	public static final AsioAudioServer create(String id, float sampleRate, Set<Integer> inputChannel, Set<Integer> outputChannel, AudioClient client) {
-		HashSet<AsioChannel> activeChannels = new HashSet<AsioChannel>();
-		AsioDriver asioDriver = AsioDriver.getDriver(id);
-		if (inputChannel != null) {
-			for (int i : inputChannel) {
-				activeChannels.add(asioDriver.getChannelInput(i));
-			}
+		return create(JAsioDriverHost.load(id), sampleRate, inputChannel, outputChannel, client);
+	}
+
+	/**
+	 * Create an AsioAudioServer using the provided driver host. Channels are
+	 * passed to the client in ascending order of channel index.
+	 * 
+	 * @param host
+	 * @param sampleRate
+	 * @param inputChannel
+	 *            driver input channel indexes, or null
+	 * @param outputChannel
+	 *            driver output channel indexes, or null
+	 * @param client
+	 * @return server
+	 */
+	public static final AsioAudioServer create(AsioDriverHost host, float sampleRate, Set<Integer> inputChannel, Set<Integer> outputChannel, AudioClient client) {
+		int[] ins = toSortedArray(inputChannel);
+		int[] outs = toSortedArray(outputChannel);
+		AudioConfiguration ctxt = new AudioConfiguration(sampleRate, ins.length, outs.length, host.getBufferPreferredSize(), false);
+		return new AsioAudioServer(host, ctxt, client, ins, outs);
+	}
+
+	private static int[] toSortedArray(Set<Integer> channels) {
+		if (channels == null) {
+			return new int[0];
+		}
+		int[] ret = new int[channels.size()];
+		int i = 0;
+		for (int ch : channels) {
+			ret[i++] = ch;
 		}
-		if (outputChannel != null) {
-			for (int i : outputChannel) {
-				activeChannels.add(asioDriver.getChannelOutput(i));
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	private final static class Reconfiguration {
+
+		private final float sampleRate;
+		private final CompletableFuture<AudioConfiguration> future;
+
+		private Reconfiguration(float sampleRate, CompletableFuture<AudioConfiguration> future) {
+			this.sampleRate = sampleRate;
+			this.future = future;
+		}
+	}
+
+	/*
+	 * Buffers allocated for a given buffer size, swapped as a whole if the
+	 * driver changes size.
+	 */
+	private final static class Buffers {
+
+		private final int size;
+		private final float[][] inputData;
+		private final float[][] outputData;
+		private final FloatBuffer[] inputs;
+		private final FloatBuffer[] outputs;
+		private final List<FloatBuffer> inputList;
+		private final List<FloatBuffer> outputList;
+
+		private Buffers(int size, int inputCount, int outputCount) {
+			this.size = size;
+			inputData = new float[inputCount][size];
+			outputData = new float[outputCount][size];
+			inputs = new FloatBuffer[inputCount];
+			for (int i = 0; i < inputCount; i++) {
+				inputs[i] = FloatBuffer.wrap(inputData[i]);
+			}
+			outputs = new FloatBuffer[outputCount];
+			for (int i = 0; i < outputCount; i++) {
+				outputs[i] = FloatBuffer.wrap(outputData[i]);
 			}
+			inputList = Collections.unmodifiableList(Arrays.asList(inputs));
+			outputList = Collections.unmodifiableList(Arrays.asList(outputs));
 		}
-		AudioConfiguration ctxt = new AudioConfiguration(sampleRate, inputChannel.size(), outputChannel.size(), asioDriver.getBufferPreferredSize(), false);
-		return new AsioAudioServer(asioDriver, ctxt, client, activeChannels);
+
 	}
 
-	private final class AsioAudioClientAdapter implements AsioDriverListener {
+	private final class AsioAudioClientAdapter implements AsioDriverHost.Listener {
 		private final AudioClient client;
-		private int bufz = getAudioContext().getMaxBufferSize();
+		private volatile Buffers buffers;
+		private volatile float[] silence = new float[0];
+		private volatile boolean resync;
 
 		private AsioAudioClientAdapter(AudioClient client) {
 			this.client = client;
 		}
 
+		private void allocate(int bufferSize) {
+			buffers = new Buffers(bufferSize, inputChannels.length, outputChannels.length);
+			if (silence.length != bufferSize) {
+				silence = new float[bufferSize];
+			}
+		}
+
 		@Override
 		public void sampleRateDidChange(double sampleRate) {
-			AudioConfiguration conf = getAudioContext();
-			conf = new AudioConfiguration((float) sampleRate, conf.getInputChannelCount(), conf.getOutputChannelCount(), conf.getMaxBufferSize(), false);
-			setAudioContext(conf);
-			try {
-				client.configure(conf);
-			} catch (Exception e) {
-			}
+			driverSampleRate = (float) sampleRate;
+			requestDriverChange();
 		}
 
 		@Override
 		public void resetRequest() {
 
 			/*
-			 * This thread will attempt to shut down the ASIO driver. However,
-			 * it will block on the AsioDriver object at least until the current
+			 * This thread will attempt to reset the ASIO driver. However,
+			 * it will block on the driver at least until the current
 			 * method has returned.
 			 */
 			new Thread() {
 				@Override
 				public void run() {
-					asioDriver.returnToState(INITIALIZED);
+					host.stop();
 				}
 			}.start();
 		}
 
 		@Override
 		public void resyncRequest() {
-
+			resync = true;
 		}
 
 		@Override
 		public void bufferSizeChanged(int bufferSize) {
-			bufz = bufferSize;
-			setBufferSize(bufferSize);
-			try {
-				client.configure(getAudioContext());
-			} catch (Exception e) {
-			}
+			driverBufferSize = bufferSize;
+			requestDriverChange();
 		}
 
 		@Override
 		public void latenciesChanged(int inputLatency, int outputLatency) {
-			AsioAudioServer.this.inputLatency = inputLatency;
-			AsioAudioServer.this.outputLatency = outputLatency;
+			Latency l = createLatency(inputLatency, outputLatency);
+			if (l.equals(driverLatency)) {
+				return;
+			}
+			driverLatency = l;
+			requestDriverChange();
 		}
 
 		@Override
-		public void bufferSwitch(long sampleTime, long samplePosition, Set<AsioChannel> activeChannels) {
-			List<FloatBuffer> inputs = new ArrayList<>(getAudioContext().getInputChannelCount());
-			List<FloatBuffer> outputs = new ArrayList<>(getAudioContext().getOutputChannelCount());
-			List<AsioChannel> output_channels = null;
-			for (AsioChannel channel : activeChannels) {
-				if (channel.isInput()) {
-					float[] data = new float[bufz];
-					channel.read(data);
-					FloatBuffer fbuz = FloatBuffer.wrap(data);
-					inputs.add(fbuz);
-				} else {
-					if (output_channels == null) {
-						output_channels = new ArrayList<>(getAudioContext().getOutputChannelCount());
+		public void bufferSwitch(long systemTime, long samplePosition) {
+			processing = true;
+			try {
+				Buffers b = buffers;
+				if (b.size != host.getBufferSize()) {
+					// buffers created at a different size, restart pending
+					return;
+				}
+				if (suspended || b.size != driverBufferSize
+						|| driverSampleRate != getAudioContext().getSampleRate()) {
+					// waiting for the client to be reconfigured or the
+					// driver restarted
+					float[] s = silence;
+					for (int i = 0; i < b.outputs.length; i++) {
+						host.writeOutput(i, s);
 					}
-					FloatBuffer fbuz = FloatBuffer.allocate(bufz);
-					outputs.add(fbuz);
-					output_channels.add(channel);
+					return;
 				}
+				process(b, systemTime, samplePosition);
+			} finally {
+				processing = false;
+			}
+		}
+
+		private void process(Buffers b, long systemTime, long samplePosition) {
+			int size = b.size;
+			if (resync) {
+				resync = false;
+				timeFilter.reset();
+			}
+			long time = timeFilter.update(systemTime, samplePosition, size);
+			for (int i = 0; i < b.inputs.length; i++) {
+				host.readInput(i, b.inputData[i]);
+				b.inputs[i].clear();
+			}
+			for (int i = 0; i < b.outputs.length; i++) {
+				Arrays.fill(b.outputData[i], 0);
+				b.outputs[i].clear();
+			}
+			client.process(time, b.inputList, b.outputList, size);
+			if (fadeOut.process(b.outputList, size)) {
+				shutdown();
 			}
-			client.process(sampleTime, inputs, outputs, bufz);
-			for (int i = 0; i < outputs.size(); i++) {
-				FloatBuffer fbuz = outputs.get(i);
-				AsioChannel channel = output_channels.get(i);
-				float[] data = fbuz.array();
-				channel.write(data);
+			for (int i = 0; i < b.outputs.length; i++) {
+				host.writeOutput(i, b.outputData[i]);
 			}
 		}
 	}
@@ -0,0 +1,128 @@
+package im.composer.audioservers.asio;
+
+/**
+ * The driver operations used by AsioAudioServer. This decouples the server
+ * from JAsioHost, so that the server can also be driven by a simulated driver
+ * on platforms without ASIO.
+ * 
+ * Channels are addressed by their position in the arrays passed to start(),
+ * which is also the order of the buffers passed to the AudioClient.
+ * 
+ * @since 2026-10-19
+ * 
+ */
+public interface AsioDriverHost {
+
+	/**
+	 * Callbacks from the driver. bufferSwitch() is called on the driver's
+	 * audio thread.
+	 */
+	public static interface Listener {
+
+		/**
+		 * Process the current buffer.
+		 * 
+		 * @param systemTime
+		 *            time of the buffer switch in the System.nanoTime()
+		 *            domain. This may be jittery - it is smoothed by the
+		 *            server against the sample position.
+		 * @param samplePosition
+		 *            device frame position of the start of the buffer
+		 */
+		public void bufferSwitch(long systemTime, long samplePosition);
+
+		/**
+		 * The preferred buffer size has changed. Buffers already created
+		 * keep their size until the driver is stopped and started again.
+		 * 
+		 * @param bufferSize
+		 *            new preferred buffer size
+		 */
+		public void bufferSizeChanged(int bufferSize);
+
+		public void sampleRateDidChange(double sampleRate);
+
+		public void latenciesChanged(int inputLatency, int outputLatency);
+
+		public void resetRequest();
+
+		public void resyncRequest();
+
+	}
+
+	public int getNumChannelsInput();
+
+	public int getNumChannelsOutput();
+
+	public int getBufferPreferredSize();
+
+	/**
+	 * The size of the buffers created by the last call to start(). Only valid
+	 * while running.
+	 */
+	public int getBufferSize();
+
+	public double getSampleRate();
+
+	public void setSampleRate(double sampleRate);
+
+	/**
+	 * Input latency in frames.
+	 */
+	public int getInputLatency();
+
+	/**
+	 * Output latency in frames.
+	 */
+	public int getOutputLatency();
+
+	/**
+	 * Create buffers of the preferred size for the given channels and start
+	 * the driver. As the driver latencies may depend on the buffers created,
+	 * implementations should report them through latenciesChanged() before
+	 * the first call to bufferSwitch().
+	 * 
+	 * @param inputChannels
+	 *            driver input channel indexes, in client buffer order
+	 * @param outputChannels
+	 *            driver output channel indexes, in client buffer order
+	 * @param listener
+	 */
+	public void start(int[] inputChannels, int[] outputChannels, Listener listener) throws Exception;
+
+	/**
+	 * Read the current buffer of an input channel. Only valid inside
+	 * bufferSwitch().
+	 * 
+	 * @param index
+	 *            position in the inputChannels array passed to start()
+	 * @param data
+	 *            array of at most getBufferSize() length
+	 */
+	public void readInput(int index, float[] data);
+
+	/**
+	 * Write the current buffer of an output channel. Only valid inside
+	 * bufferSwitch().
+	 * 
+	 * @param index
+	 *            position in the outputChannels array passed to start()
+	 * @param data
+	 *            array of at most getBufferSize() length
+	 */
+	public void writeOutput(int index, float[] data);
+
+	/**
+	 * Stop the driver and dispose of buffers. The listener will not be called
+	 * after this method returns.
+	 */
+	public void stop();
+
+	/**
+	 * Release the driver. The host cannot be restarted.
+	 */
+	public void close();
+
+	public boolean isRunning();
+
+}
@@ -0,0 +1,172 @@
+package im.composer.audioservers.asio;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.synthbot.jasiohost.AsioChannel;
+import com.synthbot.jasiohost.AsioDriver;
+import com.synthbot.jasiohost.AsioDriverListener;
+
+import static com.synthbot.jasiohost.AsioDriverState.*;
+
+/**
+ * Implementation of AsioDriverHost using JAsioHost.
+ * 
+ * @since 2026-10-19
+ * 
+ */
+public class JAsioDriverHost implements AsioDriverHost {
+
+	private final AsioDriver driver;
+	private AsioChannel[] inputs;
+	private AsioChannel[] outputs;
+	private AsioDriverListener driverListener;
+	private int bufferSize;
+
+	public JAsioDriverHost(AsioDriver driver) {
+		if (driver == null) {
+			throw new NullPointerException();
+		}
+		this.driver = driver;
+	}
+
+	/**
+	 * Load the named ASIO driver.
+	 * 
+	 * @param id
+	 *            driver name
+	 * @return host
+	 */
+	public static JAsioDriverHost load(String id) {
+		return new JAsioDriverHost(AsioDriver.getDriver(id));
+	}
+
+	public AsioDriver getDriver() {
+		return driver;
+	}
+
+	@Override
+	public int getNumChannelsInput() {
+		return driver.getNumChannelsInput();
+	}
+
+	@Override
+	public int getNumChannelsOutput() {
+		return driver.getNumChannelsOutput();
+	}
+
+	@Override
+	public int getBufferPreferredSize() {
+		return driver.getBufferPreferredSize();
+	}
+
+	@Override
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	@Override
+	public double getSampleRate() {
+		return driver.getSampleRate();
+	}
+
+	@Override
+	public void setSampleRate(double sampleRate) {
+		driver.setSampleRate(sampleRate);
+	}
+
+	@Override
+	public int getInputLatency() {
+		return driver.getLatencyInput();
+	}
+
+	@Override
+	public int getOutputLatency() {
+		return driver.getLatencyOutput();
+	}
+
+	@Override
+	public void start(int[] inputChannels, int[] outputChannels, final Listener listener) {
+		Set<AsioChannel> active = new LinkedHashSet<AsioChannel>();
+		inputs = new AsioChannel[inputChannels.length];
+		for (int i = 0; i < inputs.length; i++) {
+			inputs[i] = driver.getChannelInput(inputChannels[i]);
+			active.add(inputs[i]);
+		}
+		outputs = new AsioChannel[outputChannels.length];
+		for (int i = 0; i < outputs.length; i++) {
+			outputs[i] = driver.getChannelOutput(outputChannels[i]);
+			active.add(outputs[i]);
+		}
+		driverListener = new AsioDriverListener() {
+
+			@Override
+			public void sampleRateDidChange(double sampleRate) {
+				listener.sampleRateDidChange(sampleRate);
+			}
+
+			@Override
+			public void resetRequest() {
+				listener.resetRequest();
+			}
+
+			@Override
+			public void resyncRequest() {
+				listener.resyncRequest();
+			}
+
+			@Override
+			public void bufferSizeChanged(int bufferSize) {
+				listener.bufferSizeChanged(bufferSize);
+			}
+
+			@Override
+			public void latenciesChanged(int inputLatency, int outputLatency) {
+				listener.latenciesChanged(inputLatency, outputLatency);
+			}
+
+			@Override
+			public void bufferSwitch(long sampleTime, long samplePosition, Set<AsioChannel> activeChannels) {
+				// ASIO system time is timeGetTime() based on Windows, which
+				// doesn't share an origin with System.nanoTime()
+				listener.bufferSwitch(System.nanoTime(), samplePosition);
+			}
+		};
+		driver.addAsioDriverListener(driverListener);
+		// JAsioHost creates buffers of the preferred size
+		bufferSize = driver.getBufferPreferredSize();
+		driver.createBuffers(active);
+		listener.latenciesChanged(driver.getLatencyInput(), driver.getLatencyOutput());
+		driver.start();
+	}
+
+	@Override
+	public void readInput(int index, float[] data) {
+		inputs[index].read(data);
+	}
+
+	@Override
+	public void writeOutput(int index, float[] data) {
+		outputs[index].write(data);
+	}
+
+	@Override
+	public void stop() {
+		driver.returnToState(LOADED);
+		if (driverListener != null) {
+			driver.removeAsioDriverListener(driverListener);
+			driverListener = null;
+		}
+	}
+
+	@Override
+	public void close() {
+		driver.shutdownAndUnloadDriver();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return AsioDriver.isDriverLoaded() && driver.getCurrentState() == RUNNING;
+	}
+
+}
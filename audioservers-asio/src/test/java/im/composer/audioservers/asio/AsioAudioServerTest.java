@@ -0,0 +1,328 @@
+package im.composer.audioservers.asio;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+import org.jaudiolibs.audioservers.ext.Latency;
+
+/**
+ * Tests of the AsioAudioServer bufferSwitch path, driven by a
+ * SimulatedAsioDriverHost.
+ * 
+ * @since 2026-10-19
+ * 
+ */
+public class AsioAudioServerTest extends TestCase {
+
+	private final static int BUFFER_SIZE = 256;
+
+	public void testChannelOrder() throws Exception {
+		SimulatedAsioDriverHost host = new SimulatedAsioDriverHost(4, 4, BUFFER_SIZE, 48000, false);
+		for (int ch = 0; ch < 4; ch++) {
+			host.setInputSignal(ch, new float[] { ch });
+		}
+		TestClient client = new TestClient();
+		AsioAudioServer server = AsioAudioServer.create(host, 48000,
+				new HashSet<Integer>(Arrays.asList(3, 1)),
+				new HashSet<Integer>(Arrays.asList(2, 0, 3)), client);
+		start(server, host);
+		try {
+			host.step();
+			// inputs in ascending order of driver channel
+			assertEquals(1f, client.lastInputs[0]);
+			assertEquals(3f, client.lastInputs[1]);
+			// each output is written with its client buffer index
+			for (int i = 0; i < 3; i++) {
+				float[] out = host.getOutput(i);
+				assertEquals(BUFFER_SIZE, out.length);
+				assertEquals((float) (i + 10), out[0]);
+				assertEquals((float) (i + 10), out[BUFFER_SIZE - 1]);
+			}
+		} finally {
+			stop(server);
+		}
+	}
+
+	public void testBuffersReused() throws Exception {
+		SimulatedAsioDriverHost host = new SimulatedAsioDriverHost(2, 2, BUFFER_SIZE, 48000, false);
+		TestClient client = new TestClient();
+		AsioAudioServer server = AsioAudioServer.create(host, 48000,
+				new HashSet<Integer>(Arrays.asList(0, 1)),
+				new HashSet<Integer>(Arrays.asList(0, 1)), client);
+		start(server, host);
+		try {
+			host.step();
+			List<FloatBuffer> inputs = new ArrayList<FloatBuffer>(client.inputs);
+			List<FloatBuffer> outputs = new ArrayList<FloatBuffer>(client.outputs);
+			for (int i = 0; i < 100; i++) {
+				host.step();
+				for (int ch = 0; ch < 2; ch++) {
+					assertSame(inputs.get(ch), client.inputs.get(ch));
+					assertSame(outputs.get(ch), client.outputs.get(ch));
+				}
+			}
+		} finally {
+			stop(server);
+		}
+	}
+
+	public void testNoAllocationPerCycle() throws Exception {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) mx;
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			return;
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+		SimulatedAsioDriverHost host = new SimulatedAsioDriverHost(2, 2, BUFFER_SIZE, 48000, false);
+		AsioAudioServer server = AsioAudioServer.create(host, 48000,
+				new HashSet<Integer>(Arrays.asList(0, 1)),
+				new HashSet<Integer>(Arrays.asList(0, 1)), new TestClient());
+		start(server, host);
+		try {
+			long time = System.nanoTime();
+			long period = (long) (BUFFER_SIZE * 1e9 / 48000);
+			// warm up
+			for (int i = 0; i < 20000; i++) {
+				host.step(time += period);
+			}
+			long id = Thread.currentThread().getId();
+			long before = threads.getThreadAllocatedBytes(id);
+			for (int i = 0; i < 10000; i++) {
+				host.step(time += period);
+			}
+			long allocated = threads.getThreadAllocatedBytes(id) - before;
+			// allow for measurement overhead, but not per cycle allocation
+			assertTrue("Allocated " + allocated + " bytes", allocated < 10000);
+		} finally {
+			stop(server);
+		}
+	}
+
+	public void testBufferSizeChangeDeferred() throws Exception {
+		SimulatedAsioDriverHost host = new SimulatedAsioDriverHost(0, 1, BUFFER_SIZE, 48000, false);
+		TestClient client = new TestClient();
+		AsioAudioServer server = AsioAudioServer.create(host, 48000, null,
+				new HashSet<Integer>(Arrays.asList(0)), client);
+		start(server, host);
+		try {
+			host.step();
+			assertEquals(1, client.configureCount);
+			host.changeBufferSize(128);
+			// not configured on the driver callback thread
+			long timeout = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (client.context.getMaxBufferSize() != 128) {
+				assertTrue(System.nanoTime() < timeout);
+				host.step();
+				if (client.context.getMaxBufferSize() != 128) {
+					// silence until the driver is restarted
+					assertEquals(0f, host.getOutput(0)[0]);
+				}
+				Thread.sleep(1);
+			}
+			assertNotSame(Thread.currentThread(), client.configureThread);
+			host.step();
+			// driver buffers recreated at the new size
+			assertEquals(128, host.getBufferSize());
+			assertEquals(128, host.getOutput(0).length);
+			assertEquals(128, client.nframes);
+			assertEquals(10f, host.getOutput(0)[127]);
+			assertFalse(client.mismatched);
+		} finally {
+			stop(server);
+		}
+	}
+
+	public void testConcurrentDriverChanges() throws Exception {
+		SimulatedAsioDriverHost host = new SimulatedAsioDriverHost(2, 2, 64, 48000, true);
+		host.setJitter(200000);
+		TestClient client = new TestClient();
+		AsioAudioServer server = AsioAudioServer.create(host, 48000,
+				new HashSet<Integer>(Arrays.asList(0, 1)),
+				new HashSet<Integer>(Arrays.asList(0, 1)), client);
+		start(server, host);
+		try {
+			int[] sizes = { 32, 128, 64, 256 };
+			for (int i = 0; i < 40; i++) {
+				host.changeBufferSize(sizes[i % sizes.length]);
+				host.setLatencies(i, i * 2);
+				Thread.sleep(10);
+			}
+			Thread.sleep(100);
+			assertFalse("configure() called during process()", client.overlapped);
+			assertFalse("process() buffer size did not match configuration", client.mismatched);
+			assertEquals(256, client.context.getMaxBufferSize());
+			assertEquals(39, server.getInputLatency());
+			assertEquals(78, server.getOutputLatency());
+		} finally {
+			stop(server);
+		}
+	}
+
+	public void testLatencyPublished() throws Exception {
+		SimulatedAsioDriverHost host = new SimulatedAsioDriverHost(1, 1, BUFFER_SIZE, 48000, false);
+		host.setLatencies(100, 200);
+		TestClient client = new TestClient();
+		AsioAudioServer server = AsioAudioServer.create(host, 48000,
+				new HashSet<Integer>(Arrays.asList(0)),
+				new HashSet<Integer>(Arrays.asList(0)), client);
+		start(server, host);
+		try {
+			Latency latency = client.context.find(Latency.class);
+			assertEquals(100, latency.getInputLatency());
+			assertEquals(200, latency.getOutputLatency());
+			host.setLatencies(300, 400);
+			long timeout = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (client.context.find(Latency.class).getOutputLatency() != 400) {
+				assertTrue(System.nanoTime() < timeout);
+				Thread.sleep(1);
+			}
+			assertEquals(300, client.context.find(Latency.class).getInputLatency());
+			assertEquals(300, server.getInputLatency());
+		} finally {
+			stop(server);
+		}
+	}
+
+	/*
+	 * Feed buffer switch times with up to 1ms of jitter (the period is
+	 * 5.3ms), and check that the times passed to the client are smoothed,
+	 * and follow the sample position across skipped buffers.
+	 */
+	public void testJitteredTimestamps() throws Exception {
+		SimulatedAsioDriverHost host = new SimulatedAsioDriverHost(0, 1, BUFFER_SIZE, 48000, false);
+		TestClient client = new TestClient();
+		client.times = new long[6000];
+		AsioAudioServer server = AsioAudioServer.create(host, 48000, null,
+				new HashSet<Integer>(Arrays.asList(0)), client);
+		start(server, host);
+		try {
+			java.util.Random random = new java.util.Random(1);
+			long period = (long) (BUFFER_SIZE * 1e9 / 48000);
+			long jitter = 1000000;
+			long clock = System.nanoTime();
+			for (int i = 0; i < 5000; i++) {
+				clock += period;
+				host.step(clock + (long) (random.nextDouble() * jitter));
+			}
+			long maxError = 0;
+			for (int i = 2000; i < 5000; i++) {
+				long diff = client.times[i] - client.times[i - 1];
+				assertTrue(diff > 0);
+				maxError = Math.max(maxError, Math.abs(diff - period));
+			}
+			// at least 10x smaller than the raw jitter
+			assertTrue("Max period error " + maxError + "ns", maxError < jitter / 10);
+			// skip 4 buffers
+			host.skip(4 * BUFFER_SIZE);
+			clock += 5 * period;
+			host.step(clock + (long) (random.nextDouble() * jitter));
+			long diff = client.times[5000] - client.times[4999];
+			assertTrue("Skip diff " + diff + "ns", Math.abs(diff - 5 * period) < jitter);
+		} finally {
+			stop(server);
+		}
+	}
+
+	static void start(final AsioAudioServer server, SimulatedAsioDriverHost host) throws Exception {
+		Thread runner = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					server.run();
+				} catch (Exception ex) {
+					ex.printStackTrace();
+				}
+			}
+		}, "AsioAudioServerTest");
+		runner.setDaemon(true);
+		runner.start();
+		long timeout = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!host.isRunning()) {
+			if (System.nanoTime() > timeout) {
+				fail("Server did not start");
+			}
+			Thread.sleep(1);
+		}
+	}
+
+	static void stop(AsioAudioServer server) throws Exception {
+		server.shutdown();
+		assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	/*
+	 * Records the first input sample of each channel, and writes each output
+	 * with its index + 10.
+	 */
+	static class TestClient implements AudioClient {
+
+		volatile AudioConfiguration context;
+		volatile int configureCount;
+		volatile Thread configureThread;
+		volatile int nframes;
+		volatile List<FloatBuffer> inputs;
+		volatile List<FloatBuffer> outputs;
+		volatile boolean processing;
+		volatile boolean overlapped;
+		volatile boolean mismatched;
+		float[] lastInputs = new float[0];
+		long[] times = new long[0];
+		int timeCount;
+
+		@Override
+		public void configure(AudioConfiguration context) throws Exception {
+			if (processing) {
+				overlapped = true;
+			}
+			this.context = context;
+			lastInputs = new float[context.getInputChannelCount()];
+			configureThread = Thread.currentThread();
+			configureCount++;
+		}
+
+		@Override
+		public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+			processing = true;
+			if (nframes != context.getMaxBufferSize()) {
+				mismatched = true;
+			}
+			this.inputs = inputs;
+			this.outputs = outputs;
+			this.nframes = nframes;
+			if (timeCount < times.length) {
+				times[timeCount++] = time;
+			}
+			for (int i = 0; i < inputs.size(); i++) {
+				lastInputs[i] = inputs.get(i).get(0);
+			}
+			for (int i = 0; i < outputs.size(); i++) {
+				FloatBuffer out = outputs.get(i);
+				for (int n = 0; n < nframes; n++) {
+					out.put(i + 10);
+				}
+			}
+			processing = false;
+			return true;
+		}
+
+		@Override
+		public void shutdown() {
+		}
+
+	}
+
+}
@@ -0,0 +1,110 @@
+package im.composer.audioservers.asio;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the AsioAudioServer bufferSwitch path, driven by a
+ * SimulatedAsioDriverHost, with a client that copies inputs to outputs.
+ * Measures the server overhead per buffer switch, including the time filter,
+ * reading inputs and writing outputs.
+ * 
+ * Run from the test classpath with org.openjdk.jmh.Main, or main() here.
+ * 
+ * @since 2026-10-19
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-XX:+UseParallelGC")
+public class BufferSwitchBenchmark {
+
+	@Param({ "2", "16" })
+	public int channels;
+
+	@Param({ "64", "256" })
+	public int bufferSize;
+
+	private SimulatedAsioDriverHost host;
+	private AsioAudioServer server;
+	private long time;
+	private long period;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		host = new SimulatedAsioDriverHost(channels, channels, bufferSize, 48000, false);
+		HashSet<Integer> chans = new HashSet<Integer>();
+		for (int i = 0; i < channels; i++) {
+			chans.add(i);
+		}
+		server = AsioAudioServer.create(host, 48000, chans, chans, new CopyClient());
+		AsioAudioServerTest.start(server, host);
+		time = System.nanoTime();
+		period = (long) (bufferSize * 1e9 / 48000);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		server.shutdown();
+		server.awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	public void bufferSwitch() {
+		host.step(time += period);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] opts = Arrays.copyOf(args, args.length + 1);
+		opts[args.length] = BufferSwitchBenchmark.class.getSimpleName();
+		org.openjdk.jmh.Main.main(opts);
+	}
+
+	private static class CopyClient implements AudioClient {
+
+		@Override
+		public void configure(AudioConfiguration context) throws Exception {
+		}
+
+		@Override
+		public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+			int count = Math.min(inputs.size(), outputs.size());
+			for (int i = 0; i < count; i++) {
+				FloatBuffer in = inputs.get(i);
+				FloatBuffer out = outputs.get(i);
+				for (int n = 0; n < nframes; n++) {
+					out.put(n, in.get(n));
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void shutdown() {
+		}
+
+	}
+
+}
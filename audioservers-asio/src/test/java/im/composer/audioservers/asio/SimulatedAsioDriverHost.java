@@ -0,0 +1,337 @@
+package im.composer.audioservers.asio;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A simulated AsioDriverHost for running AsioAudioServer without an ASIO
+ * driver, eg. in tests or benchmarks on other platforms.
+ * 
+ * In realtime mode the driver calls bufferSwitch() from its own thread at the
+ * period implied by buffer size and sample rate. Otherwise buffer switches are
+ * triggered by calling {@link #step()}, or {@link #step(long)} to feed a
+ * synthetic system time. Input channels read silence unless a signal is set,
+ * and the last block written to each output channel is retained.
+ * 
+ * Scheduling jitter can be simulated with {@link #setJitter(long)}, and
+ * discontinuities in sample position with {@link #skip(int)}.
+ * 
+ * As with a real driver, buffers keep the size they were created with until
+ * the driver is restarted, and reading or writing more than the buffer size
+ * is an error.
+ * 
+ * @since 2026-10-19
+ * 
+ */
+public class SimulatedAsioDriverHost implements AsioDriverHost {
+
+	private final int numInputs;
+	private final int numOutputs;
+	private final boolean realtime;
+
+	private volatile int bufferSize;
+	private volatile int createdSize;
+	private volatile double sampleRate;
+	private volatile Listener listener;
+	private volatile boolean running;
+	private int inputLatency;
+	private int outputLatency;
+	private float[][] inputSignals;
+	private int[] inputPositions;
+	private float[][] outputs;
+	private long samplePosition;
+	private Thread thread;
+	private volatile long jitter;
+	private final Random random = new Random();
+
+	/**
+	 * Create a simulated driver.
+	 * 
+	 * @param numInputs
+	 *            number of input channels
+	 * @param numOutputs
+	 *            number of output channels
+	 * @param bufferSize
+	 *            preferred buffer size
+	 * @param sampleRate
+	 *            initial sample rate
+	 * @param realtime
+	 *            whether to drive buffer switches from a timed thread
+	 */
+	public SimulatedAsioDriverHost(int numInputs, int numOutputs, int bufferSize, double sampleRate, boolean realtime) {
+		if (numInputs < 0 || numOutputs < 0 || bufferSize < 1 || sampleRate < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.numInputs = numInputs;
+		this.numOutputs = numOutputs;
+		this.bufferSize = bufferSize;
+		this.sampleRate = sampleRate;
+		this.realtime = realtime;
+		inputSignals = new float[numInputs][];
+		inputPositions = new int[numInputs];
+	}
+
+	/**
+	 * Set a signal to be looped on the given driver input channel. Must be
+	 * called before start().
+	 * 
+	 * @param channel
+	 * @param signal
+	 *            signal data, or null for silence
+	 */
+	public void setInputSignal(int channel, float[] signal) {
+		inputSignals[channel] = signal == null || signal.length == 0 ? null : signal.clone();
+	}
+
+	public void setLatencies(int inputLatency, int outputLatency) {
+		this.inputLatency = inputLatency;
+		this.outputLatency = outputLatency;
+		Listener l = listener;
+		if (l != null) {
+			l.latenciesChanged(inputLatency, outputLatency);
+		}
+	}
+
+	/**
+	 * Set the maximum random delay added to the time of each buffer switch.
+	 * In realtime mode the clock thread is actually woken late, otherwise the
+	 * delay is added to the time passed by {@link #step()}.
+	 * 
+	 * @param maxJitter
+	 *            maximum jitter in nanoseconds, or 0 for none
+	 */
+	public void setJitter(long maxJitter) {
+		if (maxJitter < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.jitter = maxJitter;
+	}
+
+	/**
+	 * Advance the sample position without a buffer switch, simulating
+	 * dropped buffers or a driver resync.
+	 * 
+	 * @param frames
+	 */
+	public synchronized void skip(int frames) {
+		if (frames < 0) {
+			throw new IllegalArgumentException();
+		}
+		samplePosition += frames;
+	}
+
+	/**
+	 * Simulate the driver changing its preferred buffer size. Takes effect on
+	 * the next start().
+	 * 
+	 * @param bufferSize
+	 */
+	public void changeBufferSize(int bufferSize) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.bufferSize = bufferSize;
+		Listener l = listener;
+		if (l != null) {
+			l.bufferSizeChanged(bufferSize);
+		}
+	}
+
+	/**
+	 * The last block written to an output.
+	 * 
+	 * @param index
+	 *            position in the outputChannels array passed to start()
+	 * @return output data
+	 */
+	public float[] getOutput(int index) {
+		return outputs[index];
+	}
+
+	@Override
+	public int getNumChannelsInput() {
+		return numInputs;
+	}
+
+	@Override
+	public int getNumChannelsOutput() {
+		return numOutputs;
+	}
+
+	@Override
+	public int getBufferPreferredSize() {
+		return bufferSize;
+	}
+
+	@Override
+	public int getBufferSize() {
+		return createdSize;
+	}
+
+	@Override
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	@Override
+	public void setSampleRate(double sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	@Override
+	public int getInputLatency() {
+		return inputLatency;
+	}
+
+	@Override
+	public int getOutputLatency() {
+		return outputLatency;
+	}
+
+	@Override
+	public synchronized void start(int[] inputChannels, int[] outputChannels, Listener listener) {
+		if (running) {
+			throw new IllegalStateException();
+		}
+		float[][] signals = new float[inputChannels.length][];
+		for (int i = 0; i < inputChannels.length; i++) {
+			signals[i] = inputSignals[inputChannels[i]];
+		}
+		inputSignals = signals;
+		inputPositions = new int[inputChannels.length];
+		createdSize = bufferSize;
+		outputs = new float[outputChannels.length][createdSize];
+		samplePosition = 0;
+		this.listener = listener;
+		listener.latenciesChanged(inputLatency, outputLatency);
+		running = true;
+		if (realtime) {
+			thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					runClock();
+				}
+			}, "Simulated ASIO driver");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MAX_PRIORITY);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Trigger a single buffer switch. Only available when not in realtime
+	 * mode.
+	 */
+	public void step() {
+		if (realtime) {
+			throw new IllegalStateException();
+		}
+		bufferSwitch(System.nanoTime() + nextJitter());
+	}
+
+	/**
+	 * Trigger a single buffer switch with the given system time. Only
+	 * available when not in realtime mode.
+	 * 
+	 * @param systemTime
+	 *            time in the System.nanoTime() domain
+	 */
+	public void step(long systemTime) {
+		if (realtime) {
+			throw new IllegalStateException();
+		}
+		bufferSwitch(systemTime);
+	}
+
+	private long nextJitter() {
+		long max = jitter;
+		return max > 0 ? (long) (random.nextDouble() * max) : 0;
+	}
+
+	private void runClock() {
+		long next = System.nanoTime();
+		long wake = next;
+		while (running) {
+			long now = System.nanoTime();
+			if (now < wake) {
+				LockSupport.parkNanos(wake - now);
+				continue;
+			}
+			bufferSwitch(now);
+			next += (long) (createdSize * 1e9 / sampleRate);
+			wake = next + nextJitter();
+		}
+	}
+
+	private synchronized void bufferSwitch(long time) {
+		Listener l = listener;
+		if (!running || l == null) {
+			return;
+		}
+		l.bufferSwitch(time, samplePosition);
+		samplePosition += createdSize;
+	}
+
+	@Override
+	public void readInput(int index, float[] data) {
+		int size = checkSize(data);
+		float[] signal = inputSignals[index];
+		if (signal == null) {
+			for (int i = 0; i < size; i++) {
+				data[i] = 0;
+			}
+		} else {
+			int pos = inputPositions[index];
+			for (int i = 0; i < size; i++) {
+				data[i] = signal[pos++];
+				if (pos == signal.length) {
+					pos = 0;
+				}
+			}
+			inputPositions[index] = pos;
+		}
+	}
+
+	@Override
+	public void writeOutput(int index, float[] data) {
+		System.arraycopy(data, 0, outputs[index], 0, checkSize(data));
+	}
+
+	private int checkSize(float[] data) {
+		if (data.length > createdSize) {
+			throw new IllegalArgumentException("Data length " + data.length
+					+ " exceeds buffer size " + createdSize);
+		}
+		return data.length;
+	}
+
+	@Override
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			running = false;
+			listener = null;
+			t = thread;
+			thread = null;
+		}
+		if (t != null && t != Thread.currentThread()) {
+			try {
+				t.join(1000);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		stop();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+}
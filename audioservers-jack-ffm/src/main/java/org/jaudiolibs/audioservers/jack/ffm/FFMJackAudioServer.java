@@ -0,0 +1,437 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.jack.ffm;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+import org.jaudiolibs.audioservers.AudioServer;
+import org.jaudiolibs.audioservers.ext.ClientID;
+import org.jaudiolibs.audioservers.ext.Connections;
+import org.jaudiolibs.audioservers.ext.Metering;
+import org.jaudiolibs.audioservers.ext.TimeFilterBandwidth;
+import org.jaudiolibs.audioservers.util.FadeOut;
+import org.jaudiolibs.audioservers.util.TimeFilter;
+
+/**
+ * Implementation of AudioServer using JACK, bound directly to libjack through
+ * the Foreign Function &amp; Memory API rather than JNA.
+ *
+ * Port buffers are passed to the AudioClient as FloatBuffers backed by the
+ * native JACK buffers. Buffers are only recreated when JACK changes the buffer
+ * address, so no objects are allocated per cycle in the common case.
+ *
+ * Requires JDK 22 or above. Applications should be run with
+ * --enable-native-access to avoid restricted method warnings.
+ *
+ * Experimental - this backend has not yet been tested against a running
+ * JACK server. Use JackAudioServer for production.
+ *
+ * @author Neil C Smith
+ */
+public class FFMJackAudioServer implements AudioServer {
+
+	private final static Logger LOG = Logger.getLogger(FFMJackAudioServer.class.getName());
+
+	private enum State {
+
+		New, Initialising, Active, Closing, Terminated
+	};
+
+	private final ClientID clientID;
+	private final Connections connections;
+	private final AudioClient client;
+	private final AtomicReference<State> state;
+	private final Queue<Runnable> tasks;
+	private final AtomicBoolean reconfigure;
+	private final TimeFilter timeFilter;
+	private final Metering metering;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private final FadeOut fadeOut = new FadeOut();
+
+	private volatile AudioConfiguration context;
+	private volatile Thread serverThread;
+	private volatile boolean suspended;
+	private volatile boolean processing;
+
+	private LibJack jack;
+	private Arena arena;
+	private MemorySegment jackclient;
+	private MemorySegment[] inputPorts;
+	private MemorySegment[] outputPorts;
+	private long[] inputAddresses;
+	private long[] outputAddresses;
+	private FloatBuffer[] inputs;
+	private FloatBuffer[] outputs;
+	private List<FloatBuffer> inputBuffers;
+	private List<FloatBuffer> outputBuffers;
+
+	public FFMJackAudioServer(ClientID id, Connections connections, AudioConfiguration ctxt, AudioClient client) {
+		this.clientID = id;
+		this.connections = connections;
+		this.context = ctxt;
+		this.client = client;
+		state = new AtomicReference<State>(State.New);
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		reconfigure = new AtomicBoolean();
+		TimeFilterBandwidth bw = ctxt.find(TimeFilterBandwidth.class);
+		timeFilter = new TimeFilter(ctxt.getSampleRate(),
+				bw == null ? TimeFilter.DEFAULT_BANDWIDTH : bw.getBandwidth());
+		// no xrun callback registered, so treat large errors as a discontinuity
+		timeFilter.setMaxError(1);
+		metering = ctxt.find(Metering.class);
+	}
+
+	public void run() throws Exception {
+		if (!state.compareAndSet(State.New, State.Initialising)) {
+			throw new IllegalStateException();
+		}
+		try {
+			try {
+				initialise();
+			} catch (Exception ex) {
+				state.set(State.Terminated);
+				closeAll();
+				client.shutdown();
+				throw ex;
+			}
+			if (state.compareAndSet(State.Initialising, State.Active)) {
+				runImpl();
+			}
+			closeAll();
+			client.shutdown();
+			state.set(State.Terminated);
+		} finally {
+			terminated.countDown();
+		}
+	}
+
+	private void initialise() throws Exception {
+		jack = LibJack.getInstance();
+		arena = Arena.ofShared();
+		int options = (connections.isConnectInputs() || connections.isConnectOutputs()) ? LibJack.JackNullOption : LibJack.JackNoStartServer;
+		jackclient = jack.clientOpen(clientID.getIdentifier(), options, arena);
+		int count = context.getInputChannelCount();
+		inputPorts = new MemorySegment[count];
+		inputAddresses = new long[count];
+		inputs = new FloatBuffer[count];
+		for (int i = 0; i < count; i++) {
+			inputPorts[i] = jack.portRegister(jackclient, "Input_" + (i + 1), LibJack.JackPortIsInput, arena);
+		}
+		count = context.getOutputChannelCount();
+		outputPorts = new MemorySegment[count];
+		outputAddresses = new long[count];
+		outputs = new FloatBuffer[count];
+		for (int i = 0; i < count; i++) {
+			outputPorts[i] = jack.portRegister(jackclient, "Output_" + (i + 1), LibJack.JackPortIsOutput, arena);
+		}
+		inputBuffers = Collections.unmodifiableList(Arrays.asList(inputs));
+		outputBuffers = Collections.unmodifiableList(Arrays.asList(outputs));
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		MethodHandle process = lookup.findVirtual(FFMJackAudioServer.class, "process",
+				LibJack.PROCESS_CALLBACK.toMethodType()).bindTo(this);
+		MethodHandle bufferSize = lookup.findVirtual(FFMJackAudioServer.class, "bufferSizeChanged",
+				LibJack.BUFFER_SIZE_CALLBACK.toMethodType()).bindTo(this);
+		MethodHandle sampleRate = lookup.findVirtual(FFMJackAudioServer.class, "sampleRateChanged",
+				LibJack.SAMPLE_RATE_CALLBACK.toMethodType()).bindTo(this);
+		MethodHandle shutdown = lookup.findVirtual(FFMJackAudioServer.class, "clientShutdown",
+				LibJack.SHUTDOWN_CALLBACK.toMethodType()).bindTo(this);
+		jack.setBufferSizeCallback(jackclient, jack.upcall(bufferSize, LibJack.BUFFER_SIZE_CALLBACK, arena));
+		jack.setSampleRateCallback(jackclient, jack.upcall(sampleRate, LibJack.SAMPLE_RATE_CALLBACK, arena));
+		jack.onShutdown(jackclient, jack.upcall(shutdown, LibJack.SHUTDOWN_CALLBACK, arena));
+		jack.setProcessCallback(jackclient, jack.upcall(process, LibJack.PROCESS_CALLBACK, arena));
+	}
+
+	private void runImpl() {
+		serverThread = Thread.currentThread();
+		try {
+			if (metering != null) {
+				metering.configure(inputPorts.length, outputPorts.length);
+			}
+			context = createContext(jack.getSampleRate(jackclient), jack.getBufferSize(jackclient));
+			LOG.log(Level.FINE, "Configuring AudioClient\n{0}", context);
+			client.configure(context);
+			if (jack.activate(jackclient) != 0) {
+				throw new IllegalStateException("Unable to activate JACK client");
+			}
+			if (connections.isConnectInputs()) {
+				connectInputs();
+			}
+			if (connections.isConnectOutputs()) {
+				connectOutputs();
+			}
+			while (state.get() == State.Active) {
+				if (reconfigure.getAndSet(false)) {
+					reconfigure();
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				if (!reconfigure.get() && tasks.isEmpty()) {
+					LockSupport.park(this);
+				}
+			}
+		} catch (Exception ex) {
+			LOG.log(Level.FINE, "", ex);
+			shutdown();
+		}
+	}
+
+	private AudioConfiguration createContext(float sampleRate, int bufferSize) {
+		ClientID id = clientID;
+		String actualID = jack.getClientName(jackclient);
+		if (!id.getIdentifier().equals(actualID)) {
+			id = new ClientID(actualID);
+		}
+		if (metering != null) {
+			return new AudioConfiguration(sampleRate, inputPorts.length, outputPorts.length, bufferSize, id, connections, metering);
+		}
+		return new AudioConfiguration(sampleRate, inputPorts.length, outputPorts.length, bufferSize, id, connections);
+	}
+
+	private void reconfigure() throws Exception {
+		AudioConfiguration current = context;
+		int sampleRate = jack.getSampleRate(jackclient);
+		int bufferSize = jack.getBufferSize(jackclient);
+		if (sampleRate == current.getSampleRate() && bufferSize == current.getMaxBufferSize()) {
+			return;
+		}
+		AudioConfiguration ctxt = createContext(sampleRate, bufferSize);
+		suspended = true;
+		while (processing) {
+			LockSupport.parkNanos(100000);
+		}
+		try {
+			LOG.log(Level.FINE, "Reconfiguring AudioClient\n{0}", ctxt);
+			client.configure(ctxt);
+			context = ctxt;
+		} finally {
+			suspended = false;
+		}
+	}
+
+	private void connectInputs() {
+		List<String> ins = jack.getPorts(jackclient, LibJack.JackPortIsOutput | LibJack.JackPortIsPhysical);
+		int inCount = Math.min(ins.size(), inputPorts.length);
+		for (int i = 0; i < inCount; i++) {
+			if (jack.connect(jackclient, ins.get(i), jack.portName(inputPorts[i])) != 0) {
+				LOG.log(Level.WARNING, "Unable to connect {0}", ins.get(i));
+			}
+		}
+	}
+
+	private void connectOutputs() {
+		List<String> outs = jack.getPorts(jackclient, LibJack.JackPortIsInput | LibJack.JackPortIsPhysical);
+		int outCount = Math.min(outs.size(), outputPorts.length);
+		for (int i = 0; i < outCount; i++) {
+			if (jack.connect(jackclient, jack.portName(outputPorts[i]), outs.get(i)) != 0) {
+				LOG.log(Level.WARNING, "Unable to connect {0}", outs.get(i));
+			}
+		}
+	}
+
+	/*
+	 * JACK process callback - upcall on the realtime thread. Must never throw.
+	 */
+	private int process(int nframes, MemorySegment arg) {
+		if (state.get() != State.Active) {
+			return 1;
+		}
+		processing = true;
+		try {
+			for (int i = 0; i < inputPorts.length; i++) {
+				inputs[i] = buffer(inputPorts[i], nframes, inputs, inputAddresses, i);
+			}
+			for (int i = 0; i < outputPorts.length; i++) {
+				outputs[i] = buffer(outputPorts[i], nframes, outputs, outputAddresses, i);
+			}
+			if (suspended || nframes != context.getMaxBufferSize()) {
+				for (FloatBuffer output : outputs) {
+					for (int n = 0; n < nframes; n++) {
+						output.put(n, 0);
+					}
+				}
+				return 0;
+			}
+			timeFilter.setSampleRate(context.getSampleRate());
+			long time = timeFilter.update(System.nanoTime(), nframes);
+			if (metering != null) {
+				for (int i = 0; i < inputs.length; i++) {
+					metering.measureInput(i, inputs[i], nframes);
+				}
+				metering.publishInputs();
+			}
+			if (client.process(time, inputBuffers, outputBuffers, nframes)) {
+				if (fadeOut.process(outputBuffers, nframes)) {
+					shutdown();
+				}
+				if (metering != null) {
+					for (int i = 0; i < outputs.length; i++) {
+						metering.measureOutput(i, outputs[i], nframes);
+					}
+					metering.publishOutputs();
+				}
+				return 0;
+			} else {
+				shutdown();
+				return 1;
+			}
+		} catch (Throwable t) {
+			shutdown();
+			return 1;
+		} finally {
+			processing = false;
+		}
+	}
+
+	private FloatBuffer buffer(MemorySegment port, int nframes, FloatBuffer[] cache, long[] addresses, int idx) {
+		long address = jack.portGetBuffer(port, nframes);
+		FloatBuffer buffer = cache[idx];
+		if (buffer == null || address != addresses[idx] || buffer.capacity() != nframes) {
+			buffer = MemorySegment.ofAddress(address)
+					.reinterpret(nframes * (long) Float.BYTES)
+					.asByteBuffer()
+					.order(ByteOrder.nativeOrder())
+					.asFloatBuffer();
+			addresses[idx] = address;
+		} else {
+			buffer.clear();
+		}
+		return buffer;
+	}
+
+	private int bufferSizeChanged(int nframes, MemorySegment arg) {
+		reconfigure.set(true);
+		signal();
+		return 0;
+	}
+
+	private int sampleRateChanged(int srate, MemorySegment arg) {
+		reconfigure.set(true);
+		signal();
+		return 0;
+	}
+
+	private void clientShutdown(MemorySegment arg) {
+		try {
+			shutdown();
+		} catch (Throwable t) {
+			// never propagate into native code
+		}
+	}
+
+	private void signal() {
+		Thread thread = serverThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * The filter used to smooth the time passed to the client. Can be used to
+	 * monitor clock drift and jitter, or to adjust bandwidth while running.
+	 *
+	 * @return time filter
+	 */
+	public TimeFilter getTimeFilter() {
+		return timeFilter;
+	}
+
+	public AudioConfiguration getAudioContext() {
+		return context;
+	}
+
+	public boolean isActive() {
+		State st = state.get();
+		return (st == State.Active || st == State.Closing);
+	}
+
+	public void shutdown() {
+		State st;
+		do {
+			st = state.get();
+			if (st == State.Terminated || st == State.Closing) {
+				break;
+			}
+		} while (!state.compareAndSet(st, State.Closing));
+		signal();
+	}
+
+	/**
+	 * Fade the output to silence before shutting down. If the server is not
+	 * active, this is the same as shutdown().
+	 *
+	 * @param fadeTime
+	 * @param unit
+	 */
+	@Override
+	public void shutdown(long fadeTime, TimeUnit unit) {
+		if (state.get() == State.Active) {
+			fadeOut.start((int) (unit.toNanos(fadeTime) * context.getSampleRate() / 1e9));
+		} else {
+			shutdown();
+		}
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	private void closeAll() {
+		try {
+			if (jackclient != null) {
+				jack.deactivate(jackclient);
+				jack.clientClose(jackclient);
+			}
+		} catch (Throwable t) {
+		}
+		try {
+			if (arena != null) {
+				arena.close();
+			}
+		} catch (Throwable t) {
+		}
+	}
+
+}
@@ -0,0 +1,282 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.jack.ffm;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * Bindings to the subset of libjack used by FFMJackAudioServer, using the
+ * Foreign Function & Memory API.
+ *
+ * @author Neil C Smith
+ */
+final class LibJack {
+
+	// jack_options_t
+	final static int JackNullOption = 0x00;
+	final static int JackNoStartServer = 0x01;
+
+	// JackPortFlags
+	final static int JackPortIsInput = 0x1;
+	final static int JackPortIsOutput = 0x2;
+	final static int JackPortIsPhysical = 0x4;
+
+	final static String JACK_DEFAULT_AUDIO_TYPE = "32 bit float mono audio";
+
+	final static FunctionDescriptor PROCESS_CALLBACK = FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS);
+	final static FunctionDescriptor BUFFER_SIZE_CALLBACK = FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS);
+	final static FunctionDescriptor SAMPLE_RATE_CALLBACK = FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS);
+	final static FunctionDescriptor SHUTDOWN_CALLBACK = FunctionDescriptor.ofVoid(ADDRESS);
+
+	private final static String[] LIBRARY_NAMES = { "libjack.so.0", "libjack.so", "libjack.dylib", "libjack64", "libjack" };
+
+	private static LibJack instance;
+
+	private final Linker linker;
+	private final SymbolLookup lookup;
+	// C unsigned long is 32 bit on Windows
+	private final MemoryLayout longLayout;
+
+	private final MethodHandle client_open;
+	private final MethodHandle client_close;
+	private final MethodHandle get_client_name;
+	private final MethodHandle activate;
+	private final MethodHandle deactivate;
+	private final MethodHandle get_sample_rate;
+	private final MethodHandle get_buffer_size;
+	private final MethodHandle port_register;
+	private final MethodHandle port_name;
+	private final MethodHandle port_get_buffer;
+	private final MethodHandle set_process_callback;
+	private final MethodHandle set_buffer_size_callback;
+	private final MethodHandle set_sample_rate_callback;
+	private final MethodHandle on_shutdown;
+	private final MethodHandle get_ports;
+	private final MethodHandle connect;
+	private final MethodHandle free;
+
+	private LibJack(SymbolLookup lookup) {
+		this.linker = Linker.nativeLinker();
+		this.lookup = lookup;
+		longLayout = linker.canonicalLayouts().get("long");
+		client_open = find("jack_client_open", FunctionDescriptor.of(ADDRESS, ADDRESS, JAVA_INT, ADDRESS),
+				Linker.Option.firstVariadicArg(3));
+		client_close = find("jack_client_close", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+		get_client_name = find("jack_get_client_name", FunctionDescriptor.of(ADDRESS, ADDRESS));
+		activate = find("jack_activate", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+		deactivate = find("jack_deactivate", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+		get_sample_rate = find("jack_get_sample_rate", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+		get_buffer_size = find("jack_get_buffer_size", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+		port_register = find("jack_port_register", FunctionDescriptor.of(ADDRESS, ADDRESS, ADDRESS, ADDRESS, longLayout, longLayout));
+		port_name = find("jack_port_name", FunctionDescriptor.of(ADDRESS, ADDRESS));
+		// return buffer address as a long to avoid allocating a segment per call
+		port_get_buffer = find("jack_port_get_buffer", FunctionDescriptor.of(JAVA_LONG, ADDRESS, JAVA_INT),
+				Linker.Option.critical(false));
+		set_process_callback = find("jack_set_process_callback", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+		set_buffer_size_callback = find("jack_set_buffer_size_callback", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+		set_sample_rate_callback = find("jack_set_sample_rate_callback", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+		on_shutdown = find("jack_on_shutdown", FunctionDescriptor.ofVoid(ADDRESS, ADDRESS, ADDRESS));
+		get_ports = find("jack_get_ports", FunctionDescriptor.of(ADDRESS, ADDRESS, ADDRESS, ADDRESS, longLayout));
+		connect = find("jack_connect", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+		free = find("jack_free", FunctionDescriptor.ofVoid(ADDRESS));
+	}
+
+	private MethodHandle find(String name, FunctionDescriptor descriptor, Linker.Option... options) {
+		MemorySegment symbol = lookup.find(name).orElseThrow(() -> new UnsatisfiedLinkError("Cannot find " + name));
+		return linker.downcallHandle(symbol, descriptor, options);
+	}
+
+	/**
+	 * Load libjack.
+	 *
+	 * @return LibJack
+	 * @throws UnsatisfiedLinkError if libjack cannot be found
+	 */
+	static synchronized LibJack getInstance() {
+		if (instance == null) {
+			UnsatisfiedLinkError error = null;
+			for (String name : LIBRARY_NAMES) {
+				try {
+					instance = new LibJack(SymbolLookup.libraryLookup(name, Arena.global()));
+					break;
+				} catch (IllegalArgumentException | UnsatisfiedLinkError ex) {
+					if (error == null) {
+						error = new UnsatisfiedLinkError("Unable to load libjack");
+					}
+					error.addSuppressed(ex);
+				}
+			}
+			if (instance == null) {
+				throw error;
+			}
+		}
+		return instance;
+	}
+
+	/*
+	 * The handle must match the descriptor and must never throw.
+	 */
+	MemorySegment upcall(MethodHandle handle, FunctionDescriptor descriptor, Arena arena) {
+		return linker.upcallStub(handle, descriptor, arena);
+	}
+
+	MemorySegment clientOpen(String name, int options, Arena arena) {
+		MemorySegment status = arena.allocate(JAVA_INT);
+		MemorySegment client = (MemorySegment) invoke(client_open, arena.allocateFrom(name), options, status);
+		if (client.equals(MemorySegment.NULL)) {
+			throw new IllegalStateException("Unable to open JACK client - status 0x"
+					+ Integer.toHexString(status.get(JAVA_INT, 0)));
+		}
+		return client;
+	}
+
+	int clientClose(MemorySegment client) {
+		return (int) invoke(client_close, client);
+	}
+
+	String getClientName(MemorySegment client) {
+		return toString((MemorySegment) invoke(get_client_name, client));
+	}
+
+	int activate(MemorySegment client) {
+		return (int) invoke(activate, client);
+	}
+
+	int deactivate(MemorySegment client) {
+		return (int) invoke(deactivate, client);
+	}
+
+	int getSampleRate(MemorySegment client) {
+		return (int) invoke(get_sample_rate, client);
+	}
+
+	int getBufferSize(MemorySegment client) {
+		return (int) invoke(get_buffer_size, client);
+	}
+
+	MemorySegment portRegister(MemorySegment client, String name, int flags, Arena arena) {
+		MemorySegment port = (MemorySegment) invoke(port_register, client,
+				arena.allocateFrom(name), arena.allocateFrom(JACK_DEFAULT_AUDIO_TYPE), cLong(flags), cLong(0));
+		if (port.equals(MemorySegment.NULL)) {
+			throw new IllegalStateException("Unable to register port " + name);
+		}
+		return port;
+	}
+
+	String portName(MemorySegment port) {
+		return toString((MemorySegment) invoke(port_name, port));
+	}
+
+	/*
+	 * Realtime safe - returns the buffer address.
+	 */
+	long portGetBuffer(MemorySegment port, int nframes) {
+		try {
+			return (long) port_get_buffer.invokeExact(port, nframes);
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	int setProcessCallback(MemorySegment client, MemorySegment callback) {
+		return (int) invoke(set_process_callback, client, callback, MemorySegment.NULL);
+	}
+
+	int setBufferSizeCallback(MemorySegment client, MemorySegment callback) {
+		return (int) invoke(set_buffer_size_callback, client, callback, MemorySegment.NULL);
+	}
+
+	int setSampleRateCallback(MemorySegment client, MemorySegment callback) {
+		return (int) invoke(set_sample_rate_callback, client, callback, MemorySegment.NULL);
+	}
+
+	void onShutdown(MemorySegment client, MemorySegment callback) {
+		invoke(on_shutdown, client, callback, MemorySegment.NULL);
+	}
+
+	/*
+	 * Audio ports only, so MIDI ports are never mapped to audio channels.
+	 */
+	List<String> getPorts(MemorySegment client, int flags) {
+		MemorySegment ports;
+		try (Arena arena = Arena.ofConfined()) {
+			ports = (MemorySegment) invoke(get_ports, client, MemorySegment.NULL,
+					arena.allocateFrom(JACK_DEFAULT_AUDIO_TYPE), cLong(flags));
+		}
+		List<String> names = new ArrayList<>();
+		if (ports.equals(MemorySegment.NULL)) {
+			return names;
+		}
+		try {
+			MemorySegment array = ports.reinterpret(Long.MAX_VALUE);
+			for (long i = 0;; i++) {
+				MemorySegment name = array.getAtIndex(ADDRESS, i);
+				if (name.equals(MemorySegment.NULL)) {
+					break;
+				}
+				names.add(toString(name));
+			}
+		} finally {
+			invoke(free, ports);
+		}
+		return names;
+	}
+
+	int connect(MemorySegment client, String source, String destination) {
+		try (Arena arena = Arena.ofConfined()) {
+			return (int) invoke(connect, client, arena.allocateFrom(source), arena.allocateFrom(destination));
+		}
+	}
+
+	private Object cLong(int value) {
+		return longLayout.byteSize() == 8 ? (Object) (long) value : (Object) value;
+	}
+
+	private static String toString(MemorySegment cString) {
+		return cString.reinterpret(Long.MAX_VALUE).getString(0);
+	}
+
+	private static Object invoke(MethodHandle handle, Object... args) {
+		try {
+			return handle.invokeWithArguments(args);
+		} catch (RuntimeException | Error ex) {
+			throw ex;
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+}
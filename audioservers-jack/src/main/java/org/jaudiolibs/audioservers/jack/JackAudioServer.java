@@ -24,12 +24,22 @@
 package org.jaudiolibs.audioservers.jack;
 
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,7 +51,12 @@ import org.jaudiolibs.audioservers.AudioConfiguration;
 import org.jaudiolibs.audioservers.AudioServer;
 import org.jaudiolibs.audioservers.ext.ClientID;
 import org.jaudiolibs.audioservers.ext.Connections;
+import org.jaudiolibs.audioservers.ext.Metering;
+import org.jaudiolibs.audioservers.ext.TimeFilterBandwidth;
+import org.jaudiolibs.audioservers.util.FadeOut;
+import org.jaudiolibs.audioservers.util.TimeFilter;
 import org.jaudiolibs.jnajack.Jack;
+import org.jaudiolibs.jnajack.JackBufferSizeCallback;
 import org.jaudiolibs.jnajack.JackClient;
 import org.jaudiolibs.jnajack.JackClientRegistrationCallback;
 import org.jaudiolibs.jnajack.JackException;
@@ -52,8 +67,12 @@ import org.jaudiolibs.jnajack.JackPortFlags;
 import org.jaudiolibs.jnajack.JackPortRegistrationCallback;
 import org.jaudiolibs.jnajack.JackPortType;
 import org.jaudiolibs.jnajack.JackProcessCallback;
+import org.jaudiolibs.jnajack.JackSampleRateCallback;
 import org.jaudiolibs.jnajack.JackShutdownCallback;
 import org.jaudiolibs.jnajack.JackStatus;
+import org.jaudiolibs.jnajack.JackXrunCallback;
+
+import com.sun.jna.Pointer;
 
 /**
  * Implementation of AudioServer using Jack (via JNAJack)
@@ -71,7 +90,7 @@ public class JackAudioServer implements AudioServer {
 	};
 
 	private ClientID clientID;
-	private AudioConfiguration context;
+	private volatile AudioConfiguration context;
 	private AudioClient client;
 	protected Jack jack;
 	protected JackClient jackclient;
@@ -83,16 +102,62 @@ public class JackAudioServer implements AudioServer {
 	private Queue<MidiMessage> midi_outs;
 	private List<FloatBuffer> outputBuffers;
 	private Connections connections;
+	private final JackRouting routing;
+	private final Set<String> routedConnections = new HashSet<String>();
+	private final AtomicBoolean routingPending = new AtomicBoolean();
+	private final Metering metering;
 
 	private JackClientRegistrationCallback client_reg_callback;
 	private JackPortRegistrationCallback port_reg_callback;
 	private boolean setupMidi = false;
 
+	private final JackLoadMonitor loadMonitor = new JackLoadMonitor();
+	private final JackFreewheel freewheel = new JackFreewheel();
+	private final JackLatency latency = new JackLatency();
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean freewheelChanged = new AtomicBoolean();
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private final FadeOut fadeOut = new FadeOut();
+	private volatile Thread serverThread;
+	private volatile JackNative natives;
+
+	// reconfiguration handshake between JACK callbacks, run thread and process thread
+	private final AtomicBoolean reconfigure = new AtomicBoolean();
+	private volatile boolean suspended;
+	private volatile boolean processing;
+	private final AtomicReference<PendingBufferSize> pendingBufferSize = new AtomicReference<PendingBufferSize>();
+
+	// process thread timing
+	private final TimeFilter timeFilter;
+	private volatile boolean timeDiscontinuity;
+	private long lastTime;
+	private boolean freewheeling;
+	private long freewheelStart;
+	private long freewheelFrames;
+
 	public JackAudioServer(ClientID id, Connections connections, AudioConfiguration ctxt, AudioClient client) {
+		this(id, connections, null, ctxt, client);
+	}
+
+	/**
+	 * Create a JackAudioServer with pattern based routing.
+	 *
+	 * @param id
+	 * @param connections
+	 * @param routing routing rules, or null
+	 * @param ctxt
+	 * @param client
+	 */
+	public JackAudioServer(ClientID id, Connections connections, JackRouting routing, AudioConfiguration ctxt, AudioClient client) {
 		this.clientID = id;
 		this.connections = connections;
+		this.routing = routing;
 		this.context = ctxt;
 		this.client = client;
+		TimeFilterBandwidth bw = ctxt.find(TimeFilterBandwidth.class);
+		timeFilter = new TimeFilter(ctxt.getSampleRate(),
+				bw == null ? TimeFilter.DEFAULT_BANDWIDTH : bw.getBandwidth());
+		metering = ctxt.find(Metering.class);
 		state = new AtomicReference<State>(State.New);
 	}
 
@@ -101,19 +166,27 @@ public class JackAudioServer implements AudioServer {
 			throw new IllegalStateException();
 		}
 		try {
-			initialise();
-		} catch (Exception ex) {
-			state.set(State.Terminated);
+			try {
+				initialise();
+			} catch (Exception ex) {
+				state.set(State.Terminated);
+				closeAll();
+				client.shutdown();
+				throw ex;
+			}
+			if (state.compareAndSet(State.Initialising, State.Active)) {
+				runImpl();
+			}
 			closeAll();
 			client.shutdown();
-			throw ex;
-		}
-		if (state.compareAndSet(State.Initialising, State.Active)) {
-			runImpl();
+			state.set(State.Terminated);
+		} finally {
+			PendingBufferSize pending = pendingBufferSize.getAndSet(null);
+			if (pending != null) {
+				pending.future.completeExceptionally(new IllegalStateException("Server terminated"));
+			}
+			terminated.countDown();
 		}
-		closeAll();
-		client.shutdown();
-		state.set(State.Terminated);
 	}
 
 	private void initialise() throws Exception {
@@ -143,15 +216,81 @@ public class JackAudioServer implements AudioServer {
 			midiOut = jackclient.registerPort("MIDI Out", JackPortType.MIDI, JackPortFlags.JackPortIsOutput);
 			midi_outs = new LinkedList<>();
 		}
+		jackclient.setBuffersizeCallback(new JackBufferSizeCallback() {
+
+			public void buffersizeChanged(JackClient client, int buffersize) {
+				requestReconfigure();
+			}
+		});
+		jackclient.setSampleRateCallback(new JackSampleRateCallback() {
+
+			public void sampleRateChanged(JackClient client, int samplerate) {
+				requestReconfigure();
+			}
+		});
+		jackclient.setXrunCallback(new JackXrunCallback() {
+
+			public void xrunOccured(JackClient client) {
+				timeDiscontinuity = true;
+				if (loadMonitor.xrun()) {
+					invokeLater(new Runnable() {
+
+						public void run() {
+							loadMonitor.fireXrun();
+						}
+					});
+				}
+			}
+		});
+		natives = JackNative.find(jackclient);
+		loadMonitor.setNatives(natives);
+		if (natives != null && natives.setFreewheelCallback(new JackNative.FreewheelCallback() {
+
+			// called on the process thread, so only set state and signal
+			public void invoke(int starting, Pointer arg) {
+				freewheel.setState(starting != 0);
+				freewheelChanged.set(true);
+				signal();
+			}
+		})) {
+			freewheel.setNatives(natives);
+		}
+		latency.init(natives, inputPorts, outputPorts);
+		if (latency.isSupported()) {
+			natives.setLatencyCallback(new JackNative.LatencyCallback() {
+
+				public void invoke(int mode, Pointer arg) {
+					if (latency.update(mode)) {
+						invokeLater(new Runnable() {
+
+							public void run() {
+								latency.fireChanged();
+							}
+						});
+					}
+				}
+			});
+		}
 		jackclient.setPortRegistrationCallback(new JackPortRegistrationCallback() {
 
-			public void portUnregistered(JackClient client, String portFullName) {
+			public void portUnregistered(JackClient client, final String portFullName) {
+				if (routing != null) {
+					invokeLater(new Runnable() {
+
+						public void run() {
+							forgetRoutedConnections(portFullName);
+						}
+					});
+				}
 				if (port_reg_callback != null) {
 					port_reg_callback.portUnregistered(client, portFullName);
 				}
 			}
 
 			public void portRegistered(JackClient client, String portFullName) {
+				if (routing != null && routing.matches(portFullName)) {
+					requestRouting();
+				}
 				if (port_reg_callback != null) {
 					port_reg_callback.portRegistered(client, portFullName);
 				}
@@ -174,14 +313,12 @@ public class JackAudioServer implements AudioServer {
 	}
 
 	protected void runImpl() {
+		serverThread = Thread.currentThread();
 		try {
-			// make sure context is correct.
-			ClientID id = clientID;
-			String actualID = jackclient.getName();
-			if (!id.getIdentifier().equals(actualID)) {
-				id = new ClientID(actualID);
+			if (metering != null) {
+				metering.configure(inputPorts.length, outputPorts.length);
 			}
-			context = new AudioConfiguration(jackclient.getSampleRate(), inputPorts.length, outputPorts.length, jackclient.getBufferSize(), id, connections, jackclient);
+			context = createContext(jackclient.getSampleRate(), jackclient.getBufferSize());
 			LOG.log(Level.FINE, "Configuring AudioClient\n{0}", context);
 			client.configure(context);
 			jackclient.setProcessCallback(new Callback());
@@ -193,9 +330,22 @@ public class JackAudioServer implements AudioServer {
 			if (connections.isConnectOutputs()) {
 				connectOutputs();
 			}
-			synchronized(this){
-				while(state.get() == State.Active){
-					wait();
+			if (routing != null) {
+				applyRouting();
+			}
+			while (state.get() == State.Active) {
+				if (reconfigure.getAndSet(false)) {
+					reconfigure();
+				}
+				if (freewheelChanged.getAndSet(false)) {
+					freewheel.fireChanged(freewheel.isActive());
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				if (!reconfigure.get() && !freewheelChanged.get() && tasks.isEmpty()) {
+					LockSupport.park(this);
 				}
 			}
 		} catch (Exception ex) {
@@ -204,6 +354,84 @@ public class JackAudioServer implements AudioServer {
 		}
 	}
 
+	private AudioConfiguration createContext(float sampleRate, int bufferSize) {
+		// make sure context is correct.
+		ClientID id = clientID;
+		String actualID = jackclient.getName();
+		if (!id.getIdentifier().equals(actualID)) {
+			id = new ClientID(actualID);
+		}
+		List<Object> exts = new ArrayList<Object>();
+		exts.add(id);
+		exts.add(connections);
+		if (routing != null) {
+			exts.add(routing);
+		}
+		exts.add(jackclient);
+		exts.add(loadMonitor);
+		exts.add(freewheel);
+		exts.add(latency);
+		if (metering != null) {
+			exts.add(metering);
+		}
+		return new AudioConfiguration(sampleRate, inputPorts.length, outputPorts.length, bufferSize, exts.toArray());
+	}
+
+	/*
+	 * Called from JACK's notification thread. The client is reconfigured in
+	 * the server thread - until then the process callback outputs silence for
+	 * any cycle that does not match the current context.
+	 */
+	private void requestReconfigure() {
+		reconfigure.set(true);
+		signal();
+	}
+
+	private void reconfigure() throws Exception {
+		AudioConfiguration current = context;
+		int sampleRate = jackclient.getSampleRate();
+		int bufferSize = jackclient.getBufferSize();
+		if (sampleRate == current.getSampleRate() && bufferSize == current.getMaxBufferSize()) {
+			return;
+		}
+		AudioConfiguration ctxt = createContext(sampleRate, bufferSize);
+		suspendProcessing();
+		try {
+			LOG.log(Level.FINE, "Reconfiguring AudioClient\n{0}", ctxt);
+			client.configure(ctxt);
+			context = ctxt;
+		} finally {
+			suspended = false;
+		}
+		PendingBufferSize pending = pendingBufferSize.get();
+		if (pending != null && pending.bufferSize == bufferSize
+				&& pendingBufferSize.compareAndSet(pending, null)) {
+			pending.future.complete(ctxt);
+		}
+	}
+
+	private void suspendProcessing() {
+		suspended = true;
+		while (processing) {
+			LockSupport.parkNanos(100000);
+		}
+	}
+
+	/*
+	 * Run the task on the server thread, outside of any JACK callback.
+	 */
+	private void invokeLater(Runnable task) {
+		tasks.add(task);
+		signal();
+	}
+
+	private void signal() {
+		Thread thread = serverThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
 	
 	private void connectInputs() {
 		try {
@@ -231,6 +459,109 @@ public class JackAudioServer implements AudioServer {
 
 	}
 
+	private void requestRouting() {
+		if (routingPending.compareAndSet(false, true)) {
+			invokeLater(new Runnable() {
+
+				public void run() {
+					routingPending.set(false);
+					applyRouting();
+				}
+			});
+		}
+	}
+
+	/*
+	 * Connect all ports matching the routing rules. Called on the server
+	 * thread. Connections made here, or found to exist already, are remembered
+	 * until one of their ports is unregistered, so are not requested again.
+	 * Failed connections are retried the next time routing is applied. Ports
+	 * of this client are never matched.
+	 */
+	private void applyRouting() {
+		String[] sources;
+		String[] destinations;
+		try {
+			sources = jack.getPorts(jackclient, null, JackPortType.AUDIO, EnumSet.of(JackPortFlags.JackPortIsOutput));
+			destinations = jack.getPorts(jackclient, null, JackPortType.AUDIO, EnumSet.of(JackPortFlags.JackPortIsInput));
+		} catch (JackException ex) {
+			LOG.log(Level.WARNING, "Unable to list JACK ports for routing", ex);
+			return;
+		}
+		// never route our own ports to each other, which would feed back
+		String own = jackclient.getName() + ':';
+		for (JackRouting.Rule rule : routing.getRules()) {
+			int channel = rule.getChannel();
+			if (rule.isInput()) {
+				if (channel >= inputPorts.length) {
+					continue;
+				}
+				String port = inputPorts[channel].getName();
+				for (String source : sources) {
+					if (!source.startsWith(own) && rule.matches(source)) {
+						routeConnection(source, port);
+					}
+				}
+			} else {
+				if (channel >= outputPorts.length) {
+					continue;
+				}
+				String port = outputPorts[channel].getName();
+				for (String destination : destinations) {
+					if (!destination.startsWith(own) && rule.matches(destination)) {
+						routeConnection(port, destination);
+					}
+				}
+			}
+		}
+	}
+
+	private void routeConnection(String source, String destination) {
+		String key = source + '\n' + destination;
+		if (routedConnections.contains(key)) {
+			return;
+		}
+		try {
+			jack.connect(jackclient, source, destination);
+			routedConnections.add(key);
+			LOG.log(Level.FINE, "Routed {0} to {1}", new Object[]{source, destination});
+		} catch (JackException ex) {
+			if (isConnected(source, destination)) {
+				routedConnections.add(key);
+			} else {
+				// not remembered, so retried when routing is next applied
+				LOG.log(Level.FINE, "Unable to route " + source + " to " + destination, ex);
+			}
+		}
+	}
+
+	private boolean isConnected(String source, String destination) {
+		try {
+			String[] connections = jack.getAllConnections(jackclient, source);
+			if (connections != null) {
+				for (String connection : connections) {
+					if (connection.equals(destination)) {
+						return true;
+					}
+				}
+			}
+		} catch (JackException ex) {
+			LOG.log(Level.FINE, "Unable to list connections of " + source, ex);
+		}
+		return false;
+	}
+
+	private void forgetRoutedConnections(String portName) {
+		Iterator<String> itr = routedConnections.iterator();
+		while (itr.hasNext()) {
+			String key = itr.next();
+			int idx = key.indexOf('\n');
+			if (key.substring(0, idx).equals(portName) || key.substring(idx + 1).equals(portName)) {
+				itr.remove();
+			}
+		}
+	}
+
 	public Receiver getReceiver(){
 		return new Receiver() {
 
@@ -258,7 +589,64 @@ public class JackAudioServer implements AudioServer {
 			outputBuffers.set(i, outputPorts[i].getFloatBuffer());
 
 		}
-		client.process(System.nanoTime(), inputBuffers, outputBuffers, nframes);
+		if (metering != null) {
+			// no copies in JACK to combine with, so measure the port buffers
+			for (int i = 0; i < inputPorts.length; i++) {
+				metering.measureInput(i, inputBuffers.get(i), nframes);
+			}
+			metering.publishInputs();
+		}
+		client.process(processTime(nframes), inputBuffers, outputBuffers, nframes);
+		if (fadeOut.process(outputBuffers, nframes)) {
+			shutdown();
+		}
+		if (metering != null) {
+			for (int i = 0; i < outputPorts.length; i++) {
+				metering.measureOutput(i, outputBuffers.get(i), nframes);
+			}
+			metering.publishOutputs();
+		}
+	}
+
+	/*
+	 * Time is smoothed through the TimeFilter, which is reset after an xrun or
+	 * freewheeling. While freewheeling, time is derived from the frame count,
+	 * continuing on from the last realtime cycle.
+	 */
+	private long processTime(int nframes) {
+		long time;
+		if (freewheel.isActive()) {
+			if (!freewheeling) {
+				freewheeling = true;
+				freewheelStart = lastTime == 0 ? System.nanoTime() : lastTime + framesToNanos(nframes);
+				freewheelFrames = 0;
+			}
+			time = freewheelStart + framesToNanos(freewheelFrames);
+			freewheelFrames += nframes;
+		} else {
+			if (freewheeling || timeDiscontinuity) {
+				freewheeling = false;
+				timeDiscontinuity = false;
+				timeFilter.reset();
+			}
+			timeFilter.setSampleRate(context.getSampleRate());
+			time = timeFilter.update(System.nanoTime(), nframes);
+		}
+		lastTime = time;
+		return time;
+	}
+
+	private long framesToNanos(long frames) {
+		return (long) (frames * 1000000000.0 / context.getSampleRate());
+	}
+
+	private void silence(int nframes) {
+		for (int i = 0; i < outputPorts.length; i++) {
+			FloatBuffer buffer = outputPorts[i].getFloatBuffer();
+			for (int n = 0; n < nframes; n++) {
+				buffer.put(n, 0);
+			}
+		}
 	}
 
 	private class Callback implements JackProcessCallback {
@@ -267,7 +655,12 @@ public class JackAudioServer implements AudioServer {
 			if (state.get() != State.Active) {
 				return false;
 			} else {
+				processing = true;
 				try {
+					if (suspended || nframes != context.getMaxBufferSize()) {
+						silence(nframes);
+						return true;
+					}
 					processBuffers(nframes);
 					if(midiOut!=null){
 						JackMidi.clearBuffer(midiOut);
@@ -280,6 +673,8 @@ public class JackAudioServer implements AudioServer {
 				} catch (Exception ex) {
 					shutdown();
 					return false;
+				} finally {
+					processing = false;
 				}
 
 			}
@@ -297,6 +692,53 @@ public class JackAudioServer implements AudioServer {
 		return context;
 	}
 
+	/**
+	 * Access DSP load and xrun statistics for this server.
+	 *
+	 * @return load monitor
+	 */
+	public JackLoadMonitor getLoadMonitor() {
+		return loadMonitor;
+	}
+
+	/**
+	 * The filter used to smooth the time passed to the client. Can be used to
+	 * monitor clock drift and jitter, or to adjust bandwidth while running.
+	 *
+	 * @return time filter
+	 */
+	public TimeFilter getTimeFilter() {
+		return timeFilter;
+	}
+
+	/**
+	 * Access freewheel mode control for this server.
+	 *
+	 * @return freewheel control
+	 */
+	public JackFreewheel getFreewheel() {
+		return freewheel;
+	}
+
+	/**
+	 * Access port latency information and compensation for this server.
+	 *
+	 * @return latency
+	 */
+	public JackLatency getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Request the JACK server to start or stop freewheeling. Convenience for
+	 * getFreewheel().setActive(freewheel).
+	 *
+	 * @param freewheel
+	 */
+	public void setFreewheel(boolean freewheel) {
+		this.freewheel.setActive(freewheel);
+	}
+
 	public boolean isActive() {
 		State st = state.get();
 		return (st == State.Active || st == State.Closing);
@@ -310,6 +752,84 @@ public class JackAudioServer implements AudioServer {
 				break;
 			}
 		} while (!state.compareAndSet(st, State.Closing));
+		signal();
+	}
+
+	/**
+	 * Fade the output to silence before shutting down. If the server is not
+	 * active, this is the same as shutdown().
+	 *
+	 * @param fadeTime
+	 * @param unit
+	 */
+	@Override
+	public void shutdown(long fadeTime, TimeUnit unit) {
+		if (state.get() == State.Active) {
+			fadeOut.start((int) (unit.toNanos(fadeTime) * context.getSampleRate() / 1e9));
+		} else {
+			shutdown();
+		}
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	/**
+	 * Request a new buffer size for the JACK graph. JACK controls the sample
+	 * rate, so requests with a different sample rate fail with an
+	 * UnsupportedOperationException. The buffer size applies to every client
+	 * connected to the JACK server, and the returned future completes when
+	 * this server's client has been reconfigured with it.
+	 *
+	 * @param config
+	 * @return future completing with the new configuration
+	 */
+	@Override
+	public CompletableFuture<AudioConfiguration> reconfigure(AudioConfiguration config) {
+		final CompletableFuture<AudioConfiguration> future = new CompletableFuture<AudioConfiguration>();
+		AudioConfiguration current = context;
+		if (state.get() != State.Active || current == null) {
+			future.completeExceptionally(new IllegalStateException("Server is not active"));
+			return future;
+		}
+		if (config.getSampleRate() != current.getSampleRate()) {
+			future.completeExceptionally(new UnsupportedOperationException("JACK controls the sample rate"));
+			return future;
+		}
+		if (config.getInputChannelCount() != current.getInputChannelCount()
+				|| config.getOutputChannelCount() != current.getOutputChannelCount()) {
+			future.completeExceptionally(new IllegalArgumentException("Channel counts cannot be changed"));
+			return future;
+		}
+		final int bufferSize = config.getMaxBufferSize();
+		if (bufferSize == current.getMaxBufferSize()) {
+			future.complete(current);
+			return future;
+		}
+		final JackNative n = natives;
+		if (n == null) {
+			future.completeExceptionally(new UnsupportedOperationException("Native JACK access unavailable"));
+			return future;
+		}
+		PendingBufferSize previous = pendingBufferSize.getAndSet(new PendingBufferSize(bufferSize, future));
+		if (previous != null) {
+			previous.future.cancel(false);
+		}
+		invokeLater(new Runnable() {
+
+			public void run() {
+				if (!n.setBufferSize(bufferSize)) {
+					PendingBufferSize pending = pendingBufferSize.get();
+					if (pending != null && pending.future == future
+							&& pendingBufferSize.compareAndSet(pending, null)) {
+						future.completeExceptionally(new JackException("Unable to set buffer size to " + bufferSize));
+					}
+				}
+			}
+		});
+		return future;
 	}
 
 	private void closeAll() {
@@ -335,4 +855,14 @@ public class JackAudioServer implements AudioServer {
 		port_reg_callback = callback;
 	}
 
+	private static class PendingBufferSize {
+
+		private final int bufferSize;
+		private final CompletableFuture<AudioConfiguration> future;
+
+		private PendingBufferSize(int bufferSize, CompletableFuture<AudioConfiguration> future) {
+			this.bufferSize = bufferSize;
+			this.future = future;
+		}
+	}
 }
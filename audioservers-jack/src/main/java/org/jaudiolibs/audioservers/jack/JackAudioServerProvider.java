@@ -57,7 +57,8 @@ public class JackAudioServerProvider extends AudioServerProvider {
         if (con == null) {
             con = Connections.NONE;
         }
-        return new JackAudioServer(id, con, config, client);
+        JackRouting routing = config.find(JackRouting.class);
+        return new JackAudioServer(id, con, routing, config, client);
     }
     
 }
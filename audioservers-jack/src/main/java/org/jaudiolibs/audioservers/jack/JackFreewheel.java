@@ -0,0 +1,143 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.jack;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Control of JACK freewheel mode. In freewheel mode the JACK graph is run as
+ * fast as possible rather than in realtime, allowing a session to be rendered
+ * offline using existing clients.
+ *
+ * An instance is available from JackAudioServer.getFreewheel() and is included
+ * in the AudioConfiguration passed to the AudioClient. While freewheeling, the
+ * time passed to AudioClient.process() is derived from the frame count rather
+ * than System.nanoTime(). Time will jump back to System.nanoTime() when
+ * freewheeling ends.
+ *
+ * @author Neil C Smith
+ */
+public class JackFreewheel {
+
+	private final static Logger LOG = Logger.getLogger(JackFreewheel.class.getName());
+
+	/**
+	 * Listener for changes in freewheel state. Called from the server thread -
+	 * changes in quick succession may be reported in a single call with the
+	 * current state.
+	 */
+	public static interface Listener {
+
+		public void freewheelChanged(JackFreewheel freewheel, boolean active);
+
+	}
+
+	private final CopyOnWriteArrayList<Listener> listeners;
+	private volatile JackNative natives;
+	private volatile boolean active;
+
+	JackFreewheel() {
+		listeners = new CopyOnWriteArrayList<Listener>();
+	}
+
+	/**
+	 * Whether the JACK server is currently freewheeling. This reflects the
+	 * state reported by JACK, which may be triggered by another client.
+	 *
+	 * @return true if freewheeling
+	 */
+	public boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Request the JACK server to start or stop freewheeling. The state change
+	 * is asynchronous - use isActive() or a Listener to track it. This method
+	 * must not be called from inside AudioClient.process().
+	 *
+	 * @param active
+	 * @throws IllegalStateException if freewheel mode cannot be controlled
+	 */
+	public void setActive(boolean active) {
+		JackNative n = natives;
+		if (n == null) {
+			throw new IllegalStateException("Freewheel mode not available");
+		}
+		if (!n.setFreewheel(active)) {
+			throw new IllegalStateException("JACK refused freewheel request");
+		}
+	}
+
+	/**
+	 * Whether freewheel mode can be controlled.
+	 *
+	 * @return true if setActive() is supported
+	 */
+	public boolean isSupported() {
+		return natives != null;
+	}
+
+	public void addListener(Listener listener) {
+		if (listener == null) {
+			throw new NullPointerException();
+		}
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	void setNatives(JackNative natives) {
+		this.natives = natives;
+	}
+
+	/*
+	 * Called from JACK thread.
+	 */
+	void setState(boolean active) {
+		this.active = active;
+	}
+
+	/*
+	 * Called from server thread.
+	 */
+	void fireChanged(boolean active) {
+		for (Listener l : listeners) {
+			try {
+				l.freewheelChanged(this, active);
+			} catch (Exception ex) {
+				LOG.log(Level.WARNING, "Exception in freewheel listener", ex);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "JackFreewheel [active=" + active + "]";
+	}
+
+}
@@ -0,0 +1,334 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.jack;
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jaudiolibs.jnajack.JackPort;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Port latency information and compensation for a JackAudioServer. An instance
+ * is available from JackAudioServer.getLatency() and is included in the
+ * AudioConfiguration passed to the AudioClient.
+ *
+ * Input latency is the capture latency of each input port - how long ago the
+ * audio arriving at the port entered the JACK graph. Output latency is the
+ * playback latency of each output port - how long until audio written to the
+ * port leaves the graph. All values are in frames, and are updated whenever
+ * JACK recomputes latencies for the graph.
+ *
+ * The AudioClient may declare its own processing latency, which is added to
+ * the latencies published on the server's ports so that downstream clients
+ * can compensate for it.
+ *
+ * @author Neil C Smith
+ */
+public class JackLatency {
+
+	private final static Logger LOG = Logger.getLogger(JackLatency.class.getName());
+
+	/**
+	 * Minimum and maximum latency in frames.
+	 */
+	public static final class Range {
+
+		private final int min;
+		private final int max;
+
+		public Range(int min, int max) {
+			if (min < 0 || max < min) {
+				throw new IllegalArgumentException();
+			}
+			this.min = min;
+			this.max = max;
+		}
+
+		public int getMin() {
+			return min;
+		}
+
+		public int getMax() {
+			return max;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof Range) {
+				Range other = (Range) obj;
+				return other.min == min && other.max == max;
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * min + max;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + min + ", " + max + "]";
+		}
+
+	}
+
+	/**
+	 * Listener for latency changes. Called from the server thread.
+	 */
+	public static interface Listener {
+
+		public void latencyChanged(JackLatency latency);
+
+	}
+
+	private final static Range ZERO = new Range(0, 0);
+
+	private final CopyOnWriteArrayList<Listener> listeners;
+	private final AtomicBoolean notifyPending;
+	private JackNative natives;
+	private Pointer[] inputPorts;
+	private Pointer[] outputPorts;
+	private volatile Range[] inputLatencies;
+	private volatile Range[] outputLatencies;
+	private volatile int processingLatency;
+
+	JackLatency() {
+		listeners = new CopyOnWriteArrayList<Listener>();
+		notifyPending = new AtomicBoolean();
+		inputLatencies = new Range[0];
+		outputLatencies = new Range[0];
+	}
+
+	/**
+	 * The capture latency of the given input channel.
+	 *
+	 * @param channel
+	 * @return latency range in frames
+	 */
+	public Range getInputLatency(int channel) {
+		return inputLatencies[channel];
+	}
+
+	/**
+	 * The playback latency of the given output channel.
+	 *
+	 * @param channel
+	 * @return latency range in frames
+	 */
+	public Range getOutputLatency(int channel) {
+		return outputLatencies[channel];
+	}
+
+	/**
+	 * The maximum capture latency across all input channels.
+	 *
+	 * @return latency in frames
+	 */
+	public int getMaxInputLatency() {
+		return maxOf(inputLatencies);
+	}
+
+	/**
+	 * The maximum playback latency across all output channels.
+	 *
+	 * @return latency in frames
+	 */
+	public int getMaxOutputLatency() {
+		return maxOf(outputLatencies);
+	}
+
+	/**
+	 * The processing latency declared by the AudioClient.
+	 *
+	 * @return latency in frames
+	 */
+	public int getProcessingLatency() {
+		return processingLatency;
+	}
+
+	/**
+	 * Declare the processing latency of the AudioClient - the delay in frames
+	 * between audio arriving at its inputs and the corresponding audio being
+	 * written to its outputs. This is published on the server's ports and JACK
+	 * is asked to recompute latencies for the graph.
+	 *
+	 * This method may be called from AudioClient.configure() or any non-audio
+	 * thread, but must not be called from inside AudioClient.process().
+	 *
+	 * @param frames
+	 */
+	public void setProcessingLatency(int frames) {
+		if (frames < 0) {
+			throw new IllegalArgumentException();
+		}
+		processingLatency = frames;
+		JackNative n = natives;
+		if (n != null) {
+			n.recomputeTotalLatencies();
+		}
+	}
+
+	/**
+	 * Whether port latencies can be queried and published.
+	 *
+	 * @return true if supported
+	 */
+	public boolean isSupported() {
+		return natives != null;
+	}
+
+	public void addListener(Listener listener) {
+		if (listener == null) {
+			throw new NullPointerException();
+		}
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/*
+	 * Called from server thread before activation.
+	 */
+	void init(JackNative natives, JackPort[] inputs, JackPort[] outputs) {
+		Range[] ins = new Range[inputs.length];
+		Range[] outs = new Range[outputs.length];
+		Arrays.fill(ins, ZERO);
+		Arrays.fill(outs, ZERO);
+		inputLatencies = ins;
+		outputLatencies = outs;
+		if (natives == null) {
+			return;
+		}
+		Pointer[] inPtrs = new Pointer[inputs.length];
+		for (int i = 0; i < inputs.length; i++) {
+			inPtrs[i] = natives.findPort(inputs[i].getName());
+			if (inPtrs[i] == null) {
+				return;
+			}
+		}
+		Pointer[] outPtrs = new Pointer[outputs.length];
+		for (int i = 0; i < outputs.length; i++) {
+			outPtrs[i] = natives.findPort(outputs[i].getName());
+			if (outPtrs[i] == null) {
+				return;
+			}
+		}
+		this.inputPorts = inPtrs;
+		this.outputPorts = outPtrs;
+		this.natives = natives;
+	}
+
+	/*
+	 * Called from JACK latency callback - returns true if the listeners need
+	 * notifying.
+	 */
+	boolean update(int mode) {
+		JackNative n = natives;
+		if (n == null) {
+			return false;
+		}
+		int[] range = new int[2];
+		boolean changed;
+		if (mode == JackNative.CAPTURE_LATENCY) {
+			Range[] ins = read(n, inputPorts, mode, range);
+			int min = ins.length == 0 ? 0 : Integer.MAX_VALUE;
+			int max = 0;
+			for (Range r : ins) {
+				min = Math.min(min, r.getMin());
+				max = Math.max(max, r.getMax());
+			}
+			range[0] = min + processingLatency;
+			range[1] = max + processingLatency;
+			for (Pointer port : outputPorts) {
+				n.setLatencyRange(port, mode, range);
+			}
+			changed = !Arrays.equals(ins, inputLatencies);
+			inputLatencies = ins;
+		} else {
+			Range[] outs = read(n, outputPorts, mode, range);
+			int min = outs.length == 0 ? 0 : Integer.MAX_VALUE;
+			int max = 0;
+			for (Range r : outs) {
+				min = Math.min(min, r.getMin());
+				max = Math.max(max, r.getMax());
+			}
+			range[0] = min + processingLatency;
+			range[1] = max + processingLatency;
+			for (Pointer port : inputPorts) {
+				n.setLatencyRange(port, mode, range);
+			}
+			changed = !Arrays.equals(outs, outputLatencies);
+			outputLatencies = outs;
+		}
+		return changed && !listeners.isEmpty() && notifyPending.compareAndSet(false, true);
+	}
+
+	/*
+	 * Called from server thread.
+	 */
+	void fireChanged() {
+		notifyPending.set(false);
+		for (Listener l : listeners) {
+			try {
+				l.latencyChanged(this);
+			} catch (Exception ex) {
+				LOG.log(Level.WARNING, "Exception in latency listener", ex);
+			}
+		}
+	}
+
+	private static Range[] read(JackNative n, Pointer[] ports, int mode, int[] range) {
+		Range[] ranges = new Range[ports.length];
+		for (int i = 0; i < ports.length; i++) {
+			n.getLatencyRange(ports[i], mode, range);
+			int min = Math.max(0, range[0]);
+			int max = Math.max(min, range[1]);
+			ranges[i] = new Range(min, max);
+		}
+		return ranges;
+	}
+
+	private static int maxOf(Range[] ranges) {
+		int max = 0;
+		for (Range r : ranges) {
+			max = Math.max(max, r.getMax());
+		}
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return "JackLatency [input=" + getMaxInputLatency() + ", output=" + getMaxOutputLatency()
+				+ ", processing=" + processingLatency + "]";
+	}
+
+}
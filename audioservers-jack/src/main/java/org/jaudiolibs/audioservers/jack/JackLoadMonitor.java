@@ -0,0 +1,167 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.jack;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reports DSP load and xruns of a JackAudioServer. An instance is available
+ * from JackAudioServer.getLoadMonitor() and is included in the
+ * AudioConfiguration passed to the AudioClient.
+ *
+ * All methods may be called from any thread. Listeners are never called on the
+ * JACK realtime thread.
+ *
+ * @author Neil C Smith
+ */
+public class JackLoadMonitor {
+
+	private final static Logger LOG = Logger.getLogger(JackLoadMonitor.class.getName());
+
+	/**
+	 * Listener for xrun notifications. Called from the server thread - multiple
+	 * xruns in quick succession may be reported in a single call.
+	 */
+	public static interface Listener {
+
+		public void xrunOccurred(JackLoadMonitor monitor);
+
+	}
+
+	private final CopyOnWriteArrayList<Listener> listeners;
+	private final AtomicLong xrunCount;
+	private final AtomicBoolean notifyPending;
+	private volatile JackNative natives;
+	private volatile float lastXrunDelay;
+
+	JackLoadMonitor() {
+		listeners = new CopyOnWriteArrayList<Listener>();
+		xrunCount = new AtomicLong();
+		notifyPending = new AtomicBoolean();
+	}
+
+	/**
+	 * The current DSP load of the JACK server as a percentage.
+	 *
+	 * @return load, or -1 if not available
+	 */
+	public float getCpuLoad() {
+		JackNative n = natives;
+		return n == null ? -1 : n.getCpuLoad();
+	}
+
+	/**
+	 * The number of xruns since the server was activated or the statistics
+	 * were last reset.
+	 *
+	 * @return xrun count
+	 */
+	public long getXrunCount() {
+		return xrunCount.get();
+	}
+
+	/**
+	 * The maximum delay in microseconds by which the JACK server has been late
+	 * starting a process cycle since the statistics were last reset.
+	 *
+	 * @return delay in microseconds, or -1 if not available
+	 */
+	public float getMaxDelayedUsecs() {
+		JackNative n = natives;
+		return n == null ? -1 : n.getMaxDelayedUsecs();
+	}
+
+	/**
+	 * The delay in microseconds reported by JACK for the most recent xrun.
+	 *
+	 * @return delay in microseconds, or 0 if no xrun has occurred
+	 */
+	public float getLastXrunDelayedUsecs() {
+		return lastXrunDelay;
+	}
+
+	/**
+	 * Reset the xrun count and maximum delay.
+	 */
+	public void resetStatistics() {
+		xrunCount.set(0);
+		lastXrunDelay = 0;
+		JackNative n = natives;
+		if (n != null) {
+			n.resetMaxDelayedUsecs();
+		}
+	}
+
+	public void addListener(Listener listener) {
+		if (listener == null) {
+			throw new NullPointerException();
+		}
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	void setNatives(JackNative natives) {
+		this.natives = natives;
+	}
+
+	/*
+	 * Called from JACK thread - returns true if the listeners need
+	 * notifying.
+	 */
+	boolean xrun() {
+		xrunCount.incrementAndGet();
+		JackNative n = natives;
+		if (n != null) {
+			lastXrunDelay = n.getXrunDelayedUsecs();
+		}
+		return !listeners.isEmpty() && notifyPending.compareAndSet(false, true);
+	}
+
+	/*
+	 * Called from server thread.
+	 */
+	void fireXrun() {
+		notifyPending.set(false);
+		for (Listener l : listeners) {
+			try {
+				l.xrunOccurred(this);
+			} catch (Exception ex) {
+				LOG.log(Level.WARNING, "Exception in xrun listener", ex);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "JackLoadMonitor [xruns=" + xrunCount.get() + "]";
+	}
+
+}
@@ -0,0 +1,206 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.jack;
+
+import java.lang.reflect.Field;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jaudiolibs.jnajack.JackClient;
+
+import com.sun.jna.Callback;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.PointerType;
+
+/**
+ * Direct access to libjack functions not exposed by JNAJack. Calls are made on
+ * the native client handle of an open JackClient.
+ *
+ * @author Neil C Smith
+ */
+final class JackNative {
+
+	private final static Logger LOG = Logger.getLogger(JackNative.class.getName());
+
+	interface JackLibrary extends Library {
+
+		float jack_cpu_load(Pointer client);
+
+		float jack_get_max_delayed_usecs(Pointer client);
+
+		float jack_get_xrun_delayed_usecs(Pointer client);
+
+		void jack_reset_max_delayed_usecs(Pointer client);
+
+		int jack_set_freewheel(Pointer client, int onoff);
+
+		int jack_set_freewheel_callback(Pointer client, FreewheelCallback callback, Pointer arg);
+
+		Pointer jack_port_by_name(Pointer client, String portName);
+
+		void jack_port_get_latency_range(Pointer port, int mode, int[] range);
+
+		void jack_port_set_latency_range(Pointer port, int mode, int[] range);
+
+		int jack_set_latency_callback(Pointer client, LatencyCallback callback, Pointer arg);
+
+		int jack_recompute_total_latencies(Pointer client);
+
+		int jack_set_buffer_size(Pointer client, int nframes);
+	}
+
+	interface FreewheelCallback extends Callback {
+
+		void invoke(int starting, Pointer arg);
+	}
+
+	interface LatencyCallback extends Callback {
+
+		void invoke(int mode, Pointer arg);
+	}
+
+	// jack_latency_callback_mode_t
+	final static int CAPTURE_LATENCY = 0;
+	final static int PLAYBACK_LATENCY = 1;
+
+	private static JackLibrary library;
+
+	private final JackLibrary lib;
+	private final Pointer client;
+	// strong reference to stop native callback being collected
+	private FreewheelCallback freewheelCallback;
+	private LatencyCallback latencyCallback;
+
+	private JackNative(JackLibrary lib, Pointer client) {
+		this.lib = lib;
+		this.client = client;
+	}
+
+	float getCpuLoad() {
+		return lib.jack_cpu_load(client);
+	}
+
+	float getMaxDelayedUsecs() {
+		return lib.jack_get_max_delayed_usecs(client);
+	}
+
+	float getXrunDelayedUsecs() {
+		return lib.jack_get_xrun_delayed_usecs(client);
+	}
+
+	void resetMaxDelayedUsecs() {
+		lib.jack_reset_max_delayed_usecs(client);
+	}
+
+	boolean setFreewheel(boolean onoff) {
+		return lib.jack_set_freewheel(client, onoff ? 1 : 0) == 0;
+	}
+
+	/*
+	 * Changes the buffer size of the whole JACK graph. All clients will be
+	 * notified through their buffer size callback.
+	 */
+	boolean setBufferSize(int nframes) {
+		return lib.jack_set_buffer_size(client, nframes) == 0;
+	}
+
+	/*
+	 * Must be called before the client is activated.
+	 */
+	boolean setFreewheelCallback(FreewheelCallback callback) {
+		freewheelCallback = callback;
+		return lib.jack_set_freewheel_callback(client, callback, null) == 0;
+	}
+
+	/*
+	 * Must be called before the client is activated.
+	 */
+	boolean setLatencyCallback(LatencyCallback callback) {
+		latencyCallback = callback;
+		return lib.jack_set_latency_callback(client, callback, null) == 0;
+	}
+
+	Pointer findPort(String portName) {
+		return lib.jack_port_by_name(client, portName);
+	}
+
+	/*
+	 * Range is filled as {min, max}.
+	 */
+	void getLatencyRange(Pointer port, int mode, int[] range) {
+		lib.jack_port_get_latency_range(port, mode, range);
+	}
+
+	void setLatencyRange(Pointer port, int mode, int[] range) {
+		lib.jack_port_set_latency_range(port, mode, range);
+	}
+
+	void recomputeTotalLatencies() {
+		lib.jack_recompute_total_latencies(client);
+	}
+
+	/**
+	 * Find native access for the given client.
+	 *
+	 * @param jackclient
+	 * @return JackNative or null if the library or client handle cannot be
+	 *         accessed
+	 */
+	static JackNative find(JackClient jackclient) {
+		try {
+			JackLibrary lib = getLibrary();
+			Pointer client = findClientPointer(jackclient);
+			if (client == null) {
+				return null;
+			}
+			return new JackNative(lib, client);
+		} catch (Throwable t) {
+			LOG.log(Level.FINE, "Native JACK access unavailable", t);
+			return null;
+		}
+	}
+
+	private static synchronized JackLibrary getLibrary() {
+		if (library == null) {
+			library = (JackLibrary) Native.loadLibrary("jack", JackLibrary.class);
+		}
+		return library;
+	}
+
+	private static Pointer findClientPointer(JackClient jackclient) throws Exception {
+		Field field = JackClient.class.getDeclaredField("clientPtr");
+		field.setAccessible(true);
+		Object ptr = field.get(jackclient);
+		if (ptr instanceof PointerType) {
+			return ((PointerType) ptr).getPointer();
+		} else if (ptr instanceof Pointer) {
+			return (Pointer) ptr;
+		} else {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,213 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.jack;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Pattern based routing rules for a JackAudioServer. Include an instance in the
+ * AudioConfiguration passed to JackAudioServerProvider to have the server's
+ * ports connected to all matching ports in the JACK graph.
+ *
+ * Rules are applied when the server is activated, and reapplied whenever a
+ * matching port is registered with JACK, so that connections are restored
+ * when other applications restart. Input rules match the full names of
+ * audio output ports, and output rules match the full names of audio input
+ * ports. Patterns may be given as a glob (where * matches any sequence of
+ * characters and ? matches any single character) or as a regular expression,
+ * and must match the whole port name. The server's own ports are never
+ * matched, so broad patterns such as "*" do not create feedback loops.
+ *
+ * Routing is applied in addition to any Connections extension.
+ *
+ * @author Neil C Smith
+ */
+public class JackRouting {
+
+	/**
+	 * A routing rule for a single server channel.
+	 */
+	public static final class Rule {
+
+		private final boolean input;
+		private final int channel;
+		private final Pattern pattern;
+
+		private Rule(boolean input, int channel, Pattern pattern) {
+			if (channel < 0) {
+				throw new IllegalArgumentException("Channel cannot be less than zero");
+			}
+			if (pattern == null) {
+				throw new NullPointerException();
+			}
+			this.input = input;
+			this.channel = channel;
+			this.pattern = pattern;
+		}
+
+		public boolean isInput() {
+			return input;
+		}
+
+		public int getChannel() {
+			return channel;
+		}
+
+		public Pattern getPattern() {
+			return pattern;
+		}
+
+		/**
+		 * Whether this rule matches the given full port name.
+		 *
+		 * @param portName
+		 * @return true on match
+		 */
+		public boolean matches(String portName) {
+			return pattern.matcher(portName).matches();
+		}
+
+		@Override
+		public String toString() {
+			return (input ? "Input_" : "Output_") + (channel + 1) + " <-> " + pattern.pattern();
+		}
+
+	}
+
+	private final List<Rule> rules;
+
+	/**
+	 * Create a JackRouting from the provided rules.
+	 *
+	 * @param rules
+	 */
+	public JackRouting(Rule... rules) {
+		for (Rule rule : rules) {
+			if (rule == null) {
+				throw new NullPointerException();
+			}
+		}
+		this.rules = Collections.unmodifiableList(Arrays.asList(rules.clone()));
+	}
+
+	/**
+	 * Create a rule connecting audio output ports matching the glob to the
+	 * given input channel.
+	 *
+	 * @param channel
+	 * @param glob
+	 * @return rule
+	 */
+	public static Rule input(int channel, String glob) {
+		return new Rule(true, channel, globToPattern(glob));
+	}
+
+	/**
+	 * Create a rule connecting audio output ports matching the regular
+	 * expression to the given input channel.
+	 *
+	 * @param channel
+	 * @param regex
+	 * @return rule
+	 */
+	public static Rule input(int channel, Pattern regex) {
+		return new Rule(true, channel, regex);
+	}
+
+	/**
+	 * Create a rule connecting the given output channel to audio input ports
+	 * matching the glob.
+	 *
+	 * @param channel
+	 * @param glob
+	 * @return rule
+	 */
+	public static Rule output(int channel, String glob) {
+		return new Rule(false, channel, globToPattern(glob));
+	}
+
+	/**
+	 * Create a rule connecting the given output channel to audio input ports
+	 * matching the regular expression.
+	 *
+	 * @param channel
+	 * @param regex
+	 * @return rule
+	 */
+	public static Rule output(int channel, Pattern regex) {
+		return new Rule(false, channel, regex);
+	}
+
+	/**
+	 * The rules of this routing, in the order provided.
+	 *
+	 * @return unmodifiable list of rules
+	 */
+	public List<Rule> getRules() {
+		return rules;
+	}
+
+	/**
+	 * Whether any rule matches the given full port name.
+	 *
+	 * @param portName
+	 * @return true on match
+	 */
+	public boolean matches(String portName) {
+		for (Rule rule : rules) {
+			if (rule.matches(portName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Pattern globToPattern(String glob) {
+		StringBuilder sb = new StringBuilder();
+		int start = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' || c == '?') {
+				if (i > start) {
+					sb.append(Pattern.quote(glob.substring(start, i)));
+				}
+				sb.append(c == '*' ? ".*" : ".");
+				start = i + 1;
+			}
+		}
+		if (start < glob.length()) {
+			sb.append(Pattern.quote(glob.substring(start)));
+		}
+		return Pattern.compile(sb.toString());
+	}
+
+	@Override
+	public String toString() {
+		return "JackRouting " + rules;
+	}
+
+}
@@ -0,0 +1,213 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.jack;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+import org.jaudiolibs.audioservers.ext.ClientID;
+import org.jaudiolibs.audioservers.ext.Connections;
+import org.jaudiolibs.jnajack.Jack;
+import org.jaudiolibs.jnajack.JackClient;
+import org.jaudiolibs.jnajack.JackException;
+import org.jaudiolibs.jnajack.JackOptions;
+import org.jaudiolibs.jnajack.JackStatus;
+
+/**
+ * Tests JackLoadMonitor against a jackd server running the dummy driver, or
+ * an already running JACK server. Requires jackd on the PATH - the test is
+ * only run by the jackd profile, which is activated if /usr/bin/jackd exists
+ * or with -Pjackd.
+ *
+ * @author Neil C Smith
+ */
+public class JackLoadMonitorTest extends TestCase {
+
+	private final static int SAMPLE_RATE = 48000;
+	private final static int BUFFER_SIZE = 256;
+	private final static long START_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+	private Process jackd;
+
+	@Override
+	protected void setUp() throws Exception {
+		File exe = findJackd();
+		assertNotNull("jackd not found on PATH", exe);
+		jackd = new ProcessBuilder(exe.getPath(), "--no-realtime", "-d", "dummy",
+				"-r", String.valueOf(SAMPLE_RATE), "-p", String.valueOf(BUFFER_SIZE))
+				.inheritIO().start();
+		// jackd exits straight away if a server is already running, which
+		// is fine as long as a client can connect
+		long deadline = System.nanoTime() + START_TIMEOUT;
+		while (!serverRunning()) {
+			if (System.nanoTime() - deadline >= 0) {
+				fail(jackd.isAlive() ? "JACK server did not start"
+						: "jackd exited with " + jackd.exitValue());
+			}
+			Thread.sleep(100);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (jackd != null) {
+			jackd.destroy();
+			jackd.waitFor(5, TimeUnit.SECONDS);
+			jackd = null;
+		}
+	}
+
+	public void testLoadReported() throws Exception {
+		TestClient client = new TestClient(0);
+		JackAudioServer server = start(client);
+		try {
+			assertTrue(client.cycles.await(5, TimeUnit.SECONDS));
+			assertSame(server.getLoadMonitor(), client.monitor);
+			JackLoadMonitor monitor = server.getLoadMonitor();
+			float load = monitor.getCpuLoad();
+			assertTrue("load " + load, load >= 0 && load <= 100);
+			assertTrue(monitor.getMaxDelayedUsecs() >= 0);
+			monitor.resetStatistics();
+			assertEquals(0, monitor.getXrunCount());
+		} finally {
+			stop(server);
+		}
+	}
+
+	public void testXrunReported() throws Exception {
+		// overrun the period by several times, once
+		long overrun = 4 * (long) (1e9 * BUFFER_SIZE / SAMPLE_RATE);
+		TestClient client = new TestClient(overrun);
+		JackAudioServer server = start(client);
+		try {
+			final CountDownLatch notified = new CountDownLatch(1);
+			final Thread[] listenerThread = new Thread[1];
+			server.getLoadMonitor().addListener(new JackLoadMonitor.Listener() {
+
+				public void xrunOccurred(JackLoadMonitor monitor) {
+					listenerThread[0] = Thread.currentThread();
+					notified.countDown();
+				}
+			});
+			assertTrue(client.cycles.await(5, TimeUnit.SECONDS));
+			client.stall = true;
+			assertTrue("no xrun reported", notified.await(5, TimeUnit.SECONDS));
+			JackLoadMonitor monitor = server.getLoadMonitor();
+			assertTrue(monitor.getXrunCount() > 0);
+			assertNotSame(client.processThread, listenerThread[0]);
+		} finally {
+			stop(server);
+		}
+	}
+
+	private static boolean serverRunning() {
+		EnumSet<JackStatus> status = EnumSet.noneOf(JackStatus.class);
+		try {
+			JackClient probe = Jack.getInstance().openClient("JackLoadMonitorTestProbe",
+					EnumSet.of(JackOptions.JackNoStartServer), status);
+			probe.close();
+			return true;
+		} catch (JackException ex) {
+			return false;
+		}
+	}
+
+	private static JackAudioServer start(AudioClient client) throws Exception {
+		AudioConfiguration config = new AudioConfiguration(SAMPLE_RATE, 2, 2, BUFFER_SIZE, true);
+		final JackAudioServer server = new JackAudioServer(new ClientID("JackLoadMonitorTest"),
+				Connections.NONE, config, client);
+		Thread runner = new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					server.run();
+				} catch (Exception ex) {
+					ex.printStackTrace();
+				}
+			}
+		}, "JackLoadMonitorTest");
+		runner.start();
+		return server;
+	}
+
+	private static void stop(JackAudioServer server) throws Exception {
+		server.shutdown();
+		assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	private static File findJackd() {
+		String path = System.getenv("PATH");
+		if (path == null) {
+			return null;
+		}
+		for (String dir : path.split(File.pathSeparator)) {
+			File exe = new File(dir, "jackd");
+			if (exe.canExecute()) {
+				return exe;
+			}
+		}
+		return null;
+	}
+
+	private static class TestClient implements AudioClient {
+
+		private final CountDownLatch cycles = new CountDownLatch(100);
+		private final long overrun;
+		private volatile JackLoadMonitor monitor;
+		private volatile Thread processThread;
+		private volatile boolean stall;
+
+		private TestClient(long overrun) {
+			this.overrun = overrun;
+		}
+
+		public void configure(AudioConfiguration context) throws Exception {
+			monitor = context.find(JackLoadMonitor.class);
+		}
+
+		public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+			processThread = Thread.currentThread();
+			if (stall) {
+				stall = false;
+				long end = System.nanoTime() + overrun;
+				while (System.nanoTime() < end) {
+					// busy wait
+				}
+			}
+			cycles.countDown();
+			return true;
+		}
+
+		public void shutdown() {
+		}
+
+	}
+
+}
@@ -73,6 +73,7 @@ import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioFormat.Encoding;
+import org.jaudiolibs.audioservers.util.AudioKernels;
 
 /**
  * This class is used to convert between 8,16,24,32,32+ bit signed/unsigned
@@ -414,25 +415,13 @@ abstract class AudioFloatConverter {
     private static class AudioFloatConversion16SL extends AudioFloatConverter {
         public float[] toFloatArray(byte[] in_buff, int in_offset,
                 float[] out_buff, int out_offset, int out_len) {
-            int ix = in_offset;
-            int len = out_offset + out_len;
-            for (int ox = out_offset; ox < len; ox++) {
-                out_buff[ox] = ((short) ((in_buff[ix++] & 0xFF) |
-                           (in_buff[ix++] << 8))) * (1.0f / 32767.0f);
-            }
-
+            AudioKernels.fromPCM16(in_buff, in_offset, out_buff, out_offset, out_len, false);
             return out_buff;
         }
 
         public byte[] toByteArray(float[] in_buff, int in_offset, int in_len,
                 byte[] out_buff, int out_offset) {
-            int ox = out_offset;
-            int len = in_offset + in_len;
-            for (int ix = in_offset; ix < len; ix++) {
-                int x = (int) (in_buff[ix] * 32767.0);
-                out_buff[ox++] = (byte) x;
-                out_buff[ox++] = (byte) (x >>> 8);
-            }
+            AudioKernels.toPCM16(in_buff, in_offset, out_buff, out_offset, in_len, false);
             return out_buff;
         }
     }
@@ -441,24 +430,13 @@ abstract class AudioFloatConverter {
     private static class AudioFloatConversion16SB extends AudioFloatConverter {
         public float[] toFloatArray(byte[] in_buff, int in_offset,
                 float[] out_buff, int out_offset, int out_len) {
-            int ix = in_offset;
-            int ox = out_offset;
-            for (int i = 0; i < out_len; i++) {
-                out_buff[ox++] = ((short) ((in_buff[ix++] << 8) |
-                        (in_buff[ix++] & 0xFF))) * (1.0f / 32767.0f);
-            }
+            AudioKernels.fromPCM16(in_buff, in_offset, out_buff, out_offset, out_len, true);
             return out_buff;
         }
 
         public byte[] toByteArray(float[] in_buff, int in_offset, int in_len,
                 byte[] out_buff, int out_offset) {
-            int ix = in_offset;
-            int ox = out_offset;
-            for (int i = 0; i < in_len; i++) {
-                int x = (int) (in_buff[ix++] * 32767.0);
-                out_buff[ox++] = (byte) (x >>> 8);
-                out_buff[ox++] = (byte) x;
-            }
+            AudioKernels.toPCM16(in_buff, in_offset, out_buff, out_offset, in_len, true);
             return out_buff;
         }
     }
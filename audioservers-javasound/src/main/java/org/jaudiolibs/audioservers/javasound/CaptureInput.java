@@ -0,0 +1,370 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details.
+ *
+ * You should have received a copy of the GNU General Public License version 2
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ *
+ *
+ * Linking this work statically or dynamically with other modules is making a
+ * combined work based on this work. Thus, the terms and conditions of the GNU
+ * General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this work give you permission
+ * to link this work with independent modules to produce an executable,
+ * regardless of the license terms of these independent modules, and to copy and
+ * distribute the resulting executable under terms of your choice, provided that
+ * you also meet, for each linked independent module, the terms and conditions of
+ * the license of that module. An independent module is a module which is not
+ * derived from or based on this work. If you modify this work, you may extend
+ * this exception to your version of the work, but you are not obligated to do so.
+ * If you do not wish to do so, delete this exception statement from your version.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ */
+package org.jaudiolibs.audioservers.javasound;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import javax.sound.sampled.TargetDataLine;
+import org.jaudiolibs.audioservers.ext.Metering;
+import org.jaudiolibs.audioservers.util.AudioKernels;
+
+/**
+ * Buffers audio from a TargetDataLine in a FIFO, delivering full blocks to the
+ * client, and optionally resamples it to keep the input locked to the output
+ * line when they run from different clocks.
+ *
+ * Each cycle all available input is read from the line. When resampling, the
+ * fill level of the FIFO is low-pass filtered and fed to a PI controller,
+ * which adjusts the resampling ratio to hold the fill level at a target. The
+ * integral term tracks the relative clock rate of the devices. Resampling uses
+ * a polyphase windowed sinc interpolator. Without resampling, if the minimum
+ * fill level over a second exceeds the target by more than a block, only that
+ * excess is discarded to bring input back in sync with output.
+ *
+ * If the FIFO runs dry the block is silenced and counted as an underrun, the
+ * target fill level is raised, and input resumes once the FIFO refills to the
+ * target. When resampling, the target is also raised to keep a block of
+ * headroom over the largest period of input the line delivers at once, as
+ * the fill level swings by that much between reads. Partial input is kept rather than discarded. If the FIFO overflows
+ * the read position is moved forward to the target fill level. Overflow of
+ * the line itself is counted as an overrun.
+ *
+ * Not thread safe - only used from the audio thread.
+ *
+ * @author Neil C Smith
+ */
+class CaptureInput {
+
+	// windowed sinc interpolator
+	private final static int HALF_TAPS = 16;
+	private final static int TAPS = HALF_TAPS * 2;
+	private final static int PHASES = 256;
+	private final static double CUTOFF = 0.95;
+	private final static double KAISER_BETA = 8;
+	private final static float[] FILTER = createFilter();
+
+	// PI controller
+	private final static double MAX_DEVIATION = 0.005;
+	private final static double KP = 2e-6;
+	private final static double KI = 1e-7;
+	private final static double LEVEL_SMOOTHING_TIME = 1;
+
+	private final TargetDataLine line;
+	private final AudioFloatConverter converter;
+	private final JSCaptureStatistics stats;
+	private final Metering metering;
+	private final boolean resample;
+	private final int channels;
+	private final int blockSize;
+	private final int frameSize;
+	private final double blockTime;
+	private final double levelSmoothing;
+	private final int maxTarget;
+	private final int maxPeriodLimit;
+	private final int lineBytes;
+	private final int windowBlocks;
+	private final byte[] byteBuffer;
+	private final float[] floatBuffer;
+	private final float[] fifo;
+	private final int mask;
+	private final float[] coeffs;
+
+	private long writePosition;
+	private long readPosition;
+	private double fraction;
+	private int target;
+	private int maxPeriod;
+	private boolean primed;
+	private double level;
+	private double integral;
+	private double ratio;
+	private int windowCount;
+	private double windowMinimum;
+
+	CaptureInput(TargetDataLine line,
+			AudioFloatConverter converter,
+			int channels,
+			int blockSize,
+			boolean resample,
+			JSCaptureStatistics stats,
+			Metering metering) {
+		this.line = line;
+		this.resample = resample;
+		this.converter = converter;
+		this.channels = channels;
+		this.blockSize = blockSize;
+		this.stats = stats;
+		this.metering = metering;
+		frameSize = line.getFormat().getFrameSize();
+		blockTime = blockSize / line.getFormat().getSampleRate();
+		levelSmoothing = Math.min(1, blockTime / LEVEL_SMOOTHING_TIME);
+		windowBlocks = Math.max(1, (int) (1 / blockTime));
+		lineBytes = line.getBufferSize();
+		int lineFrames = lineBytes / frameSize;
+		byteBuffer = new byte[lineFrames * frameSize];
+		floatBuffer = new float[lineFrames * channels];
+		int capacity = Integer.highestOneBit(Math.max(lineFrames, blockSize) * 4 + TAPS) * 2;
+		fifo = new float[capacity * channels];
+		mask = capacity - 1;
+		maxTarget = capacity / 4;
+		// larger reads are a backlog after a late cycle, not the line period
+		maxPeriodLimit = lineFrames / 4;
+		coeffs = new float[TAPS];
+		target = Math.min(resample ? HALF_TAPS + blockSize * 2 : blockSize, maxTarget);
+		ratio = 1;
+		windowMinimum = Double.MAX_VALUE;
+		stats.setResampling(resample);
+	}
+
+	/**
+	 * Read all available input from the line into the FIFO, and write the
+	 * next block into the provided buffers.
+	 *
+	 * @param buffers client input buffers
+	 */
+	void process(List<FloatBuffer> buffers) {
+		fill();
+		if (!primed) {
+			if (available() >= target) {
+				primed = true;
+				level = available();
+			} else {
+				silence(buffers);
+				updateStatistics();
+				return;
+			}
+		}
+		long end;
+		if (resample) {
+			updateRatio();
+			end = readPosition + (long) Math.ceil(fraction + blockSize * ratio) + HALF_TAPS;
+		} else {
+			resync();
+			end = readPosition + blockSize;
+		}
+		if (end > writePosition) {
+			// underrun - wait for more input, and allow more headroom
+			primed = false;
+			target = Math.min(target + blockSize, maxTarget);
+			stats.underrun();
+			silence(buffers);
+		} else if (resample) {
+			resample(buffers);
+		} else {
+			copy(buffers);
+		}
+		updateStatistics();
+	}
+
+	private void fill() {
+		int bytes = line.available();
+		if (bytes >= lineBytes) {
+			// line buffer full - input has been lost
+			stats.overrun();
+		}
+		int frames = Math.min(bytes / frameSize, byteBuffer.length / frameSize);
+		if (frames <= 0) {
+			return;
+		}
+		frames = line.read(byteBuffer, 0, frames * frameSize) / frameSize;
+		if (resample && frames > maxPeriod && frames <= maxPeriodLimit) {
+			maxPeriod = frames;
+			target = Math.max(target, Math.min(HALF_TAPS + blockSize + frames, maxTarget));
+		}
+		converter.toFloatArray(byteBuffer, 0, floatBuffer, 0, frames * channels);
+		long oldest = readPosition - HALF_TAPS + 1;
+		if (writePosition + frames - oldest > mask + 1) {
+			// overflow - skip forward to target
+			long skip = writePosition + frames - target - readPosition;
+			readPosition += skip;
+			fraction = 0;
+			level = target;
+			stats.overrun();
+			stats.discard(skip);
+		}
+		int capacity = mask + 1;
+		int start = (int) (writePosition & mask);
+		int first = Math.min(frames, capacity - start);
+		System.arraycopy(floatBuffer, 0, fifo, start * channels, first * channels);
+		if (first < frames) {
+			System.arraycopy(floatBuffer, first * channels, fifo, 0, (frames - first) * channels);
+		}
+		writePosition += frames;
+	}
+
+	private double available() {
+		return writePosition - readPosition - fraction;
+	}
+
+	private void updateRatio() {
+		level += (available() - level) * levelSmoothing;
+		double error = level - target;
+		integral += KI * error * blockTime;
+		integral = clamp(integral);
+		ratio = 1 + clamp(integral + KP * error);
+	}
+
+	private void resync() {
+		windowMinimum = Math.min(windowMinimum, available());
+		if (++windowCount < windowBlocks) {
+			return;
+		}
+		long excess = (long) windowMinimum - target;
+		if (excess > blockSize) {
+			readPosition += excess;
+			stats.discard(excess);
+		}
+		windowCount = 0;
+		windowMinimum = Double.MAX_VALUE;
+	}
+
+	private void copy(List<FloatBuffer> buffers) {
+		// at most two contiguous regions, split at the end of the fifo
+		int start = (int) (readPosition & mask);
+		int first = Math.min(blockSize, mask + 1 - start);
+		for (int ch = 0; ch < channels; ch++) {
+			FloatBuffer buffer = buffers.get(ch);
+			float[] dst = buffer.array();
+			int offset = buffer.arrayOffset();
+			if (metering != null) {
+				metering.deinterleaveInput(ch, fifo, start * channels, channels, dst, offset, first);
+				metering.deinterleaveInput(ch, fifo, 0, channels, dst, offset + first, blockSize - first);
+			} else {
+				AudioKernels.deinterleave(fifo, start * channels, ch, channels, dst, offset, first);
+				AudioKernels.deinterleave(fifo, 0, ch, channels, dst, offset + first, blockSize - first);
+			}
+		}
+		readPosition += blockSize;
+	}
+
+	private void resample(List<FloatBuffer> buffers) {
+		float[] c = coeffs;
+		for (int n = 0; n < blockSize; n++) {
+			double p = fraction * PHASES;
+			int phase = (int) p;
+			float interp = (float) (p - phase);
+			int f0 = phase * TAPS;
+			int f1 = f0 + TAPS;
+			for (int k = 0; k < TAPS; k++) {
+				float a = FILTER[f0 + k];
+				c[k] = a + interp * (FILTER[f1 + k] - a);
+			}
+			long first = readPosition - HALF_TAPS + 1;
+			for (int ch = 0; ch < channels; ch++) {
+				float sum = 0;
+				for (int k = 0; k < TAPS; k++) {
+					sum += c[k] * fifo[(int) ((first + k) & mask) * channels + ch];
+				}
+				buffers.get(ch).put(n, sum);
+			}
+			fraction += ratio;
+			int advance = (int) fraction;
+			readPosition += advance;
+			fraction -= advance;
+		}
+		measure(buffers);
+	}
+
+	private void silence(List<FloatBuffer> buffers) {
+		for (int ch = 0; ch < channels; ch++) {
+			FloatBuffer buffer = buffers.get(ch);
+			for (int n = 0; n < blockSize; n++) {
+				buffer.put(n, 0);
+			}
+		}
+		measure(buffers);
+	}
+
+	private void measure(List<FloatBuffer> buffers) {
+		if (metering != null) {
+			for (int ch = 0; ch < channels; ch++) {
+				metering.measureInput(ch, buffers.get(ch), blockSize);
+			}
+		}
+	}
+
+	private void updateStatistics() {
+		stats.update((int) available(), target, ratio, 1 + integral);
+	}
+
+	private static double clamp(double deviation) {
+		return Math.max(-MAX_DEVIATION, Math.min(MAX_DEVIATION, deviation));
+	}
+
+	/*
+	 * Kaiser windowed sinc, one row of TAPS coefficients per phase, plus an
+	 * extra row for interpolating the last phase. Each row is normalized to
+	 * unity gain.
+	 */
+	private static float[] createFilter() {
+		float[] filter = new float[(PHASES + 1) * TAPS];
+		double i0Beta = bessel(KAISER_BETA);
+		for (int phase = 0; phase <= PHASES; phase++) {
+			double sum = 0;
+			double[] row = new double[TAPS];
+			for (int k = 0; k < TAPS; k++) {
+				double d = k - HALF_TAPS + 1 - (double) phase / PHASES;
+				double x = d / HALF_TAPS;
+				if (Math.abs(x) >= 1) {
+					continue;
+				}
+				double sinc = d == 0 ? 1 : Math.sin(Math.PI * CUTOFF * d) / (Math.PI * CUTOFF * d);
+				row[k] = sinc * bessel(KAISER_BETA * Math.sqrt(1 - x * x)) / i0Beta;
+				sum += row[k];
+			}
+			for (int k = 0; k < TAPS; k++) {
+				filter[phase * TAPS + k] = (float) (row[k] / sum);
+			}
+		}
+		return filter;
+	}
+
+	// zeroth order modified Bessel function of the first kind
+	private static double bessel(double x) {
+		double sum = 1;
+		double term = 1;
+		double y = x * x / 4;
+		for (int k = 1; k < 50; k++) {
+			term *= y / (k * k);
+			sum += term;
+			if (term < sum * 1e-12) {
+				break;
+			}
+		}
+		return sum;
+	}
+
+}
@@ -0,0 +1,149 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details.
+ *
+ * You should have received a copy of the GNU General Public License version 2
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ *
+ *
+ * Linking this work statically or dynamically with other modules is making a
+ * combined work based on this work. Thus, the terms and conditions of the GNU
+ * General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this work give you permission
+ * to link this work with independent modules to produce an executable,
+ * regardless of the license terms of these independent modules, and to copy and
+ * distribute the resulting executable under terms of your choice, provided that
+ * you also meet, for each linked independent module, the terms and conditions of
+ * the license of that module. An independent module is a module which is not
+ * derived from or based on this work. If you modify this work, you may extend
+ * this exception to your version of the work, but you are not obligated to do so.
+ * If you do not wish to do so, delete this exception statement from your version.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ */
+package org.jaudiolibs.audioservers.javasound;
+
+/**
+ * Adds dither to interleaved output before conversion to 16 bit samples.
+ *
+ * Dither is TPDF, from two rectangular values taken from the high and low
+ * halves of a per-channel xorshift generator. Samples are quantized here by
+ * rounding, with optional noise shaping through error feedback, and written
+ * back as the midpoint of the chosen level so that truncation by
+ * AudioFloatConverter gives exactly that level.
+ *
+ * Not thread safe - only used from the audio thread.
+ *
+ * @author Neil C Smith
+ */
+class Dither {
+
+	// 3 tap error feedback filter, after Wannamaker, for 44.1kHz
+	private final static float[] SHAPING = {1.623f, -0.982f, 0.109f};
+	// limit feedback from clipped samples to keep the filter stable
+	private final static float MAX_ERROR = 2;
+	// above the range of levels, plus 0.5 for rounding
+	private final static float OFFSET = (1 << 16) + 0.5f;
+
+	private final static int MAX = Short.MAX_VALUE;
+	private final static float SCALE = MAX;
+	private final static float INV_SCALE = 1 / SCALE;
+
+	private final int channels;
+	private final boolean shaped;
+	private final int[] seeds;
+	private final float[] errors;
+
+	Dither(JSDitherMode mode, int channels) {
+		if (mode == JSDitherMode.Off) {
+			throw new IllegalArgumentException();
+		}
+		this.channels = channels;
+		this.shaped = mode == JSDitherMode.Shaped;
+		seeds = new int[channels];
+		for (int i = 0; i < channels; i++) {
+			seeds[i] = 0x9E3779B9 * (i + 1);
+		}
+		errors = new float[channels * SHAPING.length];
+	}
+
+	void process(float[] buffer, int frames) {
+		for (int ch = 0; ch < channels; ch++) {
+			if (shaped) {
+				processShaped(buffer, ch, frames);
+			} else {
+				processTPDF(buffer, ch, frames);
+			}
+		}
+	}
+
+	private void processTPDF(float[] buffer, int ch, int frames) {
+		int seed = seeds[ch];
+		for (int n = 0, x = ch; n < frames; n++, x += channels) {
+			seed ^= seed << 13;
+			seed ^= seed >>> 17;
+			seed ^= seed << 5;
+			float tpdf = ((seed >>> 16) + (seed & 0xFFFF) - 0xFFFF) * (1f / 0x10000);
+			buffer[x] = quantize(finite(buffer[x]) * SCALE + tpdf);
+		}
+		seeds[ch] = seed;
+	}
+
+	private void processShaped(float[] buffer, int ch, int frames) {
+		int seed = seeds[ch];
+		int ex = ch * SHAPING.length;
+		float h0 = SHAPING[0], h1 = SHAPING[1], h2 = SHAPING[2];
+		float e0 = errors[ex], e1 = errors[ex + 1], e2 = errors[ex + 2];
+		for (int n = 0, x = ch; n < frames; n++, x += channels) {
+			seed ^= seed << 13;
+			seed ^= seed >>> 17;
+			seed ^= seed << 5;
+			float tpdf = ((seed >>> 16) + (seed & 0xFFFF) - 0xFFFF) * (1f / 0x10000);
+			float v = finite(buffer[x]) * SCALE - (h0 * e0 + h1 * e1 + h2 * e2);
+			float q = level(v + tpdf);
+			float e = q - v;
+			e2 = e1;
+			e1 = e0;
+			e0 = e > MAX_ERROR ? MAX_ERROR : (e < -MAX_ERROR ? -MAX_ERROR : e);
+			buffer[x] = midpoint(q);
+		}
+		errors[ex] = e0;
+		errors[ex + 1] = e1;
+		errors[ex + 2] = e2;
+		seeds[ch] = seed;
+	}
+
+	// NaN or infinite samples are output as silence, and kept out of the
+	// error feedback
+	private static float finite(float v) {
+		return Float.isFinite(v) ? v : 0;
+	}
+
+	private float quantize(float v) {
+		return midpoint(level(v));
+	}
+
+	// round to nearest level, offset so the int cast floors
+	private float level(float v) {
+		int q = (int) (v + OFFSET) - (1 << 16);
+		return Math.max(-MAX, Math.min(MAX, q));
+	}
+
+	// truncating the midpoint gives q, including zero
+	private float midpoint(float q) {
+		return (q + Math.copySign(0.5f, q)) * INV_SCALE;
+	}
+
+}
@@ -39,6 +39,9 @@ import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
@@ -52,6 +55,11 @@ import javax.sound.sampled.TargetDataLine;
 import org.jaudiolibs.audioservers.AudioClient;
 import org.jaudiolibs.audioservers.AudioConfiguration;
 import org.jaudiolibs.audioservers.AudioServer;
+import org.jaudiolibs.audioservers.ext.Metering;
+import org.jaudiolibs.audioservers.ext.TimeFilterBandwidth;
+import org.jaudiolibs.audioservers.util.AudioKernels;
+import org.jaudiolibs.audioservers.util.FadeOut;
+import org.jaudiolibs.audioservers.util.TimeFilter;
 
 /**
  * Implementation of an AudioServer using Javasound.
@@ -75,21 +83,31 @@ public class JSAudioServer implements AudioServer {
 	private final static boolean bigEndian = false;
 	//
 	private final AtomicReference<State> state;
-	private final AudioConfiguration context;
+	private volatile AudioConfiguration context;
 	private final Mixer inputMixer;
 	private final Mixer outputMixer;
 	private final AudioClient client;
 	private final JSTimingMode mode;
+	private final TimeFilter timeFilter;
+	private final JSDriftCompensation driftCompensation;
+	private final JSDitherMode ditherMode;
+	private final JSCaptureStatistics captureStatistics;
+	private final Metering metering;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private final FadeOut fadeOut = new FadeOut();
+	private final AtomicReference<Reconfiguration> pendingReconfiguration = new AtomicReference<Reconfiguration>();
 
 	private TargetDataLine inputLine;
 	private SourceDataLine outputLine;
-	private byte[] inputByteBuffer;
-	private float[] inputFloatBuffer;
 	private byte[] outputByteBuffer;
 	private float[] outputFloatBuffer;
 	private List<FloatBuffer> inputBuffers;
 	private List<FloatBuffer> outputBuffers;
 	private AudioFloatConverter converter;
+	private Dither dither;
+	private CaptureInput captureInput;
+	private boolean drain;
+	private long framesWritten;
 
 	JSAudioServer(Mixer inputMixer, Mixer outputMixer, JSTimingMode mode, AudioConfiguration context, AudioClient client) {
 		this.inputMixer = inputMixer;
@@ -97,6 +115,16 @@ public class JSAudioServer implements AudioServer {
 		this.context = context;
 		this.mode = mode;
 		this.client = client;
+		TimeFilterBandwidth bw = context.find(TimeFilterBandwidth.class);
+		timeFilter = new TimeFilter(context.getSampleRate(),
+				bw == null ? TimeFilter.DEFAULT_BANDWIDTH : bw.getBandwidth());
+		JSDriftCompensation drift = context.find(JSDriftCompensation.class);
+		driftCompensation = drift == null ? JSDriftCompensation.Auto : drift;
+		JSDitherMode dm = context.find(JSDitherMode.class);
+		ditherMode = dm == null ? JSDitherMode.Off : dm;
+		JSCaptureStatistics stats = context.find(JSCaptureStatistics.class);
+		captureStatistics = stats == null ? new JSCaptureStatistics() : stats;
+		metering = context.find(Metering.class);
 		state = new AtomicReference<State>(State.New);
 	}
 
@@ -105,26 +133,50 @@ public class JSAudioServer implements AudioServer {
 			throw new IllegalStateException();
 		}
 		try {
-			initialise();
-			client.configure(context);
-		} catch (Exception ex) {
-			state.set(State.Terminated);
+			try {
+				initialise();
+				client.configure(context);
+			} catch (Exception ex) {
+				state.set(State.Terminated);
+				closeAll();
+				client.shutdown();
+				throw ex;
+			}
+			if (state.compareAndSet(State.Initialising, State.Active)) {
+				runImpl();
+			}
 			closeAll();
 			client.shutdown();
-			throw ex;
-		}
-		if (state.compareAndSet(State.Initialising, State.Active)) {
-			runImpl();
+			state.set(State.Terminated);
+		} finally {
+			cancelReconfiguration();
+			terminated.countDown();
 		}
-		closeAll();
-		client.shutdown();
-		state.set(State.Terminated);
 	}
 
 	public AudioConfiguration getAudioContext() {
 		return context;
 	}
 
+	/**
+	 * The filter used to smooth the time passed to the client. Can be used to
+	 * monitor clock drift and jitter, or to adjust bandwidth while running.
+	 * 
+	 * @return time filter
+	 */
+	public TimeFilter getTimeFilter() {
+		return timeFilter;
+	}
+
+	/**
+	 * Statistics of input buffering and drift compensation.
+	 *
+	 * @return capture statistics
+	 */
+	public JSCaptureStatistics getCaptureStatistics() {
+		return captureStatistics;
+	}
+
 	public boolean isActive() {
 		State st = state.get();
 		return (st == State.Active || st == State.Closing);
@@ -140,7 +192,80 @@ public class JSAudioServer implements AudioServer {
 		} while (!state.compareAndSet(st, State.Closing));
 	}
 
+	/**
+	 * Fade the output to silence, and drain the output line, before shutting
+	 * down. If the server is not active, this is the same as shutdown().
+	 *
+	 * @param fadeTime
+	 * @param unit
+	 */
+	@Override
+	public void shutdown(long fadeTime, TimeUnit unit) {
+		if (state.get() == State.Active) {
+			fadeOut.start((int) (unit.toNanos(fadeTime) * context.getSampleRate() / 1e9));
+		} else {
+			shutdown();
+		}
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	/**
+	 * Change sample rate and / or buffer size while running. The change is
+	 * made on the audio thread between buffers. If the sample rate is
+	 * unchanged, and the lines were opened with enough buffering, the lines
+	 * are kept running and only the internal buffers are reallocated.
+	 * Otherwise the lines are closed and reopened with the new format. If
+	 * reopening fails the server attempts to restore the previous
+	 * configuration.
+	 *
+	 * @param config
+	 * @return future completed with the new configuration
+	 */
+	@Override
+	public CompletableFuture<AudioConfiguration> reconfigure(AudioConfiguration config) {
+		CompletableFuture<AudioConfiguration> future = new CompletableFuture<AudioConfiguration>();
+		AudioConfiguration current = context;
+		if (config.getInputChannelCount() != current.getInputChannelCount()
+				|| config.getOutputChannelCount() != current.getOutputChannelCount()) {
+			future.completeExceptionally(new IllegalArgumentException("Channel count cannot be changed"));
+			return future;
+		}
+		List<Object> exts = new ArrayList<Object>();
+		for (Object ext : current.findAll(Object.class)) {
+			exts.add(ext);
+		}
+		AudioConfiguration ctxt = new AudioConfiguration(config.getSampleRate(),
+				current.getInputChannelCount(), current.getOutputChannelCount(),
+				config.getMaxBufferSize(), exts.toArray());
+		Reconfiguration request = new Reconfiguration(ctxt, future);
+		Reconfiguration previous = pendingReconfiguration.getAndSet(request);
+		if (previous != null) {
+			previous.future.cancel(false);
+		}
+		State st = state.get();
+		if ((st != State.Active && st != State.Initialising)
+				&& pendingReconfiguration.compareAndSet(request, null)) {
+			future.completeExceptionally(new IllegalStateException("Server not running"));
+		}
+		return future;
+	}
+
+	private void cancelReconfiguration() {
+		Reconfiguration request = pendingReconfiguration.getAndSet(null);
+		if (request != null) {
+			request.future.completeExceptionally(new IllegalStateException("Server terminated"));
+		}
+	}
+
 	private void initialise() throws Exception {
+		openLines(context);
+	}
+
+	private void openLines(AudioConfiguration context) throws Exception {
 		float srate = (float) context.getSampleRate();
 		int buffersize = context.getMaxBufferSize();
 		int inputChannels = context.getInputChannelCount();
@@ -154,12 +279,9 @@ public class JSAudioServer implements AudioServer {
 			} else {
 				inputLine = (TargetDataLine) inputMixer.getLine(inputInfo);
 			}
-			inputFloatBuffer = new float[buffersize * inputChannels];
 			int byteBufferSize = buffersize * inputFormat.getFrameSize();
-			inputByteBuffer = new byte[byteBufferSize];
 			byteBufferSize *= nonBlockingOutputRatio;
 			inputLine.open(inputFormat, byteBufferSize);
-
 		}
 		// open output line and create internal buffers
 		AudioFormat outputFormat = new AudioFormat(srate, lineBitSize, outputChannels, signed, bigEndian);
@@ -169,9 +291,7 @@ public class JSAudioServer implements AudioServer {
 		} else {
 			outputLine = (SourceDataLine) outputMixer.getLine(outputInfo);
 		}
-		outputFloatBuffer = new float[buffersize * outputChannels];
 		int byteBufferSize = buffersize * outputFormat.getFrameSize();
-		outputByteBuffer = new byte[byteBufferSize];
 		if (mode != JSTimingMode.Blocking) {
 			byteBufferSize *= nonBlockingOutputRatio;
 			byteBufferSize = Math.min(byteBufferSize, NON_BLOCKING_MIN_BUFFER * outputFormat.getFrameSize());
@@ -181,6 +301,27 @@ public class JSAudioServer implements AudioServer {
 		// create audio converter
 		converter = AudioFloatConverter.getConverter(outputFormat);
 
+		allocateBuffers(context);
+	}
+
+	private void allocateBuffers(AudioConfiguration context) {
+		int buffersize = context.getMaxBufferSize();
+		int inputChannels = context.getInputChannelCount();
+		int outputChannels = context.getOutputChannelCount();
+		if (inputLine != null) {
+			boolean resample = driftCompensation == JSDriftCompensation.On
+					|| (driftCompensation == JSDriftCompensation.Auto && inputMixer != outputMixer);
+			captureInput = new CaptureInput(inputLine, AudioFloatConverter.getConverter(inputLine.getFormat()),
+					inputChannels, buffersize, resample, captureStatistics, metering);
+		}
+		if (metering != null) {
+			metering.configure(inputChannels, outputChannels);
+		}
+		outputFloatBuffer = new float[buffersize * outputChannels];
+		outputByteBuffer = new byte[buffersize * outputLine.getFormat().getFrameSize()];
+		dither = ditherMode == JSDitherMode.Off || outputChannels == 0 ? null
+				: new Dither(ditherMode, outputChannels);
+
 		// create client buffers
 		List<FloatBuffer> ins = new ArrayList<FloatBuffer>(inputChannels);
 		for (int i = 0; i < inputChannels; i++) {
@@ -194,115 +335,171 @@ public class JSAudioServer implements AudioServer {
 		outputBuffers = Collections.unmodifiableList(outs);
 	}
 
-	private void runImpl() {
+	private void startLines() {
 		if (inputLine != null) {
 			inputLine.start();
 		}
 		outputLine.start();
+		framesWritten = 0;
+	}
 
+	private void runImpl() {
+		startLines();
+		try {
+			while (state.get() == State.Active) {
+				runLoop();
+				Reconfiguration request = pendingReconfiguration.getAndSet(null);
+				if (request != null) {
+					applyReconfiguration(request);
+				}
+			}
+		} catch (Exception ex) {
+			Logger.getLogger(JSAudioServer.class.getName()).log(Level.SEVERE, "", ex);
+		}
+	}
+
+	/*
+	 * Process buffers until the server is shut down or reconfiguration is
+	 * requested.
+	 */
+	private void runLoop() {
+		AudioConfiguration context = this.context;
 		long startTime = System.nanoTime();
 		long now = startTime;
 		double bufferTime = ((double) context.getMaxBufferSize() / context.getSampleRate());
-		TimeFilter dll = new TimeFilter(bufferTime, 1.5);
-		// bufferTime *= 1e9;
+		TimeFilter dll = timeFilter;
 		long bufferCount = 0;
 		int bufferSize = context.getMaxBufferSize();
 		final boolean debug = LOG.isLoggable(Level.FINEST);
 		long bufferTimeNS = (long) (bufferTime * 1e9);
 		long msFrames = (long) (context.getSampleRate() / 1000);
 		long target, difference;
-		try {
-			while (state.get() == State.Active) {
-				now = System.nanoTime();
-				readInput();
-				if (client.process((long) (dll.update(now / 1e9) * 1e9), inputBuffers, outputBuffers, bufferSize)) {
-					writeOutput();
-					switch (mode) {
-					case Estimated:
-						target = startTime + (long) (bufferTimeNS * (bufferCount + 1));
-						difference = System.nanoTime() - target;
-						while (difference < -(bufferTimeNS / 16)) {
-							if (difference < -1000000) {
-								try {
-									LockSupport.parkNanos(500000);
-								} catch (Exception ex) {
-								}
-							} else {
-								Thread.yield();
+		while (state.get() == State.Active && pendingReconfiguration.get() == null) {
+			now = System.nanoTime();
+			readInput();
+			if (client.process(dll.update(now, bufferSize), inputBuffers, outputBuffers, bufferSize)) {
+				if (fadeOut.process(outputBuffers, bufferSize)) {
+					drain = true;
+					shutdown();
+				}
+				writeOutput();
+				switch (mode) {
+				case Estimated:
+					target = startTime + (long) (bufferTimeNS * (bufferCount + 1));
+					difference = System.nanoTime() - target;
+					while (difference < -(bufferTimeNS / 16)) {
+						if (difference < -1000000) {
+							try {
+								LockSupport.parkNanos(500000);
+							} catch (Exception ex) {
 							}
-							difference = System.nanoTime() - target;
+						} else {
+							Thread.yield();
 						}
-						break;
-					case FramePosition:
-						target = bufferCount * bufferSize;
-						difference = outputLine.getLongFramePosition() - target;
-						while (difference < -(bufferSize / 16)) {
-							if (difference < -msFrames) {
-								try {
-									LockSupport.parkNanos(500000);
-								} catch (Exception ex) {
-								}
-							} else {
-								Thread.yield();
+						difference = System.nanoTime() - target;
+					}
+					break;
+				case FramePosition:
+					target = framesWritten - bufferSize;
+					difference = outputLine.getLongFramePosition() - target;
+					while (difference < -(bufferSize / 16)) {
+						if (difference < -msFrames) {
+							try {
+								LockSupport.parkNanos(500000);
+							} catch (Exception ex) {
 							}
-							difference = outputLine.getLongFramePosition() - target;
+						} else {
+							Thread.yield();
 						}
-						break;
-					default:
-						// do nothing - blocking on write
+						difference = outputLine.getLongFramePosition() - target;
 					}
-					bufferCount++;
-				} else {
-					shutdown();
-				}
-				if (debug) {
-					processDebug(dll);
+					break;
+				default:
+					// do nothing - blocking on write
 				}
+				bufferCount++;
+			} else {
+				shutdown();
+			}
+			if (debug) {
+				processDebug(dll);
+			}
+		}
+	}
+
+	private void applyReconfiguration(Reconfiguration request) {
+		AudioConfiguration previous = context;
+		AudioConfiguration ctxt = request.context;
+		boolean reopen = mode == JSTimingMode.Blocking
+				|| ctxt.getSampleRate() != previous.getSampleRate()
+				|| !hasCapacity(outputLine, ctxt.getMaxBufferSize())
+				|| (inputLine != null && !hasCapacity(inputLine, ctxt.getMaxBufferSize()));
+		try {
+			if (reopen) {
+				closeAll();
+				openLines(ctxt);
+			} else {
+				allocateBuffers(ctxt);
 			}
 		} catch (Exception ex) {
-			Logger.getLogger(JSAudioServer.class.getName()).log(Level.SEVERE, "", ex);
+			LOG.log(Level.WARNING, "Unable to reconfigure, restoring previous configuration", ex);
+			request.future.completeExceptionally(ex);
+			try {
+				closeAll();
+				openLines(previous);
+				startLines();
+			} catch (Exception ex2) {
+				LOG.log(Level.SEVERE, "Unable to restore previous configuration", ex2);
+				shutdown();
+			}
+			return;
+		}
+		context = ctxt;
+		timeFilter.setSampleRate(ctxt.getSampleRate());
+		timeFilter.reset();
+		try {
+			client.configure(ctxt);
+		} catch (Exception ex) {
+			LOG.log(Level.SEVERE, "Client configuration failed", ex);
+			request.future.completeExceptionally(ex);
+			shutdown();
+			return;
+		}
+		if (reopen) {
+			startLines();
 		}
+		request.future.complete(ctxt);
+	}
+
+	/*
+	 * Whether a running line has enough buffering to keep running with the
+	 * given buffer size.
+	 */
+	private static boolean hasCapacity(DataLine line, int bufferSize) {
+		int lineFrames = line.getBufferSize() / line.getFormat().getFrameSize();
+		return lineFrames >= bufferSize * 4;
 	}
 
 	private void processDebug(TimeFilter dll) {
-		long x = dll.ncycles - 1;
+		long x = dll.getCycleCount();
 		if (x == 0) {
-			LOG.finest("| audiotime drift | filter drift  | systime jitter | filter jitter  |");
+			LOG.finest("| drift (ppm) | jitter (ms)  | offset (ms)  | resets |");
 		}
 		if (x % 1000 == 0) {
-			double device_drift = (dll.device_time - dll.system_time) * 1000.0;
-			double filter_drift = (dll.filter_time - dll.system_time) * 1000.0;
-			double device_rate_error = device_drift / dll.ncycles;
-			double filter_jitter = dll.filter_period_error - device_rate_error;
-			double system_jitter = dll.system_period_error - device_rate_error;
-
-			LOG.finest(String.format("| %15.6f | %13.6f | %14.6f | %14.6f |", device_drift, filter_drift, system_jitter, filter_jitter));
+			LOG.finest(String.format("| %11.3f | %12.6f | %12.6f | %6d |", dll.getDrift(),
+					dll.getJitter() / 1e6, dll.getOffset() / 1e6, dll.getResetCount()));
 		}
 	}
 
 	private void readInput() {
-		TargetDataLine tdl = inputLine;
-		if (tdl != null) {
-			int bsize = inputByteBuffer.length;
-			if (tdl.available() < bsize) {
-				int fsize = inputFloatBuffer.length;
-				for (int i = 0; i < fsize; i++) {
-					inputFloatBuffer[i] = 0;
-				}
-			} else {
-				tdl.read(inputByteBuffer, 0, bsize);
-				converter.toFloatArray(inputByteBuffer, inputFloatBuffer);
+		CaptureInput capture = captureInput;
+		if (capture != null) {
+			capture.process(inputBuffers);
+			for (int channel = 0; channel < inputBuffers.size(); channel++) {
+				inputBuffers.get(channel).rewind();
 			}
-			int channels = inputBuffers.size();
-			// deinterleave into buffers
-			for (int channel = 0; channel < channels; channel++) {
-				FloatBuffer inBuf = inputBuffers.get(channel);
-				float[] input = inBuf.array();
-				for (int i = 0, x = channel; i < input.length; i++) {
-					input[i] = inputFloatBuffer[x];
-					x += channels;
-				}
-				inBuf.rewind();
+			if (metering != null) {
+				metering.publishInputs();
 			}
 		}
 	}
@@ -313,22 +510,45 @@ public class JSAudioServer implements AudioServer {
 		for (int channel = 0; channel < channels; channel++) {
 			FloatBuffer outBuf = outputBuffers.get(channel);
 			float[] output = outBuf.array();
-			for (int i = 0, x = channel; i < output.length; i++) {
-				outputFloatBuffer[x] = output[i];
-				x += channels;
+			if (metering != null) {
+				metering.interleaveOutput(channel, output, 0, outputFloatBuffer, 0, channels, output.length);
+			} else {
+				AudioKernels.interleave(output, 0, outputFloatBuffer, 0, channel, channels, output.length);
 			}
 			outBuf.rewind();
 		}
+		if (metering != null) {
+			metering.publishOutputs();
+		}
 		// convert audio
+		if (dither != null) {
+			dither.process(outputFloatBuffer, outputFloatBuffer.length / channels);
+		}
 		converter.toByteArray(outputFloatBuffer, outputByteBuffer);
 		// write to output
 		outputLine.write(outputByteBuffer, 0, outputByteBuffer.length);
+		framesWritten += outputByteBuffer.length / outputLine.getFormat().getFrameSize();
+
+	}
+
+	private final static class Reconfiguration {
+
+		private final AudioConfiguration context;
+		private final CompletableFuture<AudioConfiguration> future;
+
+		private Reconfiguration(AudioConfiguration context, CompletableFuture<AudioConfiguration> future) {
+			this.context = context;
+			this.future = future;
+		}
 
 	}
 
 	private void closeAll() {
 		SourceDataLine sdl = outputLine;
 		if (sdl != null) {
+			if (drain) {
+				sdl.drain();
+			}
 			sdl.close();
 		}
 		TargetDataLine tdl = inputLine;
@@ -93,6 +93,8 @@ public class JSAudioServerProvider extends AudioServerProvider {
 		Device outputDevice = findOutputDevice(config);
 		Mixer outputMixer = outputDevice == null ? null : outputDevice.find(Mixer.class);
 		JSTimingMode timingMode = findTimingMode(config);
+		JSDriftCompensation driftCompensation = findDriftCompensation(config);
+		JSDitherMode ditherMode = findDitherMode(config);
 
 		ArrayList<Object> exts = new ArrayList<Object>();
 		if (inputDevice != null) {
@@ -102,6 +104,18 @@ public class JSAudioServerProvider extends AudioServerProvider {
 			exts.add(outputDevice);
 		}
 		exts.add(timingMode);
+		exts.add(driftCompensation);
+		exts.add(ditherMode);
+		if (config.find(JSCaptureStatistics.class) == null) {
+			exts.add(new JSCaptureStatistics());
+		}
+		// carry over the caller's other extensions, eg. TimeFilterBandwidth
+		for (Object ext : config.findAll(Object.class)) {
+			if (!(ext instanceof Device || ext instanceof JSTimingMode
+					|| ext instanceof JSDriftCompensation || ext instanceof JSDitherMode)) {
+				exts.add(ext);
+			}
+		}
 
 		config = new AudioConfiguration(config.getSampleRate(), config.getInputChannelCount(), config.getOutputChannelCount(), config.getMaxBufferSize(), exts.toArray());
 
@@ -176,6 +190,24 @@ public class JSAudioServerProvider extends AudioServerProvider {
 		}
 	}
 
+	private static JSDriftCompensation findDriftCompensation(AudioConfiguration config) {
+		JSDriftCompensation drift = config.find(JSDriftCompensation.class);
+		if (drift == null) {
+			return JSDriftCompensation.Auto;
+		} else {
+			return drift;
+		}
+	}
+
+	private static JSDitherMode findDitherMode(AudioConfiguration config) {
+		JSDitherMode dither = config.find(JSDitherMode.class);
+		if (dither == null) {
+			return JSDitherMode.Off;
+		} else {
+			return dither;
+		}
+	}
+
 	private static List<Device> findDevices() {
 		Mixer.Info[] mixerInfos = AudioSystem.getMixerInfo();
 		if (mixerInfos.length == 0) {
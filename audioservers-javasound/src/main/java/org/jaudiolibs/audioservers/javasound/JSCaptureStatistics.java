@@ -0,0 +1,179 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details.
+ *
+ * You should have received a copy of the GNU General Public License version 2
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ *
+ *
+ * Linking this work statically or dynamically with other modules is making a
+ * combined work based on this work. Thus, the terms and conditions of the GNU
+ * General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this work give you permission
+ * to link this work with independent modules to produce an executable,
+ * regardless of the license terms of these independent modules, and to copy and
+ * distribute the resulting executable under terms of your choice, provided that
+ * you also meet, for each linked independent module, the terms and conditions of
+ * the license of that module. An independent module is a module which is not
+ * derived from or based on this work. If you modify this work, you may extend
+ * this exception to your version of the work, but you are not obligated to do so.
+ * If you do not wish to do so, delete this exception statement from your version.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ */
+package org.jaudiolibs.audioservers.javasound;
+
+/**
+ * Statistics of the capture (input) buffering of a JSAudioServer. An instance
+ * is available in the server context, and values are updated by the audio
+ * thread every cycle.
+ *
+ * @author Neil C Smith
+ */
+public final class JSCaptureStatistics {
+
+	private volatile boolean resampling;
+	private volatile int fillLevel;
+	private volatile int targetFillLevel;
+	private volatile double ratio = 1;
+	private volatile double clockRatio = 1;
+	private volatile long underruns;
+	private volatile long overruns;
+	private volatile long discardedFrames;
+
+	/**
+	 * Whether the input is being resampled to compensate for clock drift.
+	 *
+	 * @return resampling
+	 * @see JSDriftCompensation
+	 */
+	public boolean isResampling() {
+		return resampling;
+	}
+
+	/**
+	 * Number of frames buffered ahead of the current input read position.
+	 *
+	 * @return fill level in frames
+	 */
+	public int getFillLevel() {
+		return fillLevel;
+	}
+
+	/**
+	 * The fill level that the drift compensation is aiming for. This is
+	 * raised automatically if the input underruns.
+	 *
+	 * @return target fill level in frames
+	 */
+	public int getTargetFillLevel() {
+		return targetFillLevel;
+	}
+
+	/**
+	 * The current resampling ratio, in input frames per output frame. This
+	 * includes the correction being applied to move the fill level towards
+	 * the target.
+	 *
+	 * @return resampling ratio
+	 */
+	public double getRatio() {
+		return ratio;
+	}
+
+	/**
+	 * The estimated ratio of the input device clock to the output device
+	 * clock.
+	 *
+	 * @return clock ratio
+	 */
+	public double getClockRatio() {
+		return clockRatio;
+	}
+
+	/**
+	 * The estimated drift between input and output device clocks in parts
+	 * per million. Positive values indicate the input device is running
+	 * fast.
+	 *
+	 * @return drift in ppm
+	 */
+	public double getDrift() {
+		return (clockRatio - 1) * 1e6;
+	}
+
+	/**
+	 * Number of blocks where insufficient input was available, and silence
+	 * was passed to the client instead.
+	 *
+	 * @return underrun count
+	 */
+	public long getUnderruns() {
+		return underruns;
+	}
+
+	/**
+	 * Number of times input has overflowed, either in the input line or the
+	 * capture buffer. Input from the line is lost in the former case, and
+	 * frames are discarded in the latter.
+	 *
+	 * @return overrun count
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * Total number of input frames discarded to resynchronise input with
+	 * output.
+	 *
+	 * @return discarded frames
+	 */
+	public long getDiscardedFrames() {
+		return discardedFrames;
+	}
+
+	void setResampling(boolean resampling) {
+		this.resampling = resampling;
+	}
+
+	void update(int fillLevel, int targetFillLevel, double ratio, double clockRatio) {
+		this.fillLevel = fillLevel;
+		this.targetFillLevel = targetFillLevel;
+		this.ratio = ratio;
+		this.clockRatio = clockRatio;
+	}
+
+	// only called from the audio thread
+	void underrun() {
+		underruns++;
+	}
+
+	void overrun() {
+		overruns++;
+	}
+
+	void discard(long frames) {
+		discardedFrames += frames;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("JSCaptureStatistics [fill=%d, target=%d, ratio=%.6f, drift=%.1fppm, "
+				+ "underruns=%d, overruns=%d, discarded=%d]",
+				fillLevel, targetFillLevel, ratio, getDrift(), underruns, overruns, discardedFrames);
+	}
+
+}
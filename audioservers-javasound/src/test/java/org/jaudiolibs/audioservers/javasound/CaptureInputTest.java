@@ -0,0 +1,214 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details.
+ *
+ * You should have received a copy of the GNU General Public License version 2
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ *
+ *
+ * Linking this work statically or dynamically with other modules is making a
+ * combined work based on this work. Thus, the terms and conditions of the GNU
+ * General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this work give you permission
+ * to link this work with independent modules to produce an executable,
+ * regardless of the license terms of these independent modules, and to copy and
+ * distribute the resulting executable under terms of your choice, provided that
+ * you also meet, for each linked independent module, the terms and conditions of
+ * the license of that module. An independent module is a module which is not
+ * derived from or based on this work. If you modify this work, you may extend
+ * this exception to your version of the work, but you are not obligated to do so.
+ * If you do not wish to do so, delete this exception statement from your version.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ */
+package org.jaudiolibs.audioservers.javasound;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.TargetDataLine;
+import junit.framework.TestCase;
+
+/**
+ * Tests CaptureInput against a simulated TargetDataLine, whose clock is
+ * skewed against the output clock, delivering input in 10ms periods.
+ *
+ * @author Neil C Smith
+ */
+public class CaptureInputTest extends TestCase {
+
+	private final static float SAMPLE_RATE = 48000;
+	private final static int CHANNELS = 2;
+	private final static int BLOCK_SIZE = 256;
+	private final static int DEVICE_PERIOD = 480;
+	private final static int LINE_FRAMES = BLOCK_SIZE * 16;
+
+	private float peak;
+
+	public void testResampleFast() {
+		checkResample(200);
+	}
+
+	public void testResampleSlow() {
+		checkResample(-200);
+	}
+
+	/*
+	 * Without resampling a slow input drains the FIFO - each underrun raises
+	 * the target by a block. The first is at startup, as the line delivers
+	 * more than a block at a time.
+	 */
+	public void testNoResampleSlow() {
+		JSCaptureStatistics stats = run(-200, false, 360);
+		assertEquals(6, stats.getUnderruns());
+		assertEquals(1792, stats.getTargetFillLevel());
+		assertEquals(0, stats.getOverruns());
+		assertEquals(0, stats.getDiscardedFrames());
+		assertFalse(stats.isResampling());
+	}
+
+	/*
+	 * Without resampling a fast input is resynced by discarding the excess,
+	 * which should add up to the drift, less what is still buffered.
+	 */
+	public void testNoResampleFast() {
+		JSCaptureStatistics stats = run(200, false, 600);
+		double drift = 200e-6 * SAMPLE_RATE * 600;
+		long discarded = stats.getDiscardedFrames();
+		assertTrue("Discarded " + discarded, Math.abs(discarded - drift) < BLOCK_SIZE * 2);
+		assertEquals(1, stats.getUnderruns());
+		assertEquals(0, stats.getOverruns());
+		assertEquals(0.5f, peak, 0.01f);
+	}
+
+	private void checkResample(double ppm) {
+		JSCaptureStatistics stats = run(ppm, true, 600);
+		assertTrue(stats.isResampling());
+		assertEquals("Drift", ppm, stats.getDrift(), 1);
+		assertEquals(0, stats.getUnderruns());
+		assertEquals(0, stats.getOverruns());
+		assertEquals(0, stats.getDiscardedFrames());
+		// a block of headroom over the 10ms device period
+		assertEquals(16 + BLOCK_SIZE + DEVICE_PERIOD, stats.getTargetFillLevel());
+		assertEquals(stats.getTargetFillLevel(), stats.getFillLevel(), DEVICE_PERIOD);
+		// the sine passes at full level
+		assertEquals(0.5f, peak, 0.01f);
+	}
+
+	/*
+	 * Run for the given time of the output clock, recording the peak level
+	 * over the last second.
+	 */
+	private JSCaptureStatistics run(double ppm, boolean resample, int seconds) {
+		SkewedLine skewed = new SkewedLine(ppm);
+		TargetDataLine line = skewed.createProxy();
+		JSCaptureStatistics stats = new JSCaptureStatistics();
+		CaptureInput input = new CaptureInput(line, AudioFloatConverter.getConverter(line.getFormat()),
+				CHANNELS, BLOCK_SIZE, resample, stats, null);
+		List<FloatBuffer> buffers = new ArrayList<FloatBuffer>();
+		for (int ch = 0; ch < CHANNELS; ch++) {
+			buffers.add(FloatBuffer.allocate(BLOCK_SIZE));
+		}
+		long blocks = (long) (seconds * SAMPLE_RATE / BLOCK_SIZE);
+		long last = blocks - (long) (SAMPLE_RATE / BLOCK_SIZE);
+		peak = 0;
+		for (long b = 1; b <= blocks; b++) {
+			skewed.time = b * BLOCK_SIZE / (double) SAMPLE_RATE;
+			input.process(buffers);
+			if (b > last) {
+				for (FloatBuffer buffer : buffers) {
+					for (int n = 0; n < BLOCK_SIZE; n++) {
+						peak = Math.max(peak, Math.abs(buffer.get(n)));
+					}
+				}
+			}
+		}
+		return stats;
+	}
+
+	/*
+	 * Input clock running at the sample rate skewed by ppm, with the output
+	 * clock as the time reference. Frames become available a device period
+	 * at a time, and are lost if the line buffer is full. Each channel
+	 * carries a 997Hz sine at half scale, in 16 bit little endian PCM.
+	 */
+	private static class SkewedLine implements InvocationHandler {
+
+		private final AudioFormat format = new AudioFormat(SAMPLE_RATE, 16, CHANNELS, true, false);
+		private final double rate;
+		private double time;
+		private long produced;
+		private long consumed;
+		private long lost;
+
+		private SkewedLine(double ppm) {
+			rate = SAMPLE_RATE * (1 + ppm / 1e6);
+		}
+
+		private TargetDataLine createProxy() {
+			return (TargetDataLine) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[]{TargetDataLine.class}, this);
+		}
+
+		private int available() {
+			long periods = (long) (time * rate / DEVICE_PERIOD);
+			long total = periods * DEVICE_PERIOD;
+			if (total - produced > 0) {
+				produced = total;
+				long overflow = produced - lost - consumed - LINE_FRAMES;
+				if (overflow > 0) {
+					lost += overflow;
+				}
+			}
+			return (int) (produced - lost - consumed);
+		}
+
+		private int read(byte[] data, int offset, int length) {
+			int frames = Math.min(length / 4, available());
+			for (int n = 0; n < frames; n++) {
+				long frame = lost + consumed + n;
+				int value = (int) Math.round(Math.sin(2 * Math.PI * 997 * frame / rate) * 16384);
+				for (int ch = 0; ch < CHANNELS; ch++) {
+					int pos = offset + n * 4 + ch * 2;
+					data[pos] = (byte) value;
+					data[pos + 1] = (byte) (value >> 8);
+				}
+			}
+			consumed += frames;
+			return frames * 4;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("getFormat")) {
+				return format;
+			} else if (name.equals("getBufferSize")) {
+				return LINE_FRAMES * format.getFrameSize();
+			} else if (name.equals("available")) {
+				return available() * format.getFrameSize();
+			} else if (name.equals("read")) {
+				return read((byte[]) args[0], (Integer) args[1], (Integer) args[2]);
+			}
+			throw new UnsupportedOperationException(name);
+		}
+
+	}
+
+}
@@ -0,0 +1,117 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details.
+ *
+ * You should have received a copy of the GNU General Public License version 2
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ *
+ *
+ * Linking this work statically or dynamically with other modules is making a
+ * combined work based on this work. Thus, the terms and conditions of the GNU
+ * General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this work give you permission
+ * to link this work with independent modules to produce an executable,
+ * regardless of the license terms of these independent modules, and to copy and
+ * distribute the resulting executable under terms of your choice, provided that
+ * you also meet, for each linked independent module, the terms and conditions of
+ * the license of that module. An independent module is a module which is not
+ * derived from or based on this work. If you modify this work, you may extend
+ * this exception to your version of the work, but you are not obligated to do so.
+ * If you do not wish to do so, delete this exception statement from your version.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ */
+package org.jaudiolibs.audioservers.javasound;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.sound.sampled.AudioFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the JSAudioServer output conversion path - dither, if
+ * enabled, followed by conversion to 16 bit little endian samples. Results
+ * are per sample, for 512 frame stereo buffers.
+ *
+ * Run from the test classpath with org.openjdk.jmh.Main, or main() here.
+ *
+ * @author Neil C Smith
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DitherBenchmark {
+
+	private final static int CHANNELS = 2;
+	private final static int FRAMES = 512;
+	private final static int SAMPLES = CHANNELS * FRAMES;
+
+	@Param({"Off", "TPDF", "Shaped"})
+	public JSDitherMode mode;
+
+	private float[] source;
+	private float[] buffer;
+	private byte[] bytes;
+	private AudioFloatConverter converter;
+	private Dither dither;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		source = new float[SAMPLES];
+		for (int n = 0; n < FRAMES; n++) {
+			float v = (float) (0.5 * Math.sin(2 * Math.PI * 997 * n / 48000));
+			for (int ch = 0; ch < CHANNELS; ch++) {
+				source[n * CHANNELS + ch] = v;
+			}
+		}
+		buffer = new float[SAMPLES];
+		bytes = new byte[SAMPLES * 2];
+		converter = AudioFloatConverter.getConverter(
+				new AudioFormat(48000, 16, CHANNELS, true, false));
+		dither = mode == JSDitherMode.Off ? null : new Dither(mode, CHANNELS);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public byte[] convert() {
+		System.arraycopy(source, 0, buffer, 0, SAMPLES);
+		if (dither != null) {
+			dither.process(buffer, FRAMES);
+		}
+		return converter.toByteArray(buffer, bytes);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] opts = Arrays.copyOf(args, args.length + 1);
+		opts[args.length] = DitherBenchmark.class.getSimpleName();
+		org.openjdk.jmh.Main.main(opts);
+	}
+
+}
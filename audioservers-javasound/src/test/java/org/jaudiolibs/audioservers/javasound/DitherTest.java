@@ -0,0 +1,108 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details.
+ *
+ * You should have received a copy of the GNU General Public License version 2
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ *
+ *
+ * Linking this work statically or dynamically with other modules is making a
+ * combined work based on this work. Thus, the terms and conditions of the GNU
+ * General Public License cover the whole combination.
+ *
+ * As a special exception, the copyright holders of this work give you permission
+ * to link this work with independent modules to produce an executable,
+ * regardless of the license terms of these independent modules, and to copy and
+ * distribute the resulting executable under terms of your choice, provided that
+ * you also meet, for each linked independent module, the terms and conditions of
+ * the license of that module. An independent module is a module which is not
+ * derived from or based on this work. If you modify this work, you may extend
+ * this exception to your version of the work, but you are not obligated to do so.
+ * If you do not wish to do so, delete this exception statement from your version.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ */
+package org.jaudiolibs.audioservers.javasound;
+
+import javax.sound.sampled.AudioFormat;
+import junit.framework.TestCase;
+
+/**
+ * Tests Dither output through the 16 bit converter used by JSAudioServer.
+ *
+ * @author Neil C Smith
+ */
+public class DitherTest extends TestCase {
+
+	private final static int FRAMES = 4096;
+
+	public void testNonFiniteIsSilent() {
+		for (JSDitherMode mode : new JSDitherMode[]{JSDitherMode.TPDF, JSDitherMode.Shaped}) {
+			float[] buffer = new float[FRAMES];
+			for (int n = 0; n < FRAMES; n++) {
+				buffer[n] = n % 3 == 0 ? Float.NaN
+						: (n % 3 == 1 ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY);
+			}
+			short[] out = convert(mode, buffer);
+			// dither noise only - shaped noise is larger at high frequencies
+			int max = mode == JSDitherMode.Shaped ? 8 : 2;
+			for (int n = 0; n < FRAMES; n++) {
+				assertTrue(mode + " sample " + n + " was " + out[n], Math.abs(out[n]) <= max);
+			}
+		}
+	}
+
+	public void testLevelsWithinOneStep() {
+		for (JSDitherMode mode : new JSDitherMode[]{JSDitherMode.TPDF, JSDitherMode.Shaped}) {
+			float[] buffer = new float[FRAMES];
+			for (int n = 0; n < FRAMES; n++) {
+				buffer[n] = (float) (0.5 * Math.sin(2 * Math.PI * 997 * n / 48000));
+			}
+			float[] source = buffer.clone();
+			short[] out = convert(mode, buffer);
+			double error = 0;
+			for (int n = 0; n < FRAMES; n++) {
+				double diff = out[n] - source[n] * 32767.0;
+				// TPDF is within 1.5 steps - allow for the shaped error feedback
+				assertTrue(mode + " sample " + n + " error " + diff, Math.abs(diff) <= 8);
+				error += diff;
+			}
+			assertTrue(mode + " mean error " + error / FRAMES, Math.abs(error / FRAMES) < 0.1);
+		}
+	}
+
+	public void testClipping() {
+		float[] buffer = new float[FRAMES];
+		for (int n = 0; n < FRAMES; n++) {
+			buffer[n] = (n & 1) == 0 ? 4 : -4;
+		}
+		short[] out = convert(JSDitherMode.Shaped, buffer);
+		for (int n = 0; n < FRAMES; n++) {
+			assertEquals((n & 1) == 0 ? Short.MAX_VALUE : -Short.MAX_VALUE, out[n]);
+		}
+	}
+
+	private static short[] convert(JSDitherMode mode, float[] buffer) {
+		new Dither(mode, 1).process(buffer, buffer.length);
+		byte[] bytes = new byte[buffer.length * 2];
+		AudioFloatConverter.getConverter(new AudioFormat(48000, 16, 1, true, false))
+				.toByteArray(buffer, bytes);
+		short[] out = new short[buffer.length];
+		for (int n = 0; n < out.length; n++) {
+			out[n] = (short) ((bytes[2 * n] & 0xFF) | (bytes[2 * n + 1] << 8));
+		}
+		return out;
+	}
+
+}
@@ -0,0 +1,286 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.shm;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+import org.jaudiolibs.audioservers.AudioServer;
+import org.jaudiolibs.audioservers.util.FadeOut;
+
+/**
+ * Implementation of AudioServer clocked by a {@link ShmBridge} running in
+ * another process, through a shared memory mapped file.
+ *
+ * The sample rate, buffer size and channel counts are set by the host - the
+ * values in the configuration passed to the constructor are replaced once the
+ * server has connected. The client is passed the host's buffer times, and
+ * buffers that point directly into the shared file, so no audio is copied in
+ * this process. If the host reconfigures, the client is configured again
+ * without being shut down.
+ *
+ * If the peer falls behind, it skips to the most recent buffer published by
+ * the host. The host must be running before this server is started, and the
+ * server shuts down when the host closes.
+ *
+ * @author Neil C Smith
+ */
+public class ShmAudioServer implements AudioServer {
+
+	private final static Logger LOG = Logger.getLogger(ShmAudioServer.class.getName());
+
+	private final static long POLL_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(100);
+	private final static long CONNECT_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+
+	private enum State {
+
+		New, Initialising, Active, Closing, Terminated
+	};
+
+	private final ShmEndpoint endpoint;
+	private final AudioClient client;
+	private final AtomicReference<State> state;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private final FadeOut fadeOut = new FadeOut();
+
+	private volatile AudioConfiguration context;
+	private ShmFile file;
+	private int generation;
+	private List<FloatBuffer>[] inputs;
+	private List<FloatBuffer>[] outputs;
+	private long processed;
+	private volatile long skipped;
+
+	public ShmAudioServer(ShmEndpoint endpoint, AudioConfiguration config, AudioClient client) {
+		if (endpoint == null || client == null) {
+			throw new NullPointerException();
+		}
+		this.endpoint = endpoint;
+		this.context = config;
+		this.client = client;
+		this.state = new AtomicReference<State>(State.New);
+	}
+
+	@Override
+	public void run() throws Exception {
+		if (!state.compareAndSet(State.New, State.Initialising)) {
+			throw new IllegalStateException();
+		}
+		try {
+			try {
+				initialise();
+			} catch (Exception ex) {
+				state.set(State.Terminated);
+				closeAll();
+				client.shutdown();
+				throw ex;
+			}
+			if (state.compareAndSet(State.Initialising, State.Active)) {
+				runImpl();
+			}
+			closeAll();
+			client.shutdown();
+			state.set(State.Terminated);
+		} finally {
+			terminated.countDown();
+		}
+	}
+
+	private void initialise() throws Exception {
+		connect();
+		LOG.log(Level.FINE, "Configuring AudioClient\n{0}", context);
+		client.configure(context);
+	}
+
+	/*
+	 * Map the file and wait for a valid header from a running host.
+	 */
+	private void connect() throws IOException {
+		long deadline = System.nanoTime() + CONNECT_TIMEOUT;
+		while (true) {
+			file = ShmFile.open(endpoint.getPath());
+			generation = file.getGeneration();
+			if (file.isValid() && file.isHostOpen()) {
+				break;
+			}
+			file.close();
+			file = null;
+			if (System.nanoTime() - deadline >= 0) {
+				throw new IOException("No valid host found at " + endpoint.getPath());
+			}
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+		}
+		context = new AudioConfiguration(file.getSampleRate(), file.getChannelsToPeer(),
+				file.getChannelsToHost(), file.getBufferSize(), endpoint);
+		inputs = lists(file.toPeerViews());
+		outputs = lists(file.toHostViews());
+		processed = file.getHostSequence();
+		file.setPeerSequence(processed);
+		file.setPeerAttached(true);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<FloatBuffer>[] lists(FloatBuffer[][] views) {
+		List<FloatBuffer>[] lists = new List[views.length];
+		for (int i = 0; i < views.length; i++) {
+			lists[i] = Collections.unmodifiableList(Arrays.asList(views[i]));
+		}
+		return lists;
+	}
+
+	private void runImpl() {
+		try {
+			int bufferSize = context.getMaxBufferSize();
+			while (state.get() == State.Active) {
+				if (file.getGeneration() != generation) {
+					reconnect();
+					bufferSize = context.getMaxBufferSize();
+					continue;
+				}
+				if (!file.isHostOpen()) {
+					LOG.log(Level.FINE, "Host closed {0}", endpoint.getPath());
+					shutdown();
+					break;
+				}
+				long available = file.await(false, processed + 1, System.nanoTime() + POLL_TIMEOUT);
+				if (available <= processed) {
+					continue;
+				}
+				if (available - processed > 1) {
+					skipped += available - processed - 1;
+					processed = available - 1;
+				}
+				int slot = (int) (processed & (ShmFile.SLOTS - 1));
+				List<FloatBuffer> ins = inputs[slot];
+				List<FloatBuffer> outs = outputs[slot];
+				for (int i = 0; i < ins.size(); i++) {
+					ins.get(i).clear();
+				}
+				for (int i = 0; i < outs.size(); i++) {
+					FloatBuffer out = outs.get(i);
+					out.clear();
+					for (int n = 0; n < bufferSize; n++) {
+						out.put(n, 0);
+					}
+				}
+				if (!client.process(file.getTime(slot), ins, outs, bufferSize)) {
+					shutdown();
+				}
+				if (fadeOut.process(outs, bufferSize)) {
+					shutdown();
+				}
+				file.setPeerSequence(++processed);
+			}
+		} catch (Exception ex) {
+			LOG.log(Level.WARNING, "", ex);
+		}
+	}
+
+	/*
+	 * The host has reconfigured - remap the file and configure the client
+	 * again.
+	 */
+	private void reconnect() throws Exception {
+		closeAll();
+		connect();
+		LOG.log(Level.FINE, "Reconfiguring AudioClient\n{0}", context);
+		client.configure(context);
+	}
+
+	private void closeAll() {
+		ShmFile f = file;
+		if (f != null) {
+			try {
+				f.setPeerAttached(false);
+				f.close();
+			} catch (Throwable t) {
+			}
+			file = null;
+		}
+	}
+
+	@Override
+	public AudioConfiguration getAudioContext() {
+		return context;
+	}
+
+	@Override
+	public boolean isActive() {
+		State st = state.get();
+		return (st == State.Active || st == State.Closing);
+	}
+
+	@Override
+	public void shutdown() {
+		State st;
+		do {
+			st = state.get();
+			if (st == State.Terminated || st == State.Closing) {
+				break;
+			}
+		} while (!state.compareAndSet(st, State.Closing));
+	}
+
+	/**
+	 * Fade the output to silence before shutting down. If the server is not
+	 * active, this is the same as shutdown().
+	 *
+	 * @param fadeTime
+	 * @param unit
+	 */
+	@Override
+	public void shutdown(long fadeTime, TimeUnit unit) {
+		if (state.get() == State.Active) {
+			fadeOut.start((int) (unit.toNanos(fadeTime) * context.getSampleRate() / 1e9));
+		} else {
+			shutdown();
+		}
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	/**
+	 * Number of host buffers skipped because this server fell behind.
+	 *
+	 * @return skipped count
+	 */
+	public long getSkippedBuffers() {
+		return skipped;
+	}
+
+}
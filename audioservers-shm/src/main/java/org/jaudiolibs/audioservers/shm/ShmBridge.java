@@ -0,0 +1,196 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.shm;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+
+/**
+ * The host side of a shared memory connection. Pass an instance of this class
+ * as the client of any AudioServer, and run a {@link ShmAudioServer} for the
+ * same file in the peer process. The peer client then receives the inputs of
+ * the host server, and its outputs are played by the host server, clocked by
+ * the host server.
+ *
+ * On each buffer the inputs are copied into the shared file and published to
+ * the peer. The audio thread then spins briefly and parks until the peer has
+ * processed the buffer or the timeout passes, and copies the peer outputs
+ * back. If the peer misses the timeout, silence is output for that buffer. If
+ * the peer misses several buffers in a row, or is not attached, the host
+ * stops waiting until the peer catches up.
+ *
+ * @author Neil C Smith
+ */
+public final class ShmBridge implements AudioClient {
+
+	private final static Logger LOG = Logger.getLogger(ShmBridge.class.getName());
+
+	private final static int MAX_CONSECUTIVE_MISSES = 8;
+
+	private final Path path;
+	private double timeoutFraction = 0.75;
+
+	private ShmFile file;
+	private FloatBuffer[][] toPeer;
+	private FloatBuffer[][] toHost;
+	private long sequence;
+	private long timeout;
+	private int consecutiveMisses;
+	private boolean peerAbsent;
+	private volatile long missed;
+
+	/**
+	 * Create a bridge using the given file. The file is created if required,
+	 * and is not deleted on shutdown.
+	 *
+	 * @param path shared file, preferably on a tmpfs such as /dev/shm
+	 */
+	public ShmBridge(Path path) {
+		if (path == null) {
+			throw new NullPointerException();
+		}
+		this.path = path;
+	}
+
+	/**
+	 * Set the maximum time the audio thread waits for the peer, as a fraction
+	 * of the buffer period. Default is 0.75.
+	 *
+	 * @param fraction fraction of buffer period between 0 and 1
+	 * @return this
+	 */
+	public ShmBridge setTimeout(double fraction) {
+		if (!(fraction >= 0 && fraction <= 1)) {
+			throw new IllegalArgumentException();
+		}
+		this.timeoutFraction = fraction;
+		return this;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Number of buffers the peer failed to process in time.
+	 *
+	 * @return missed count
+	 */
+	public long getMissedBuffers() {
+		return missed;
+	}
+
+	@Override
+	public void configure(AudioConfiguration context) throws Exception {
+		if (!context.isFixedBufferSize()) {
+			throw new IllegalArgumentException("ShmBridge requires a fixed buffer size");
+		}
+		ShmFile old = file;
+		file = ShmFile.create(path, context.getSampleRate(), context.getMaxBufferSize(),
+				context.getInputChannelCount(), context.getOutputChannelCount());
+		if (old != null) {
+			old.close();
+		}
+		toPeer = file.toPeerViews();
+		toHost = file.toHostViews();
+		sequence = Math.max(file.getHostSequence(), file.getPeerSequence());
+		file.setHostSequence(sequence);
+		timeout = (long) (timeoutFraction * context.getMaxBufferSize() * 1e9 / context.getSampleRate());
+		consecutiveMisses = 0;
+		peerAbsent = false;
+	}
+
+	@Override
+	public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+		int slot = (int) (sequence & (ShmFile.SLOTS - 1));
+		FloatBuffer[] ins = toPeer[slot];
+		for (int i = 0; i < ins.length; i++) {
+			copy(inputs.get(i), ins[i], nframes);
+		}
+		file.setTime(slot, time);
+		long target = ++sequence;
+		file.setHostSequence(target);
+		boolean attached = file.isPeerAttached();
+		if (peerAbsent && attached && file.getPeerSequence() >= target - 1) {
+			// peer has caught up, so wait for it again
+			peerAbsent = false;
+			consecutiveMisses = 0;
+		}
+		boolean ok = false;
+		if (attached && !peerAbsent) {
+			ok = file.await(true, target, System.nanoTime() + timeout) >= target;
+			if (ok) {
+				consecutiveMisses = 0;
+			} else {
+				missed++;
+				if (++consecutiveMisses >= MAX_CONSECUTIVE_MISSES) {
+					peerAbsent = true;
+				}
+			}
+		}
+		int count = outputs.size();
+		FloatBuffer[] outs = toHost[slot];
+		for (int i = 0; i < count; i++) {
+			FloatBuffer out = outputs.get(i);
+			if (ok && i < outs.length) {
+				copy(outs[i], out, nframes);
+			} else {
+				int pos = out.position();
+				for (int n = 0; n < nframes; n++) {
+					out.put(pos + n, 0);
+				}
+			}
+		}
+		return true;
+	}
+
+	private static void copy(FloatBuffer src, FloatBuffer dst, int nframes) {
+		int s = src.position();
+		int d = dst.position();
+		for (int n = 0; n < nframes; n++) {
+			dst.put(d + n, src.get(s + n));
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		ShmFile f = file;
+		if (f != null) {
+			f.setHostOpen(false);
+			try {
+				f.close();
+			} catch (IOException ex) {
+				LOG.log(Level.FINE, "", ex);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.shm;
+
+import java.nio.file.Path;
+
+/**
+ * Shared memory file used by a ShmAudioServer. Pass in the AudioConfiguration
+ * used to create the server.
+ *
+ * @author Neil C Smith
+ */
+public final class ShmEndpoint {
+
+    private final Path path;
+
+    /**
+     * Create a ShmEndpoint.
+     *
+     * @param path file created by a {@link ShmBridge} in the host process
+     */
+    public ShmEndpoint(Path path) {
+        if (path == null) {
+            throw new NullPointerException();
+        }
+        this.path = path;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return "ShmEndpoint[" + path + "]";
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.shm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Layout of, and access to, the memory mapped file shared between a host and
+ * peer process. All data is in native byte order.
+ *
+ * The header is followed by a ring of slots, each holding one buffer per
+ * channel from host to peer, then a ring of slots holding one buffer per
+ * channel from peer to host. The host publishes slots by incrementing the
+ * host sequence with release semantics, and the peer acknowledges them by
+ * incrementing the peer sequence. Each counter is on its own cache line.
+ *
+ * The file is never shrunk, so a peer that still has an old mapping cannot
+ * fault when the host reconfigures.
+ *
+ * @author Neil C Smith
+ */
+final class ShmFile implements Closeable {
+
+	final static int MAGIC = 0x4A41534D; // JASM
+	final static int VERSION = 1;
+	final static int SLOTS = 4;
+
+	private final static int MAGIC_OFFSET = 0;
+	private final static int VERSION_OFFSET = 4;
+	private final static int GENERATION_OFFSET = 8;
+	private final static int SAMPLE_RATE_OFFSET = 12;
+	private final static int BUFFER_SIZE_OFFSET = 16;
+	private final static int TO_PEER_OFFSET = 20;
+	private final static int TO_HOST_OFFSET = 24;
+	private final static int SLOTS_OFFSET = 28;
+	private final static int HOST_SEQUENCE_OFFSET = 64;
+	private final static int PEER_SEQUENCE_OFFSET = 128;
+	private final static int HOST_STATE_OFFSET = 192;
+	private final static int PEER_STATE_OFFSET = 256;
+	private final static int TIME_OFFSET = 320;
+	private final static int DATA_OFFSET = 512;
+
+	private final static VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+	private final static VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final static int SPIN_LIMIT = 2000;
+	private final static long PARK_NANOS = 20000;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+
+	private ShmFile(FileChannel channel, MappedByteBuffer buffer) {
+		this.channel = channel;
+		this.buffer = buffer;
+		buffer.order(ByteOrder.nativeOrder());
+	}
+
+	/*
+	 * Create or update the file as host. Any peer mapping of an existing file
+	 * will see the generation change.
+	 */
+	static ShmFile create(Path path, float sampleRate, int bufferSize, int toPeer, int toHost) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long size = Math.max(channel.size(), DATA_OFFSET
+					+ (long) SLOTS * (toPeer + toHost) * bufferSize * Float.BYTES);
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Shared memory file too large");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			ShmFile file = new ShmFile(channel, buffer);
+			int generation = (int) INT.getAcquire(buffer, GENERATION_OFFSET);
+			INT.setRelease(buffer, MAGIC_OFFSET, 0);
+			buffer.putInt(VERSION_OFFSET, VERSION);
+			buffer.putFloat(SAMPLE_RATE_OFFSET, sampleRate);
+			buffer.putInt(BUFFER_SIZE_OFFSET, bufferSize);
+			buffer.putInt(TO_PEER_OFFSET, toPeer);
+			buffer.putInt(TO_HOST_OFFSET, toHost);
+			buffer.putInt(SLOTS_OFFSET, SLOTS);
+			INT.setRelease(buffer, GENERATION_OFFSET, generation + 1);
+			INT.setRelease(buffer, HOST_STATE_OFFSET, 1);
+			INT.setRelease(buffer, MAGIC_OFFSET, MAGIC);
+			return file;
+		} catch (IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/*
+	 * Open an existing file as peer.
+	 */
+	static ShmFile open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long size = channel.size();
+			if (size < DATA_OFFSET || size > Integer.MAX_VALUE) {
+				throw new IOException("Not a shared memory audio file");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			return new ShmFile(channel, buffer);
+		} catch (IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/*
+	 * Whether the header is complete and the mapping covers the data.
+	 */
+	boolean isValid() {
+		if ((int) INT.getAcquire(buffer, MAGIC_OFFSET) != MAGIC
+				|| buffer.getInt(VERSION_OFFSET) != VERSION
+				|| buffer.getInt(SLOTS_OFFSET) != SLOTS) {
+			return false;
+		}
+		long required = DATA_OFFSET + (long) SLOTS
+				* (getChannelsToPeer() + getChannelsToHost()) * getBufferSize() * Float.BYTES;
+		return required <= buffer.capacity();
+	}
+
+	int getGeneration() {
+		return (int) INT.getAcquire(buffer, GENERATION_OFFSET);
+	}
+
+	float getSampleRate() {
+		return buffer.getFloat(SAMPLE_RATE_OFFSET);
+	}
+
+	int getBufferSize() {
+		return buffer.getInt(BUFFER_SIZE_OFFSET);
+	}
+
+	int getChannelsToPeer() {
+		return buffer.getInt(TO_PEER_OFFSET);
+	}
+
+	int getChannelsToHost() {
+		return buffer.getInt(TO_HOST_OFFSET);
+	}
+
+	long getHostSequence() {
+		return (long) LONG.getAcquire(buffer, HOST_SEQUENCE_OFFSET);
+	}
+
+	void setHostSequence(long sequence) {
+		LONG.setRelease(buffer, HOST_SEQUENCE_OFFSET, sequence);
+	}
+
+	long getPeerSequence() {
+		return (long) LONG.getAcquire(buffer, PEER_SEQUENCE_OFFSET);
+	}
+
+	void setPeerSequence(long sequence) {
+		LONG.setRelease(buffer, PEER_SEQUENCE_OFFSET, sequence);
+	}
+
+	boolean isHostOpen() {
+		return (int) INT.getAcquire(buffer, HOST_STATE_OFFSET) != 0;
+	}
+
+	void setHostOpen(boolean open) {
+		INT.setRelease(buffer, HOST_STATE_OFFSET, open ? 1 : 0);
+	}
+
+	boolean isPeerAttached() {
+		return (int) INT.getAcquire(buffer, PEER_STATE_OFFSET) != 0;
+	}
+
+	void setPeerAttached(boolean attached) {
+		INT.setRelease(buffer, PEER_STATE_OFFSET, attached ? 1 : 0);
+	}
+
+	/*
+	 * Time of the buffer in the slot, as passed to the host client. Written
+	 * before the host sequence is released.
+	 */
+	long getTime(int slot) {
+		return buffer.getLong(TIME_OFFSET + slot * Long.BYTES);
+	}
+
+	void setTime(int slot, long time) {
+		buffer.putLong(TIME_OFFSET + slot * Long.BYTES, time);
+	}
+
+	/*
+	 * Views of each channel buffer, indexed [slot][channel].
+	 */
+	FloatBuffer[][] toPeerViews() {
+		return views(DATA_OFFSET, getChannelsToPeer());
+	}
+
+	FloatBuffer[][] toHostViews() {
+		return views(DATA_OFFSET + SLOTS * getChannelsToPeer() * getBufferSize() * Float.BYTES,
+				getChannelsToHost());
+	}
+
+	private FloatBuffer[][] views(int offset, int channels) {
+		int bytes = getBufferSize() * Float.BYTES;
+		FloatBuffer[][] views = new FloatBuffer[SLOTS][channels];
+		for (int slot = 0; slot < SLOTS; slot++) {
+			for (int ch = 0; ch < channels; ch++) {
+				ByteBuffer b = buffer.duplicate();
+				int start = offset + (slot * channels + ch) * bytes;
+				b.limit(start + bytes);
+				b.position(start);
+				views[slot][ch] = b.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+			}
+		}
+		return views;
+	}
+
+	/*
+	 * Wait until the peer sequence (peer = true) or host sequence
+	 * (peer = false) reaches the target, spinning briefly before parking.
+	 * Returns the last value read, which is less than the target if the
+	 * deadline passed.
+	 */
+	long await(boolean peer, long target, long deadline) {
+		int spins = 0;
+		long value;
+		while ((value = peer ? getPeerSequence() : getHostSequence()) < target) {
+			if (System.nanoTime() - deadline >= 0) {
+				break;
+			}
+			if (spins < SPIN_LIMIT) {
+				spins++;
+				Thread.onSpinWait();
+			} else {
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+		return value;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
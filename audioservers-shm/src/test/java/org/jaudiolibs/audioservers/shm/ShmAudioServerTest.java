@@ -0,0 +1,180 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.shm;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+
+/**
+ * Tests ShmAudioServer against a ShmBridge in the same process, with the test
+ * thread standing in for the host server.
+ *
+ * @author Neil C Smith
+ */
+public class ShmAudioServerTest extends TestCase {
+
+	private final static float SAMPLE_RATE = 48000;
+	private final static int BUFFER_SIZE = 4096;
+	private final static int CHANNELS = 2;
+
+	private Path path;
+
+	@Override
+	protected void setUp() throws Exception {
+		path = Files.createTempFile("ShmAudioServerTest", ".shm");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		Files.deleteIfExists(path);
+	}
+
+	public void testProcess() throws Exception {
+		ShmBridge bridge = configure(new ShmBridge(path).setTimeout(1));
+		PeerClient peer = new PeerClient();
+		ShmAudioServer server = start(peer);
+		try {
+			assertTrue(peer.configured.await(2, TimeUnit.SECONDS));
+			List<FloatBuffer> inputs = buffers();
+			List<FloatBuffer> outputs = buffers();
+			boolean processed = false;
+			for (int cycle = 0; cycle < 20 && !processed; cycle++) {
+				for (int ch = 0; ch < CHANNELS; ch++) {
+					for (int n = 0; n < BUFFER_SIZE; n++) {
+						inputs.get(ch).put(n, cycle + n / (float) BUFFER_SIZE);
+					}
+				}
+				bridge.process(cycle, inputs, outputs, BUFFER_SIZE);
+				processed = outputs.get(0).get(1) != 0;
+				for (int ch = 0; processed && ch < CHANNELS; ch++) {
+					for (int n = 0; n < BUFFER_SIZE; n++) {
+						assertEquals(-inputs.get(ch).get(n), outputs.get(ch).get(n), 0);
+					}
+				}
+			}
+			assertTrue("peer did not process", processed);
+			assertEquals(CHANNELS, server.getAudioContext().getInputChannelCount());
+			assertEquals(BUFFER_SIZE, server.getAudioContext().getMaxBufferSize());
+		} finally {
+			bridge.shutdown();
+			server.shutdown();
+			assertTrue(server.awaitTermination(2, TimeUnit.SECONDS));
+		}
+	}
+
+	public void testShutdownWhenHostCloses() throws Exception {
+		ShmBridge bridge = configure(new ShmBridge(path));
+		PeerClient peer = new PeerClient();
+		ShmAudioServer server = start(peer);
+		assertTrue(peer.configured.await(2, TimeUnit.SECONDS));
+		bridge.shutdown();
+		assertTrue("peer still running after host closed",
+				server.awaitTermination(2, TimeUnit.SECONDS));
+		assertFalse(server.isActive());
+		assertEquals(0, peer.shutdown.getCount());
+	}
+
+	public void testClosedHostNotConnected() throws Exception {
+		configure(new ShmBridge(path)).shutdown();
+		ShmAudioServer server = new ShmAudioServer(new ShmEndpoint(path),
+				new AudioConfiguration(SAMPLE_RATE, 0, 0, BUFFER_SIZE, true), new PeerClient());
+		try {
+			server.run();
+			fail("connected to closed host");
+		} catch (IOException ex) {
+			// expected
+		}
+		assertTrue(server.awaitTermination(0, TimeUnit.SECONDS));
+	}
+
+	private static ShmBridge configure(ShmBridge bridge) throws Exception {
+		bridge.configure(new AudioConfiguration(SAMPLE_RATE, CHANNELS, CHANNELS, BUFFER_SIZE, true));
+		return bridge;
+	}
+
+	private ShmAudioServer start(AudioClient client) {
+		final ShmAudioServer server = new ShmAudioServer(new ShmEndpoint(path),
+				new AudioConfiguration(SAMPLE_RATE, 0, 0, BUFFER_SIZE, true), client);
+		Thread runner = new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					server.run();
+				} catch (Exception ex) {
+					ex.printStackTrace();
+				}
+			}
+		}, "ShmAudioServerTest");
+		runner.setDaemon(true);
+		runner.start();
+		return server;
+	}
+
+	private static List<FloatBuffer> buffers() {
+		List<FloatBuffer> list = new ArrayList<FloatBuffer>(CHANNELS);
+		for (int i = 0; i < CHANNELS; i++) {
+			list.add(FloatBuffer.allocate(BUFFER_SIZE));
+		}
+		return list;
+	}
+
+	/*
+	 * Writes the negated inputs to the outputs, using relative put.
+	 */
+	private static class PeerClient implements AudioClient {
+
+		private final CountDownLatch configured = new CountDownLatch(1);
+		private final CountDownLatch shutdown = new CountDownLatch(1);
+
+		public void configure(AudioConfiguration context) throws Exception {
+			configured.countDown();
+		}
+
+		public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+			for (int ch = 0; ch < outputs.size(); ch++) {
+				FloatBuffer in = inputs.get(ch);
+				FloatBuffer out = outputs.get(ch);
+				for (int n = 0; n < nframes; n++) {
+					out.put(-in.get());
+				}
+			}
+			return true;
+		}
+
+		public void shutdown() {
+			shutdown.countDown();
+		}
+
+	}
+
+}
@@ -0,0 +1,267 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.simulation;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+import org.jaudiolibs.audioservers.AudioServer;
+import org.jaudiolibs.audioservers.util.FadeOut;
+import org.jaudiolibs.audioservers.util.TimeFilter;
+
+/**
+ * Implementation of AudioServer that simulates a device, for testing how
+ * clients cope with timing faults. Device behaviour is set by a
+ * {@link SimulationProfile}, and each cycle is recorded in a
+ * {@link SimulationRecording} if one is in the configuration.
+ *
+ * The device clock runs at the sample rate adjusted by the profile drift.
+ * Each cycle the callback time is offset by random jitter, and may be
+ * stalled or dropped. Callbacks are paced in real time if the profile is
+ * realtime, otherwise the server runs as fast as the client allows. Time
+ * passed to the client is smoothed through a TimeFilter as with a real
+ * device - from the system clock if realtime, otherwise from the simulated
+ * callback time, so that runs are repeatable. Inputs are silent.
+ *
+ * @author Neil C Smith
+ */
+public class SimulationAudioServer implements AudioServer {
+
+	private final static Logger LOG = Logger.getLogger(SimulationAudioServer.class.getName());
+
+	private enum State {
+
+		New, Initialising, Active, Closing, Terminated
+	};
+
+	private final SimulationProfile profile;
+	private final SimulationRecording recording;
+	private final AudioConfiguration context;
+	private final AudioClient client;
+	private final int maxBufferSize;
+	private final boolean variableBufferSize;
+	private final AtomicReference<State> state;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private final FadeOut fadeOut = new FadeOut();
+	private final TimeFilter timeFilter;
+	private final Random random;
+
+	private List<FloatBuffer> inputBuffers;
+	private List<FloatBuffer> outputBuffers;
+	private volatile Thread serverThread;
+
+	public SimulationAudioServer(SimulationProfile profile, SimulationRecording recording,
+			AudioConfiguration config, AudioClient client) {
+		if (profile == null || client == null) {
+			throw new NullPointerException();
+		}
+		this.profile = profile;
+		this.recording = recording;
+		this.client = client;
+		this.maxBufferSize = config.getMaxBufferSize();
+		this.variableBufferSize = !config.isFixedBufferSize() && profile.isVariableBufferSize();
+		Object[] exts = recording == null
+				? new Object[]{profile}
+				: new Object[]{profile, recording};
+		this.context = new AudioConfiguration(config.getSampleRate(), config.getInputChannelCount(),
+				config.getOutputChannelCount(), maxBufferSize, config.isFixedBufferSize(), exts);
+		this.state = new AtomicReference<State>(State.New);
+		timeFilter = new TimeFilter(context.getSampleRate());
+		random = new Random(profile.getSeed());
+	}
+
+	@Override
+	public void run() throws Exception {
+		if (!state.compareAndSet(State.New, State.Initialising)) {
+			throw new IllegalStateException();
+		}
+		try {
+			try {
+				initialise();
+			} catch (Exception ex) {
+				state.set(State.Terminated);
+				client.shutdown();
+				throw ex;
+			}
+			if (state.compareAndSet(State.Initialising, State.Active)) {
+				runImpl();
+			}
+			client.shutdown();
+			state.set(State.Terminated);
+		} finally {
+			terminated.countDown();
+		}
+	}
+
+	private void initialise() throws Exception {
+		serverThread = Thread.currentThread();
+		inputBuffers = createBuffers(context.getInputChannelCount());
+		outputBuffers = createBuffers(context.getOutputChannelCount());
+		if (recording != null) {
+			recording.reset(context.getOutputChannelCount());
+		}
+		LOG.log(Level.FINE, "Configuring AudioClient\n{0}", context);
+		client.configure(context);
+	}
+
+	private List<FloatBuffer> createBuffers(int count) {
+		List<FloatBuffer> list = new ArrayList<FloatBuffer>(count);
+		for (int i = 0; i < count; i++) {
+			list.add(FloatBuffer.allocate(maxBufferSize));
+		}
+		return Collections.unmodifiableList(list);
+	}
+
+	private void runImpl() {
+		boolean realtime = profile.isRealtime();
+		double frameNanos = 1e9 / (context.getSampleRate() * (1 + profile.getDriftPPM() / 1e6));
+		double jitter = profile.getJitter(TimeUnit.NANOSECONDS);
+		double stallProbability = profile.getStallProbability();
+		long stallNanos = profile.getStallTime(TimeUnit.NANOSECONDS);
+		double dropProbability = profile.getDropProbability();
+		long durationNanos = profile.getDuration(TimeUnit.NANOSECONDS);
+		long start = realtime ? System.nanoTime() : 0;
+		double deviceClock = 0;
+		long lastDeviceTime = start;
+		try {
+			while (state.get() == State.Active) {
+				int nframes = variableBufferSize ? 1 + random.nextInt(maxBufferSize) : maxBufferSize;
+				deviceClock += nframes * frameNanos;
+				if (durationNanos > 0 && deviceClock > durationNanos) {
+					break;
+				}
+				// draw all values every cycle, so a fault does not shift later cycles
+				double offset = random.nextGaussian() * jitter;
+				boolean stalled = random.nextDouble() < stallProbability;
+				boolean dropped = random.nextDouble() < dropProbability;
+				long deviceTime = start + (long) (deviceClock + offset) + (stalled ? stallNanos : 0);
+				// jitter cannot reorder callbacks
+				deviceTime = Math.max(deviceTime, lastDeviceTime + 1);
+				lastDeviceTime = deviceTime;
+				if (realtime) {
+					long wait;
+					while ((wait = deviceTime - System.nanoTime()) > 0
+							&& state.get() == State.Active) {
+						LockSupport.parkNanos(this, wait);
+					}
+				}
+				if (dropped) {
+					timeFilter.reset();
+					if (recording != null) {
+						recording.record(SimulationRecording.Type.Drop, deviceTime, 0, nframes,
+								0, stalled, false, outputBuffers);
+					}
+					continue;
+				}
+				process(realtime ? System.nanoTime() : deviceTime, deviceTime, nframes,
+						(long) (nframes * frameNanos), stalled);
+			}
+		} catch (Exception ex) {
+			LOG.log(Level.WARNING, "", ex);
+		}
+	}
+
+	private void process(long now, long deviceTime, int nframes, long period, boolean stalled) {
+		for (int i = 0; i < inputBuffers.size(); i++) {
+			FloatBuffer buffer = inputBuffers.get(i);
+			buffer.clear();
+			for (int n = 0; n < nframes; n++) {
+				buffer.put(n, 0);
+			}
+		}
+		for (int i = 0; i < outputBuffers.size(); i++) {
+			FloatBuffer buffer = outputBuffers.get(i);
+			buffer.clear();
+			for (int n = 0; n < nframes; n++) {
+				buffer.put(n, 0);
+			}
+		}
+		long time = timeFilter.update(now, nframes);
+		long processStart = System.nanoTime();
+		boolean ok = client.process(time, inputBuffers, outputBuffers, nframes);
+		long processTime = System.nanoTime() - processStart;
+		if (!ok) {
+			shutdown();
+		}
+		if (fadeOut.process(outputBuffers, nframes)) {
+			shutdown();
+		}
+		if (recording != null) {
+			recording.record(SimulationRecording.Type.Process, deviceTime, time, nframes,
+					processTime, stalled, processTime > period, outputBuffers);
+		}
+	}
+
+	@Override
+	public AudioConfiguration getAudioContext() {
+		return context;
+	}
+
+	@Override
+	public boolean isActive() {
+		State st = state.get();
+		return (st == State.Active || st == State.Closing);
+	}
+
+	@Override
+	public void shutdown() {
+		State st;
+		do {
+			st = state.get();
+			if (st == State.Terminated || st == State.Closing) {
+				break;
+			}
+		} while (!state.compareAndSet(st, State.Closing));
+		Thread thread = serverThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	@Override
+	public void shutdown(long fadeTime, TimeUnit unit) {
+		if (state.get() == State.Active) {
+			fadeOut.start((int) (unit.toNanos(fadeTime) * context.getSampleRate() / 1e9));
+		} else {
+			shutdown();
+		}
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+}
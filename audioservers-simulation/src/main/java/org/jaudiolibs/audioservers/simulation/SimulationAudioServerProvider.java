@@ -0,0 +1,60 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.simulation;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+import org.jaudiolibs.audioservers.AudioServer;
+import org.jaudiolibs.audioservers.AudioServerProvider;
+
+/**
+ * Provider of SimulationAudioServer. The configuration may contain a
+ * {@link SimulationProfile} (default {@link SimulationProfile#DEFAULT}) and a
+ * {@link SimulationRecording}.
+ *
+ * @author Neil C Smith
+ */
+public class SimulationAudioServerProvider extends AudioServerProvider {
+
+    @Override
+    public String getLibraryName() {
+        return "Simulation";
+    }
+
+    @Override
+    public String getLibraryDescription() {
+        return "Simulated device with fault injection, for testing";
+    }
+
+    @Override
+    public AudioServer createServer(AudioConfiguration config, AudioClient client) throws Exception {
+        SimulationProfile profile = config.find(SimulationProfile.class);
+        if (profile == null) {
+            profile = SimulationProfile.DEFAULT;
+        }
+        SimulationRecording recording = config.find(SimulationRecording.class);
+        return new SimulationAudioServer(profile, recording, config, client);
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.simulation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Device behaviour and faults simulated by a SimulationAudioServer. Pass in
+ * the AudioConfiguration used to create the server. Create instances with a
+ * {@link Builder}.
+ *
+ * All random behaviour is drawn from a generator with the given seed, so a
+ * run with the same profile and client is repeatable. Unless realtime, the
+ * server runs as fast as the client allows on a simulated clock, and the
+ * time passed to the client is derived from that clock.
+ *
+ * @author Neil C Smith
+ */
+public final class SimulationProfile {
+
+    /**
+     * Ideal device - no jitter, drift or faults, not realtime.
+     */
+    public final static SimulationProfile DEFAULT = new Builder().build();
+
+    private final long seed;
+    private final boolean realtime;
+    private final long durationNanos;
+    private final long jitterNanos;
+    private final double driftPPM;
+    private final double stallProbability;
+    private final long stallNanos;
+    private final double dropProbability;
+    private final boolean variableBufferSize;
+
+    private SimulationProfile(Builder builder) {
+        this.seed = builder.seed;
+        this.realtime = builder.realtime;
+        this.durationNanos = builder.durationNanos;
+        this.jitterNanos = builder.jitterNanos;
+        this.driftPPM = builder.driftPPM;
+        this.stallProbability = builder.stallProbability;
+        this.stallNanos = builder.stallNanos;
+        this.dropProbability = builder.dropProbability;
+        this.variableBufferSize = builder.variableBufferSize;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public boolean isRealtime() {
+        return realtime;
+    }
+
+    public long getDuration(TimeUnit unit) {
+        return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getJitter(TimeUnit unit) {
+        return unit.convert(jitterNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public double getDriftPPM() {
+        return driftPPM;
+    }
+
+    public double getStallProbability() {
+        return stallProbability;
+    }
+
+    public long getStallTime(TimeUnit unit) {
+        return unit.convert(stallNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public double getDropProbability() {
+        return dropProbability;
+    }
+
+    public boolean isVariableBufferSize() {
+        return variableBufferSize;
+    }
+
+    @Override
+    public String toString() {
+        return "SimulationProfile[seed=" + seed + ", realtime=" + realtime
+                + ", duration=" + durationNanos + "ns, jitter=" + jitterNanos
+                + "ns, drift=" + driftPPM + "ppm, stall=" + stallProbability
+                + "/" + stallNanos + "ns, drop=" + dropProbability
+                + ", variableBufferSize=" + variableBufferSize + "]";
+    }
+
+    /**
+     * Builder of SimulationProfile.
+     */
+    public static final class Builder {
+
+        private long seed;
+        private boolean realtime;
+        private long durationNanos;
+        private long jitterNanos;
+        private double driftPPM;
+        private double stallProbability;
+        private long stallNanos;
+        private double dropProbability;
+        private boolean variableBufferSize = true;
+
+        /**
+         * Seed of the random generator. Default 0.
+         *
+         * @param seed
+         * @return this
+         */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Whether to pace callbacks in real time, so that slow clients
+         * overrun as they would on a real device. Default false.
+         *
+         * @param realtime
+         * @return this
+         */
+        public Builder realtime(boolean realtime) {
+            this.realtime = realtime;
+            return this;
+        }
+
+        /**
+         * Simulated time after which the server shuts down. Default 0, run
+         * until shut down.
+         *
+         * @param time
+         * @param unit
+         * @return this
+         */
+        public Builder duration(long time, TimeUnit unit) {
+            if (time < 0) {
+                throw new IllegalArgumentException();
+            }
+            this.durationNanos = unit.toNanos(time);
+            return this;
+        }
+
+        /**
+         * Standard deviation of callback timing jitter. Default 0.
+         *
+         * @param time
+         * @param unit
+         * @return this
+         */
+        public Builder jitter(long time, TimeUnit unit) {
+            if (time < 0) {
+                throw new IllegalArgumentException();
+            }
+            this.jitterNanos = unit.toNanos(time);
+            return this;
+        }
+
+        /**
+         * Device clock error relative to the system clock, in parts per
+         * million. Positive values run fast. Default 0.
+         *
+         * @param ppm
+         * @return this
+         */
+        public Builder drift(double ppm) {
+            if (!(ppm > -1e6)) {
+                throw new IllegalArgumentException();
+            }
+            this.driftPPM = ppm;
+            return this;
+        }
+
+        /**
+         * Probability of each callback being delayed by the stall time. Later
+         * callbacks catch up, as with a device that buffers during a stall.
+         * Default 0.
+         *
+         * @param probability
+         * @param time
+         * @param unit
+         * @return this
+         */
+        public Builder stalls(double probability, long time, TimeUnit unit) {
+            if (!(probability >= 0 && probability <= 1) || time < 0) {
+                throw new IllegalArgumentException();
+            }
+            this.stallProbability = probability;
+            this.stallNanos = unit.toNanos(time);
+            return this;
+        }
+
+        /**
+         * Probability of each callback being dropped, as in an xrun. The
+         * device outputs silence for that buffer. Default 0.
+         *
+         * @param probability
+         * @return this
+         */
+        public Builder drops(double probability) {
+            if (!(probability >= 0 && probability <= 1)) {
+                throw new IllegalArgumentException();
+            }
+            this.dropProbability = probability;
+            return this;
+        }
+
+        /**
+         * Whether to vary the number of frames per callback, between 1 and
+         * the maximum buffer size. Only applies if the AudioConfiguration
+         * does not have a fixed buffer size. Default true.
+         *
+         * @param variable
+         * @return this
+         */
+        public Builder variableBufferSize(boolean variable) {
+            this.variableBufferSize = variable;
+            return this;
+        }
+
+        public SimulationProfile build() {
+            return new SimulationProfile(this);
+        }
+
+    }
+
+}
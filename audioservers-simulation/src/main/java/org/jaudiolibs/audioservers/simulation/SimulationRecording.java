@@ -0,0 +1,364 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.simulation;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Record of a SimulationAudioServer run - every device cycle, with its
+ * faults and the time the client took to process it, and the audio output by
+ * the client. Pass in the AudioConfiguration used to create the server, and
+ * read once the server has terminated, or at any time while running.
+ *
+ * Events and audio are recorded up to the given limits, after which further
+ * cycles are only counted. Storage for the limits is allocated when the
+ * server starts, so recording a cycle neither allocates nor locks on the
+ * server thread. Each cycle is published to readers after it is recorded.
+ *
+ * @author Neil C Smith
+ */
+public final class SimulationRecording {
+
+    /**
+     * Type of a device cycle.
+     */
+    public static enum Type {
+
+        /**
+         * The client processed the cycle.
+         */
+        Process,
+        /**
+         * The cycle was dropped, as in an xrun - the client was not called and
+         * silence was output.
+         */
+        Drop
+    }
+
+    private final static byte STALLED = 1;
+    private final static byte OVERLOADED = 2;
+
+    private final int maxEvents;
+    private final int maxFrames;
+
+    private volatile int eventCount;
+    private byte[] types;
+    private long[] deviceTimes;
+    private long[] clientTimes;
+    private long[] processNanos;
+    private int[] frames;
+    private byte[] flags;
+
+    private float[][] output;
+    private volatile int outputFrames;
+
+    // only written by the server thread
+    private volatile long cycles;
+    private volatile long drops;
+    private volatile long stalls;
+    private volatile long overloads;
+    private volatile long totalFrames;
+    private volatile long maxProcessNanos;
+
+    /**
+     * Create a recording of up to 100000 events and 60 seconds of audio at
+     * 48kHz.
+     */
+    public SimulationRecording() {
+        this(100000, 48000 * 60);
+    }
+
+    /**
+     * Create a recording.
+     *
+     * @param maxEvents maximum number of events to record
+     * @param maxFrames maximum number of frames of output audio to record
+     */
+    public SimulationRecording(int maxEvents, int maxFrames) {
+        if (maxEvents < 0 || maxFrames < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.maxEvents = maxEvents;
+        this.maxFrames = maxFrames;
+        output = new float[0][];
+    }
+
+    void reset(int channels) {
+        types = new byte[maxEvents];
+        deviceTimes = new long[maxEvents];
+        clientTimes = new long[maxEvents];
+        processNanos = new long[maxEvents];
+        frames = new int[maxEvents];
+        flags = new byte[maxEvents];
+        output = new float[channels][maxFrames];
+        eventCount = 0;
+        outputFrames = 0;
+        cycles = 0;
+        drops = 0;
+        stalls = 0;
+        overloads = 0;
+        totalFrames = 0;
+        maxProcessNanos = 0;
+    }
+
+    void record(Type type, long deviceTime, long clientTime, int nframes,
+            long processTime, boolean stalled, boolean overloaded, List<FloatBuffer> outputs) {
+        cycles++;
+        totalFrames += nframes;
+        if (type == Type.Drop) {
+            drops++;
+        }
+        if (stalled) {
+            stalls++;
+        }
+        if (overloaded) {
+            overloads++;
+        }
+        if (processTime > maxProcessNanos) {
+            maxProcessNanos = processTime;
+        }
+        int i = eventCount;
+        if (i < maxEvents) {
+            types[i] = (byte) type.ordinal();
+            deviceTimes[i] = deviceTime;
+            clientTimes[i] = clientTime;
+            processNanos[i] = processTime;
+            frames[i] = nframes;
+            flags[i] = (byte) ((stalled ? STALLED : 0) | (overloaded ? OVERLOADED : 0));
+            eventCount = i + 1;
+        }
+        int pos = outputFrames;
+        int count = Math.min(nframes, maxFrames - pos);
+        if (count > 0 && output.length > 0) {
+            for (int ch = 0; ch < output.length; ch++) {
+                if (type == Type.Process) {
+                    FloatBuffer buffer = outputs.get(ch);
+                    for (int n = 0; n < count; n++) {
+                        output[ch][pos + n] = buffer.get(n);
+                    }
+                }
+                // dropped cycles are left as silence
+            }
+            outputFrames = pos + count;
+        }
+    }
+
+    /**
+     * Number of device cycles, including dropped cycles.
+     *
+     * @return cycle count
+     */
+    public long getCycleCount() {
+        return cycles;
+    }
+
+    /**
+     * Number of dropped cycles.
+     *
+     * @return drop count
+     */
+    public long getDropCount() {
+        return drops;
+    }
+
+    /**
+     * Number of stalled cycles.
+     *
+     * @return stall count
+     */
+    public long getStallCount() {
+        return stalls;
+    }
+
+    /**
+     * Number of cycles where the client took longer than the duration of the
+     * buffer to process it. On a real device these would be xruns.
+     *
+     * @return overload count
+     */
+    public long getOverloadCount() {
+        return overloads;
+    }
+
+    /**
+     * Total frames of all cycles.
+     *
+     * @return frame count
+     */
+    public long getTotalFrames() {
+        return totalFrames;
+    }
+
+    /**
+     * Longest time taken by the client to process a cycle.
+     *
+     * @param unit
+     * @return time
+     */
+    public long getMaxProcessTime(TimeUnit unit) {
+        return unit.convert(maxProcessNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Number of recorded events.
+     *
+     * @return event count
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Get a recorded event.
+     *
+     * @param index event index
+     * @return event
+     */
+    public Event getEvent(int index) {
+        if (index < 0 || index >= eventCount) {
+            throw new IndexOutOfBoundsException();
+        }
+        return new Event(Type.values()[types[index]], deviceTimes[index], clientTimes[index],
+                frames[index], processNanos[index],
+                (flags[index] & STALLED) != 0, (flags[index] & OVERLOADED) != 0);
+    }
+
+    /**
+     * Number of output channels recorded.
+     *
+     * @return channel count
+     */
+    public int getOutputChannelCount() {
+        return output.length;
+    }
+
+    /**
+     * Number of frames of output recorded.
+     *
+     * @return frame count
+     */
+    public int getOutputFrames() {
+        return outputFrames;
+    }
+
+    /**
+     * Copy of the recorded output of a channel.
+     *
+     * @param channel
+     * @return samples
+     */
+    public float[] getOutput(int channel) {
+        int count = outputFrames;
+        return Arrays.copyOf(output[channel], count);
+    }
+
+    @Override
+    public String toString() {
+        return "SimulationRecording[cycles=" + cycles + ", drops=" + drops
+                + ", stalls=" + stalls + ", overloads=" + overloads
+                + ", frames=" + totalFrames + ", maxProcessTime=" + maxProcessNanos + "ns]";
+    }
+
+    /**
+     * A recorded device cycle.
+     */
+    public static final class Event {
+
+        private final Type type;
+        private final long deviceTime;
+        private final long clientTime;
+        private final int frames;
+        private final long processTime;
+        private final boolean stalled;
+        private final boolean overloaded;
+
+        private Event(Type type, long deviceTime, long clientTime, int frames,
+                long processTime, boolean stalled, boolean overloaded) {
+            this.type = type;
+            this.deviceTime = deviceTime;
+            this.clientTime = clientTime;
+            this.frames = frames;
+            this.processTime = processTime;
+            this.stalled = stalled;
+            this.overloaded = overloaded;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * Time of the cycle on the simulated device clock, including jitter
+         * and stalls, in nanoseconds.
+         *
+         * @return device time
+         */
+        public long getDeviceTime() {
+            return deviceTime;
+        }
+
+        /**
+         * Time passed to the client, or 0 if dropped.
+         *
+         * @return client time
+         */
+        public long getClientTime() {
+            return clientTime;
+        }
+
+        public int getFrames() {
+            return frames;
+        }
+
+        /**
+         * Time taken by the client to process the cycle, or 0 if dropped.
+         *
+         * @param unit
+         * @return process time
+         */
+        public long getProcessTime(TimeUnit unit) {
+            return unit.convert(processTime, TimeUnit.NANOSECONDS);
+        }
+
+        public boolean isStalled() {
+            return stalled;
+        }
+
+        public boolean isOverloaded() {
+            return overloaded;
+        }
+
+        @Override
+        public String toString() {
+            return type + "[device=" + deviceTime + ", client=" + clientTime
+                    + ", frames=" + frames + ", process=" + processTime + "ns"
+                    + (stalled ? ", stalled" : "") + (overloaded ? ", overloaded" : "") + "]";
+        }
+
+    }
+
+}
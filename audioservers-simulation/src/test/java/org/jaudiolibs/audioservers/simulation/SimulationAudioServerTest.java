@@ -0,0 +1,194 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.simulation;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+
+/**
+ * Tests SimulationAudioServer repeatability in virtual time and overload
+ * detection in real time.
+ *
+ * @author Neil C Smith
+ */
+public class SimulationAudioServerTest extends TestCase {
+
+	private final static float SAMPLE_RATE = 48000;
+	private final static int BUFFER_SIZE = 256;
+
+	public void testSameSeedRepeatable() throws Exception {
+		SimulationRecording first = runFaulty(42);
+		SimulationRecording second = runFaulty(42);
+		assertTrue("Cycles " + first.getCycleCount(), first.getCycleCount() > 22000);
+		assertTrue(first.getDropCount() > 0);
+		assertTrue(first.getStallCount() > 0);
+		assertEquals(first.getCycleCount(), second.getCycleCount());
+		assertEquals(first.getDropCount(), second.getDropCount());
+		assertEquals(first.getStallCount(), second.getStallCount());
+		assertEquals(first.getTotalFrames(), second.getTotalFrames());
+		assertEquals(first.getEventCount(), second.getEventCount());
+		for (int i = 0; i < first.getEventCount(); i++) {
+			SimulationRecording.Event a = first.getEvent(i);
+			SimulationRecording.Event b = second.getEvent(i);
+			// process time and overloads depend on the host, not the seed
+			assertEquals(a.getType(), b.getType());
+			assertEquals(a.getDeviceTime(), b.getDeviceTime());
+			assertEquals(a.getClientTime(), b.getClientTime());
+			assertEquals(a.getFrames(), b.getFrames());
+			assertEquals(a.isStalled(), b.isStalled());
+		}
+		assertEquals(first.getOutputFrames(), second.getOutputFrames());
+		for (int ch = 0; ch < 2; ch++) {
+			float[] a = first.getOutput(ch);
+			float[] b = second.getOutput(ch);
+			for (int n = 0; n < a.length; n++) {
+				assertEquals(a[n], b[n]);
+			}
+		}
+		SimulationRecording other = runFaulty(43);
+		boolean differs = other.getCycleCount() != first.getCycleCount();
+		for (int i = 0; !differs && i < first.getEventCount(); i++) {
+			differs = first.getEvent(i).getFrames() != other.getEvent(i).getFrames();
+		}
+		assertTrue(differs);
+	}
+
+	public void testDroppedCyclesSilent() throws Exception {
+		SimulationProfile profile = new SimulationProfile.Builder()
+				.seed(1)
+				.drops(0.1)
+				.duration(1, TimeUnit.SECONDS)
+				.build();
+		SimulationRecording recording = new SimulationRecording();
+		new SimulationAudioServer(profile, recording, config(true), new TestClient(0, false)).run();
+		assertTrue(recording.getDropCount() > 0);
+		float[] out = recording.getOutput(0);
+		int pos = 0;
+		for (int i = 0; i < recording.getEventCount(); i++) {
+			SimulationRecording.Event event = recording.getEvent(i);
+			float expected = event.getType() == SimulationRecording.Type.Drop ? 0 : 1;
+			for (int n = 0; n < event.getFrames(); n++) {
+				assertEquals(expected, out[pos++]);
+			}
+		}
+		assertEquals(recording.getOutputFrames(), pos);
+	}
+
+	/*
+	 * A client taking 12ms every 50 cycles of a 5.3ms buffer should overload
+	 * 8 times over 2.01s (376 cycles).
+	 */
+	public void testRealtimeOverloads() throws Exception {
+		SimulationProfile profile = new SimulationProfile.Builder()
+				.realtime(true)
+				.duration(2010, TimeUnit.MILLISECONDS)
+				.build();
+		SimulationRecording recording = new SimulationRecording();
+		TestClient client = new TestClient(50, false);
+		long start = System.nanoTime();
+		new SimulationAudioServer(profile, recording, config(true), client).run();
+		long elapsed = System.nanoTime() - start;
+		assertTrue("Elapsed " + elapsed + "ns", elapsed >= TimeUnit.MILLISECONDS.toNanos(1900));
+		assertEquals(376, recording.getCycleCount());
+		assertEquals(8, client.sleeps);
+		for (int i = 0; i < recording.getEventCount(); i++) {
+			if (i % 50 == 0) {
+				assertTrue("Cycle " + i, recording.getEvent(i).isOverloaded());
+			}
+		}
+		// allow for the odd late wake up on a busy machine
+		long overloads = recording.getOverloadCount();
+		assertTrue("Overloads " + overloads, overloads >= 8 && overloads <= 10);
+		assertTrue(recording.getMaxProcessTime(TimeUnit.MILLISECONDS) >= 12);
+	}
+
+	private SimulationRecording runFaulty(long seed) throws Exception {
+		SimulationProfile profile = new SimulationProfile.Builder()
+				.seed(seed)
+				.jitter(500, TimeUnit.MICROSECONDS)
+				.drift(100)
+				.stalls(0.001, 20, TimeUnit.MILLISECONDS)
+				.drops(0.001)
+				.duration(60, TimeUnit.SECONDS)
+				.build();
+		SimulationRecording recording = new SimulationRecording(30000, 48000 * 10);
+		new SimulationAudioServer(profile, recording, config(false), new TestClient(0, true)).run();
+		return recording;
+	}
+
+	private static AudioConfiguration config(boolean fixed) {
+		return new AudioConfiguration(SAMPLE_RATE, 0, 2, BUFFER_SIZE, fixed);
+	}
+
+	/*
+	 * Writes a ramp from the frame count, or 1 if the ramp is disabled, and
+	 * sleeps for 12ms every sleepInterval cycles if not 0.
+	 */
+	private static class TestClient implements AudioClient {
+
+		private final int sleepInterval;
+		private final boolean ramp;
+		private long frame;
+		private int cycle;
+		private int sleeps;
+
+		private TestClient(int sleepInterval, boolean ramp) {
+			this.sleepInterval = sleepInterval;
+			this.ramp = ramp;
+		}
+
+		@Override
+		public void configure(AudioConfiguration context) throws Exception {
+		}
+
+		@Override
+		public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+			if (sleepInterval > 0 && cycle++ % sleepInterval == 0) {
+				sleeps++;
+				try {
+					Thread.sleep(12);
+				} catch (InterruptedException ex) {
+				}
+			}
+			for (int n = 0; n < nframes; n++) {
+				float value = ramp ? (frame % 1000) / 1000f : 1;
+				for (FloatBuffer out : outputs) {
+					out.put(n, value);
+				}
+				frame++;
+			}
+			return true;
+		}
+
+		@Override
+		public void shutdown() {
+		}
+
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+/**
+ * An immutable snapshot of the results of an AnalysisTap.
+ *
+ * The spectrum is the power spectrum of a Hann windowed FFT averaged across
+ * the analysed channels, in dB relative to a full scale sine. Loudness
+ * values are in LUFS, or negative infinity until enough audio has been
+ * analysed.
+ *
+ * @author Neil C Smith
+ */
+public final class Analysis {
+
+    final static Analysis EMPTY = new Analysis(0, 0, 0, new float[0],
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+
+    private final float sampleRate;
+    private final int fftSize;
+    private final long position;
+    private final float[] spectrum;
+    private final double momentary;
+    private final double shortTerm;
+    private final double integrated;
+
+    Analysis(float sampleRate, int fftSize, long position, float[] spectrum,
+            double momentary, double shortTerm, double integrated) {
+        this.sampleRate = sampleRate;
+        this.fftSize = fftSize;
+        this.position = position;
+        this.spectrum = spectrum;
+        this.momentary = momentary;
+        this.shortTerm = shortTerm;
+        this.integrated = integrated;
+    }
+
+    /**
+     * Sample rate of the analysed audio.
+     *
+     * @return sample rate, or 0 if nothing analysed
+     */
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Number of frames analysed when this snapshot was taken.
+     *
+     * @return frame position
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Number of spectrum bins, from DC to half the sample rate inclusive. 0
+     * until the first FFT is complete.
+     *
+     * @return bin count
+     */
+    public int getBinCount() {
+        return spectrum.length;
+    }
+
+    /**
+     * Centre frequency of a spectrum bin.
+     *
+     * @param bin
+     * @return frequency in Hz
+     */
+    public float getFrequency(int bin) {
+        return bin * sampleRate / fftSize;
+    }
+
+    /**
+     * Level of a spectrum bin.
+     *
+     * @param bin
+     * @return level in dB
+     */
+    public float getLevel(int bin) {
+        return spectrum[bin];
+    }
+
+    /**
+     * Copy the spectrum levels in to an array.
+     *
+     * @param levels array of at least getBinCount() length
+     * @return levels
+     */
+    public float[] getLevels(float[] levels) {
+        System.arraycopy(spectrum, 0, levels, 0, spectrum.length);
+        return levels;
+    }
+
+    /**
+     * Momentary loudness, over the last 400ms.
+     *
+     * @return loudness in LUFS
+     */
+    public double getMomentaryLoudness() {
+        return momentary;
+    }
+
+    /**
+     * Short-term loudness, over the last 3s.
+     *
+     * @return loudness in LUFS
+     */
+    public double getShortTermLoudness() {
+        return shortTerm;
+    }
+
+    /**
+     * Gated integrated loudness since the tap was configured.
+     *
+     * @return loudness in LUFS
+     */
+    public double getIntegratedLoudness() {
+        return integrated;
+    }
+
+    @Override
+    public String toString() {
+        return "Analysis [position=" + position + ", bins=" + spectrum.length
+                + ", M=" + momentary + ", S=" + shortTerm + ", I=" + integrated + "]";
+    }
+
+}
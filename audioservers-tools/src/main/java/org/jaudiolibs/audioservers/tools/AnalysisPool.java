@@ -0,0 +1,139 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of worker threads shared by any number of AnalysisTaps.
+ *
+ * Workers poll the registered taps for audio in their ring buffers, so the
+ * audio thread never has to signal or submit work. Each tap is analysed by
+ * one worker at a time, and different taps are analysed in parallel.
+ *
+ * @author Neil C Smith
+ */
+public final class AnalysisPool {
+
+    private final static Logger LOG = Logger.getLogger(AnalysisPool.class.getName());
+
+    private final static long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final CopyOnWriteArrayList<Job> jobs;
+    private final Thread[] workers;
+    private volatile boolean closed;
+
+    /**
+     * Create a pool with a worker per available processor.
+     */
+    public AnalysisPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a pool with the given number of worker threads.
+     *
+     * @param threads number of workers
+     */
+    public AnalysisPool(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException();
+        }
+        jobs = new CopyOnWriteArrayList<Job>();
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int offset = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(offset);
+                }
+            }, "AnalysisPool-" + (i + 1));
+            thread.setDaemon(true);
+            workers[i] = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the worker threads. Taps using this pool stop being analysed.
+     */
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    void add(Job job) {
+        jobs.add(job);
+    }
+
+    void remove(Job job) {
+        jobs.remove(job);
+    }
+
+    private void work(int offset) {
+        while (!closed) {
+            Object[] current = jobs.toArray();
+            boolean worked = false;
+            for (int i = 0; i < current.length; i++) {
+                // start at different points so workers spread across jobs
+                Job job = (Job) current[(i + offset) % current.length];
+                if (job.claim()) {
+                    try {
+                        worked |= job.run();
+                    } catch (RuntimeException ex) {
+                        LOG.log(Level.WARNING, "Analysis failed", ex);
+                        jobs.remove(job);
+                    } finally {
+                        job.release();
+                    }
+                }
+            }
+            if (!worked) {
+                LockSupport.parkNanos(POLL_INTERVAL);
+            }
+        }
+    }
+
+    /*
+     * Unit of work, run by at most one worker at a time.
+     */
+    static abstract class Job {
+
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        private void release() {
+            claimed.set(false);
+        }
+
+        /*
+         * Process available work. Returns false if there was none.
+         */
+        abstract boolean run();
+
+    }
+
+}
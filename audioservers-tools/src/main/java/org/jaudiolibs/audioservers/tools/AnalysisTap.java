@@ -0,0 +1,371 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+
+/**
+ * An AudioClient that analyses the outputs (and optionally inputs) of
+ * another client - spectrum and EBU R128 loudness - off the audio thread.
+ * Pass an instance of this class to any AudioServer in place of the client.
+ *
+ * After the wrapped client has processed each buffer, the audio thread
+ * copies the analysed channels into a lock-free ring buffer, which is polled
+ * by the workers of an AnalysisPool. One pool can be shared by many taps,
+ * spreading analysis of many streams across its workers. If the ring is full
+ * the buffer is dropped and counted as an overflow - the audio thread never
+ * blocks.
+ *
+ * Loudness is measured from every frame. The spectrum is computed with 50%
+ * overlapping FFTs, or from every nth hop with a decimation of n, to reduce
+ * the cost where fewer updates are needed. Results are read as an immutable
+ * Analysis snapshot from any thread.
+ *
+ * Configuration methods can only be called before the server first
+ * configures this client.
+ *
+ * @author Neil C Smith
+ */
+public final class AnalysisTap implements AudioClient {
+
+    private final static int MAX_CHUNK = 4096;
+
+    private final AudioClient client;
+    private final AnalysisPool pool;
+
+    private int fftSize = 2048;
+    private int decimation = 1;
+    private boolean analyseInputs;
+    private boolean analyseOutputs = true;
+    private long bufferNanos = TimeUnit.SECONDS.toNanos(1);
+
+    private boolean started;
+    private Analyser analyser;
+    private volatile Analysis analysis = Analysis.EMPTY;
+    private volatile long overflows;
+    private volatile long droppedFrames;
+
+    /**
+     * Create an AnalysisTap for the given client.
+     *
+     * @param client client to wrap
+     * @param pool pool to run analysis on
+     */
+    public AnalysisTap(AudioClient client, AnalysisPool pool) {
+        if (client == null || pool == null) {
+            throw new NullPointerException();
+        }
+        this.client = client;
+        this.pool = pool;
+    }
+
+    /**
+     * Set the FFT size, a power of 2. Default is 2048.
+     *
+     * @param size FFT size
+     * @return this
+     */
+    public AnalysisTap setFFTSize(int size) {
+        if (size < 16 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of 2");
+        }
+        checkNotStarted();
+        this.fftSize = size;
+        return this;
+    }
+
+    /**
+     * Compute the spectrum every nth hop of half the FFT size. Default is 1,
+     * every hop.
+     *
+     * @param decimation
+     * @return this
+     */
+    public AnalysisTap setDecimation(int decimation) {
+        if (decimation < 1) {
+            throw new IllegalArgumentException();
+        }
+        checkNotStarted();
+        this.decimation = decimation;
+        return this;
+    }
+
+    /**
+     * Whether to analyse the input channels. Default is false.
+     *
+     * @param analyse
+     * @return this
+     */
+    public AnalysisTap setAnalyseInputs(boolean analyse) {
+        checkNotStarted();
+        this.analyseInputs = analyse;
+        return this;
+    }
+
+    /**
+     * Whether to analyse the output channels. Default is true.
+     *
+     * @param analyse
+     * @return this
+     */
+    public AnalysisTap setAnalyseOutputs(boolean analyse) {
+        checkNotStarted();
+        this.analyseOutputs = analyse;
+        return this;
+    }
+
+    /**
+     * Set the minimum time the ring buffer can hold before overflowing.
+     * Default is 1 second.
+     *
+     * @param time
+     * @param unit
+     * @return this
+     */
+    public AnalysisTap setBufferTime(long time, TimeUnit unit) {
+        if (time <= 0) {
+            throw new IllegalArgumentException();
+        }
+        checkNotStarted();
+        this.bufferNanos = unit.toNanos(time);
+        return this;
+    }
+
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("Analysis already started");
+        }
+    }
+
+    /**
+     * The latest analysis results.
+     *
+     * @return analysis snapshot
+     */
+    public Analysis getAnalysis() {
+        return analysis;
+    }
+
+    /**
+     * Number of buffers dropped because the ring buffer was full.
+     *
+     * @return overflow count
+     */
+    public long getOverflows() {
+        return overflows;
+    }
+
+    /**
+     * Number of frames dropped because the ring buffer was full.
+     *
+     * @return dropped frames
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    @Override
+    public void configure(AudioConfiguration context) throws Exception {
+        started = true;
+        int channels = (analyseInputs ? context.getInputChannelCount() : 0)
+                + (analyseOutputs ? context.getOutputChannelCount() : 0);
+        Analyser a = analyser;
+        if (a == null || a.sampleRate != context.getSampleRate()
+                || a.channels != channels || a.maxBufferSize < context.getMaxBufferSize()) {
+            if (a != null) {
+                pool.remove(a);
+            }
+            a = channels > 0 ? new Analyser(context, channels) : null;
+            analyser = a;
+            analysis = Analysis.EMPTY;
+            if (a != null) {
+                pool.add(a);
+            }
+        }
+        client.configure(context);
+    }
+
+    @Override
+    public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+        boolean ok = client.process(time, inputs, outputs, nframes);
+        Analyser a = analyser;
+        if (a != null) {
+            if (!a.push(analyseInputs ? inputs : null, analyseOutputs ? outputs : null, nframes)) {
+                overflows++;
+                droppedFrames += nframes;
+            }
+        }
+        return ok;
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            client.shutdown();
+        } finally {
+            Analyser a = analyser;
+            if (a != null) {
+                pool.remove(a);
+            }
+        }
+    }
+
+    private final class Analyser extends AnalysisPool.Job {
+
+        private final float sampleRate;
+        private final int channels;
+        private final int maxBufferSize;
+        private final FrameRing ring;
+
+        // worker state
+        private final LoudnessMeter loudness;
+        private final FFT fft;
+        private final int hop;
+        private final float[] window;
+        private final float[][] history;
+        private final float[] re;
+        private final float[] im;
+        private final double[] power;
+        private final double scale;
+        private int historyPosition;
+        private int sinceSpectrum;
+        private long position;
+        private float[] spectrum = new float[0];
+
+        private Analyser(AudioConfiguration context, int channels) {
+            this.sampleRate = context.getSampleRate();
+            this.channels = channels;
+            this.maxBufferSize = context.getMaxBufferSize();
+            long bufferFrames = (long) (bufferNanos * (double) sampleRate / 1e9);
+            ring = new FrameRing(channels,
+                    Math.max(bufferFrames, 2L * Math.max(maxBufferSize, MAX_CHUNK)));
+            loudness = new LoudnessMeter(sampleRate, channels);
+            fft = new FFT(fftSize);
+            hop = fftSize / 2 * decimation;
+            window = new float[fftSize];
+            double sum = 0;
+            for (int i = 0; i < fftSize; i++) {
+                window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / fftSize));
+                sum += window[i];
+            }
+            // full scale sine reads 0dB
+            double amplitude = 2 / sum;
+            scale = amplitude * amplitude / channels;
+            history = new float[channels][fftSize];
+            re = new float[fftSize];
+            im = new float[fftSize];
+            power = new double[fftSize / 2 + 1];
+        }
+
+        /*
+         * Called from the audio thread. Returns false if the buffer was
+         * dropped.
+         */
+        private boolean push(List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+            return ring.write(inputs, outputs, nframes);
+        }
+
+        @Override
+        boolean run() {
+            long r = ring.getReadPosition();
+            long available = ring.getWritePosition() - r;
+            if (available == 0) {
+                return false;
+            }
+            boolean updated = false;
+            while (available > 0) {
+                int start = ring.index(r);
+                int frames = (int) Math.min(Math.min(available, MAX_CHUNK), ring.getSize() - start);
+                updated |= analyse(start * channels, frames);
+                r += frames;
+                available -= frames;
+                ring.release(r);
+            }
+            if (updated && analyser == this) {
+                analysis = new Analysis(sampleRate, fftSize, position, spectrum,
+                        loudness.getMomentary(), loudness.getShortTerm(), loudness.getIntegrated());
+            }
+            return true;
+        }
+
+        private boolean analyse(int offset, int frames) {
+            float[] data = ring.getData();
+            boolean updated = loudness.process(data, offset, frames);
+            int n = 0;
+            while (n < frames) {
+                int count = Math.min(frames - n, Math.min(hop - sinceSpectrum, fftSize - historyPosition));
+                for (int ch = 0; ch < channels; ch++) {
+                    float[] h = history[ch];
+                    for (int i = 0, x = offset + n * channels + ch; i < count; i++, x += channels) {
+                        h[historyPosition + i] = data[x];
+                    }
+                }
+                n += count;
+                historyPosition = (historyPosition + count) % fftSize;
+                sinceSpectrum += count;
+                if (sinceSpectrum == hop) {
+                    sinceSpectrum = 0;
+                    if (position + n >= fftSize) {
+                        computeSpectrum();
+                        updated = true;
+                    }
+                }
+            }
+            position += frames;
+            return updated;
+        }
+
+        private void computeSpectrum() {
+            int bins = power.length;
+            for (int i = 0; i < bins; i++) {
+                power[i] = 0;
+            }
+            for (int ch = 0; ch < channels; ch++) {
+                // oldest frame is at historyPosition
+                float[] h = history[ch];
+                int first = fftSize - historyPosition;
+                for (int i = 0; i < first; i++) {
+                    re[i] = h[historyPosition + i] * window[i];
+                }
+                for (int i = first; i < fftSize; i++) {
+                    re[i] = h[i - first] * window[i];
+                }
+                Arrays.fill(im, 0);
+                fft.transform(re, im);
+                for (int i = 0; i < bins; i++) {
+                    power[i] += re[i] * re[i] + im[i] * im[i];
+                }
+            }
+            // new array each time, as published in immutable snapshots
+            float[] levels = new float[bins];
+            for (int i = 0; i < bins; i++) {
+                double p = power[i] * scale;
+                if (i == 0 || i == bins - 1) {
+                    p *= 0.25;
+                }
+                levels[i] = (float) (10 * Math.log10(p));
+            }
+            spectrum = levels;
+        }
+
+    }
+
+}
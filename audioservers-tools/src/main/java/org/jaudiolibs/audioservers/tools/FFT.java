@@ -0,0 +1,86 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+/**
+ * Radix-2 FFT of a fixed size, with precomputed tables. Used by one worker
+ * at a time - not thread safe.
+ *
+ * @author Neil C Smith
+ */
+class FFT {
+
+    private final int size;
+    private final int[] reverse;
+    private final float[] cos;
+    private final float[] sin;
+
+    FFT(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of 2");
+        }
+        this.size = size;
+        int bits = Integer.numberOfTrailingZeros(size);
+        reverse = new int[size];
+        for (int i = 0; i < size; i++) {
+            reverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        cos = new float[size / 2];
+        sin = new float[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            double phase = -2 * Math.PI * i / size;
+            cos[i] = (float) Math.cos(phase);
+            sin[i] = (float) Math.sin(phase);
+        }
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /*
+     * In place forward transform.
+     */
+    void transform(float[] re, float[] im) {
+        for (int i = 0; i < size; i++) {
+            int j = reverse[i];
+            if (j > i) {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int half = 1, step = size / 2; half < size; half <<= 1, step >>= 1) {
+            for (int start = 0; start < size; start += half << 1) {
+                for (int k = 0, t = 0; k < half; k++, t += step) {
+                    int a = start + k;
+                    int b = a + half;
+                    float wr = cos[t];
+                    float wi = sin[t];
+                    float br = re[b] * wr - im[b] * wi;
+                    float bi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - br;
+                    im[b] = im[a] - bi;
+                    re[a] += br;
+                    im[a] += bi;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+
+/**
+ * An AudioClient that feeds the inputs of another client from a
+ * {@link MappedAudioSource} rather than the server. Pass an instance of this
+ * class to any AudioServer in place of the client.
+ *
+ * The wrapped client is configured with one input channel per channel of the
+ * file, whatever the number of server inputs. The file is not resampled - a
+ * warning is logged if its sample rate does not match the server. The source
+ * is not closed on shutdown.
+ *
+ * @author Neil C Smith
+ */
+public final class FileInputClient implements AudioClient {
+
+    private final static Logger LOG = Logger.getLogger(FileInputClient.class.getName());
+
+    private final AudioClient client;
+    private final MappedAudioSource source;
+    private List<FloatBuffer> inputs;
+
+    /**
+     * Create a FileInputClient.
+     *
+     * @param client client to wrap
+     * @param source source of input data
+     */
+    public FileInputClient(AudioClient client, MappedAudioSource source) {
+        if (client == null || source == null) {
+            throw new NullPointerException();
+        }
+        this.client = client;
+        this.source = source;
+    }
+
+    public MappedAudioSource getSource() {
+        return source;
+    }
+
+    @Override
+    public void configure(AudioConfiguration context) throws Exception {
+        if (context.getSampleRate() != source.getSampleRate()) {
+            LOG.log(Level.WARNING, "File sample rate {0} does not match server sample rate {1}",
+                    new Object[]{source.getSampleRate(), context.getSampleRate()});
+        }
+        int channels = source.getChannelCount();
+        int size = context.getMaxBufferSize();
+        List<FloatBuffer> list = new ArrayList<FloatBuffer>(channels);
+        for (int i = 0; i < channels; i++) {
+            list.add(FloatBuffer.allocate(size));
+        }
+        inputs = Collections.unmodifiableList(list);
+        List<Object> exts = new ArrayList<Object>();
+        for (Object ext : context.findAll(Object.class)) {
+            exts.add(ext);
+        }
+        client.configure(new AudioConfiguration(context.getSampleRate(), channels,
+                context.getOutputChannelCount(), size, context.isFixedBufferSize(), exts.toArray()));
+    }
+
+    @Override
+    public boolean process(long time, List<FloatBuffer> serverInputs, List<FloatBuffer> outputs, int nframes) {
+        List<FloatBuffer> ins = inputs;
+        for (int i = 0; i < ins.size(); i++) {
+            ins.get(i).clear();
+        }
+        source.read(ins, nframes);
+        return client.process(time, ins, outputs, nframes);
+    }
+
+    @Override
+    public void shutdown() {
+        client.shutdown();
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free, single producer / single consumer ring of interleaved frames,
+ * used by the taps to hand audio from the audio thread to a background
+ * thread.
+ *
+ * The audio thread calls write(), which never blocks or allocates. The
+ * consumer reads the frames between getReadPosition() and
+ * getWritePosition() from getData(), starting at index(position) *
+ * channels, and then calls release() to free the space.
+ *
+ * @author Neil C Smith
+ */
+final class FrameRing {
+
+    private final int channels;
+    private final float[] data;
+    private final int frameMask;
+    private final AtomicLong writePosition = new AtomicLong();
+    private final AtomicLong readPosition = new AtomicLong();
+
+    /**
+     * Create a ring of at least the given number of frames, rounded up to a
+     * power of 2.
+     *
+     * @param channels number of channels
+     * @param minFrames minimum size in frames
+     */
+    FrameRing(int channels, long minFrames) {
+        int size = Integer.highestOneBit((int) Math.min(1 << 30, Math.max(2, minFrames) - 1)) << 1;
+        if ((long) size * channels > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Buffer time too large");
+        }
+        this.channels = channels;
+        data = new float[size * channels];
+        frameMask = size - 1;
+    }
+
+    int getChannelCount() {
+        return channels;
+    }
+
+    /**
+     * Size of the ring in frames.
+     *
+     * @return size
+     */
+    int getSize() {
+        return frameMask + 1;
+    }
+
+    float[] getData() {
+        return data;
+    }
+
+    /**
+     * Frame index in the ring of the given position.
+     *
+     * @param position
+     * @return frame index
+     */
+    int index(long position) {
+        return (int) (position & frameMask);
+    }
+
+    long getReadPosition() {
+        return readPosition.get();
+    }
+
+    long getWritePosition() {
+        return writePosition.get();
+    }
+
+    /**
+     * Free the space up to the given position. Only call from the consumer.
+     *
+     * @param position new read position
+     */
+    void release(long position) {
+        readPosition.lazySet(position);
+    }
+
+    /**
+     * Copy frames 0 to nframes of the input channels, followed by the output
+     * channels, into the ring. Either list may be null to skip it. Buffer
+     * positions are ignored and not changed. Only call from the producer.
+     *
+     * @param inputs input buffers, or null
+     * @param outputs output buffers, or null
+     * @param nframes number of frames
+     * @return false if the ring is full and nothing was written
+     */
+    boolean write(List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+        long w = writePosition.get();
+        if (frameMask + 1 - (w - readPosition.get()) < nframes) {
+            return false;
+        }
+        int ch = 0;
+        if (inputs != null) {
+            ch = copy(inputs, ch, w, nframes);
+        }
+        if (outputs != null) {
+            ch = copy(outputs, ch, w, nframes);
+        }
+        writePosition.lazySet(w + nframes);
+        return true;
+    }
+
+    private int copy(List<FloatBuffer> buffers, int ch, long w, int nframes) {
+        int count = Math.min(buffers.size(), channels - ch);
+        for (int i = 0; i < count; i++, ch++) {
+            FloatBuffer buffer = buffers.get(i);
+            for (int n = 0; n < nframes; n++) {
+                data[(int) ((w + n) & frameMask) * channels + ch] = buffer.get(n);
+            }
+        }
+        return ch;
+    }
+
+}
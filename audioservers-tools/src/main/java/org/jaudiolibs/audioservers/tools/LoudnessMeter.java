@@ -0,0 +1,192 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+/**
+ * EBU R128 / ITU-R BS.1770 loudness - K-weighting, momentary (400ms),
+ * short-term (3s) and gated integrated loudness. All channels are weighted
+ * equally, as the channel layout is not known.
+ *
+ * Integrated loudness is gated from a histogram of 0.1 LU bins, so memory is
+ * bounded however long it runs, and the relative gate is applied to the
+ * resolution of a bin.
+ *
+ * Not thread safe.
+ *
+ * @author Neil C Smith
+ */
+class LoudnessMeter {
+
+    private final static int SHORT_TERM_BLOCKS = 30;
+    private final static int MOMENTARY_BLOCKS = 4;
+    private final static double ABSOLUTE_GATE = -70;
+    private final static double RELATIVE_GATE = -10;
+    private final static int BINS_PER_LU = 10;
+    private final static int HISTOGRAM_SIZE = 100 * BINS_PER_LU;
+
+    private final int channels;
+    private final int blockFrames;
+    // two biquads - high shelf, then high pass with numerator 1, -2, 1
+    private final double b0, b1, b2, a1, a2;
+    private final double d1, d2;
+    private final double[] state;
+    private final double[] blocks;
+    private final long[] histogramCount;
+    private final double[] histogramEnergy;
+
+    private double blockSum;
+    private int blockPosition;
+    private long blockCount;
+
+    LoudnessMeter(float sampleRate, int channels) {
+        this.channels = channels;
+        blockFrames = Math.max(1, Math.round(sampleRate / 10));
+        double f0 = 1681.974450955533;
+        double gain = 3.999843853973347;
+        double q = 0.7071752369554196;
+        double k = Math.tan(Math.PI * f0 / sampleRate);
+        double vh = Math.pow(10, gain / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        b0 = (vh + vb * k / q + k * k) / a0;
+        b1 = 2 * (k * k - vh) / a0;
+        b2 = (vh - vb * k / q + k * k) / a0;
+        a1 = 2 * (k * k - 1) / a0;
+        a2 = (1 - k / q + k * k) / a0;
+        f0 = 38.13547087602444;
+        q = 0.5003270373238773;
+        k = Math.tan(Math.PI * f0 / sampleRate);
+        a0 = 1 + k / q + k * k;
+        d1 = 2 * (k * k - 1) / a0;
+        d2 = (1 - k / q + k * k) / a0;
+        state = new double[channels * 6];
+        blocks = new double[SHORT_TERM_BLOCKS];
+        histogramCount = new long[HISTOGRAM_SIZE];
+        histogramEnergy = new double[HISTOGRAM_SIZE];
+    }
+
+    /*
+     * Process frames from an interleaved buffer. Returns true if a 100ms
+     * block completed, and so loudness values changed.
+     */
+    boolean process(float[] buffer, int offset, int frames) {
+        boolean updated = false;
+        int n = 0;
+        while (n < frames) {
+            int count = Math.min(frames - n, blockFrames - blockPosition);
+            for (int ch = 0; ch < channels; ch++) {
+                blockSum += filter(buffer, offset + n * channels + ch, ch, count);
+            }
+            n += count;
+            blockPosition += count;
+            if (blockPosition == blockFrames) {
+                endBlock();
+                updated = true;
+            }
+        }
+        return updated;
+    }
+
+    private double filter(float[] buffer, int index, int ch, int frames) {
+        int s = ch * 6;
+        double x1 = state[s], x2 = state[s + 1];
+        double y1 = state[s + 2], y2 = state[s + 3];
+        double z1 = state[s + 4], z2 = state[s + 5];
+        double sum = 0;
+        for (int n = 0, x = index; n < frames; n++, x += channels) {
+            double in = buffer[x];
+            double y = b0 * in + b1 * x1 + b2 * x2 - a1 * y1 - a2 * y2;
+            double z = y - 2 * y1 + y2 - d1 * z1 - d2 * z2;
+            x2 = x1;
+            x1 = in;
+            y2 = y1;
+            y1 = y;
+            z2 = z1;
+            z1 = z;
+            sum += z * z;
+        }
+        state[s] = x1;
+        state[s + 1] = x2;
+        state[s + 2] = y1;
+        state[s + 3] = y2;
+        state[s + 4] = z1;
+        state[s + 5] = z2;
+        return sum;
+    }
+
+    private void endBlock() {
+        blocks[(int) (blockCount % SHORT_TERM_BLOCKS)] = blockSum / blockFrames;
+        blockCount++;
+        blockSum = 0;
+        blockPosition = 0;
+        if (blockCount >= MOMENTARY_BLOCKS) {
+            double energy = energy(MOMENTARY_BLOCKS);
+            double loudness = loudness(energy);
+            if (loudness >= ABSOLUTE_GATE) {
+                int bin = (int) ((loudness - ABSOLUTE_GATE) * BINS_PER_LU);
+                bin = Math.min(bin, HISTOGRAM_SIZE - 1);
+                histogramCount[bin]++;
+                histogramEnergy[bin] += energy;
+            }
+        }
+    }
+
+    private double energy(int count) {
+        if (blockCount < count) {
+            return Double.NaN;
+        }
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += blocks[(int) ((blockCount - 1 - i) % SHORT_TERM_BLOCKS)];
+        }
+        return sum / count;
+    }
+
+    private static double loudness(double energy) {
+        return -0.691 + 10 * Math.log10(energy);
+    }
+
+    double getMomentary() {
+        double e = energy(MOMENTARY_BLOCKS);
+        return Double.isNaN(e) ? Double.NEGATIVE_INFINITY : loudness(e);
+    }
+
+    double getShortTerm() {
+        double e = energy(SHORT_TERM_BLOCKS);
+        return Double.isNaN(e) ? Double.NEGATIVE_INFINITY : loudness(e);
+    }
+
+    double getIntegrated() {
+        long count = 0;
+        double sum = 0;
+        for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+            count += histogramCount[i];
+            sum += histogramEnergy[i];
+        }
+        if (count == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        double gate = loudness(sum / count) + RELATIVE_GATE;
+        int first = (int) Math.ceil((gate - ABSOLUTE_GATE) * BINS_PER_LU);
+        count = 0;
+        sum = 0;
+        for (int i = Math.max(0, first); i < HISTOGRAM_SIZE; i++) {
+            count += histogramCount[i];
+            sum += histogramEnergy[i];
+        }
+        return count == 0 ? Double.NEGATIVE_INFINITY : loudness(sum / count);
+    }
+
+}
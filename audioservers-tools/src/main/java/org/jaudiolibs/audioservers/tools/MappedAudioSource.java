@@ -0,0 +1,341 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A WAV or RF64 file mapped into memory, that can be decoded directly into
+ * channel buffers.
+ *
+ * The audio data is mapped using FileChannel.map() rather than read onto the
+ * heap, so files of any size can be used. Reading, looping and seeking do not
+ * allocate, and read() is safe to call from the audio thread. seek() and
+ * setLooping() may be called from any thread and take effect at the next
+ * read().
+ *
+ * Supports 8, 16, 24 and 32 bit PCM and 32 and 64 bit float data, including
+ * WAVE_FORMAT_EXTENSIBLE headers. If the data chunk size is missing or
+ * larger than the file, eg. in a file that was not closed correctly, all
+ * remaining data in the file is used.
+ *
+ * @author Neil C Smith
+ */
+public final class MappedAudioSource implements Closeable {
+
+    private final static int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+    private final static long SEGMENT_SIZE = 1L << 30;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final SampleFormat format;
+    private final float sampleRate;
+    private final int channels;
+    private final int frameBytes;
+    private final long frameCount;
+    private final long segmentFrames;
+    private final MappedByteBuffer[] segments;
+    private final AtomicLong seekRequest = new AtomicLong(-1);
+
+    private volatile boolean looping;
+    private volatile long position;
+
+    /**
+     * Open and map the given file.
+     *
+     * @param path WAV or RF64 file
+     * @throws IOException if the file cannot be read, or is not a supported
+     * format
+     */
+    public MappedAudioSource(Path path) throws IOException {
+        this(path, SEGMENT_SIZE);
+    }
+
+    /*
+     * Open with the given maximum size of each mapped segment. Used for
+     * testing reads across segment boundaries without a large file.
+     */
+    MappedAudioSource(Path path, long segmentSize) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            Header header = new Header(channel);
+            format = header.format;
+            sampleRate = header.sampleRate;
+            channels = header.channels;
+            frameBytes = header.blockAlign;
+            frameCount = header.dataLength / frameBytes;
+            segmentFrames = Math.max(1, segmentSize / frameBytes);
+            int count = (int) ((frameCount + segmentFrames - 1) / segmentFrames);
+            segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = i * segmentFrames;
+                long frames = Math.min(segmentFrames, frameCount - start);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        header.dataOffset + start * frameBytes, frames * frameBytes);
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public SampleFormat getSampleFormat() {
+        return format;
+    }
+
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelCount() {
+        return channels;
+    }
+
+    /**
+     * Length of the audio data in frames.
+     *
+     * @return frame count
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Whether to loop back to the start when the end of the data is reached.
+     * Default is false.
+     *
+     * @param looping
+     */
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+    }
+
+    public boolean isLooping() {
+        return looping;
+    }
+
+    /**
+     * Request the next read to start at the given frame. A position at or
+     * beyond the end of the data will loop to the start, or read silence if
+     * not looping.
+     *
+     * @param frame frame position
+     */
+    public void seek(long frame) {
+        if (frame < 0) {
+            throw new IllegalArgumentException();
+        }
+        seekRequest.set(frame);
+    }
+
+    /**
+     * The frame position of the next read, not including any pending seek.
+     *
+     * @return position
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Decode the next frames into the given buffers, one channel per buffer
+     * starting at each buffer's position. Buffers without a corresponding
+     * channel in the file, and any frames past the end of the data if not
+     * looping, are filled with silence. Buffer positions are not changed.
+     *
+     * @param buffers channel buffers
+     * @param nframes number of frames
+     * @return number of frames read from the file
+     */
+    public int read(List<FloatBuffer> buffers, int nframes) {
+        long pos = seekRequest.getAndSet(-1);
+        if (pos < 0) {
+            pos = position;
+        }
+        if (looping && frameCount > 0 && pos >= frameCount) {
+            pos %= frameCount;
+        }
+        int count = buffers.size();
+        int decoded = Math.min(count, channels);
+        int done = 0;
+        while (done < nframes) {
+            if (pos >= frameCount) {
+                if (looping && frameCount > 0) {
+                    pos = 0;
+                } else {
+                    break;
+                }
+            }
+            int segment = (int) (pos / segmentFrames);
+            int segmentPos = (int) (pos - segment * segmentFrames);
+            int frames = (int) Math.min(nframes - done,
+                    Math.min(frameCount - pos, segmentFrames - segmentPos));
+            ByteBuffer src = segments[segment];
+            int index = segmentPos * frameBytes;
+            int sampleBytes = format.getBytesPerSample();
+            for (int ch = 0; ch < decoded; ch++) {
+                FloatBuffer dst = buffers.get(ch);
+                format.decode(src, index + ch * sampleBytes, frameBytes, dst, dst.position() + done, frames);
+            }
+            pos += frames;
+            done += frames;
+        }
+        if (looping && frameCount > 0 && pos >= frameCount) {
+            pos = 0;
+        }
+        position = pos;
+        for (int ch = 0; ch < count; ch++) {
+            FloatBuffer dst = buffers.get(ch);
+            int start = ch < decoded ? done : 0;
+            int offset = dst.position();
+            for (int i = start; i < nframes; i++) {
+                dst.put(offset + i, 0);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Close the file. The mapping is released when this object is garbage
+     * collected - do not call read() after close().
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static class Header {
+
+        private SampleFormat format;
+        private float sampleRate;
+        private int channels;
+        private int blockAlign;
+        private long dataOffset = -1;
+        private long dataLength;
+
+        private Header(FileChannel channel) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+            long fileLength = channel.size();
+            readFully(channel, buf, 0, 12);
+            String riff = readID(buf);
+            buf.getInt();
+            if (!("RIFF".equals(riff) || "RF64".equals(riff)) || !"WAVE".equals(readID(buf))) {
+                throw new IOException("Not a WAV file");
+            }
+            long ds64DataLength = -1;
+            long pos = 12;
+            while (pos + 8 <= fileLength) {
+                readFully(channel, buf, pos, 8);
+                String id = readID(buf);
+                long size = buf.getInt() & 0xFFFFFFFFL;
+                long body = pos + 8;
+                if ("ds64".equals(id)) {
+                    readFully(channel, buf, body, 16);
+                    buf.getLong();
+                    ds64DataLength = buf.getLong();
+                } else if ("fmt ".equals(id)) {
+                    readFully(channel, buf, body, (int) Math.min(size, 40));
+                    readFormat(buf, (int) size);
+                } else if ("data".equals(id)) {
+                    dataOffset = body;
+                    if (size == 0xFFFFFFFFL && ds64DataLength >= 0) {
+                        size = ds64DataLength;
+                    }
+                    if (size == 0 || body + size > fileLength) {
+                        size = fileLength - body;
+                    }
+                    dataLength = size;
+                    break;
+                }
+                pos = body + size + (size & 1);
+            }
+            if (format == null) {
+                throw new IOException("No supported fmt chunk found");
+            }
+            if (dataOffset < 0) {
+                throw new IOException("No data chunk found");
+            }
+        }
+
+        private void readFormat(ByteBuffer buf, int size) throws IOException {
+            if (size < 16) {
+                throw new IOException("Invalid fmt chunk");
+            }
+            int tag = buf.getShort() & 0xFFFF;
+            channels = buf.getShort() & 0xFFFF;
+            sampleRate = buf.getInt() & 0xFFFFFFFFL;
+            buf.getInt();
+            blockAlign = buf.getShort() & 0xFFFF;
+            buf.getShort();
+            if (tag == WAVE_FORMAT_EXTENSIBLE) {
+                if (size < 40) {
+                    throw new IOException("Invalid extensible fmt chunk");
+                }
+                // cbSize, valid bits, channel mask, then sub format GUID
+                buf.position(24);
+                tag = buf.getShort() & 0xFFFF;
+            }
+            if (channels == 0 || blockAlign == 0 || blockAlign % channels != 0) {
+                throw new IOException("Invalid fmt chunk");
+            }
+            format = SampleFormat.find(tag, blockAlign / channels);
+            if (format == null) {
+                throw new IOException("Unsupported sample format");
+            }
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buf, long position, int length) throws IOException {
+            buf.clear();
+            buf.limit(length);
+            while (buf.hasRemaining()) {
+                int read = channel.read(buf, position + buf.position());
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+            }
+            buf.flip();
+        }
+
+        private static String readID(ByteBuffer buf) {
+            byte[] id = new byte[4];
+            buf.get(id);
+            return new String(id, StandardCharsets.US_ASCII);
+        }
+
+    }
+
+}
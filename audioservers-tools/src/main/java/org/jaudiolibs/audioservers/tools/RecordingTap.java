@@ -0,0 +1,405 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+
+/**
+ * An AudioClient that records the inputs and outputs of another client to
+ * WAV files. Pass an instance of this class to any AudioServer in place of the
+ * client.
+ *
+ * After the wrapped client has processed each buffer, the audio thread copies
+ * the inputs and outputs into a lock-free ring buffer. A background thread
+ * encodes the ring contents and writes them to disk using large, block
+ * aligned writes. If the ring is full the buffer is dropped and counted as an
+ * overflow - the audio thread never blocks.
+ *
+ * Input channels are recorded before output channels in each file. Files are
+ * named with the given name and an index, eg. name-0001.wav, and are
+ * written as RF64 if they exceed the size limit of WAV. A new file is started
+ * after the rotation time, or if the client is reconfigured with a different
+ * sample rate or channel count.
+ *
+ * Configuration methods can only be called before the server first
+ * configures this client.
+ *
+ * @author Neil C Smith
+ */
+public final class RecordingTap implements AudioClient {
+
+    private final static Logger LOG = Logger.getLogger(RecordingTap.class.getName());
+
+    private final static int BLOCK_SIZE = 4096;
+    private final static int MAX_WRITE_SIZE = 1 << 20;
+    private final static long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final AudioClient client;
+    private final Path directory;
+    private final String name;
+
+    private SampleFormat format = SampleFormat.FLOAT32;
+    private boolean recordInputs = true;
+    private boolean recordOutputs = true;
+    private long rotationNanos;
+    private long bufferNanos = TimeUnit.SECONDS.toNanos(2);
+
+    private boolean started;
+    private int fileIndex;
+    private Writer writer;
+    private volatile long overflows;
+    private volatile long droppedFrames;
+    private volatile Exception exception;
+
+    /**
+     * Create a RecordingTap for the given client.
+     *
+     * @param client client to wrap
+     * @param directory directory to record into
+     * @param name base name of recorded files
+     */
+    public RecordingTap(AudioClient client, Path directory, String name) {
+        if (client == null || directory == null || name == null) {
+            throw new NullPointerException();
+        }
+        this.client = client;
+        this.directory = directory;
+        this.name = name;
+    }
+
+    /**
+     * Set the sample format of recorded files. Default is FLOAT32.
+     *
+     * @param format sample format
+     * @return this
+     */
+    public RecordingTap setSampleFormat(SampleFormat format) {
+        if (format == null) {
+            throw new NullPointerException();
+        }
+        checkNotStarted();
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * Whether to record the input channels. Default is true.
+     *
+     * @param record
+     * @return this
+     */
+    public RecordingTap setRecordInputs(boolean record) {
+        checkNotStarted();
+        this.recordInputs = record;
+        return this;
+    }
+
+    /**
+     * Whether to record the output channels. Default is true.
+     *
+     * @param record
+     * @return this
+     */
+    public RecordingTap setRecordOutputs(boolean record) {
+        checkNotStarted();
+        this.recordOutputs = record;
+        return this;
+    }
+
+    /**
+     * Start a new file after the given time. The time is rounded up to a
+     * whole number of writes. Default is 0, never rotate.
+     *
+     * @param time rotation time, or 0 to disable
+     * @param unit
+     * @return this
+     */
+    public RecordingTap setRotation(long time, TimeUnit unit) {
+        if (time < 0) {
+            throw new IllegalArgumentException();
+        }
+        checkNotStarted();
+        this.rotationNanos = unit.toNanos(time);
+        return this;
+    }
+
+    /**
+     * Set the minimum time the ring buffer can hold before overflowing.
+     * Default is 2 seconds.
+     *
+     * @param time
+     * @param unit
+     * @return this
+     */
+    public RecordingTap setBufferTime(long time, TimeUnit unit) {
+        if (time <= 0) {
+            throw new IllegalArgumentException();
+        }
+        checkNotStarted();
+        this.bufferNanos = unit.toNanos(time);
+        return this;
+    }
+
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("Recording already started");
+        }
+    }
+
+    /**
+     * Number of buffers dropped because the ring buffer was full or the writer
+     * had failed.
+     *
+     * @return overflow count
+     */
+    public long getOverflows() {
+        return overflows;
+    }
+
+    /**
+     * Number of frames dropped because the ring buffer was full or the writer
+     * had failed.
+     *
+     * @return dropped frames
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Number of frames written to disk across all files.
+     *
+     * @return recorded frames
+     */
+    public long getRecordedFrames() {
+        Writer w = writer;
+        return w == null ? 0 : w.totalFrames + w.recorded;
+    }
+
+    /**
+     * The exception that stopped recording, if any.
+     *
+     * @return exception or null
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    @Override
+    public void configure(AudioConfiguration context) throws Exception {
+        started = true;
+        int channels = (recordInputs ? context.getInputChannelCount() : 0)
+                + (recordOutputs ? context.getOutputChannelCount() : 0);
+        Writer w = writer;
+        if (w == null || w.sampleRate != context.getSampleRate()
+                || w.channels != channels || w.maxBufferSize < context.getMaxBufferSize()) {
+            long total = 0;
+            if (w != null) {
+                w.stop();
+                total = w.totalFrames + w.recorded;
+            }
+            w = channels > 0 ? new Writer(context, channels, total) : null;
+            writer = w;
+            if (w != null) {
+                w.start();
+            }
+        }
+        client.configure(context);
+    }
+
+    @Override
+    public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+        boolean ok = client.process(time, inputs, outputs, nframes);
+        Writer w = writer;
+        if (w != null) {
+            if (!w.push(recordInputs ? inputs : null, recordOutputs ? outputs : null, nframes)) {
+                overflows++;
+                droppedFrames += nframes;
+            }
+        }
+        return ok;
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            client.shutdown();
+        } finally {
+            Writer w = writer;
+            if (w != null) {
+                w.stop();
+            }
+        }
+    }
+
+    private Path nextFile() {
+        fileIndex++;
+        return directory.resolve(String.format("%s-%04d.wav", name, fileIndex));
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private final class Writer implements Runnable {
+
+        private final float sampleRate;
+        private final int channels;
+        private final int maxBufferSize;
+        private final long totalFrames;
+        private final int frameBytes;
+        private final int chunkFrames;
+        private final long rotationFrames;
+        private final FrameRing ring;
+        private final Thread thread;
+        private volatile boolean closing;
+        private volatile boolean failed;
+        private volatile long recorded;
+
+        private Writer(AudioConfiguration context, int channels, long totalFrames) {
+            this.sampleRate = context.getSampleRate();
+            this.channels = channels;
+            this.maxBufferSize = context.getMaxBufferSize();
+            this.totalFrames = totalFrames;
+            frameBytes = channels * format.getBytesPerSample();
+            int alignFrames = BLOCK_SIZE / gcd(BLOCK_SIZE, frameBytes);
+            long bufferFrames = (long) (bufferNanos * (double) sampleRate / 1e9);
+            int chunk = (int) Math.min(MAX_WRITE_SIZE / frameBytes, bufferFrames / 4);
+            chunkFrames = Math.max(alignFrames, chunk - (chunk % alignFrames));
+            ring = new FrameRing(channels,
+                    Math.max(bufferFrames, Math.max(4L * chunkFrames, 2L * maxBufferSize)));
+            long rotation = (long) (rotationNanos * (double) sampleRate / 1e9);
+            rotationFrames = rotation > 0 ? ((rotation + chunkFrames - 1) / chunkFrames) * chunkFrames : 0;
+            thread = new Thread(this, "RecordingTap");
+        }
+
+        private void start() {
+            thread.start();
+        }
+
+        /*
+         * Called from the audio thread. Returns false if the buffer was
+         * dropped.
+         */
+        private boolean push(List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+            if (failed) {
+                return false;
+            }
+            return ring.write(inputs, outputs, nframes);
+        }
+
+        /*
+         * Stop the writer after all data in the ring has been written.
+         */
+        private void stop() {
+            closing = true;
+            LockSupport.unpark(thread);
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer bytes = ByteBuffer.allocateDirect(chunkFrames * frameBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            WavWriter file = null;
+            long fileFrames = 0;
+            try {
+                while (true) {
+                    boolean last = closing;
+                    long r = ring.getReadPosition();
+                    long available = ring.getWritePosition() - r;
+                    if (available < chunkFrames && !(last && available > 0)) {
+                        if (last) {
+                            break;
+                        }
+                        LockSupport.parkNanos(POLL_INTERVAL);
+                        continue;
+                    }
+                    int frames = (int) Math.min(available, chunkFrames);
+                    if (file == null || (rotationFrames > 0 && fileFrames >= rotationFrames)) {
+                        if (file != null) {
+                            file.close();
+                            file = null;
+                        }
+                        file = new WavWriter(nextFile(), sampleRate, channels, format);
+                        fileFrames = 0;
+                    }
+                    bytes.clear();
+                    float[] data = ring.getData();
+                    int start = ring.index(r);
+                    int first = Math.min(frames, ring.getSize() - start);
+                    format.encode(data, start * channels, first * channels, bytes);
+                    if (first < frames) {
+                        format.encode(data, 0, (frames - first) * channels, bytes);
+                    }
+                    ring.release(r + frames);
+                    bytes.flip();
+                    file.write(bytes);
+                    fileFrames += frames;
+                    recorded += frames;
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            } catch (RuntimeException ex) {
+                fail(ex);
+            } finally {
+                if (file != null) {
+                    try {
+                        file.close();
+                    } catch (IOException ex) {
+                        fail(ex);
+                    }
+                }
+            }
+        }
+
+        private void fail(Exception ex) {
+            LOG.log(Level.WARNING, "Recording failed", ex);
+            failed = true;
+            if (exception == null) {
+                exception = ex;
+            }
+        }
+
+    }
+
+}
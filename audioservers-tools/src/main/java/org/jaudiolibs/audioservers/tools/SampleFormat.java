@@ -0,0 +1,230 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Sample formats supported for reading and writing WAV files. All formats are
+ * little endian, as required by WAV. Integer formats of 16 bits and above are
+ * signed, 8 bit is unsigned.
+ *
+ * @author Neil C Smith
+ */
+public enum SampleFormat {
+
+    PCM8(1, WavWriter.WAVE_FORMAT_PCM) {
+
+        @Override
+        void encode(float[] src, int offset, int length, ByteBuffer dst) {
+            for (int i = 0; i < length; i++) {
+                dst.put((byte) (quantize(src[offset + i], 0x7F) + 0x80));
+            }
+        }
+
+        @Override
+        void decode(ByteBuffer src, int index, int stride, FloatBuffer dst, int offset, int length) {
+            for (int i = 0; i < length; i++, index += stride) {
+                dst.put(offset + i, ((src.get(index) & 0xFF) - 0x80) * (1f / 0x7F));
+            }
+        }
+
+    },
+    PCM16(2, WavWriter.WAVE_FORMAT_PCM) {
+
+        @Override
+        void encode(float[] src, int offset, int length, ByteBuffer dst) {
+            for (int i = 0; i < length; i++) {
+                int v = quantize(src[offset + i], 0x7FFF);
+                dst.put((byte) v);
+                dst.put((byte) (v >>> 8));
+            }
+        }
+
+        @Override
+        void decode(ByteBuffer src, int index, int stride, FloatBuffer dst, int offset, int length) {
+            for (int i = 0; i < length; i++, index += stride) {
+                dst.put(offset + i, src.getShort(index) * (1f / 0x7FFF));
+            }
+        }
+
+    },
+    PCM24(3, WavWriter.WAVE_FORMAT_PCM) {
+
+        @Override
+        void encode(float[] src, int offset, int length, ByteBuffer dst) {
+            for (int i = 0; i < length; i++) {
+                int v = quantize(src[offset + i], 0x7FFFFF);
+                dst.put((byte) v);
+                dst.put((byte) (v >>> 8));
+                dst.put((byte) (v >>> 16));
+            }
+        }
+
+        @Override
+        void decode(ByteBuffer src, int index, int stride, FloatBuffer dst, int offset, int length) {
+            for (int i = 0; i < length; i++, index += stride) {
+                int v = (src.get(index) & 0xFF)
+                        | ((src.get(index + 1) & 0xFF) << 8)
+                        | (src.get(index + 2) << 16);
+                dst.put(offset + i, v * (1f / 0x7FFFFF));
+            }
+        }
+
+    },
+    PCM32(4, WavWriter.WAVE_FORMAT_PCM) {
+
+        @Override
+        void encode(float[] src, int offset, int length, ByteBuffer dst) {
+            for (int i = 0; i < length; i++) {
+                float f = src[offset + i];
+                int v;
+                if (f >= 1) {
+                    v = Integer.MAX_VALUE;
+                } else if (f <= -1) {
+                    v = -Integer.MAX_VALUE;
+                } else {
+                    v = (int) (f * (double) Integer.MAX_VALUE);
+                }
+                dst.put((byte) v);
+                dst.put((byte) (v >>> 8));
+                dst.put((byte) (v >>> 16));
+                dst.put((byte) (v >>> 24));
+            }
+        }
+
+        @Override
+        void decode(ByteBuffer src, int index, int stride, FloatBuffer dst, int offset, int length) {
+            for (int i = 0; i < length; i++, index += stride) {
+                dst.put(offset + i, (float) (src.getInt(index) * (1.0 / Integer.MAX_VALUE)));
+            }
+        }
+
+    },
+    FLOAT32(4, WavWriter.WAVE_FORMAT_IEEE_FLOAT) {
+
+        @Override
+        void encode(float[] src, int offset, int length, ByteBuffer dst) {
+            for (int i = 0; i < length; i++) {
+                int v = Float.floatToRawIntBits(src[offset + i]);
+                dst.put((byte) v);
+                dst.put((byte) (v >>> 8));
+                dst.put((byte) (v >>> 16));
+                dst.put((byte) (v >>> 24));
+            }
+        }
+
+        @Override
+        void decode(ByteBuffer src, int index, int stride, FloatBuffer dst, int offset, int length) {
+            for (int i = 0; i < length; i++, index += stride) {
+                dst.put(offset + i, src.getFloat(index));
+            }
+        }
+
+    },
+    FLOAT64(8, WavWriter.WAVE_FORMAT_IEEE_FLOAT) {
+
+        @Override
+        void encode(float[] src, int offset, int length, ByteBuffer dst) {
+            for (int i = 0; i < length; i++) {
+                long v = Double.doubleToRawLongBits(src[offset + i]);
+                for (int b = 0; b < 64; b += 8) {
+                    dst.put((byte) (v >>> b));
+                }
+            }
+        }
+
+        @Override
+        void decode(ByteBuffer src, int index, int stride, FloatBuffer dst, int offset, int length) {
+            for (int i = 0; i < length; i++, index += stride) {
+                dst.put(offset + i, (float) src.getDouble(index));
+            }
+        }
+
+    };
+
+    private final int bytes;
+    private final int formatTag;
+
+    private SampleFormat(int bytes, int formatTag) {
+        this.bytes = bytes;
+        this.formatTag = formatTag;
+    }
+
+    /**
+     * Size of a single sample in bytes.
+     *
+     * @return bytes per sample
+     */
+    public int getBytesPerSample() {
+        return bytes;
+    }
+
+    /**
+     * Size of a single sample in bits.
+     *
+     * @return bits per sample
+     */
+    public int getBitsPerSample() {
+        return bytes * 8;
+    }
+
+    /**
+     * Whether this is an IEEE floating point format.
+     *
+     * @return floating point
+     */
+    public boolean isFloatingPoint() {
+        return formatTag == WavWriter.WAVE_FORMAT_IEEE_FLOAT;
+    }
+
+    int getFormatTag() {
+        return formatTag;
+    }
+
+    /*
+     * Encode samples at the buffer position. The buffer must have room for
+     * length * getBytesPerSample() bytes.
+     */
+    abstract void encode(float[] src, int offset, int length, ByteBuffer dst);
+
+    /*
+     * Decode length samples, starting at the absolute byte index and stepping
+     * by stride bytes, into dst at the absolute offset. The source buffer must
+     * be little endian.
+     */
+    abstract void decode(ByteBuffer src, int index, int stride, FloatBuffer dst, int offset, int length);
+
+    private static int quantize(float sample, int max) {
+        if (sample >= 1) {
+            return max;
+        } else if (sample <= -1) {
+            return -max;
+        } else {
+            return Math.round(sample * max);
+        }
+    }
+
+    static SampleFormat find(int formatTag, int bytesPerSample) {
+        for (SampleFormat format : values()) {
+            if (format.formatTag == formatTag && format.bytes == bytesPerSample) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,486 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+
+/**
+ * An AudioClient that records a session of another client to a trace file,
+ * so that it can be replayed with SessionReplayer. Pass an instance of this
+ * class to any AudioServer in place of the client.
+ *
+ * The trace contains each configuration, and the time, buffer size, input
+ * data, process time and result of each call to process(). Output data is
+ * not recorded - it is produced again by the client on replay.
+ *
+ * The trace is written by the audio thread directly into a memory-mapped,
+ * append-only file. A background thread maps and pre-faults the next
+ * segment of the file ahead of the audio thread, so recording does not block
+ * on file operations. If the next segment is not ready the cycle is not
+ * recorded and counted as an overflow, and the trace marks the gap.
+ *
+ * Control events posted to the recorder from any thread are recorded and
+ * delivered to the client on the audio thread before the next call to
+ * process(), if the client implements {@link EventHandler}. SessionReplayer
+ * delivers them before the same cycle, so a client that applies its control
+ * changes this way replays deterministically.
+ *
+ * Recording ends when the client is shut down. Configuration methods can
+ * only be called before the server first configures this client.
+ *
+ * @author Neil C Smith
+ */
+public final class SessionRecorder implements AudioClient {
+
+    private final static Logger LOG = Logger.getLogger(SessionRecorder.class.getName());
+
+    private final static int MIN_SEGMENT_SIZE = 1 << 25;
+    private final static int MAX_SEGMENT_SIZE = 1 << 30;
+    private final static int PAGE_SIZE = 4096;
+    private final static long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * Receives control events on the audio thread, before the cycle they
+     * apply to. Implemented by clients to be recorded and replayed.
+     */
+    public static interface EventHandler {
+
+        public void controlEvent(int type, long value);
+
+    }
+
+    private final AudioClient client;
+    private final Path file;
+    private final EventHandler handler;
+    private final ConcurrentLinkedQueue<Event> events;
+
+    private int segmentSize;
+    private boolean started;
+    private boolean finished;
+    private Trace trace;
+    private volatile long recordedCycles;
+    private volatile long overflows;
+    private volatile Exception exception;
+
+    /**
+     * Create a SessionRecorder for the given client.
+     *
+     * @param client client to wrap
+     * @param file trace file, replaced if it exists
+     */
+    public SessionRecorder(AudioClient client, Path file) {
+        if (client == null || file == null) {
+            throw new NullPointerException();
+        }
+        this.client = client;
+        this.file = file;
+        this.handler = client instanceof EventHandler ? (EventHandler) client : null;
+        this.events = new ConcurrentLinkedQueue<Event>();
+    }
+
+    /**
+     * Set the size of each mapped segment of the trace file. The size is
+     * rounded up to a power of 2, and increased if necessary to hold a few
+     * cycles at the maximum buffer size. Default is 32MB.
+     *
+     * @param bytes segment size
+     * @return this
+     */
+    public SessionRecorder setSegmentSize(int bytes) {
+        if (bytes <= 0 || bytes > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException();
+        }
+        checkNotStarted();
+        this.segmentSize = bytes;
+        return this;
+    }
+
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("Recording already started");
+        }
+    }
+
+    /**
+     * Post a control event to be recorded and delivered to the client before
+     * the next cycle. May be called from any thread. The meaning of type and
+     * value is defined by the client.
+     *
+     * @param type event type
+     * @param value event value
+     */
+    public void post(int type, long value) {
+        events.add(new Event(type, value));
+    }
+
+    /**
+     * Number of cycles written to the trace.
+     *
+     * @return recorded cycles
+     */
+    public long getRecordedCycles() {
+        return recordedCycles;
+    }
+
+    /**
+     * Number of cycles not written to the trace because the next segment was
+     * not ready or recording had failed.
+     *
+     * @return overflow count
+     */
+    public long getOverflows() {
+        return overflows;
+    }
+
+    /**
+     * The exception that stopped recording, if any.
+     *
+     * @return exception or null
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    @Override
+    public void configure(AudioConfiguration context) throws Exception {
+        started = true;
+        if (!finished) {
+            int record = SessionTrace.GAP_SIZE + SessionTrace.processSize(
+                    context.getInputChannelCount(), context.getMaxBufferSize());
+            Trace t = trace;
+            if (t == null) {
+                t = new Trace(segmentSizeFor(record));
+                trace = t;
+                t.start();
+            } else if (record > t.segmentSize) {
+                throw new IllegalArgumentException("Buffer size too large for trace segment");
+            }
+            t.configure(context);
+        }
+        client.configure(context);
+    }
+
+    @Override
+    public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+        Trace t = trace;
+        if (t == null) {
+            return client.process(time, inputs, outputs, nframes);
+        }
+        Event event;
+        while ((event = events.poll()) != null) {
+            t.event(event.type, event.value);
+            if (handler != null) {
+                handler.controlEvent(event.type, event.value);
+            }
+        }
+        boolean recording = t.beginProcess(time, inputs, nframes);
+        long start = System.nanoTime();
+        boolean ok = client.process(time, inputs, outputs, nframes);
+        long nanos = System.nanoTime() - start;
+        if (recording) {
+            t.endProcess(nanos, ok);
+            recordedCycles++;
+        } else {
+            overflows++;
+        }
+        return ok;
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            client.shutdown();
+        } finally {
+            Trace t = trace;
+            if (t != null) {
+                trace = null;
+                finished = true;
+                t.close();
+            }
+        }
+    }
+
+    private int segmentSizeFor(int record) {
+        int size = Math.max(segmentSize > 0 ? segmentSize : MIN_SEGMENT_SIZE,
+                (int) Math.min(MAX_SEGMENT_SIZE, 4L * record));
+        size = Math.max(PAGE_SIZE, size);
+        if (record > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Buffer size too large for trace segment");
+        }
+        return Integer.bitCount(size) == 1 ? size
+                : (int) Math.min(MAX_SEGMENT_SIZE, Integer.highestOneBit(size) << 1);
+    }
+
+    private final static class Event {
+
+        private final int type;
+        private final long value;
+
+        private Event(int type, long value) {
+            this.type = type;
+            this.value = value;
+        }
+
+    }
+
+    private final class Trace implements Runnable {
+
+        private final int segmentSize;
+        private final FileChannel channel;
+        private final Thread thread;
+        private volatile MappedByteBuffer next;
+        private volatile boolean closing;
+        private volatile boolean failed;
+
+        // mapping thread
+        private long nextIndex;
+
+        // audio thread
+        private MappedByteBuffer segment;
+        private long segmentIndex;
+        private int position;
+        private int record;
+        private int inputChannels;
+        private int gap;
+
+        private Trace(int segmentSize) throws IOException {
+            this.segmentSize = segmentSize;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                segment = map(0);
+                segment.putInt(0, SessionTrace.MAGIC);
+                segment.putInt(4, SessionTrace.VERSION);
+                segment.putInt(8, segmentSize);
+                position = SessionTrace.HEADER_SIZE;
+                next = map(1);
+                nextIndex = 2;
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            } catch (RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+            thread = new Thread(this, "SessionRecorder");
+        }
+
+        private void start() {
+            thread.start();
+        }
+
+        /*
+         * Map a segment and touch each page, so the audio thread does not
+         * fault on first write.
+         */
+        private MappedByteBuffer map(long index) throws IOException {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+                    index * segmentSize, segmentSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < segmentSize; i += PAGE_SIZE) {
+                buffer.put(i, SessionTrace.END);
+            }
+            return buffer;
+        }
+
+        /*
+         * Make space for a record of the given size, moving to the next
+         * segment if required. Returns false if there is no space.
+         */
+        private boolean reserve(int size) {
+            if (failed) {
+                return false;
+            }
+            if (position + size > segmentSize) {
+                MappedByteBuffer b = next;
+                if (b == null || size > segmentSize) {
+                    return false;
+                }
+                next = null;
+                segment = b;
+                segmentIndex++;
+                position = 0;
+            }
+            return true;
+        }
+
+        private void configure(AudioConfiguration context) {
+            inputChannels = context.getInputChannelCount();
+            if (!reserve(SessionTrace.CONFIGURE_SIZE)) {
+                fail(new IOException("No space to record configuration"));
+                return;
+            }
+            int p = position;
+            segment.putFloat(p + 1, context.getSampleRate());
+            segment.putInt(p + 5, context.getInputChannelCount());
+            segment.putInt(p + 9, context.getOutputChannelCount());
+            segment.putInt(p + 13, context.getMaxBufferSize());
+            segment.put(p + 17, (byte) (context.isFixedBufferSize() ? 1 : 0));
+            segment.put(p, SessionTrace.CONFIGURE);
+            position = p + SessionTrace.CONFIGURE_SIZE;
+        }
+
+        private void event(int type, long value) {
+            if (!reserve(SessionTrace.EVENT_SIZE)) {
+                return;
+            }
+            int p = position;
+            segment.putInt(p + 1, type);
+            segment.putLong(p + 5, value);
+            segment.put(p, SessionTrace.EVENT);
+            position = p + SessionTrace.EVENT_SIZE;
+        }
+
+        private boolean beginProcess(long time, List<FloatBuffer> inputs, int nframes) {
+            int size = SessionTrace.processSize(inputChannels, nframes);
+            if (!reserve(gap > 0 ? size + SessionTrace.GAP_SIZE : size)) {
+                gap++;
+                return false;
+            }
+            int p = position;
+            if (gap > 0) {
+                segment.putInt(p + 1, gap);
+                segment.put(p, SessionTrace.GAP);
+                p += SessionTrace.GAP_SIZE;
+                gap = 0;
+            }
+            record = p;
+            segment.putLong(p + 1, time);
+            segment.putInt(p + 9, nframes);
+            int index = p + SessionTrace.PROCESS_SIZE;
+            int count = Math.min(inputs.size(), inputChannels);
+            for (int ch = 0; ch < inputChannels; ch++) {
+                if (ch < count) {
+                    FloatBuffer buffer = inputs.get(ch);
+                    int pos = buffer.position();
+                    for (int n = 0; n < nframes; n++, index += 4) {
+                        segment.putFloat(index, buffer.get(pos + n));
+                    }
+                } else {
+                    for (int n = 0; n < nframes; n++, index += 4) {
+                        segment.putFloat(index, 0);
+                    }
+                }
+            }
+            position = index;
+            return true;
+        }
+
+        private void endProcess(long nanos, boolean ok) {
+            int p = record;
+            segment.putLong(p + 13, nanos);
+            segment.put(p + 21, (byte) (ok ? 1 : 0));
+            segment.put(p, SessionTrace.PROCESS);
+        }
+
+        /*
+         * Stop the mapping thread, mark the end of the session and truncate
+         * the file to the recorded length.
+         */
+        private void close() {
+            closing = true;
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            // make sure trailing gaps and the end of the session can be
+            // recorded if the last segment is full
+            if (next == null && !failed && position + SessionTrace.GAP_SIZE
+                    + SessionTrace.SHUTDOWN_SIZE > segmentSize) {
+                try {
+                    next = map(nextIndex);
+                } catch (IOException ex) {
+                    fail(ex);
+                }
+            }
+            if (gap > 0 && reserve(SessionTrace.GAP_SIZE)) {
+                segment.putInt(position + 1, gap);
+                segment.put(position, SessionTrace.GAP);
+                position += SessionTrace.GAP_SIZE;
+                gap = 0;
+            }
+            if (reserve(SessionTrace.SHUTDOWN_SIZE)) {
+                segment.put(position, SessionTrace.SHUTDOWN);
+                position += SessionTrace.SHUTDOWN_SIZE;
+            }
+            long length = segmentIndex * segmentSize + position;
+            segment = null;
+            next = null;
+            try {
+                // may fail on platforms that do not allow truncating a mapped
+                // file - the zero filled tail is ignored by the replayer
+                channel.truncate(length);
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "Unable to truncate trace", ex);
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closing) {
+                    if (next == null) {
+                        MappedByteBuffer buffer = map(nextIndex);
+                        nextIndex++;
+                        next = buffer;
+                    }
+                    LockSupport.parkNanos(POLL_INTERVAL);
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            } catch (RuntimeException ex) {
+                fail(ex);
+            }
+        }
+
+        private void fail(Exception ex) {
+            LOG.log(Level.WARNING, "Recording failed", ex);
+            failed = true;
+            if (exception == null) {
+                exception = ex;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,376 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+
+/**
+ * Replays a session recorded by SessionRecorder into an AudioClient, as fast
+ * as the client allows. Use to profile or benchmark a client against the
+ * exact sequence of configurations, buffer sizes, times, inputs and control
+ * events it received from a server.
+ *
+ * Either call replay() to run a whole session, or call start(), then step()
+ * for each cycle, and stop(). For a benchmark harness such as JMH, call
+ * start() during setup, and measure step(), calling rewind() when it
+ * returns false.
+ *
+ * The trace file is mapped into memory, and stepping through it does not
+ * allocate. Output buffers are cleared before each cycle. Control events are
+ * delivered before the cycle they were recorded with, if the client
+ * implements {@link SessionRecorder.EventHandler}. A replayer is for use by
+ * one thread at a time.
+ *
+ * @author Neil C Smith
+ */
+public final class SessionReplayer implements Closeable {
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int segmentSize;
+    private final MappedByteBuffer[] segments;
+
+    private AudioClient client;
+    private SessionRecorder.EventHandler handler;
+    private List<FloatBuffer> inputs;
+    private List<FloatBuffer> outputs;
+    private int segment;
+    private int position;
+    private long cycles;
+    private long gaps;
+    private long recordedTime;
+    private long recordedNanos;
+
+    /**
+     * Open and map the given trace file.
+     *
+     * @param path trace file
+     * @throws IOException if the file cannot be read, or is not a session
+     * trace
+     */
+    public SessionReplayer(Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(SessionTrace.HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Not a session trace");
+                }
+            }
+            if (header.getInt(0) != SessionTrace.MAGIC) {
+                throw new IOException("Not a session trace");
+            }
+            if (header.getInt(4) != SessionTrace.VERSION) {
+                throw new IOException("Unsupported trace version " + header.getInt(4));
+            }
+            segmentSize = header.getInt(8);
+            if (segmentSize < SessionTrace.HEADER_SIZE) {
+                throw new IOException("Invalid segment size " + segmentSize);
+            }
+            long length = channel.size();
+            int count = (int) ((length + segmentSize - 1) / segmentSize);
+            segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i * segmentSize;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        start, Math.min(segmentSize, length - start));
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+        position = SessionTrace.HEADER_SIZE;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Replay the whole session into the given client, including configuring
+     * and shutting down the client.
+     *
+     * @param client client to replay into
+     * @return number of cycles processed
+     * @throws Exception if the client cannot be configured
+     */
+    public long replay(AudioClient client) throws Exception {
+        start(client);
+        try {
+            while (step()) {
+            }
+        } finally {
+            stop();
+        }
+        return cycles;
+    }
+
+    /**
+     * Start replaying into the given client. The client is configured, and
+     * receives any control events before the first cycle.
+     *
+     * @param client client to replay into
+     * @throws Exception if the client cannot be configured
+     */
+    public void start(AudioClient client) throws Exception {
+        if (client == null) {
+            throw new NullPointerException();
+        }
+        if (this.client != null) {
+            throw new IllegalStateException("Replay already started");
+        }
+        this.client = client;
+        this.handler = client instanceof SessionRecorder.EventHandler
+                ? (SessionRecorder.EventHandler) client : null;
+        inputs = null;
+        outputs = null;
+        cycles = 0;
+        gaps = 0;
+        rewind();
+    }
+
+    /**
+     * Process the next recorded cycle, followed by any reconfiguration and
+     * control events before the cycle after.
+     *
+     * @return false if there are no more cycles, or the client returned false
+     * @throws Exception if the client cannot be reconfigured
+     */
+    public boolean step() throws Exception {
+        if (client == null) {
+            throw new IllegalStateException("Replay not started");
+        }
+        if (!atProcess()) {
+            return false;
+        }
+        ByteBuffer src = segments[segment];
+        int p = position;
+        recordedTime = src.getLong(p + 1);
+        int nframes = src.getInt(p + 9);
+        recordedNanos = src.getLong(p + 13);
+        int index = p + SessionTrace.PROCESS_SIZE;
+        for (int ch = 0; ch < inputs.size(); ch++) {
+            FloatBuffer buffer = inputs.get(ch);
+            buffer.clear();
+            for (int n = 0; n < nframes; n++, index += 4) {
+                buffer.put(n, src.getFloat(index));
+            }
+        }
+        for (int ch = 0; ch < outputs.size(); ch++) {
+            FloatBuffer buffer = outputs.get(ch);
+            buffer.clear();
+            for (int n = 0; n < nframes; n++) {
+                buffer.put(n, 0);
+            }
+        }
+        position = index;
+        cycles++;
+        boolean ok = client.process(recordedTime, inputs, outputs, nframes);
+        advance();
+        return ok;
+    }
+
+    /**
+     * Return to the start of the trace. The client is configured again with
+     * the first recorded configuration.
+     *
+     * @throws Exception if the client cannot be configured
+     */
+    public void rewind() throws Exception {
+        if (client == null) {
+            throw new IllegalStateException("Replay not started");
+        }
+        segment = 0;
+        position = SessionTrace.HEADER_SIZE;
+        advance();
+    }
+
+    /**
+     * Stop replaying and shut down the client.
+     */
+    public void stop() {
+        AudioClient c = client;
+        if (c != null) {
+            client = null;
+            handler = null;
+            c.shutdown();
+        }
+    }
+
+    /**
+     * Number of cycles processed since start().
+     *
+     * @return cycle count
+     */
+    public long getCycleCount() {
+        return cycles;
+    }
+
+    /**
+     * Number of recorded cycles missing from the trace, passed since start().
+     *
+     * @return missing cycles
+     */
+    public long getGapCount() {
+        return gaps;
+    }
+
+    /**
+     * The time passed to the client in the last processed cycle.
+     *
+     * @return recorded time in nanoseconds
+     */
+    public long getRecordedTime() {
+        return recordedTime;
+    }
+
+    /**
+     * The time the client took to process the last processed cycle when it
+     * was recorded. Compare with the replayed time to find the cycles that
+     * overloaded.
+     *
+     * @return recorded process time in nanoseconds
+     */
+    public long getRecordedProcessTime() {
+        return recordedNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /*
+     * Handle records up to the next cycle or the end of the session.
+     */
+    private void advance() throws Exception {
+        while (true) {
+            int size = nextRecord();
+            if (size <= 0) {
+                return;
+            }
+            ByteBuffer src = segments[segment];
+            int p = position;
+            switch (src.get(p)) {
+                case SessionTrace.PROCESS:
+                    if (inputs == null) {
+                        throw new IOException("Trace cycle before configuration");
+                    }
+                    return;
+                case SessionTrace.CONFIGURE:
+                    configure(new AudioConfiguration(src.getFloat(p + 1),
+                            src.getInt(p + 5), src.getInt(p + 9),
+                            src.getInt(p + 13), src.get(p + 17) != 0));
+                    break;
+                case SessionTrace.EVENT:
+                    if (handler != null) {
+                        handler.controlEvent(src.getInt(p + 1), src.getLong(p + 5));
+                    }
+                    break;
+                case SessionTrace.GAP:
+                    gaps += src.getInt(p + 1);
+                    break;
+                default:
+                    return;
+            }
+            position = p + size;
+        }
+    }
+
+    private boolean atProcess() {
+        return nextRecord() > 0
+                && segments[segment].get(position) == SessionTrace.PROCESS;
+    }
+
+    /*
+     * Move to the next record, skipping unused space at the end of a
+     * segment. Returns the size of the record, or 0 at the end of the
+     * session or of complete records.
+     */
+    private int nextRecord() {
+        while (segment < segments.length) {
+            ByteBuffer src = segments[segment];
+            if (position < src.limit() && src.get(position) != SessionTrace.END) {
+                int size = recordSize(src, position);
+                return position + size <= src.limit() ? size : 0;
+            }
+            segment++;
+            position = 0;
+        }
+        return 0;
+    }
+
+    private int recordSize(ByteBuffer src, int p) {
+        switch (src.get(p)) {
+            case SessionTrace.CONFIGURE:
+                return SessionTrace.CONFIGURE_SIZE;
+            case SessionTrace.PROCESS:
+                if (p + SessionTrace.PROCESS_SIZE > src.limit() || inputs == null) {
+                    return SessionTrace.PROCESS_SIZE;
+                }
+                return SessionTrace.processSize(inputs.size(), src.getInt(p + 9));
+            case SessionTrace.EVENT:
+                return SessionTrace.EVENT_SIZE;
+            case SessionTrace.GAP:
+                return SessionTrace.GAP_SIZE;
+            default:
+                // shutdown, or unknown
+                return 0;
+        }
+    }
+
+    private void configure(AudioConfiguration context) throws Exception {
+        if (inputs == null || inputs.size() != context.getInputChannelCount()
+                || outputs.size() != context.getOutputChannelCount()
+                || (inputs.size() + outputs.size() > 0
+                && capacity() < context.getMaxBufferSize())) {
+            inputs = createBuffers(context.getInputChannelCount(), context.getMaxBufferSize());
+            outputs = createBuffers(context.getOutputChannelCount(), context.getMaxBufferSize());
+        }
+        client.configure(context);
+    }
+
+    private int capacity() {
+        return inputs.isEmpty() ? outputs.get(0).capacity() : inputs.get(0).capacity();
+    }
+
+    private static List<FloatBuffer> createBuffers(int count, int size) {
+        List<FloatBuffer> list = new ArrayList<FloatBuffer>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(FloatBuffer.allocate(size));
+        }
+        return list;
+    }
+
+}
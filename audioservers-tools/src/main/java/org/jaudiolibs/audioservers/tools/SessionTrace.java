@@ -0,0 +1,80 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+/**
+ * Layout of the session trace files written by SessionRecorder and read by
+ * SessionReplayer.
+ *
+ * A trace is a little-endian file divided into segments of a fixed size,
+ * which is stored in the file header. Records never cross a segment
+ * boundary - a zero type byte, or the end of a segment, means the rest of
+ * the segment is unused. Each record starts with a type byte, which is
+ * written after the rest of the record, so a trace left by a process that
+ * did not close it is readable up to the last complete record.
+ *
+ * @author Neil C Smith
+ */
+final class SessionTrace {
+
+    final static int MAGIC = 0x52545341; // "ASTR"
+    final static int VERSION = 1;
+    final static int HEADER_SIZE = 16;
+
+    /**
+     * Unused space to the end of the segment.
+     */
+    final static byte END = 0;
+
+    /**
+     * float sample rate, int input channels, int output channels, int max
+     * buffer size, byte fixed buffer size.
+     */
+    final static byte CONFIGURE = 1;
+    final static int CONFIGURE_SIZE = 1 + 4 + 4 + 4 + 4 + 1;
+
+    /**
+     * long time, int nframes, long process nanos, byte result, then nframes
+     * floats for each input channel.
+     */
+    final static byte PROCESS = 2;
+    final static int PROCESS_SIZE = 1 + 8 + 4 + 8 + 1;
+
+    /**
+     * int type, long value.
+     */
+    final static byte EVENT = 3;
+    final static int EVENT_SIZE = 1 + 4 + 8;
+
+    /**
+     * int cycles not recorded.
+     */
+    final static byte GAP = 4;
+    final static int GAP_SIZE = 1 + 4;
+
+    /**
+     * No data.
+     */
+    final static byte SHUTDOWN = 5;
+    final static int SHUTDOWN_SIZE = 1;
+
+    private SessionTrace() {
+    }
+
+    static int processSize(int inputs, int nframes) {
+        return PROCESS_SIZE + 4 * inputs * nframes;
+    }
+
+}
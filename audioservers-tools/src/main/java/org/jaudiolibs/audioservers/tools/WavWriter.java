@@ -0,0 +1,186 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a WAV file, switching to RF64 on close if the data is too large for
+ * a RIFF header.
+ *
+ * The header reserves a JUNK chunk in place of the ds64 chunk, as recommended
+ * by EBU Tech 3306, and is padded so that audio data starts at
+ * {@link #DATA_OFFSET}. Writes of block aligned sizes are therefore block
+ * aligned in the file.
+ *
+ * @author Neil C Smith
+ */
+final class WavWriter implements Closeable {
+
+    final static int WAVE_FORMAT_PCM = 1;
+    final static int WAVE_FORMAT_IEEE_FLOAT = 3;
+
+    final static int DATA_OFFSET = 4096;
+
+    private final static long RIFF_MAX = 0xFFFFFFFFL;
+    private final static int DS64_OFFSET = 12;
+    private final static int FMT_OFFSET = 48;
+    private final static int PAD_OFFSET = 72;
+
+    private final FileChannel channel;
+    private final Path path;
+    private final int channels;
+    private final SampleFormat format;
+    private final long riffLimit;
+    private long dataLength;
+
+    WavWriter(Path path, float sampleRate, int channels, SampleFormat format) throws IOException {
+        this(path, sampleRate, channels, format, RIFF_MAX);
+    }
+
+    /*
+     * Create a writer that switches to RF64 above the given RIFF length.
+     * Used for testing without writing a 4GB file.
+     */
+    WavWriter(Path path, float sampleRate, int channels, SampleFormat format,
+            long riffLimit) throws IOException {
+        this.path = path;
+        this.riffLimit = riffLimit;
+        this.channels = channels;
+        this.format = format;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(DATA_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+            putID(header, "RIFF");
+            header.putInt(0);
+            putID(header, "WAVE");
+            // reserved for ds64
+            putID(header, "JUNK");
+            header.putInt(28);
+            header.position(FMT_OFFSET);
+            int blockAlign = channels * format.getBytesPerSample();
+            putID(header, "fmt ");
+            header.putInt(16);
+            header.putShort((short) format.getFormatTag());
+            header.putShort((short) channels);
+            header.putInt(Math.round(sampleRate));
+            header.putInt(Math.round(sampleRate) * blockAlign);
+            header.putShort((short) blockAlign);
+            header.putShort((short) format.getBitsPerSample());
+            putID(header, "JUNK");
+            header.putInt(DATA_OFFSET - PAD_OFFSET - 16);
+            header.position(DATA_OFFSET - 8);
+            putID(header, "data");
+            header.putInt(0);
+            header.flip();
+            writeFully(header, 0);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    int getChannelCount() {
+        return channels;
+    }
+
+    SampleFormat getFormat() {
+        return format;
+    }
+
+    /*
+     * Length of audio data written so far in bytes.
+     */
+    long getDataLength() {
+        return dataLength;
+    }
+
+    /*
+     * Write the remaining bytes in the buffer to the end of the data chunk.
+     */
+    void write(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        writeFully(data, DATA_OFFSET + dataLength);
+        dataLength += length;
+    }
+
+    /*
+     * Write the chunk sizes and close. The RIFF header is converted to RF64
+     * if required.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            long fileLength = DATA_OFFSET + dataLength;
+            if ((dataLength & 1) != 0) {
+                ByteBuffer pad = ByteBuffer.allocate(1);
+                writeFully(pad, fileLength);
+                fileLength++;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(36).order(ByteOrder.LITTLE_ENDIAN);
+            long riffLength = fileLength - 8;
+            if (riffLength > riffLimit) {
+                putID(buf, "RF64");
+                buf.putInt(-1);
+                buf.flip();
+                writeFully(buf, 0);
+                buf.clear();
+                putID(buf, "ds64");
+                buf.putInt(28);
+                buf.putLong(riffLength);
+                buf.putLong(dataLength);
+                buf.putLong(dataLength / (channels * format.getBytesPerSample()));
+                buf.putInt(0);
+                buf.flip();
+                writeFully(buf, DS64_OFFSET);
+                buf.clear();
+                buf.putInt(-1);
+            } else {
+                buf.putInt((int) riffLength);
+                buf.flip();
+                writeFully(buf, 4);
+                buf.clear();
+                buf.putInt((int) dataLength);
+            }
+            buf.flip();
+            writeFully(buf, DATA_OFFSET - 4);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void putID(ByteBuffer buffer, String id) {
+        buffer.put(id.getBytes(StandardCharsets.US_ASCII));
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+
+/**
+ * Tests AnalysisTap loudness against the EBU R128 reference level, and the
+ * spectrum level of a sine centred on a bin.
+ *
+ * @author Neil C Smith
+ */
+public class AnalysisTapTest extends TestCase {
+
+    private final static float SAMPLE_RATE = 48000;
+    private final static int BLOCK_SIZE = 256;
+    private final static double LEVEL = Math.pow(10, -23 / 20.0);
+
+    private AnalysisPool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        pool = new AnalysisPool(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.close();
+    }
+
+    /*
+     * A -23dBFS 997Hz sine on both channels of a stereo signal is the
+     * reference for -23 LUFS.
+     */
+    public void testReferenceLoudness() throws Exception {
+        Analysis analysis = analyse(new SineClient(997, LEVEL, true), 2048, 10);
+        assertEquals(-23, analysis.getMomentaryLoudness(), 0.01);
+        assertEquals(-23, analysis.getShortTermLoudness(), 0.01);
+        assertEquals(-23, analysis.getIntegratedLoudness(), 0.01);
+    }
+
+    /*
+     * Channel powers are summed, so the same sine on one channel reads 3dB
+     * lower.
+     */
+    public void testSingleChannelLoudness() throws Exception {
+        Analysis analysis = analyse(new SineClient(997, LEVEL, false), 2048, 10);
+        double expected = -23 - 10 * Math.log10(2);
+        assertEquals(expected, analysis.getMomentaryLoudness(), 0.01);
+        assertEquals(expected, analysis.getShortTermLoudness(), 0.01);
+        assertEquals(expected, analysis.getIntegratedLoudness(), 0.01);
+    }
+
+    public void testSpectrumLevel() throws Exception {
+        int fftSize = 2048;
+        int bin = 43;
+        double frequency = bin * SAMPLE_RATE / fftSize;
+        Analysis analysis = analyse(new SineClient(frequency, LEVEL, true), fftSize, 1);
+        assertEquals(fftSize / 2 + 1, analysis.getBinCount());
+        assertEquals(frequency, analysis.getFrequency(bin), 1e-3);
+        assertEquals(-23, analysis.getLevel(bin), 0.01);
+        // Hann window spreads a bin centred sine into the adjacent bins at
+        // half amplitude, and nowhere else
+        assertEquals(-29.02, analysis.getLevel(bin - 1), 0.01);
+        assertEquals(-29.02, analysis.getLevel(bin + 1), 0.01);
+        for (int i = 0; i < analysis.getBinCount(); i++) {
+            if (Math.abs(i - bin) > 1) {
+                assertTrue("Bin " + i + " " + analysis.getLevel(i), analysis.getLevel(i) < -100);
+            }
+        }
+    }
+
+    /*
+     * Pass the given number of seconds of the client's output through an
+     * AnalysisTap, and wait for all of it to be analysed.
+     */
+    private Analysis analyse(AudioClient client, int fftSize, int seconds) throws Exception {
+        AnalysisTap tap = new AnalysisTap(client, pool)
+                .setFFTSize(fftSize)
+                .setBufferTime(seconds + 1, TimeUnit.SECONDS);
+        tap.configure(new AudioConfiguration(SAMPLE_RATE, 0, 2, BLOCK_SIZE, true));
+        List<FloatBuffer> inputs = new ArrayList<FloatBuffer>();
+        List<FloatBuffer> outputs = new ArrayList<FloatBuffer>();
+        outputs.add(FloatBuffer.allocate(BLOCK_SIZE));
+        outputs.add(FloatBuffer.allocate(BLOCK_SIZE));
+        // a whole number of 100ms loudness blocks, so the last frame
+        // updates the analysis
+        long frames = (long) (seconds * SAMPLE_RATE);
+        for (long pos = 0; pos < frames; pos += BLOCK_SIZE) {
+            int nframes = (int) Math.min(BLOCK_SIZE, frames - pos);
+            assertTrue(tap.process(pos, inputs, outputs, nframes));
+        }
+        assertEquals(0, tap.getOverflows());
+        long timeout = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        Analysis analysis = tap.getAnalysis();
+        while (analysis.getPosition() < frames) {
+            if (System.nanoTime() > timeout) {
+                fail("Timed out with " + analysis);
+            }
+            Thread.sleep(5);
+            analysis = tap.getAnalysis();
+        }
+        tap.shutdown();
+        assertEquals(frames, analysis.getPosition());
+        assertEquals(SAMPLE_RATE, analysis.getSampleRate());
+        return analysis;
+    }
+
+    private static class SineClient implements AudioClient {
+
+        private final double frequency;
+        private final double amplitude;
+        private final boolean stereo;
+        private long frame;
+
+        private SineClient(double frequency, double amplitude, boolean stereo) {
+            this.frequency = frequency;
+            this.amplitude = amplitude;
+            this.stereo = stereo;
+        }
+
+        @Override
+        public void configure(AudioConfiguration context) throws Exception {
+        }
+
+        @Override
+        public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+            FloatBuffer left = outputs.get(0);
+            FloatBuffer right = outputs.get(1);
+            for (int n = 0; n < nframes; n++) {
+                float value = (float) (amplitude
+                        * Math.sin(2 * Math.PI * frequency * (frame + n) / SAMPLE_RATE));
+                left.put(n, value);
+                right.put(n, stereo ? value : 0);
+            }
+            frame += nframes;
+            return true;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Tests reading, looping and seeking in MappedAudioSource across the
+ * boundaries between mapped segments, using a small segment size.
+ *
+ * @author Neil C Smith
+ */
+public class MappedAudioSourceTest extends TestCase {
+
+    private final static int CHANNELS = 2;
+    private final static int FRAMES = 1000;
+    // not a whole number of frames - segments hold 125 frames
+    private final static long SEGMENT_SIZE = 1003;
+    private final static int SEGMENT_FRAMES = 125;
+
+    private Path directory;
+    private MappedAudioSource source;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("mappedaudiosource");
+        Path path = directory.resolve("source.wav");
+        float[] data = new float[FRAMES * CHANNELS];
+        for (int i = 0; i < FRAMES; i++) {
+            for (int ch = 0; ch < CHANNELS; ch++) {
+                data[i * CHANNELS + ch] = sample(ch, i);
+            }
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(data.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        SampleFormat.FLOAT32.encode(data, 0, data.length, bytes);
+        bytes.flip();
+        WavWriter writer = new WavWriter(path, 48000, CHANNELS, SampleFormat.FLOAT32);
+        writer.write(bytes);
+        writer.close();
+        source = new MappedAudioSource(path, SEGMENT_SIZE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        source.close();
+        RecordingTapTest.deleteAll(directory);
+    }
+
+    public void testRead() {
+        assertEquals(FRAMES, source.getFrameCount());
+        List<FloatBuffer> buffers = buffers(CHANNELS, 100);
+        // block size not a factor of the segment size, so most reads span
+        // a boundary
+        for (int pos = 0; pos < FRAMES; pos += 100) {
+            assertEquals(100, source.read(buffers, 100));
+            assertFrames(buffers, 0, pos, 100);
+        }
+        assertEquals(FRAMES, source.getPosition());
+        // past the end, not looping
+        assertEquals(0, source.read(buffers, 100));
+        assertSilent(buffers.get(0), 0, 100);
+        assertSilent(buffers.get(1), 0, 100);
+    }
+
+    public void testReadToEnd() {
+        List<FloatBuffer> buffers = buffers(CHANNELS, 300);
+        source.seek(FRAMES - 50);
+        assertEquals(50, source.read(buffers, 300));
+        assertFrames(buffers, 0, FRAMES - 50, 50);
+        assertSilent(buffers.get(0), 50, 250);
+        assertSilent(buffers.get(1), 50, 250);
+        assertEquals(FRAMES, source.getPosition());
+    }
+
+    public void testLooping() {
+        source.setLooping(true);
+        List<FloatBuffer> buffers = buffers(CHANNELS, 300);
+        long pos = 0;
+        // wraps several times, at different offsets within each read
+        for (int i = 0; i < 10; i++) {
+            assertEquals(300, source.read(buffers, 300));
+            assertFrames(buffers, 0, pos, 300);
+            pos += 300;
+        }
+        assertEquals(pos % FRAMES, source.getPosition());
+    }
+
+    public void testSeek() {
+        List<FloatBuffer> buffers = buffers(CHANNELS, 20);
+        for (int segment = 1; segment < FRAMES / SEGMENT_FRAMES; segment++) {
+            long boundary = (long) segment * SEGMENT_FRAMES;
+            source.seek(boundary - 10);
+            assertEquals(20, source.read(buffers, 20));
+            assertFrames(buffers, 0, boundary - 10, 20);
+            assertEquals(boundary + 10, source.getPosition());
+            source.seek(boundary);
+            assertEquals(20, source.read(buffers, 20));
+            assertFrames(buffers, 0, boundary, 20);
+        }
+        // seek past the end, not looping
+        source.seek(FRAMES + 10);
+        assertEquals(0, source.read(buffers, 20));
+        assertSilent(buffers.get(0), 0, 20);
+        // seek past the end, looping
+        source.setLooping(true);
+        source.seek(3L * FRAMES + SEGMENT_FRAMES - 5);
+        assertEquals(20, source.read(buffers, 20));
+        assertFrames(buffers, 0, SEGMENT_FRAMES - 5, 20);
+        // seek across the end, looping
+        source.seek(FRAMES - 10);
+        assertEquals(20, source.read(buffers, 20));
+        assertFrames(buffers, 0, FRAMES - 10, 20);
+        assertEquals(10, source.getPosition());
+    }
+
+    public void testBufferPosition() {
+        List<FloatBuffer> buffers = buffers(CHANNELS + 1, 200);
+        for (FloatBuffer buffer : buffers) {
+            buffer.position(50);
+            for (int i = 0; i < 200; i++) {
+                buffer.put(i, -1);
+            }
+        }
+        source.seek(SEGMENT_FRAMES - 60);
+        assertEquals(120, source.read(buffers, 120));
+        assertFrames(buffers, 50, SEGMENT_FRAMES - 60, 120);
+        for (int ch = 0; ch < buffers.size(); ch++) {
+            FloatBuffer buffer = buffers.get(ch);
+            assertEquals(50, buffer.position());
+            // untouched either side of the frames read
+            assertEquals(-1f, buffer.get(49));
+            assertEquals(-1f, buffer.get(170));
+        }
+        // extra channel is silent
+        assertSilent(buffers.get(CHANNELS), 50, 120);
+    }
+
+    private static void assertFrames(List<FloatBuffer> buffers, int offset, long frame, int nframes) {
+        for (int ch = 0; ch < CHANNELS; ch++) {
+            FloatBuffer buffer = buffers.get(ch);
+            for (int i = 0; i < nframes; i++) {
+                float expected = sample(ch, (frame + i) % FRAMES);
+                if (buffer.get(offset + i) != expected) {
+                    fail("Channel " + ch + " frame " + (frame + i) + " expected "
+                            + expected + " was " + buffer.get(offset + i));
+                }
+            }
+        }
+    }
+
+    private static void assertSilent(FloatBuffer buffer, int offset, int nframes) {
+        for (int i = 0; i < nframes; i++) {
+            assertEquals(0f, buffer.get(offset + i));
+        }
+    }
+
+    /*
+     * Each sample identifies its channel and frame exactly.
+     */
+    private static float sample(int channel, long frame) {
+        return frame + 1 + channel * 0.5f;
+    }
+
+    private static List<FloatBuffer> buffers(int count, int size) {
+        List<FloatBuffer> list = new ArrayList<FloatBuffer>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(FloatBuffer.allocate(size));
+        }
+        return list;
+    }
+
+}
@@ -0,0 +1,347 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+
+/**
+ * Tests RecordingTap by recording a known signal and reading it back with
+ * MappedAudioSource.
+ *
+ * @author Neil C Smith
+ */
+public class RecordingTapTest extends TestCase {
+
+    private final static float SAMPLE_RATE = 48000;
+    private final static int INPUTS = 1;
+    private final static int OUTPUTS = 2;
+    private final static int CHANNELS = INPUTS + OUTPUTS;
+    private final static int BLOCK_SIZE = 256;
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("recordingtap");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAll(directory);
+    }
+
+    public void testRoundTrip() throws Exception {
+        int frames = 48000;
+        for (SampleFormat format : SampleFormat.values()) {
+            List<Path> files = record("rt-" + format, format, 0, frames);
+            assertEquals(format.toString(), 1, files.size());
+            assertEquals(directory.resolve("rt-" + format + "-0001.wav"), files.get(0));
+            MappedAudioSource source = new MappedAudioSource(files.get(0));
+            try {
+                assertEquals(format, source.getSampleFormat());
+                assertEquals(SAMPLE_RATE, source.getSampleRate());
+                assertEquals(CHANNELS, source.getChannelCount());
+                assertEquals(frames, source.getFrameCount());
+                float[][] data = readAll(source);
+                assertSignal(format.toString(), data, 0, tolerance(format));
+            } finally {
+                source.close();
+            }
+        }
+    }
+
+    public void testRotation() throws Exception {
+        int frames = 3 * 48000;
+        List<Path> files = record("rot", SampleFormat.FLOAT32, 1, frames);
+        assertTrue("Files " + files.size(), files.size() > 1);
+        long offset = 0;
+        long fileFrames = -1;
+        for (int i = 0; i < files.size(); i++) {
+            assertEquals(directory.resolve(String.format("rot-%04d.wav", i + 1)), files.get(i));
+            MappedAudioSource source = new MappedAudioSource(files.get(i));
+            try {
+                if (i < files.size() - 1) {
+                    // all but the last file are a whole number of chunks of
+                    // at least the rotation time
+                    assertTrue(source.getFrameCount() >= 48000);
+                    if (fileFrames < 0) {
+                        fileFrames = source.getFrameCount();
+                    }
+                    assertEquals(fileFrames, source.getFrameCount());
+                } else {
+                    assertTrue(source.getFrameCount() <= fileFrames);
+                }
+                assertSignal(files.get(i).toString(), readAll(source), offset, 0);
+                offset += source.getFrameCount();
+            } finally {
+                source.close();
+            }
+        }
+        assertEquals(frames, offset);
+    }
+
+    public void testRF64() throws Exception {
+        Path path = directory.resolve("rf64.wav");
+        int channels = 1;
+        int frames = 1001;
+        SampleFormat format = SampleFormat.PCM24;
+        float[] signal = new float[frames];
+        for (int i = 0; i < frames; i++) {
+            signal[i] = sample(0, i);
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(frames * format.getBytesPerSample())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        format.encode(signal, 0, frames, bytes);
+        bytes.flip();
+        WavWriter writer = new WavWriter(path, SAMPLE_RATE, channels, format, 1024);
+        writer.write(bytes);
+        writer.close();
+
+        long dataLength = frames * format.getBytesPerSample();
+        // odd data length is padded
+        long fileLength = WavWriter.DATA_OFFSET + dataLength + 1;
+        assertEquals(fileLength, Files.size(path));
+        ByteBuffer header = ByteBuffer.allocate(WavWriter.DATA_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+        } finally {
+            channel.close();
+        }
+        assertEquals("RF64", id(header, 0));
+        assertEquals(-1, header.getInt(4));
+        assertEquals("WAVE", id(header, 8));
+        assertEquals("ds64", id(header, 12));
+        assertEquals(28, header.getInt(16));
+        assertEquals(fileLength - 8, header.getLong(20));
+        assertEquals(dataLength, header.getLong(28));
+        assertEquals(frames, header.getLong(36));
+        assertEquals(0, header.getInt(44));
+        assertEquals("fmt ", id(header, 48));
+        assertEquals("data", id(header, WavWriter.DATA_OFFSET - 8));
+        assertEquals(-1, header.getInt(WavWriter.DATA_OFFSET - 4));
+
+        MappedAudioSource source = new MappedAudioSource(path);
+        try {
+            assertEquals(format, source.getSampleFormat());
+            assertEquals(frames, source.getFrameCount());
+            float[][] data = readAll(source);
+            for (int i = 0; i < frames; i++) {
+                assertEquals(signal[i], data[0][i], tolerance(format));
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    public void testRIFF() throws Exception {
+        Path path = directory.resolve("riff.wav");
+        WavWriter writer = new WavWriter(path, SAMPLE_RATE, 2, SampleFormat.PCM16);
+        writer.write(ByteBuffer.allocate(400));
+        writer.close();
+        ByteBuffer header = ByteBuffer.allocate(WavWriter.DATA_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+        } finally {
+            channel.close();
+        }
+        assertEquals("RIFF", id(header, 0));
+        assertEquals(WavWriter.DATA_OFFSET + 400 - 8, header.getInt(4));
+        assertEquals("JUNK", id(header, 12));
+        assertEquals(400, header.getInt(WavWriter.DATA_OFFSET - 4));
+        MappedAudioSource source = new MappedAudioSource(path);
+        try {
+            assertEquals(100, source.getFrameCount());
+        } finally {
+            source.close();
+        }
+    }
+
+    /*
+     * Record the given number of frames through a RecordingTap, with one
+     * input and two output channels, and return the files written.
+     */
+    private List<Path> record(String name, SampleFormat format, long rotation, int frames)
+            throws Exception {
+        RecordingTap tap = new RecordingTap(new SignalClient(), directory, name)
+                .setSampleFormat(format)
+                .setRecordInputs(true)
+                .setRecordOutputs(true)
+                .setBufferTime(10, TimeUnit.SECONDS)
+                .setRotation(rotation, TimeUnit.SECONDS);
+        tap.configure(new AudioConfiguration(SAMPLE_RATE, INPUTS, OUTPUTS, BLOCK_SIZE, true));
+        List<FloatBuffer> inputs = buffers(INPUTS, BLOCK_SIZE);
+        List<FloatBuffer> outputs = buffers(OUTPUTS, BLOCK_SIZE);
+        for (int pos = 0; pos < frames; pos += BLOCK_SIZE) {
+            int nframes = Math.min(BLOCK_SIZE, frames - pos);
+            for (int n = 0; n < nframes; n++) {
+                inputs.get(0).put(n, sample(0, pos + n));
+            }
+            assertTrue(tap.process(pos, inputs, outputs, nframes));
+        }
+        tap.shutdown();
+        assertNull(tap.getException());
+        assertEquals(0, tap.getOverflows());
+        assertEquals(frames, tap.getRecordedFrames());
+        List<Path> files = new ArrayList<Path>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(directory, name + "-*.wav");
+        try {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        } finally {
+            stream.close();
+        }
+        Path[] sorted = files.toArray(new Path[files.size()]);
+        Arrays.sort(sorted);
+        return Arrays.asList(sorted);
+    }
+
+    private static float[][] readAll(MappedAudioSource source) {
+        int frames = (int) source.getFrameCount();
+        int channels = source.getChannelCount();
+        float[][] data = new float[channels][frames];
+        List<FloatBuffer> buffers = new ArrayList<FloatBuffer>();
+        for (int ch = 0; ch < channels; ch++) {
+            buffers.add(FloatBuffer.wrap(data[ch]));
+        }
+        int pos = 0;
+        while (pos < frames) {
+            int nframes = Math.min(1000, frames - pos);
+            for (FloatBuffer buffer : buffers) {
+                buffer.position(pos);
+            }
+            assertEquals(nframes, source.read(buffers, nframes));
+            pos += nframes;
+        }
+        assertEquals(frames, source.getPosition());
+        return data;
+    }
+
+    private static void assertSignal(String message, float[][] data, long offset, double tolerance) {
+        assertEquals(CHANNELS, data.length);
+        for (int ch = 0; ch < CHANNELS; ch++) {
+            for (int i = 0; i < data[ch].length; i++) {
+                float expected = sample(ch, offset + i);
+                if (Math.abs(expected - data[ch][i]) > tolerance) {
+                    fail(message + " channel " + ch + " frame " + (offset + i)
+                            + " expected " + expected + " was " + data[ch][i]);
+                }
+            }
+        }
+    }
+
+    /*
+     * Maximum error of one sample, which for PCM is half a step plus float
+     * rounding.
+     */
+    private static double tolerance(SampleFormat format) {
+        switch (format) {
+            case PCM8:
+                return 0.51 / 0x7F;
+            case PCM16:
+                return 0.51 / 0x7FFF;
+            case PCM24:
+                return 0.51 / 0x7FFFFF + 1e-7;
+            case PCM32:
+                return 1e-7;
+            default:
+                return 0;
+        }
+    }
+
+    /*
+     * A different signal on each channel, including values close to full
+     * scale. Channel 0 is the input.
+     */
+    private static float sample(int channel, long frame) {
+        return (float) (0.999 * Math.sin(frame * 0.01 * (channel + 1) + channel));
+    }
+
+    private static String id(ByteBuffer buffer, int index) {
+        byte[] id = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            id[i] = buffer.get(index + i);
+        }
+        return new String(id, StandardCharsets.US_ASCII);
+    }
+
+    private static List<FloatBuffer> buffers(int count, int size) {
+        List<FloatBuffer> list = new ArrayList<FloatBuffer>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(FloatBuffer.allocate(size));
+        }
+        return list;
+    }
+
+    static void deleteAll(Path directory) throws IOException {
+        DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+        try {
+            for (Path file : stream) {
+                // may fail while a file is still mapped on some platforms
+                file.toFile().delete();
+            }
+        } finally {
+            stream.close();
+        }
+        directory.toFile().delete();
+    }
+
+    private static class SignalClient implements AudioClient {
+
+        private long frame;
+
+        @Override
+        public void configure(AudioConfiguration context) throws Exception {
+        }
+
+        @Override
+        public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+            for (int ch = 0; ch < outputs.size(); ch++) {
+                FloatBuffer buffer = outputs.get(ch);
+                for (int n = 0; n < nframes; n++) {
+                    buffer.put(n, sample(INPUTS + ch, frame + n));
+                }
+            }
+            frame += nframes;
+            return true;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+    }
+
+}
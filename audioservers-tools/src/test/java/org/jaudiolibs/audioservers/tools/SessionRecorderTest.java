@@ -0,0 +1,261 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * Copying and distribution of this file, with or without modification,
+ * are permitted in any medium without royalty provided the copyright
+ * notice and this notice are preserved.  This file is offered as-is,
+ * without any warranty.
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.tools;
+
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+
+/**
+ * Tests that SessionReplayer reproduces the output of a client recorded by
+ * SessionRecorder, by comparing a hash of everything the client produced.
+ *
+ * @author Neil C Smith
+ */
+public class SessionRecorderTest extends TestCase {
+
+    private final static float SAMPLE_RATE = 48000;
+    private final static int MAX_BUFFER_SIZE = 512;
+    private final static int OUTPUTS = 2;
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("sessionrecorder");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        RecordingTapTest.deleteAll(directory);
+    }
+
+    /*
+     * Record variable buffer sizes, a reconfiguration and control events
+     * posted from another thread, across many small trace segments.
+     */
+    public void testReplay() throws Exception {
+        Path trace = directory.resolve("session.trace");
+        Path unclosed = directory.resolve("unclosed.trace");
+        HashClient client = new HashClient();
+        final SessionRecorder recorder = new SessionRecorder(client, trace)
+                .setSegmentSize(1 << 16);
+        Thread poster = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 200; i++) {
+                    recorder.post(1, i);
+                    try {
+                        Thread.sleep(3);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        });
+        Random random = new Random(1);
+        recorder.configure(new AudioConfiguration(SAMPLE_RATE, 1, OUTPUTS, MAX_BUFFER_SIZE, false));
+        poster.start();
+        long time = run(recorder, random, 1, 0, 750, true);
+        recorder.configure(new AudioConfiguration(SAMPLE_RATE, 2, OUTPUTS, MAX_BUFFER_SIZE, false));
+        run(recorder, random, 2, time, 750, true);
+        poster.join();
+        // a trace that is never closed, eg. after a crash
+        Files.copy(trace, unclosed);
+        long hash = client.hash;
+        long cycles = client.cycles;
+        recorder.shutdown();
+        assertNull(recorder.getException());
+        assertEquals(0, recorder.getOverflows());
+        assertEquals(1500, recorder.getRecordedCycles());
+        assertTrue("Trace " + Files.size(trace), Files.size(trace) > 8 * (1 << 16));
+        assertTrue("Events " + client.events, client.events > 0);
+
+        for (Path path : new Path[]{trace, unclosed}) {
+            HashClient replayed = new HashClient();
+            SessionReplayer replayer = new SessionReplayer(path);
+            try {
+                assertEquals(1500, replayer.replay(replayed));
+                assertEquals(0, replayer.getGapCount());
+            } finally {
+                replayer.close();
+            }
+            assertEquals(path.toString(), cycles, replayed.cycles);
+            assertEquals(path.toString(), client.events, replayed.events);
+            assertEquals(path.toString(), hash, replayed.hash);
+            assertTrue(replayed.shutdown);
+        }
+    }
+
+    /*
+     * Recording flat out with small segments may overflow. Missing cycles
+     * are marked in the trace.
+     */
+    public void testGaps() throws Exception {
+        Path trace = directory.resolve("gaps.trace");
+        HashClient client = new HashClient();
+        SessionRecorder recorder = new SessionRecorder(client, trace)
+                .setSegmentSize(1);
+        recorder.configure(new AudioConfiguration(SAMPLE_RATE, 1, OUTPUTS, MAX_BUFFER_SIZE, false));
+        run(recorder, new Random(2), 1, 0, 5000, false);
+        recorder.shutdown();
+        assertNull(recorder.getException());
+        assertEquals(5000, recorder.getRecordedCycles() + recorder.getOverflows());
+        SessionReplayer replayer = new SessionReplayer(trace);
+        try {
+            HashClient replayed = new HashClient();
+            assertEquals(recorder.getRecordedCycles(), replayer.replay(replayed));
+            assertEquals(recorder.getOverflows(), replayer.getGapCount());
+        } finally {
+            replayer.close();
+        }
+    }
+
+    public void testRewind() throws Exception {
+        Path trace = directory.resolve("rewind.trace");
+        SessionRecorder recorder = new SessionRecorder(new HashClient(), trace);
+        recorder.configure(new AudioConfiguration(SAMPLE_RATE, 1, OUTPUTS, MAX_BUFFER_SIZE, false));
+        run(recorder, new Random(3), 1, 0, 100, false);
+        recorder.shutdown();
+        SessionReplayer replayer = new SessionReplayer(trace);
+        try {
+            HashClient replayed = new HashClient();
+            replayer.start(replayed);
+            int steps = 0;
+            while (replayer.step()) {
+                steps++;
+            }
+            assertEquals(100, steps);
+            long hash = replayed.hash;
+            replayed.reset();
+            replayer.rewind();
+            while (replayer.step()) {
+            }
+            assertEquals(hash, replayed.hash);
+            assertEquals(200, replayer.getCycleCount());
+            replayer.stop();
+        } finally {
+            replayer.close();
+        }
+    }
+
+    /*
+     * Process cycles of random size and input, returning the time after the
+     * last cycle.
+     */
+    private static long run(SessionRecorder recorder, Random random, int channels,
+            long time, int cycles, boolean paced) throws Exception {
+        List<FloatBuffer> inputs = buffers(channels, MAX_BUFFER_SIZE);
+        List<FloatBuffer> outputs = buffers(OUTPUTS, MAX_BUFFER_SIZE);
+        for (int i = 0; i < cycles; i++) {
+            int nframes = 1 + random.nextInt(MAX_BUFFER_SIZE);
+            for (FloatBuffer buffer : inputs) {
+                for (int n = 0; n < nframes; n++) {
+                    buffer.put(n, random.nextFloat() * 2 - 1);
+                }
+            }
+            assertTrue(recorder.process(time, inputs, outputs, nframes));
+            time += TimeUnit.SECONDS.toNanos(nframes) / (long) SAMPLE_RATE;
+            if (paced) {
+                // leave time for the next segment to be mapped
+                Thread.sleep(1);
+            }
+        }
+        return time;
+    }
+
+    private static List<FloatBuffer> buffers(int count, int size) {
+        List<FloatBuffer> list = new ArrayList<FloatBuffer>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(FloatBuffer.allocate(size));
+        }
+        return list;
+    }
+
+    /*
+     * Output depends on the input, control events and all previous cycles.
+     */
+    private static class HashClient implements AudioClient, SessionRecorder.EventHandler {
+
+        private long hash;
+        private long cycles;
+        private long events;
+        private float gain;
+        private float state;
+        private boolean shutdown;
+
+        private void reset() {
+            hash = 0;
+            cycles = 0;
+            events = 0;
+            gain = 0;
+            state = 0;
+        }
+
+        private void mix(long value) {
+            hash = hash * 31 + value;
+        }
+
+        @Override
+        public void configure(AudioConfiguration context) throws Exception {
+            mix(Float.floatToIntBits(context.getSampleRate()));
+            mix(context.getInputChannelCount());
+            mix(context.getOutputChannelCount());
+            mix(context.getMaxBufferSize());
+        }
+
+        @Override
+        public void controlEvent(int type, long value) {
+            gain = value / 200f;
+            events++;
+            mix(type);
+            mix(value);
+        }
+
+        @Override
+        public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+            mix(time);
+            mix(nframes);
+            for (int n = 0; n < nframes; n++) {
+                float in = 0;
+                for (FloatBuffer input : inputs) {
+                    in += input.get(n);
+                }
+                state = state * 0.99f + in * gain;
+                for (int ch = 0; ch < outputs.size(); ch++) {
+                    float out = state * (ch + 1);
+                    outputs.get(ch).put(n, out);
+                    mix(Float.floatToIntBits(out));
+                }
+            }
+            cycles++;
+            return true;
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.udp;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Jitter buffer for received audio, indexed by packet sequence number. Only
+ * accessed from the server thread.
+ *
+ * Playout starts once the requested number of consecutive buffers is
+ * available. Missing buffers are concealed by repeating the last good buffer
+ * with a fade to silence over a few buffers. Packets arriving after their
+ * playout time are discarded. If the sequence jumps too far in either
+ * direction, or the buffer runs dry for too long, it resets and starts
+ * filling again.
+ *
+ * @author Neil C Smith
+ */
+class JitterBuffer {
+
+	private final static int CONCEAL_BUFFERS = 4;
+
+	private final int depth;
+	private final int channels;
+	private final int frames;
+	private final float[][] slots;
+	private final int[] slotSequence;
+	private final boolean[] slotValid;
+	private final int mask;
+	private final float[] last;
+
+	private boolean anchored;
+	private boolean primed;
+	private int playSequence;
+	private int newestSequence;
+	private int concealed;
+
+	private volatile long received;
+	private volatile long lost;
+	private volatile long late;
+	private volatile long resets;
+
+	JitterBuffer(int depth, int channels, int frames) {
+		this.depth = depth;
+		this.channels = channels;
+		this.frames = frames;
+		int size = Integer.highestOneBit(Math.max(4, depth * 4) - 1) << 1;
+		slots = new float[size][channels * frames];
+		slotSequence = new int[size];
+		slotValid = new boolean[size];
+		mask = size - 1;
+		last = new float[channels * frames];
+	}
+
+	/*
+	 * Store the payload of a received packet. The payload is interleaved,
+	 * with the given number of channels.
+	 */
+	void put(int sequence, ByteBuffer payload, int index, UDPSampleFormat format, int payloadChannels) {
+		if (!anchored) {
+			anchored = true;
+			playSequence = sequence;
+			newestSequence = sequence;
+		}
+		int offset = sequence - playSequence;
+		if (offset < 0) {
+			if (offset < -(mask + 1)) {
+				// remote restarted
+				reset();
+				put(sequence, payload, index, format, payloadChannels);
+			} else {
+				late++;
+			}
+			return;
+		}
+		if (offset > mask) {
+			reset();
+			put(sequence, payload, index, format, payloadChannels);
+			return;
+		}
+		received++;
+		int slot = sequence & mask;
+		decode(payload, index, format, payloadChannels, slots[slot]);
+		slotSequence[slot] = sequence;
+		slotValid[slot] = true;
+		if (sequence - newestSequence > 0) {
+			newestSequence = sequence;
+		}
+		if (!primed && newestSequence - playSequence + 1 >= depth) {
+			primed = true;
+		}
+	}
+
+	private void decode(ByteBuffer payload, int index, UDPSampleFormat format, int payloadChannels, float[] data) {
+		int count = Math.min(channels, payloadChannels);
+		int sampleBytes = format.getBytesPerSample();
+		int stride = payloadChannels * sampleBytes;
+		for (int ch = 0; ch < channels; ch++) {
+			if (ch >= count) {
+				for (int n = 0; n < frames; n++) {
+					data[n * channels + ch] = 0;
+				}
+				continue;
+			}
+			int pos = index + ch * sampleBytes;
+			if (format == UDPSampleFormat.FLOAT32) {
+				for (int n = 0; n < frames; n++, pos += stride) {
+					data[n * channels + ch] = payload.getFloat(pos);
+				}
+			} else {
+				for (int n = 0; n < frames; n++, pos += stride) {
+					data[n * channels + ch] = payload.getShort(pos) * (1f / 0x7FFF);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Whether the buffer holds enough audio for playout to keep the
+	 * requested depth.
+	 */
+	boolean isReady() {
+		return primed && newestSequence - playSequence + 1 >= depth;
+	}
+
+	/*
+	 * Write the next buffer into the inputs, advancing the playout position.
+	 * Returns false if the buffer was concealed or silent.
+	 */
+	boolean read(List<FloatBuffer> inputs) {
+		if (!primed) {
+			silence(inputs);
+			return false;
+		}
+		int slot = playSequence & mask;
+		boolean ok = slotValid[slot] && slotSequence[slot] == playSequence;
+		if (ok) {
+			slotValid[slot] = false;
+			System.arraycopy(slots[slot], 0, last, 0, last.length);
+			concealed = 0;
+			write(inputs, 1, 1);
+		} else {
+			lost++;
+			concealed++;
+			if (concealed > CONCEAL_BUFFERS) {
+				silence(inputs);
+			} else {
+				write(inputs, 1 - (float) (concealed - 1) / CONCEAL_BUFFERS,
+						1 - (float) concealed / CONCEAL_BUFFERS);
+			}
+		}
+		playSequence++;
+		if (playSequence - newestSequence > mask) {
+			// remote has stopped sending
+			reset();
+		}
+		return ok;
+	}
+
+	private void write(List<FloatBuffer> inputs, float startGain, float endGain) {
+		int count = Math.min(channels, inputs.size());
+		float delta = (endGain - startGain) / frames;
+		for (int ch = 0; ch < count; ch++) {
+			FloatBuffer buffer = inputs.get(ch);
+			int pos = buffer.position();
+			float gain = startGain;
+			for (int n = 0; n < frames; n++) {
+				buffer.put(pos + n, last[n * channels + ch] * gain);
+				gain += delta;
+			}
+		}
+	}
+
+	private void silence(List<FloatBuffer> inputs) {
+		int count = inputs.size();
+		for (int ch = 0; ch < count; ch++) {
+			FloatBuffer buffer = inputs.get(ch);
+			int pos = buffer.position();
+			for (int n = 0; n < frames; n++) {
+				buffer.put(pos + n, 0);
+			}
+		}
+	}
+
+	private void reset() {
+		resets++;
+		anchored = false;
+		primed = false;
+		concealed = 0;
+		Arrays.fill(slotValid, false);
+		Arrays.fill(last, 0);
+	}
+
+	/*
+	 * Number of buffers received and not yet played.
+	 */
+	int getLevel() {
+		return anchored ? Math.max(0, newestSequence - playSequence + 1) : 0;
+	}
+
+	long getReceived() {
+		return received;
+	}
+
+	long getLost() {
+		return lost;
+	}
+
+	long getLate() {
+		return late;
+	}
+
+	long getResets() {
+		return resets;
+	}
+
+}
@@ -0,0 +1,505 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+import org.jaudiolibs.audioservers.AudioServer;
+import org.jaudiolibs.audioservers.ext.Latency;
+import org.jaudiolibs.audioservers.util.FadeOut;
+import org.jaudiolibs.audioservers.util.TimeFilter;
+
+/**
+ * Implementation of AudioServer that sends outputs to, and receives inputs
+ * from, another node over UDP.
+ *
+ * Each buffer of output audio is sent as a single datagram of interleaved
+ * samples, with a header carrying a sequence number and frame position.
+ * Received datagrams are placed in a jitter buffer by sequence number, and
+ * lost datagrams are concealed. Both nodes must use the same buffer size, and
+ * a buffer of audio must fit in a single datagram - to avoid IP fragmentation
+ * on a real network it should also fit within the path MTU.
+ *
+ * The server is clocked either by a local timer or by the stream received
+ * from the remote node - see {@link UDPClockMode}.
+ *
+ * @author Neil C Smith
+ */
+public class UDPAudioServer implements AudioServer {
+
+	private final static Logger LOG = Logger.getLogger(UDPAudioServer.class.getName());
+
+	final static int MAGIC = 0x4A415544; // JAUD
+	final static int VERSION = 1;
+	final static int HEADER_SIZE = 24;
+	private final static int MAX_DATAGRAM = 65507;
+	private final static long SELECT_TIMEOUT = 100;
+	private final static UDPSampleFormat[] FORMATS = UDPSampleFormat.values();
+
+	private enum State {
+
+		New, Initialising, Active, Closing, Terminated
+	};
+
+	private final UDPEndpoint endpoint;
+	private final UDPClockMode clockMode;
+	private final UDPSampleFormat format;
+	private final AudioConfiguration context;
+	private final AudioClient client;
+	private final int bufferSize;
+	private final AtomicReference<State> state;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private final FadeOut fadeOut = new FadeOut();
+	private final TimeFilter timeFilter;
+	private final JitterBuffer jitterBuffer;
+
+	private DatagramChannel channel;
+	private Selector selector;
+	private ByteBuffer sendBuffer;
+	private ByteBuffer receiveBuffer;
+	private float[][] outputData;
+	private List<FloatBuffer> inputBuffers;
+	private List<FloatBuffer> outputBuffers;
+	private volatile SocketAddress remote;
+	private volatile InetSocketAddress localAddress;
+	private int sequence;
+	private long framePosition;
+
+	private volatile long sent;
+	private volatile long sendDropped;
+	private volatile long rejected;
+	private volatile long overruns;
+	private volatile int jitterLevel;
+
+	public UDPAudioServer(UDPEndpoint endpoint, UDPClockMode clockMode, UDPSampleFormat format,
+			AudioConfiguration config, AudioClient client) {
+		if (endpoint == null || clockMode == null || format == null || client == null) {
+			throw new NullPointerException();
+		}
+		int packetSize = HEADER_SIZE + config.getMaxBufferSize()
+				* Math.max(config.getInputChannelCount(), config.getOutputChannelCount()) * 4;
+		if (packetSize > MAX_DATAGRAM) {
+			throw new IllegalArgumentException("Buffer size too large for a single datagram");
+		}
+		this.endpoint = endpoint;
+		this.clockMode = clockMode;
+		this.format = format;
+		this.client = client;
+		this.bufferSize = config.getMaxBufferSize();
+		this.context = new AudioConfiguration(config.getSampleRate(),
+				config.getInputChannelCount(), config.getOutputChannelCount(),
+				bufferSize, endpoint, clockMode, format,
+				new Latency(endpoint.getJitterBuffer() * bufferSize, 0));
+		this.remote = endpoint.getRemoteAddress();
+		this.state = new AtomicReference<State>(State.New);
+		timeFilter = new TimeFilter(context.getSampleRate());
+		jitterBuffer = new JitterBuffer(endpoint.getJitterBuffer(),
+				context.getInputChannelCount(), bufferSize);
+	}
+
+	@Override
+	public void run() throws Exception {
+		if (!state.compareAndSet(State.New, State.Initialising)) {
+			throw new IllegalStateException();
+		}
+		try {
+			try {
+				initialise();
+			} catch (Exception ex) {
+				state.set(State.Terminated);
+				closeAll();
+				client.shutdown();
+				throw ex;
+			}
+			if (state.compareAndSet(State.Initialising, State.Active)) {
+				runImpl();
+			}
+			closeAll();
+			client.shutdown();
+			state.set(State.Terminated);
+		} finally {
+			terminated.countDown();
+		}
+	}
+
+	private void initialise() throws Exception {
+		channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		int packets = Math.max(8, endpoint.getJitterBuffer() * 4);
+		int packetSize = HEADER_SIZE + bufferSize
+				* Math.max(context.getInputChannelCount(), context.getOutputChannelCount()) * 4;
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, packets * packetSize);
+		channel.bind(endpoint.getLocalAddress());
+		channel.configureBlocking(false);
+		localAddress = (InetSocketAddress) channel.getLocalAddress();
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		sendBuffer = ByteBuffer.allocateDirect(HEADER_SIZE
+				+ bufferSize * context.getOutputChannelCount() * format.getBytesPerSample());
+		receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+		inputBuffers = createBuffers(context.getInputChannelCount(), null);
+		outputData = new float[context.getOutputChannelCount()][bufferSize];
+		outputBuffers = createBuffers(context.getOutputChannelCount(), outputData);
+		LOG.log(Level.FINE, "Configuring AudioClient\n{0}", context);
+		client.configure(context);
+	}
+
+	private List<FloatBuffer> createBuffers(int count, float[][] data) {
+		List<FloatBuffer> list = new ArrayList<FloatBuffer>(count);
+		for (int i = 0; i < count; i++) {
+			list.add(data == null ? FloatBuffer.allocate(bufferSize) : FloatBuffer.wrap(data[i]));
+		}
+		return Collections.unmodifiableList(list);
+	}
+
+	private void runImpl() {
+		try {
+			if (clockMode == UDPClockMode.Remote) {
+				runRemote();
+			} else {
+				runLocal();
+			}
+		} catch (Exception ex) {
+			LOG.log(Level.WARNING, "", ex);
+		}
+	}
+
+	private void runLocal() throws IOException {
+		long period = (long) (bufferSize * 1e9 / context.getSampleRate());
+		long next = System.nanoTime();
+		while (state.get() == State.Active) {
+			receive();
+			process();
+			next += period;
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			} else if (wait < -4 * period) {
+				// too far behind - don't try to catch up
+				overruns++;
+				next = System.nanoTime();
+				timeFilter.reset();
+			}
+		}
+	}
+
+	private void runRemote() throws IOException {
+		while (state.get() == State.Active) {
+			selector.select(SELECT_TIMEOUT);
+			selector.selectedKeys().clear();
+			receive();
+			while (state.get() == State.Active && jitterBuffer.isReady()) {
+				process();
+			}
+		}
+	}
+
+	private void receive() throws IOException {
+		while (true) {
+			receiveBuffer.clear();
+			SocketAddress from = channel.receive(receiveBuffer);
+			if (from == null) {
+				break;
+			}
+			receiveBuffer.flip();
+			if (!validate(receiveBuffer)) {
+				rejected++;
+				continue;
+			}
+			if (endpoint.getRemoteAddress() == null) {
+				remote = from;
+			}
+			int payloadChannels = receiveBuffer.getShort(6) & 0xFFFF;
+			UDPSampleFormat payloadFormat = FORMATS[receiveBuffer.get(5)];
+			jitterBuffer.put(receiveBuffer.getInt(12), receiveBuffer, HEADER_SIZE,
+					payloadFormat, payloadChannels);
+		}
+		jitterLevel = jitterBuffer.getLevel();
+	}
+
+	private boolean validate(ByteBuffer packet) {
+		int length = packet.remaining();
+		if (length < HEADER_SIZE || packet.getInt(0) != MAGIC || packet.get(4) != VERSION) {
+			return false;
+		}
+		int fmt = packet.get(5);
+		if (fmt < 0 || fmt >= FORMATS.length) {
+			return false;
+		}
+		int channels = packet.getShort(6) & 0xFFFF;
+		int frames = packet.getShort(8) & 0xFFFF;
+		if (frames != bufferSize) {
+			return false;
+		}
+		return length == HEADER_SIZE + channels * frames * FORMATS[fmt].getBytesPerSample();
+	}
+
+	private void process() throws IOException {
+		for (int i = 0; i < inputBuffers.size(); i++) {
+			inputBuffers.get(i).clear();
+		}
+		jitterBuffer.read(inputBuffers);
+		for (int i = 0; i < outputData.length; i++) {
+			float[] data = outputData[i];
+			for (int n = 0; n < bufferSize; n++) {
+				data[n] = 0;
+			}
+			outputBuffers.get(i).clear();
+		}
+		long time = timeFilter.update(System.nanoTime(), bufferSize);
+		if (!client.process(time, inputBuffers, outputBuffers, bufferSize)) {
+			shutdown();
+		}
+		if (fadeOut.process(outputBuffers, bufferSize)) {
+			shutdown();
+		}
+		send();
+		framePosition += bufferSize;
+	}
+
+	private void send() throws IOException {
+		SocketAddress target = remote;
+		int channels = outputData.length;
+		if (target == null || channels == 0) {
+			sequence++;
+			return;
+		}
+		ByteBuffer buf = sendBuffer;
+		buf.clear();
+		buf.putInt(MAGIC);
+		buf.put((byte) VERSION);
+		buf.put((byte) format.ordinal());
+		buf.putShort((short) channels);
+		buf.putShort((short) bufferSize);
+		buf.putShort((short) 0);
+		buf.putInt(sequence++);
+		buf.putLong(framePosition);
+		if (format == UDPSampleFormat.FLOAT32) {
+			for (int n = 0; n < bufferSize; n++) {
+				for (int ch = 0; ch < channels; ch++) {
+					buf.putFloat(outputData[ch][n]);
+				}
+			}
+		} else {
+			for (int n = 0; n < bufferSize; n++) {
+				for (int ch = 0; ch < channels; ch++) {
+					float f = outputData[ch][n];
+					f = f > 1 ? 1 : (f < -1 ? -1 : f);
+					buf.putShort((short) Math.round(f * 0x7FFF));
+				}
+			}
+		}
+		buf.flip();
+		if (channel.send(buf, target) == 0) {
+			sendDropped++;
+		} else {
+			sent++;
+		}
+	}
+
+	private void closeAll() {
+		try {
+			if (selector != null) {
+				selector.close();
+			}
+		} catch (Throwable t) {
+		}
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (Throwable t) {
+		}
+	}
+
+	@Override
+	public AudioConfiguration getAudioContext() {
+		return context;
+	}
+
+	@Override
+	public boolean isActive() {
+		State st = state.get();
+		return (st == State.Active || st == State.Closing);
+	}
+
+	@Override
+	public void shutdown() {
+		State st;
+		do {
+			st = state.get();
+			if (st == State.Terminated || st == State.Closing) {
+				break;
+			}
+		} while (!state.compareAndSet(st, State.Closing));
+		Selector sel = selector;
+		if (sel != null) {
+			sel.wakeup();
+		}
+	}
+
+	/**
+	 * Fade the output to silence before shutting down. If the server is not
+	 * active, this is the same as shutdown().
+	 *
+	 * @param fadeTime
+	 * @param unit
+	 */
+	@Override
+	public void shutdown(long fadeTime, TimeUnit unit) {
+		if (state.get() == State.Active) {
+			fadeOut.start((int) (unit.toNanos(fadeTime) * context.getSampleRate() / 1e9));
+		} else {
+			shutdown();
+		}
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	/**
+	 * The address the server is bound to, once it is running. Useful if the
+	 * endpoint requested an ephemeral port.
+	 *
+	 * @return local address, or null if not yet bound
+	 */
+	public InetSocketAddress getLocalAddress() {
+		return localAddress;
+	}
+
+	/**
+	 * The filter used to derive the time passed to the client.
+	 *
+	 * @return time filter
+	 */
+	public TimeFilter getTimeFilter() {
+		return timeFilter;
+	}
+
+	/**
+	 * Number of datagrams sent.
+	 *
+	 * @return sent count
+	 */
+	public long getPacketsSent() {
+		return sent;
+	}
+
+	/**
+	 * Number of datagrams not sent because the socket buffer was full.
+	 *
+	 * @return dropped count
+	 */
+	public long getPacketsNotSent() {
+		return sendDropped;
+	}
+
+	/**
+	 * Number of datagrams received and placed in the jitter buffer.
+	 *
+	 * @return received count
+	 */
+	public long getPacketsReceived() {
+		return jitterBuffer.getReceived();
+	}
+
+	/**
+	 * Number of buffers that were missing at playout time and concealed.
+	 *
+	 * @return lost count
+	 */
+	public long getPacketsLost() {
+		return jitterBuffer.getLost();
+	}
+
+	/**
+	 * Number of datagrams that arrived after their playout time.
+	 *
+	 * @return late count
+	 */
+	public long getPacketsLate() {
+		return jitterBuffer.getLate();
+	}
+
+	/**
+	 * Number of datagrams rejected because they were not valid audio packets
+	 * or had a different buffer size.
+	 *
+	 * @return rejected count
+	 */
+	public long getPacketsRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Number of times the jitter buffer has been reset, eg. because the
+	 * remote node restarted or clock drift emptied or overfilled it.
+	 *
+	 * @return reset count
+	 */
+	public long getJitterBufferResets() {
+		return jitterBuffer.getResets();
+	}
+
+	/**
+	 * Number of buffers received but not yet played.
+	 *
+	 * @return jitter buffer level
+	 */
+	public int getJitterBufferLevel() {
+		return jitterLevel;
+	}
+
+	/**
+	 * Number of times the local clock fell too far behind and was reset.
+	 *
+	 * @return overrun count
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+}
@@ -0,0 +1,67 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.udp;
+
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+import org.jaudiolibs.audioservers.AudioServer;
+import org.jaudiolibs.audioservers.AudioServerProvider;
+
+/**
+ * Provider of UDPAudioServer. The configuration must contain a
+ * {@link UDPEndpoint}, and may contain a {@link UDPClockMode} (default Local)
+ * and {@link UDPSampleFormat} (default FLOAT32).
+ *
+ * @author Neil C Smith
+ */
+public class UDPAudioServerProvider extends AudioServerProvider {
+
+    @Override
+    public String getLibraryName() {
+        return "UDP";
+    }
+
+    @Override
+    public String getLibraryDescription() {
+        return "Audio over UDP";
+    }
+
+    @Override
+    public AudioServer createServer(AudioConfiguration config, AudioClient client) throws Exception {
+        UDPEndpoint endpoint = config.find(UDPEndpoint.class);
+        if (endpoint == null) {
+            throw new IllegalArgumentException("No UDPEndpoint in configuration");
+        }
+        UDPClockMode clock = config.find(UDPClockMode.class);
+        if (clock == null) {
+            clock = UDPClockMode.Local;
+        }
+        UDPSampleFormat format = config.find(UDPSampleFormat.class);
+        if (format == null) {
+            format = UDPSampleFormat.FLOAT32;
+        }
+        return new UDPAudioServer(endpoint, clock, format, config, client);
+    }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.udp;
+
+/**
+ * Clock used to drive a UDPAudioServer.
+ */
+public enum UDPClockMode {
+
+    /**
+     * Process a buffer at regular intervals measured by System.nanoTime().
+     * Use on the node that is the clock master. Drift between the local and
+     * remote clocks will eventually cause the jitter buffer to reset.
+     */
+    Local,
+    /**
+     * Process a buffer for each buffer received from the remote node, once
+     * the jitter buffer has filled. The remote node must be clocked by
+     * something else - two nodes both using Remote will never start.
+     */
+    Remote
+}
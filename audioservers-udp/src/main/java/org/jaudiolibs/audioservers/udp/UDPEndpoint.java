@@ -0,0 +1,91 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.udp;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Network endpoint of a UDPAudioServer. Pass in the AudioConfiguration used
+ * to create the server.
+ *
+ * @author Neil C Smith
+ */
+public final class UDPEndpoint {
+
+    /**
+     * Default jitter buffer size in buffers.
+     */
+    public final static int DEFAULT_JITTER_BUFFER = 3;
+
+    private final InetSocketAddress localAddress;
+    private final InetSocketAddress remoteAddress;
+    private final int jitterBuffer;
+
+    /**
+     * Create a UDPEndpoint with the default jitter buffer size.
+     *
+     * @param localAddress address to bind to, or null for an ephemeral port
+     * @param remoteAddress address to send to, or null to reply to the last
+     * node that sent audio
+     */
+    public UDPEndpoint(InetSocketAddress localAddress, InetSocketAddress remoteAddress) {
+        this(localAddress, remoteAddress, DEFAULT_JITTER_BUFFER);
+    }
+
+    /**
+     * Create a UDPEndpoint.
+     *
+     * @param localAddress address to bind to, or null for an ephemeral port
+     * @param remoteAddress address to send to, or null to reply to the last
+     * node that sent audio
+     * @param jitterBuffer number of buffers received before playout starts
+     */
+    public UDPEndpoint(InetSocketAddress localAddress, InetSocketAddress remoteAddress, int jitterBuffer) {
+        if (jitterBuffer < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.localAddress = localAddress;
+        this.remoteAddress = remoteAddress;
+        this.jitterBuffer = jitterBuffer;
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public int getJitterBuffer() {
+        return jitterBuffer;
+    }
+
+    @Override
+    public String toString() {
+        return "UDPEndpoint[local=" + localAddress + ", remote=" + remoteAddress
+                + ", jitterBuffer=" + jitterBuffer + "]";
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.udp;
+
+/**
+ * Sample format of audio sent by a UDPAudioServer. Received packets may use
+ * either format.
+ */
+public enum UDPSampleFormat {
+
+    /**
+     * 16 bit signed integer, big endian.
+     */
+    PCM16(2),
+    /**
+     * 32 bit IEEE float, big endian.
+     */
+    FLOAT32(4);
+
+    private final int bytes;
+
+    private UDPSampleFormat(int bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Size of a single sample in bytes.
+     *
+     * @return bytes per sample
+     */
+    public int getBytesPerSample() {
+        return bytes;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2013 Neil C Smith.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published
+ * by the Free Software Foundation; either version 2.1 of the License,
+ * or (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this work; if not, see http://www.gnu.org/licenses/
+ * 
+ *
+ * Please visit http://neilcsmith.net if you need additional information or
+ * have any questions.
+ *
+ */
+package org.jaudiolibs.audioservers.udp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.jaudiolibs.audioservers.AudioClient;
+import org.jaudiolibs.audioservers.AudioConfiguration;
+
+/**
+ * Tests UDPAudioServer over the loopback interface, with a locally clocked
+ * node sending a known signal to a remotely clocked node that echoes it back.
+ *
+ * @author Neil C Smith
+ */
+public class UDPAudioServerTest extends TestCase {
+
+	private final static float SAMPLE_RATE = 48000;
+	private final static int BUFFER_SIZE = 64;
+	private final static int CHANNELS = 2;
+	private final static int CYCLES = 200;
+
+	public void testLoopbackFloat32() throws Exception {
+		loopback(UDPSampleFormat.FLOAT32, 0);
+	}
+
+	public void testLoopbackPCM16() throws Exception {
+		loopback(UDPSampleFormat.PCM16, 1f / 0x7FFF);
+	}
+
+	public void testShutdownRemoteClock() throws Exception {
+		UDPAudioServer server = create(UDPClockMode.Remote, UDPSampleFormat.FLOAT32,
+				null, new EchoClient(0, 0));
+		start(server);
+		// waiting for audio that never arrives
+		server.shutdown();
+		assertTrue(server.awaitTermination(2, TimeUnit.SECONDS));
+		assertFalse(server.isActive());
+	}
+
+	public void testRejectsWrongBufferSize() throws Exception {
+		UDPAudioServer server = create(UDPClockMode.Remote, UDPSampleFormat.FLOAT32,
+				null, new EchoClient(0, 0));
+		start(server);
+		DatagramChannel sender = DatagramChannel.open();
+		try {
+			int frames = BUFFER_SIZE * 2;
+			ByteBuffer packet = ByteBuffer.allocate(UDPAudioServer.HEADER_SIZE + frames * CHANNELS * 4);
+			packet.putInt(UDPAudioServer.MAGIC);
+			packet.put((byte) UDPAudioServer.VERSION);
+			packet.put((byte) UDPSampleFormat.FLOAT32.ordinal());
+			packet.putShort((short) CHANNELS);
+			packet.putShort((short) frames);
+			packet.position(packet.capacity());
+			packet.flip();
+			sender.send(packet, server.getLocalAddress());
+			long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+			while (server.getPacketsRejected() == 0 && System.nanoTime() < end) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, server.getPacketsRejected());
+			assertEquals(0, server.getPacketsReceived());
+		} finally {
+			sender.close();
+			stop(server);
+		}
+	}
+
+	private void loopback(UDPSampleFormat format, float tolerance) throws Exception {
+		EchoClient echo = new EchoClient(CYCLES, tolerance);
+		UDPAudioServer remote = create(UDPClockMode.Remote, format, null, echo);
+		start(remote);
+		SourceClient source = new SourceClient(CYCLES, tolerance);
+		UDPAudioServer local = create(UDPClockMode.Local, format, remote.getLocalAddress(), source);
+		start(local);
+		try {
+			assertTrue("echo node received " + echo.count,
+					echo.done.await(5, TimeUnit.SECONDS));
+			assertNull(echo.error, echo.error);
+			assertTrue("source node received " + source.count,
+					source.done.await(5, TimeUnit.SECONDS));
+			assertNull(source.error, source.error);
+			assertEquals(0, remote.getPacketsRejected());
+			assertEquals(0, local.getPacketsRejected());
+			assertEquals(0, remote.getPacketsLost());
+			assertTrue(local.getPacketsSent() >= CYCLES);
+		} finally {
+			stop(local);
+			stop(remote);
+		}
+		assertTrue("concealed " + source.concealed + " lost " + local.getPacketsLost(),
+				source.concealed <= local.getPacketsLost());
+	}
+
+	private static UDPAudioServer create(UDPClockMode clock, UDPSampleFormat format,
+			InetSocketAddress remote, AudioClient client) throws Exception {
+		UDPEndpoint endpoint = new UDPEndpoint(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), remote);
+		AudioConfiguration config = new AudioConfiguration(SAMPLE_RATE, CHANNELS, CHANNELS,
+				BUFFER_SIZE, endpoint, clock, format);
+		return (UDPAudioServer) new UDPAudioServerProvider().createServer(config, client);
+	}
+
+	private static void start(final UDPAudioServer server) throws Exception {
+		Thread runner = new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					server.run();
+				} catch (Exception ex) {
+					ex.printStackTrace();
+				}
+			}
+		}, "UDPAudioServerTest");
+		runner.setDaemon(true);
+		runner.start();
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+		while (server.getLocalAddress() == null) {
+			assertTrue("server not bound", System.nanoTime() < end);
+			Thread.sleep(10);
+		}
+	}
+
+	private static void stop(UDPAudioServer server) throws Exception {
+		server.shutdown();
+		assertTrue(server.awaitTermination(2, TimeUnit.SECONDS));
+	}
+
+	/*
+	 * Value of a sample in the test signal - a ramp, negated on odd channels,
+	 * that fits 16 bit samples without clipping.
+	 */
+	private static float signal(long frame, int channel) {
+		float v = (frame % 0x7FFF) / (float) 0x7FFF;
+		return (channel & 1) == 0 ? v : -v;
+	}
+
+	/*
+	 * Checks a buffer continues the test signal from the given frame, returning
+	 * a description of the first mismatch, or null.
+	 */
+	private static String check(List<FloatBuffer> inputs, long frame, int nframes, float tolerance) {
+		for (int ch = 0; ch < inputs.size(); ch++) {
+			FloatBuffer in = inputs.get(ch);
+			for (int n = 0; n < nframes; n++) {
+				float expected = signal(frame + n, ch);
+				if (Math.abs(in.get(n) - expected) > tolerance) {
+					return "frame " + (frame + n) + " channel " + ch + " expected "
+							+ expected + " was " + in.get(n);
+				}
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Finds the frame at which a buffer of the test signal starts, or -1 if
+	 * the buffer is silent.
+	 */
+	private static long startFrame(List<FloatBuffer> inputs, long from) {
+		float first = inputs.get(0).get(0);
+		float second = inputs.get(0).get(1);
+		if (first == 0 && second == 0) {
+			return -1;
+		}
+		long frame = Math.round(first * 0x7FFF);
+		// signal ramp wraps every 0x7FFF frames
+		return frame + ((from - frame + 0x7FFE) / 0x7FFF) * 0x7FFF;
+	}
+
+	/*
+	 * Sends the test signal, and checks it is echoed back intact. This node
+	 * is locally clocked, so a late echo may be concealed - those buffers are
+	 * counted.
+	 */
+	private static class SourceClient implements AudioClient {
+
+		private final CountDownLatch done;
+		private final float tolerance;
+		private long frame;
+		private long echoFrame = -1;
+		private volatile int count;
+		private volatile int concealed;
+		private volatile String error;
+
+		private SourceClient(int cycles, float tolerance) {
+			done = new CountDownLatch(cycles);
+			this.tolerance = tolerance;
+		}
+
+		public void configure(AudioConfiguration context) throws Exception {
+		}
+
+		public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+			for (int ch = 0; ch < outputs.size(); ch++) {
+				FloatBuffer out = outputs.get(ch);
+				for (int n = 0; n < nframes; n++) {
+					out.put(n, signal(frame + n, ch));
+				}
+			}
+			frame += nframes;
+			if (done.getCount() == 0) {
+				return true;
+			}
+			long start = startFrame(inputs, Math.max(echoFrame, 0));
+			if (start >= 0 && check(inputs, start, nframes, tolerance) == null) {
+				if (start < echoFrame) {
+					error = "echo went back from frame " + echoFrame + " to " + start;
+				}
+				echoFrame = start + nframes;
+				count++;
+				done.countDown();
+			} else if (echoFrame >= 0) {
+				concealed++;
+			}
+			return true;
+		}
+
+		public void shutdown() {
+		}
+
+	}
+
+	/*
+	 * Checks the received test signal, and echoes it back.
+	 */
+	private static class EchoClient implements AudioClient {
+
+		private final CountDownLatch done;
+		private final float tolerance;
+		private long frame = -1;
+		private volatile int count;
+		private volatile String error;
+
+		private EchoClient(int cycles, float tolerance) {
+			done = new CountDownLatch(cycles);
+			this.tolerance = tolerance;
+		}
+
+		public void configure(AudioConfiguration context) throws Exception {
+		}
+
+		public boolean process(long time, List<FloatBuffer> inputs, List<FloatBuffer> outputs, int nframes) {
+			for (int ch = 0; ch < outputs.size(); ch++) {
+				FloatBuffer in = inputs.get(ch);
+				FloatBuffer out = outputs.get(ch);
+				for (int n = 0; n < nframes; n++) {
+					out.put(n, in.get(n));
+				}
+			}
+			if (frame < 0) {
+				frame = startFrame(inputs, 0);
+			}
+			if (frame >= 0 && error == null && done.getCount() > 0) {
+				error = check(inputs, frame, nframes, tolerance);
+				frame += nframes;
+				count++;
+				done.countDown();
+			}
+			return true;
+		}
+
+		public void shutdown() {
+		}
+
+	}
+
+}